@@ -28,8 +28,10 @@
 
 package uk.ac.rdg.resc.edal.dataset.cdm;
 
+import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -50,6 +52,7 @@ import uk.ac.rdg.resc.edal.exceptions.EdalException;
 import uk.ac.rdg.resc.edal.metadata.DiscreteLayeredVariableMetadata;
 import uk.ac.rdg.resc.edal.metadata.Parameter;
 import uk.ac.rdg.resc.edal.metadata.Parameter.Category;
+import uk.ac.rdg.resc.edal.util.cdm.CdmUtils;
 
 /**
  * {@link DatasetFactory} that creates {@link Dataset}s representing gridded
@@ -114,6 +117,20 @@ public abstract class CdmDatasetFactory extends DatasetFactory {
         }
     }
 
+    /**
+     * @return The files matching the location. This is empty for datasets
+     *         which cannot be checked cheaply: remote datasets, and NcML files
+     *         (which may aggregate files that we can't see)
+     */
+    @Override
+    public List<File> getSourceFiles(String location) {
+        if (location.startsWith("dods://") || location.startsWith("http://")
+                || location.startsWith("https://") || location.endsWith(".ncml")) {
+            return Collections.emptyList();
+        }
+        return CdmUtils.expandGlobExpression(location);
+    }
+
     /**
      * Generates a {@link Parameter} object, correctly parsing categorical flags
      * and creating the {@link Category}s associated with the {@link Parameter}.
@@ -29,12 +29,15 @@
 package uk.ac.rdg.resc.edal.dataset.cdm;
 
 import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.Deque;
 import java.util.HashMap;
+import java.util.IdentityHashMap;
 import java.util.Map;
 import java.util.Set;
 
 import ucar.ma2.Array;
-import ucar.ma2.Index;
+import ucar.ma2.DataType;
 import ucar.ma2.InvalidRangeException;
 import ucar.nc2.Variable;
 import ucar.nc2.dataset.NetcdfDataset;
@@ -60,7 +63,9 @@ final class CdmGridDataSource implements GridDataSource {
      */
     private final GridDataset gridDataset;
     private NetcdfDataset nc;
+    private Map<String, GridDatatype> gridDatatypeCache = new HashMap<>();
     private Map<String, RangesList> rangeListCache = new HashMap<>();
+    private boolean open = true;
 
     /*
      * This is used to synchronize the actual reading. This is necessary because
@@ -70,12 +75,8 @@ final class CdmGridDataSource implements GridDataSource {
      * and closed when the cache becomes full. This is because the overhead of
      * creating a NetcdfDataset is high.
      * 
-     * Each time CdmGridDataset.openGridDataSource() is called, a *new*
-     * CdmGridDataSource is created. We can't keep the individual
-     * CdmGridDataSource objects in memory because it's not predictable as to
-     * when the underlying NetcdfDataset will be closed. The overhead of
-     * creating a new CdmGridDataSource is very low compared to the creation of
-     * a NetcdfDataset.
+     * Many CdmGridDataSource objects can refer to the same NetcdfDataset (see
+     * the pool below).
      * 
      * When read() is called on separate instances of CdmGridDataSource which
      * refer to the same location, something happens which causes the array
@@ -89,18 +90,106 @@ final class CdmGridDataSource implements GridDataSource {
      */
     private static Object syncObj = new Object();
 
+    /*
+     * Creating a CdmGridDataSource means creating a new CDM GridDataset, which
+     * analyses all of the coordinate systems in the NetcdfDataset. For small
+     * reads (e.g. map tiles) this can take longer than reading the data, so
+     * closed data sources are kept here for reuse, keyed by the NetcdfDataset
+     * they were created from.
+     * 
+     * A data source is not thread-safe (its RangesLists are modified on every
+     * read), so each is only handed out to one user at a time.
+     * 
+     * NetcdfDatasetAggregator creates the pool for a NetcdfDataset with
+     * CdmGridDataSource.register() when it caches it, and discards it with
+     * CdmGridDataSource.invalidate() when it closes or refreshes it. Data
+     * sources for any other NetcdfDataset are never pooled.
+     */
+    private static final int MAX_POOLED_PER_DATASET = 8;
+    private static final Map<NetcdfDataset, Deque<CdmGridDataSource>> pool =
+            new IdentityHashMap<>();
+
     public CdmGridDataSource(NetcdfDataset nc) throws DataReadingException, IOException {
         this.gridDataset = CdmUtils.getGridDataset(nc);
         this.nc = nc;
     }
 
+    /**
+     * Gets a {@link CdmGridDataSource} for the given {@link NetcdfDataset},
+     * reusing a previously-closed one if available.
+     * 
+     * If the dataset has been invalidated (e.g. replaced by a refresh while
+     * the caller held it), a new data source is created which will not be
+     * pooled when it is closed.
+     * 
+     * The returned data source takes over responsibility for releasing the
+     * dataset from the {@link NetcdfDatasetAggregator} when it is closed.
+     * 
+     * @param nc
+     *            The {@link NetcdfDataset} to read from, acquired from
+     *            {@link NetcdfDatasetAggregator#getDataset(String)}
+     * @return A {@link CdmGridDataSource} which is not in use elsewhere
+     */
+    static CdmGridDataSource acquire(NetcdfDataset nc) throws DataReadingException,
+            IOException {
+        synchronized (pool) {
+            Deque<CdmGridDataSource> idle = pool.get(nc);
+            if (idle != null && !idle.isEmpty()) {
+                CdmGridDataSource dataSource = idle.pop();
+                dataSource.open = true;
+                return dataSource;
+            }
+        }
+        /*
+         * If the GridDataset constructor runs concurrently on the same
+         * NetcdfDataset, we can get a ConcurrentModificationException, so we
+         * synchronise on it to avoid the issue.
+         */
+        synchronized (nc) {
+            return new CdmGridDataSource(nc);
+        }
+    }
+
+    /**
+     * Allows {@link CdmGridDataSource}s for a {@link NetcdfDataset} to be
+     * pooled, until it is invalidated.
+     * 
+     * @param nc
+     *            The {@link NetcdfDataset} which has been opened and cached
+     */
+    static void register(NetcdfDataset nc) {
+        synchronized (pool) {
+            if (!pool.containsKey(nc)) {
+                pool.put(nc, new ArrayDeque<CdmGridDataSource>());
+            }
+        }
+    }
+
+    /**
+     * Discards all pooled {@link CdmGridDataSource}s for a
+     * {@link NetcdfDataset}. Data sources which are currently in use will not
+     * be returned to the pool when they are closed.
+     * 
+     * @param nc
+     *            The {@link NetcdfDataset} which is being closed or replaced
+     */
+    static void invalidate(NetcdfDataset nc) {
+        synchronized (pool) {
+            pool.remove(nc);
+        }
+    }
+
     @Override
     public Array4D<Number> read(String variableId, int tmin, int tmax, int zmin, int zmax,
             int ymin, int ymax, int xmin, int xmax) throws IOException, DataReadingException {
         /*
          * Get hold of the variable from which we want to read data
          */
-        GridDatatype gridDatatype = gridDataset.findGridDatatype(variableId);
+        GridDatatype gridDatatype = gridDatatypeCache.get(variableId);
+        if (gridDatatype == null) {
+            gridDatatype = gridDataset.findGridDatatype(variableId);
+            gridDatatypeCache.put(variableId, gridDatatype);
+        }
         VariableDS var = gridDatatype.getVariable();
 
         /*
@@ -188,34 +277,174 @@ final class CdmGridDataSource implements GridDataSource {
 
     @Override
     public void close() throws DataReadingException {
+        if (!open) {
+            return;
+        }
+        open = false;
+        /*
+         * Return this data source to the pool for reuse, unless the dataset
+         * has been invalidated since it was created
+         */
+        synchronized (pool) {
+            Deque<CdmGridDataSource> idle = pool.get(nc);
+            if (idle != null && idle.size() < MAX_POOLED_PER_DATASET) {
+                idle.push(this);
+            }
+        }
         NetcdfDatasetAggregator.releaseDataset(nc);
     }
 
+    /**
+     * An {@link Array4D} holding the values read from a NetCDF {@link Array}.
+     * 
+     * The values are decoded once, when the array is created, straight from
+     * the primitive storage of the {@link Array} into a primitive tile ordered
+     * t,z,y,x (with x varying fastest). No enhanced copy of the {@link Array}
+     * is made.
+     * 
+     * Values are held as floats if that is the type that the variable would
+     * have been enhanced to (or read as), and as doubles otherwise, so that no
+     * precision is lost. Missing values are held as NaN.
+     */
     private static final class WrappedArray extends Array4D<Number> {
-        private VariableDS var;
-        private Array arr;
+        private final VariableDS var;
         private final int[] shape;
-        private final int xAxisIndex;
-        private final int yAxisIndex;
-        private final int zAxisIndex;
-        private final int tAxisIndex;
+        private final float[] floatValues;
+        private final double[] doubleValues;
+        private final boolean enhance;
 
         public WrappedArray(VariableDS var, Array arr, boolean needsEnhance, int[] shape,
                 RangesList rangesList) {
             super(shape[0], shape[1], shape[2], shape[3]);
             this.var = var;
             this.shape = shape;
+            this.enhance = needsEnhance;
+
+            /*
+             * Work out the stride in the source array of each of our
+             * dimensions. Missing axes have a stride of zero.
+             */
+            int[] arrShape = arr.getShape();
+            int[] arrStrides = new int[arrShape.length];
+            int stride = 1;
+            for (int i = arrShape.length - 1; i >= 0; i--) {
+                arrStrides[i] = stride;
+                stride *= arrShape[i];
+            }
+            int tStride = getStride(arrStrides, rangesList.getTAxisIndex());
+            int zStride = getStride(arrStrides, rangesList.getZAxisIndex());
+            int yStride = getStride(arrStrides, rangesList.getYAxisIndex());
+            int xStride = getStride(arrStrides, rangesList.getXAxisIndex());
+
+            Object storage = arr.getStorage();
+            if (java.lang.reflect.Array.getLength(storage) != arr.getSize()) {
+                /*
+                 * This is a view onto a larger array, so the storage is not
+                 * in canonical order
+                 */
+                storage = arr.copy().getStorage();
+            }
+
+            /*
+             * Scaled values take the data type of the enhanced variable.
+             * Otherwise they keep the type they were read as.
+             */
+            boolean useFloats;
+            if (needsEnhance && var.hasScaleOffset()) {
+                useFloats = var.getDataType() == DataType.FLOAT;
+            } else {
+                useFloats = storage instanceof byte[] || storage instanceof short[]
+                        || storage instanceof float[];
+            }
+            int size = shape[0] * shape[1] * shape[2] * shape[3];
+            floatValues = useFloats ? new float[size] : null;
+            doubleValues = useFloats ? null : new double[size];
+
+            int target = 0;
+            for (int t = 0; t < shape[0]; t++) {
+                for (int z = 0; z < shape[1]; z++) {
+                    for (int y = 0; y < shape[2]; y++) {
+                        int source = t * tStride + z * zStride + y * yStride;
+                        decodeRow(storage, source, xStride, shape[3], target);
+                        target += shape[3];
+                    }
+                }
+            }
+        }
 
-            if (needsEnhance) {
-                this.arr = var.convertScaleOffsetMissing(arr);
+        /**
+         * Decodes a row of values along the x-axis. Each storage type has its
+         * own loop, so that no boxing or type checks happen per value.
+         * 
+         * If the values need enhancing, each one is passed to the
+         * {@link VariableDS}, which deals with unsigned data, scale/offset
+         * and fill/missing values in terms of the packed data, exactly as
+         * {@link VariableDS#convertScaleOffsetMissing(Array)} would.
+         */
+        private void decodeRow(Object storage, int source, int stride, int n, int target) {
+            if (storage instanceof float[]) {
+                float[] values = (float[]) storage;
+                for (int i = 0; i < n; i++, source += stride) {
+                    store(target + i, enhance ? var.convertScaleOffsetMissing(values[source])
+                            : values[source]);
+                }
+            } else if (storage instanceof short[]) {
+                short[] values = (short[]) storage;
+                for (int i = 0; i < n; i++, source += stride) {
+                    store(target + i, enhance ? var.convertScaleOffsetMissing(values[source])
+                            : values[source]);
+                }
+            } else if (storage instanceof byte[]) {
+                byte[] values = (byte[]) storage;
+                for (int i = 0; i < n; i++, source += stride) {
+                    store(target + i, enhance ? var.convertScaleOffsetMissing(values[source])
+                            : values[source]);
+                }
+            } else if (storage instanceof double[]) {
+                double[] values = (double[]) storage;
+                for (int i = 0; i < n; i++, source += stride) {
+                    store(target + i, enhance ? var.convertScaleOffsetMissing(values[source])
+                            : values[source]);
+                }
+            } else if (storage instanceof int[]) {
+                int[] values = (int[]) storage;
+                for (int i = 0; i < n; i++, source += stride) {
+                    store(target + i, enhance ? var.convertScaleOffsetMissing(values[source])
+                            : values[source]);
+                }
+            } else if (storage instanceof long[]) {
+                long[] values = (long[]) storage;
+                for (int i = 0; i < n; i++, source += stride) {
+                    store(target + i, enhance ? var.convertScaleOffsetMissing(values[source])
+                            : values[source]);
+                }
             } else {
-                this.arr = arr;
+                /*
+                 * Other types (e.g. char) cannot be represented as numbers
+                 */
+                for (int i = 0; i < n; i++) {
+                    store(target + i, Double.NaN);
+                }
             }
+        }
 
-            xAxisIndex = rangesList.getXAxisIndex();
-            yAxisIndex = rangesList.getYAxisIndex();
-            zAxisIndex = rangesList.getZAxisIndex();
-            tAxisIndex = rangesList.getTAxisIndex();
+        private void store(int index, double value) {
+            if (enhance) {
+                /*
+                 * Fill and missing values have already been dealt with on
+                 * the packed data, so only the valid range is left to check
+                 */
+                if (isInvalid(value)) {
+                    value = Double.NaN;
+                }
+            } else if (isMissing(value)) {
+                value = Double.NaN;
+            }
+            if (floatValues != null) {
+                floatValues[index] = (float) value;
+            } else {
+                doubleValues[index] = value;
+            }
         }
 
         @Override
@@ -228,55 +457,14 @@ final class CdmGridDataSource implements GridDataSource {
             /*
              * The convention is that the x coordinate varies fastest
              */
-            int x = coords[3];
-            int y = coords[2];
-            int z = coords[1];
-            int t = coords[0];
-
-            /*
-             * Create a new index
-             */
-            Index index = arr.getIndex();
-            /*
-             * Set the index values
-             */
-            if (tAxisIndex >= 0)
-                index.setDim(tAxisIndex, t);
-            if (zAxisIndex >= 0)
-                index.setDim(zAxisIndex, z);
-            if (yAxisIndex >= 0)
-                index.setDim(yAxisIndex, y);
-            if (xAxisIndex >= 0)
-                index.setDim(xAxisIndex, x);
-
-            Number val = null;
-            switch (arr.getDataType()) {
-            case BYTE:
-                val = arr.getByte(index);
-                break;
-            case DOUBLE:
-                val = arr.getDouble(index);
-                break;
-            case FLOAT:
-                val = arr.getFloat(index);
-                break;
-            case INT:
-                val = arr.getInt(index);
-                break;
-            case LONG:
-                val = arr.getLong(index);
-                break;
-            case SHORT:
-                val = arr.getShort(index);
-                break;
-            default:
-                break;
-            }
-
-            if (isMissing(val)) {
-                return null;
+            int index = ((coords[0] * shape[1] + coords[1]) * shape[2] + coords[2]) * shape[3]
+                    + coords[3];
+            if (floatValues != null) {
+                float value = floatValues[index];
+                return Float.isNaN(value) ? null : value;
             } else {
-                return val;
+                double value = doubleValues[index];
+                return Double.isNaN(value) ? null : value;
             }
         }
 
@@ -291,12 +479,30 @@ final class CdmGridDataSource implements GridDataSource {
         }
 
         /**
-         * Performs the same checks as {@link VariableDS#isMissing(double)}, but
-         * allows a tolerance of 1e-7 on the maximum and minimum values. This is
-         * because when using aggregations we have no underlying original
-         * variable. In these cases, the valid min/max get automatically
-         * enhanced as doubles, but the value gets enhanced as its underlying
-         * data type. If this is a float, then rounding errors can occur.
+         * Checks whether a value read from a variable which does not need
+         * enhancing (i.e. the values are already in their final form) is a
+         * fill value, a missing value, or invalid
+         * 
+         * @param val
+         *            The value to check
+         * @return Whether or not this should be considered missing data
+         */
+        private boolean isMissing(double val) {
+            if (Double.isNaN(val) || var.hasFillValue() && var.isFillValue(val)
+                    || var.hasMissingValue() && var.isMissingValue(val)) {
+                return true;
+            }
+            return isInvalid(val);
+        }
+
+        /**
+         * Performs the same check as {@link VariableDS#isInvalidData(double)},
+         * but allows a tolerance of 1e-7 on the maximum and minimum values.
+         * This is because when using aggregations we have no underlying
+         * original variable. In these cases, the valid min/max get
+         * automatically enhanced as doubles, but the value gets enhanced as its
+         * underlying data type. If this is a float, then rounding errors can
+         * occur.
          * 
          * e.g. the valid max may be 1.0f, but 0.9999999776482582. The valid max
          * is represented in the double form, but the value is represented in
@@ -305,30 +511,29 @@ final class CdmGridDataSource implements GridDataSource {
          * 
          * @param val
          *            The value to check
-         * @return Whether or not this should be considered missing data
+         * @return Whether or not this value is outside the valid range
          */
-        private boolean isMissing(Number num) {
-            if (num == null) {
+        private boolean isInvalid(double val) {
+            if (Double.isNaN(val)) {
                 return true;
-            } else {
-                double val = num.doubleValue();
-                if (var.hasFillValue() && var.isFillValue(val) || var.hasMissingValue()
-                        && var.isMissingValue(val) || Double.isNaN(val)) {
-                    return true;
-                } else if (var.hasInvalidData()) {
-                    if (var.getValidMax() != -Double.MAX_VALUE) {
-                        if (val > var.getValidMax() && (val - var.getValidMax()) > 1e-7) {
-                            return true;
-                        }
+            }
+            if (var.hasInvalidData()) {
+                if (var.getValidMax() != -Double.MAX_VALUE) {
+                    if (val > var.getValidMax() && (val - var.getValidMax()) > 1e-7) {
+                        return true;
                     }
-                    if (var.getValidMin() != Double.MAX_VALUE) {
-                        if (val < var.getValidMin() && (var.getValidMin() - val) > 1e-7) {
-                            return true;
-                        }
+                }
+                if (var.getValidMin() != Double.MAX_VALUE) {
+                    if (val < var.getValidMin() && (var.getValidMin() - val) > 1e-7) {
+                        return true;
                     }
                 }
-                return false;
             }
+            return false;
+        }
+
+        private static int getStride(int[] strides, int axisIndex) {
+            return axisIndex >= 0 ? strides[axisIndex] : 0;
         }
     }
 }
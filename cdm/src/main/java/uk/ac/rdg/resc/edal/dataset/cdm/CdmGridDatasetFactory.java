@@ -28,6 +28,7 @@
 
 package uk.ac.rdg.resc.edal.dataset.cdm;
 
+import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Collection;
@@ -54,9 +55,11 @@ import uk.ac.rdg.resc.edal.dataset.Dataset;
 import uk.ac.rdg.resc.edal.dataset.DatasetFactory;
 import uk.ac.rdg.resc.edal.dataset.DiscreteLayeredDataset;
 import uk.ac.rdg.resc.edal.dataset.GridDataSource;
+import uk.ac.rdg.resc.edal.dataset.GridDatasetSnapshot;
 import uk.ac.rdg.resc.edal.dataset.GriddedDataset;
 import uk.ac.rdg.resc.edal.dataset.HZTDataSource;
 import uk.ac.rdg.resc.edal.dataset.HorizontalMesh4dDataset;
+import uk.ac.rdg.resc.edal.dataset.plugins.VariablePlugin;
 import uk.ac.rdg.resc.edal.exceptions.DataReadingException;
 import uk.ac.rdg.resc.edal.exceptions.EdalException;
 import uk.ac.rdg.resc.edal.geometry.Polygon;
@@ -99,6 +102,41 @@ public final class CdmGridDatasetFactory extends CdmDatasetFactory {
         }
     }
 
+    @Override
+    public boolean writeSnapshot(Dataset dataset, String location, File snapshotFile)
+            throws IOException {
+        if (!(dataset instanceof CdmGridDataset)) {
+            return false;
+        }
+        List<File> sourceFiles = getSourceFiles(location);
+        if (sourceFiles.isEmpty()) {
+            return false;
+        }
+        GridDatasetSnapshot snapshot = GridDatasetSnapshot.create((CdmGridDataset) dataset,
+                location, sourceFiles);
+        if (snapshot == null) {
+            return false;
+        }
+        snapshot.write(snapshotFile);
+        return true;
+    }
+
+    @Override
+    public Dataset createDatasetFromSnapshot(String id, String location, File snapshotFile)
+            throws EdalException {
+        GridDatasetSnapshot snapshot = GridDatasetSnapshot.read(snapshotFile);
+        if (snapshot == null
+                || !snapshot.isSnapshotOf(id, location, getSourceFiles(location))) {
+            return null;
+        }
+        CdmGridDataset dataset = new CdmGridDataset(id, location, snapshot.getVariables(),
+                snapshot.getDataReadingStrategy());
+        for (VariablePlugin plugin : snapshot.getPlugins()) {
+            dataset.addVariablePlugin(plugin);
+        }
+        return dataset;
+    }
+
     private CdmGridDataset generateGridDataset(String id, String location, NetcdfDataset nc)
             throws IOException {
         ucar.nc2.dt.GridDataset gridDataset = CdmUtils.getGridDataset(nc);
@@ -659,15 +697,7 @@ public final class CdmGridDatasetFactory extends CdmDatasetFactory {
             NetcdfDataset nc = null;
             try {
                 nc = NetcdfDatasetAggregator.getDataset(location);
-                synchronized (this) {
-                    /*
-                     * If the getGridDataset method runs concurrently on the
-                     * same object, we can get a
-                     * ConcurrentModificationException, so we synchronise this
-                     * action to avoid the issue.
-                     */
-                    return new CdmGridDataSource(nc);
-                }
+                return CdmGridDataSource.acquire(nc);
             } catch (EdalException | IOException e) {
                 if (nc != null) {
                     NetcdfDatasetAggregator.releaseDataset(nc);
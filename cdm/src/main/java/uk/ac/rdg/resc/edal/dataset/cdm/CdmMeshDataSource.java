@@ -28,12 +28,30 @@
 
 package uk.ac.rdg.resc.edal.dataset.cdm;
 
+import java.io.File;
 import java.io.IOException;
+import java.util.AbstractList;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import ucar.ma2.Array;
+import ucar.ma2.DataType;
 import ucar.ma2.Index;
 import ucar.ma2.InvalidRangeException;
 import ucar.ma2.Range;
@@ -47,42 +65,123 @@ import uk.ac.rdg.resc.edal.exceptions.DataReadingException;
  * Implementation of {@link GridDataSource} using the Unidata Common Data Model
  * for NetCDF
  * 
+ * Reads of a single horizontal layer (e.g. for maps) are split into contiguous
+ * runs of mesh nodes, which are read in parallel. For local files, each reading
+ * thread uses its own handle on the file, so that reads of different datasets
+ * (or different parts of the same dataset) do not block each other. These
+ * handles are closed when the shared dataset is closed or replaced (see
+ * {@link CdmMeshDataSource#invalidate(NetcdfDataset)}).
+ * 
  * @author Guy Griffiths
  * @author Jon
  */
 final class CdmMeshDataSource implements HZTDataSource {
+    private static final Logger log = LoggerFactory.getLogger(CdmMeshDataSource.class);
+
     /*
-     * This is used to synchronize the actual reading. This is necessary because
-     * we have the following model:
-     * 
-     * There is a single NetcdfDataset object per dataset, which gets cached,
-     * and closed when the cache becomes full. This is because the overhead of
-     * creating a NetcdfDataset is high.
-     * 
-     * Each time CfHorizontalMesh4dDataset.openGridDataSource() is called, a
-     * *new* CdmMeshDataSource is created. We can't keep the individual
-     * CdmMeshDataSource objects in memory because it's not predictable as to
-     * when the underlying NetcdfDataset will be closed. The overhead of
-     * creating a new CdmMeshDataSource is very low compared to the creation of
-     * a NetcdfDataset.
-     * 
-     * When read() is called on separate instances of CdmMeshDataSource which
-     * refer to the same location, something happens which causes the array
-     * indices to be set incorrectly, and we get an
-     * ArrayIndexOutOfBoundsException. We can't synchronize on a non-static
-     * object, because these are all separate instances.
+     * Runs of nodes separated by fewer than this number of unused nodes are
+     * read in a single operation
+     */
+    private static final int MAX_GAP = 256;
+    /*
+     * Reads of fewer than this number of nodes are not split between threads
+     */
+    private static final int MIN_PARALLEL_READ = 4096;
+    /*
+     * The maximum number of file handles each reading thread keeps open
+     */
+    private static final int MAX_HANDLES_PER_THREAD = 8;
+
+    private static final int N_READERS = Math.max(1,
+            Math.min(4, Runtime.getRuntime().availableProcessors()));
+    private static final ExecutorService readers = Executors.newFixedThreadPool(N_READERS,
+            new ThreadFactory() {
+                private int n = 0;
+
+                @Override
+                public synchronized Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "mesh-reader-" + (n++));
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+
+    /*
+     * Each reading thread holds its own handles to local files, keyed on
+     * location. The shared NetcdfDataset which the handle was opened for is
+     * also stored, so that when the shared dataset is reopened (e.g. after a
+     * refresh) the per-thread handle is reopened too.
+     */
+    private static final ThreadLocal<Map<String, ThreadHandle>> threadHandles;
+    static {
+        threadHandles = new ThreadLocal<Map<String, ThreadHandle>>() {
+            @Override
+            protected Map<String, ThreadHandle> initialValue() {
+                return new LinkedHashMap<String, ThreadHandle>(16, 0.75f, true) {
+                    private static final long serialVersionUID = 1L;
+
+                    @Override
+                    protected boolean removeEldestEntry(Map.Entry<String, ThreadHandle> eldest) {
+                        if (size() > MAX_HANDLES_PER_THREAD) {
+                            eldest.getValue().close();
+                            return true;
+                        }
+                        return false;
+                    }
+                };
+            }
+        };
+    }
+    /*
+     * All open per-thread handles, so that they can be closed from any thread
+     */
+    private static final Set<ThreadHandle> allHandles = Collections
+            .newSetFromMap(new ConcurrentHashMap<ThreadHandle, Boolean>());
+
+    /**
+     * Closes all per-thread handles which were opened for the given shared
+     * {@link NetcdfDataset}. This should be called whenever a shared dataset
+     * is closed or replaced.
      * 
-     * This could also have been solved by removing NetcdfDataset caching. I
-     * think that this would have a bigger effect on the speed, although that
-     * may depend on the use case.
+     * @param nc
+     *            The shared {@link NetcdfDataset}
      */
-    private static Object syncObj = new Object();
+    static void invalidate(NetcdfDataset nc) {
+        for (ThreadHandle handle : allHandles) {
+            if (handle.source == nc) {
+                handle.close();
+            }
+        }
+    }
+
     private NetcdfDataset nc;
     private Map<String, int[]> varId2hztIndices;
+    /*
+     * The local file which can be opened by each reading thread, or null if
+     * the dataset must be read through the shared NetcdfDataset (e.g. remote
+     * datasets or aggregations)
+     */
+    private final String localFile;
 
     public CdmMeshDataSource(NetcdfDataset nc, Map<String, int[]> varId2hztIndices) {
         this.nc = nc;
         this.varId2hztIndices = varId2hztIndices;
+        this.localFile = getLocalFile(nc);
+    }
+
+    private static String getLocalFile(NetcdfDataset nc) {
+        String location = nc.getLocation();
+        if (location == null) {
+            return null;
+        }
+        if (location.startsWith("file:")) {
+            location = location.substring("file:".length());
+        }
+        if (location.endsWith(".xml") || location.endsWith(".ncml")) {
+            return null;
+        }
+        File file = new File(location);
+        return file.isFile() ? file.getAbsolutePath() : null;
     }
 
     @Override
@@ -90,6 +189,316 @@ final class CdmMeshDataSource implements HZTDataSource {
             throws DataReadingException {
         int[] hztIndices = varId2hztIndices.get(variableId);
 
+        /*
+         * If all of the requested points are on the same horizontal layer, we
+         * can split the read into runs of nodes. Otherwise we fall back to
+         * reading the bounding hyperslab.
+         */
+        int layerZ = -1;
+        int layerT = -1;
+        boolean singleLayer = hztIndices[0] >= 0;
+        for (MeshCoordinates3D coords : coordsToRead) {
+            if (coords.h < 0 || coords.z < 0 || coords.t < 0) {
+                continue;
+            }
+            if (layerZ < 0) {
+                layerZ = coords.z;
+                layerT = coords.t;
+            } else if (coords.z != layerZ || coords.t != layerT) {
+                singleLayer = false;
+                break;
+            }
+        }
+
+        if (singleLayer) {
+            return readLayer(variableId, hztIndices, layerZ, layerT, coordsToRead);
+        } else {
+            return readHyperslab(variableId, hztIndices, coordsToRead);
+        }
+    }
+
+    /**
+     * Reads a set of points which all lie on the same horizontal layer, by
+     * reading contiguous runs of nodes in parallel
+     */
+    private List<Number> readLayer(final String variableId, final int[] hztIndices, final int z,
+            final int t, List<MeshCoordinates3D> coordsToRead) throws DataReadingException {
+        final int size = coordsToRead.size();
+        /*
+         * Store the values in their native type
+         */
+        DataType dataType = nc.findVariable(variableId).getDataType();
+        if (dataType != DataType.BYTE && dataType != DataType.SHORT && dataType != DataType.INT
+                && dataType != DataType.LONG && dataType != DataType.FLOAT) {
+            dataType = DataType.DOUBLE;
+        }
+        final Array values = Array.factory(dataType, new int[] { size });
+        final BitSet missing = new BitSet(size);
+        missing.set(0, size);
+
+        /*
+         * Sort the positions of the valid points by horizontal index. We pack
+         * (h, position) into a long so that we can sort a primitive array.
+         */
+        long[] sorted = new long[size];
+        int nValid = 0;
+        for (int pos = 0; pos < size; pos++) {
+            MeshCoordinates3D coords = coordsToRead.get(pos);
+            if (coords.h < 0 || coords.z < 0 || coords.t < 0) {
+                continue;
+            }
+            sorted[nValid++] = ((long) coords.h << 32) | pos;
+        }
+        if (nValid == 0) {
+            return new PrimitiveNumberList(values, missing);
+        }
+        final long[] hPositions = Arrays.copyOf(sorted, nValid);
+        Arrays.sort(hPositions);
+
+        /*
+         * Split into runs, merging small gaps. Each run is a range in the
+         * sorted array
+         */
+        List<int[]> runs = new ArrayList<>();
+        int totalNodes = 0;
+        int runStart = 0;
+        for (int i = 1; i <= nValid; i++) {
+            if (i == nValid || getH(hPositions[i]) - getH(hPositions[i - 1]) > MAX_GAP) {
+                runs.add(new int[] { runStart, i });
+                totalNodes += getH(hPositions[i - 1]) - getH(hPositions[runStart]) + 1;
+                runStart = i;
+            }
+        }
+
+        /*
+         * Group the runs into batches of roughly equal size, one per reading
+         * thread
+         */
+        int nBatches = totalNodes < MIN_PARALLEL_READ ? 1 : N_READERS;
+        int batchSize = (totalNodes + nBatches - 1) / nBatches;
+        List<Callable<Void>> tasks = new ArrayList<>();
+        List<int[]> batch = new ArrayList<>();
+        int batchNodes = 0;
+        for (int[] run : runs) {
+            batch.add(run);
+            batchNodes += getH(hPositions[run[1] - 1]) - getH(hPositions[run[0]]) + 1;
+            if (batchNodes >= batchSize) {
+                tasks.add(new RunReader(variableId, hztIndices, z, t, hPositions, batch, values,
+                        missing));
+                batch = new ArrayList<>();
+                batchNodes = 0;
+            }
+        }
+        if (!batch.isEmpty()) {
+            tasks.add(new RunReader(variableId, hztIndices, z, t, hPositions, batch, values,
+                    missing));
+        }
+
+        try {
+            for (Future<Void> future : readers.invokeAll(tasks)) {
+                future.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new DataReadingException("Interrupted whilst reading data", e);
+        } catch (ExecutionException e) {
+            throw new DataReadingException("Problem reading data from data source", e.getCause());
+        }
+        return new PrimitiveNumberList(values, missing);
+    }
+
+    private static int getH(long hPosition) {
+        return (int) (hPosition >>> 32);
+    }
+
+    private static int getPosition(long hPosition) {
+        return (int) hPosition;
+    }
+
+    /**
+     * Reads a batch of runs of nodes from a single horizontal layer into the
+     * output arrays. Each instance writes to distinct positions in the output
+     * arrays.
+     */
+    private final class RunReader implements Callable<Void> {
+        private final String variableId;
+        private final int[] hztIndices;
+        private final int z;
+        private final int t;
+        private final long[] hPositions;
+        private final List<int[]> runs;
+        private final Array values;
+        private final BitSet missing;
+
+        RunReader(String variableId, int[] hztIndices, int z, int t, long[] hPositions,
+                List<int[]> runs, Array values, BitSet missing) {
+            this.variableId = variableId;
+            this.hztIndices = hztIndices;
+            this.z = z;
+            this.t = t;
+            this.hPositions = hPositions;
+            this.runs = runs;
+            this.values = values;
+            this.missing = missing;
+        }
+
+        @Override
+        public Void call() throws IOException, InvalidRangeException {
+            ThreadHandle handle = localFile == null ? null : getThreadHandle();
+            for (int[] run : runs) {
+                int minH = getH(hPositions[run[0]]);
+                int maxH = getH(hPositions[run[1] - 1]);
+                List<Range> ranges = getRanges(hztIndices, minH, maxH, z, z, t, t);
+                Array arr = handle == null ? null : handle.read(variableId, ranges);
+                if (arr == null) {
+                    /*
+                     * The shared dataset must not be read from concurrently
+                     */
+                    synchronized (nc) {
+                        arr = nc.findVariable(variableId).read(ranges);
+                    }
+                }
+                /*
+                 * All dimensions other than H have size 1, so we can index
+                 * the array directly
+                 */
+                for (int i = run[0]; i < run[1]; i++) {
+                    copyValue(arr, getH(hPositions[i]) - minH, values,
+                            getPosition(hPositions[i]));
+                }
+                synchronized (missing) {
+                    for (int i = run[0]; i < run[1]; i++) {
+                        missing.clear(getPosition(hPositions[i]));
+                    }
+                }
+            }
+            return null;
+        }
+    }
+
+    /*
+     * Copies a single value between arrays of (possibly) different types
+     */
+    private static void copyValue(Array from, int fromElem, Array to, int toElem) {
+        switch (to.getDataType()) {
+        case BYTE:
+            to.setByte(toElem, from.getByte(fromElem));
+            break;
+        case SHORT:
+            to.setShort(toElem, from.getShort(fromElem));
+            break;
+        case INT:
+            to.setInt(toElem, from.getInt(fromElem));
+            break;
+        case LONG:
+            to.setLong(toElem, from.getLong(fromElem));
+            break;
+        case FLOAT:
+            to.setFloat(toElem, from.getFloat(fromElem));
+            break;
+        default:
+            to.setDouble(toElem, from.getDouble(fromElem));
+            break;
+        }
+    }
+
+    /**
+     * Gets the handle on the local file for the current reading thread,
+     * opening it if necessary
+     */
+    private ThreadHandle getThreadHandle() throws IOException {
+        Map<String, ThreadHandle> handles = threadHandles.get();
+        ThreadHandle handle = handles.get(localFile);
+        if (handle == null || handle.source != nc || handle.isClosed()) {
+            if (handle != null) {
+                handle.close();
+            }
+            handle = new ThreadHandle(nc, NetcdfDataset.openDataset(localFile));
+            handles.put(localFile, handle);
+        }
+        return handle;
+    }
+
+    /**
+     * A handle on a local file which is used by a single reading thread, but
+     * which may be closed by any thread
+     */
+    private static final class ThreadHandle {
+        private final NetcdfDataset source;
+        private final NetcdfDataset handle;
+        private boolean closed = false;
+
+        ThreadHandle(NetcdfDataset source, NetcdfDataset handle) {
+            this.source = source;
+            this.handle = handle;
+            allHandles.add(this);
+        }
+
+        synchronized boolean isClosed() {
+            return closed;
+        }
+
+        /*
+         * Returns null if the handle has been closed
+         */
+        synchronized Array read(String variableId, List<Range> ranges) throws IOException,
+                InvalidRangeException {
+            if (closed) {
+                return null;
+            }
+            return handle.findVariable(variableId).read(ranges);
+        }
+
+        synchronized void close() {
+            allHandles.remove(this);
+            if (closed) {
+                return;
+            }
+            closed = true;
+            try {
+                handle.close();
+            } catch (IOException e) {
+                log.error("Problem closing per-thread dataset handle", e);
+            }
+        }
+    }
+
+    /**
+     * Creates a {@link List} of {@link Range}s in the order of the dimensions
+     * of the variable
+     */
+    private static List<Range> getRanges(int[] hztIndices, int minH, int maxH, int minZ,
+            int maxZ, int minT, int maxT) throws InvalidRangeException {
+        int numDims = 0;
+        for (int hztIndex : hztIndices) {
+            if (hztIndex >= 0) {
+                numDims++;
+            }
+        }
+
+        List<Range> ranges = new ArrayList<>();
+        for (int i = 0; i < numDims; i++) {
+            ranges.add(null);
+        }
+        if (hztIndices[0] >= 0) {
+            ranges.set(hztIndices[0], new Range(minH, maxH));
+        }
+        if (hztIndices[1] >= 0) {
+            ranges.set(hztIndices[1], new Range(minZ, maxZ));
+        }
+        if (hztIndices[2] >= 0) {
+            ranges.set(hztIndices[2], new Range(minT, maxT));
+        }
+        return ranges;
+    }
+
+    /**
+     * Reads the hyperslab which bounds all of the requested points, and
+     * extracts the points from it. This is used for reads which span multiple
+     * layers, such as profiles and timeseries.
+     */
+    private List<Number> readHyperslab(String variableId, int[] hztIndices,
+            List<MeshCoordinates3D> coordsToRead) throws DataReadingException {
         /*
          * First find the range of co-ordinates to read
          */
@@ -145,38 +554,14 @@ final class CdmMeshDataSource implements HZTDataSource {
                 ret.add(null);
             }
         } else {
-            /*
-             * Find the dimensionality of this variable
-             */
-            int numDims = 0;
-            for (int hztIndex : hztIndices) {
-                if (hztIndex >= 0) {
-                    numDims++;
-                }
-            }
-
-            List<Range> ranges = new ArrayList<>();
-            for (int i = 0; i < numDims; i++) {
-                ranges.add(null);
-            }
-
             try {
-                if (hztIndices[0] >= 0) {
-                    ranges.set(hztIndices[0], new Range(minH, maxH));
-                }
-
-                if (hztIndices[1] >= 0) {
-                    ranges.set(hztIndices[1], new Range(minZ, maxZ));
-                }
-
-                if (hztIndices[2] >= 0) {
-                    ranges.set(hztIndices[2], new Range(minT, maxT));
-                }
+                List<Range> ranges = getRanges(hztIndices, minH, maxH, minZ, maxZ, minT, maxT);
 
                 /*
-                 * See definition of syncObj for explanation of synchronization
+                 * A single NetcdfDataset is shared between all data sources for
+                 * the same location, and it cannot be read from concurrently
                  */
-                synchronized (syncObj) {
+                synchronized (nc) {
                     Variable var = nc.findVariable(variableId);
                     Array arr = var.read(ranges);
 
@@ -242,4 +627,50 @@ final class CdmMeshDataSource implements HZTDataSource {
     public void close() throws DataReadingException {
         NetcdfDatasetAggregator.releaseDataset(nc);
     }
+
+    /**
+     * An unmodifiable {@link List} of {@link Number}s backed by a primitive
+     * array of the native type of the data, to avoid creating an object for
+     * every value read
+     */
+    private static final class PrimitiveNumberList extends AbstractList<Number> {
+        private final Array values;
+        private final int size;
+        private final BitSet missing;
+
+        PrimitiveNumberList(Array values, BitSet missing) {
+            this.values = values;
+            this.size = (int) values.getSize();
+            this.missing = missing;
+        }
+
+        @Override
+        public Number get(int index) {
+            if (index < 0 || index >= size) {
+                throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + size);
+            }
+            if (missing.get(index)) {
+                return null;
+            }
+            switch (values.getDataType()) {
+            case BYTE:
+                return values.getByte(index);
+            case SHORT:
+                return values.getShort(index);
+            case INT:
+                return values.getInt(index);
+            case LONG:
+                return values.getLong(index);
+            case FLOAT:
+                return values.getFloat(index);
+            default:
+                return values.getDouble(index);
+            }
+        }
+
+        @Override
+        public int size() {
+            return size;
+        }
+    }
 }
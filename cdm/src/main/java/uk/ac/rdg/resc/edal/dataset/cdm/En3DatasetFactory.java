@@ -332,6 +332,11 @@ public final class En3DatasetFactory extends DatasetFactory {
              */
 
             int fileId = 0;
+            /*
+             * All profiles contain the same variables, so they can share a set
+             */
+            Set<String> profileVariableIds = CollectionUtils.setOf(
+                    POT_TEMP_PARAMETER.getVariableId(), PSAL_PARAMETER.getVariableId());
 
             for (File file : files) {
                 id2File.put(fileId, file);
@@ -458,8 +463,7 @@ public final class En3DatasetFactory extends DatasetFactory {
                      * indexer
                      */
                     featureBounds.add(new FeatureBounds(profileId, horizontalPosition, zExtent,
-                            tExtent, CollectionUtils.setOf(POT_TEMP_PARAMETER.getVariableId(),
-                                    PSAL_PARAMETER.getVariableId())));
+                            tExtent, profileVariableIds));
 
                     /*
                      * Update entire dataset extents
@@ -486,10 +490,17 @@ public final class En3DatasetFactory extends DatasetFactory {
                 log.debug("Allocated memory " + (Runtime.getRuntime().totalMemory() / 1_000_000L)
                         + "/" + (Runtime.getRuntime().maxMemory() / 1_000_000L));
                 totalProfiles += nProfiles.getLength();
+                /*
+                 * Add this file's features to the spatial indexer. It stores
+                 * them compactly, so we don't need to hold on to the bounds of
+                 * every profile in the dataset at once.
+                 */
+                indexer.addFeatures(featureBounds);
+                featureBounds.clear();
                 fileId++;
                 NetcdfDatasetAggregator.releaseDataset(nc);
             }
-            log.debug("Read " + totalProfiles + " features.  Starting indexing...");
+            log.debug("Read " + totalProfiles + " features.");
             /*
              * The domain of this dataset. Since all variables are valid for the
              * entire dataset, their domain must include the domains of all
@@ -499,10 +510,6 @@ public final class En3DatasetFactory extends DatasetFactory {
             zDomain = new SimpleVerticalDomain(minZ, maxZ, EN3_VERTICAL_CRS);
             tDomain = new SimpleTemporalDomain(minT, maxT);
 
-            /*
-             * Now add all features to the spatial indexer
-             */
-            indexer.addFeatures(featureBounds);
             log.debug("Indexed " + totalProfiles + " features.");
             log.debug("Allocated memory " + (Runtime.getRuntime().totalMemory() / 1_000_000L) + "/"
                     + (Runtime.getRuntime().maxMemory() / 1_000_000L));
@@ -0,0 +1,492 @@
+/*******************************************************************************
+ * Copyright (c) 2016 The University of Reading
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the University of Reading, nor the names of the
+ *    authors or contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ******************************************************************************/
+
+package uk.ac.rdg.resc.edal.dataset.cdm;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Locale;
+
+import uk.ac.rdg.resc.edal.exceptions.DataReadingException;
+
+/**
+ * An integer-valued ESRI ASCII grid, stored in a compact binary sidecar file
+ * which is memory-mapped.
+ * 
+ * The first time a grid is opened, the ASCII file is tokenised as a stream and
+ * its values are written to the sidecar file, as unsigned bytes if all of the
+ * values lie in the range 0-254, or as shorts otherwise. Subsequent opens use
+ * the sidecar file directly, as long as the ASCII file has not changed. Values
+ * are only paged in from the sidecar file as they are read, so reading a small
+ * window of a large grid is cheap.
+ * 
+ * Rows are stored with the southernmost first, so that y-indices increase
+ * northwards.
+ * 
+ * @author Guy Griffiths
+ */
+final class EsriAsciiGrid {
+    private static final int MAGIC = 0x45414731;
+    private static final int HEADER_SIZE = 64;
+    private static final int BYTE_MISSING = 0xFF;
+    private static final short SHORT_MISSING = Short.MIN_VALUE;
+
+    private final int nCols;
+    private final int nRows;
+    private final double xStart;
+    private final double yStart;
+    private final double cellSize;
+    private final int bytesPerValue;
+    private final int rowsPerBuffer;
+    private final MappedByteBuffer[] buffers;
+
+    private EsriAsciiGrid(int nCols, int nRows, double xStart, double yStart, double cellSize,
+            int bytesPerValue, MappedByteBuffer[] buffers, int rowsPerBuffer) {
+        this.nCols = nCols;
+        this.nRows = nRows;
+        this.xStart = xStart;
+        this.yStart = yStart;
+        this.cellSize = cellSize;
+        this.bytesPerValue = bytesPerValue;
+        this.buffers = buffers;
+        this.rowsPerBuffer = rowsPerBuffer;
+    }
+
+    /**
+     * Opens an ESRI ASCII grid, converting it to a binary sidecar file if
+     * required
+     * 
+     * @param asciiFile
+     *            The ESRI ASCII grid file
+     * @param sidecar
+     *            The binary file to store the values in
+     * @param forceRefresh
+     *            Whether to regenerate the sidecar file even if it is up to
+     *            date
+     * @return The opened {@link EsriAsciiGrid}
+     * @throws IOException
+     *             If there is a problem reading or writing either file
+     * @throws DataReadingException
+     *             If the ASCII grid is invalid
+     */
+    static EsriAsciiGrid open(File asciiFile, File sidecar, boolean forceRefresh)
+            throws IOException, DataReadingException {
+        if (forceRefresh || !isUpToDate(asciiFile, sidecar)) {
+            convert(asciiFile, sidecar);
+        }
+        try (RandomAccessFile raf = new RandomAccessFile(sidecar, "r")) {
+            FileChannel channel = raf.getChannel();
+            ByteBuffer header = readHeader(channel);
+            if (header == null) {
+                throw new DataReadingException("Invalid grid file " + sidecar);
+            }
+            int bytesPerValue = header.getInt(4);
+            int nRows = header.getInt(8);
+            int nCols = header.getInt(12);
+            long rowBytes = (long) nCols * bytesPerValue;
+            /*
+             * A single mapping is limited to Integer.MAX_VALUE bytes, so large
+             * grids are mapped in bands of whole rows
+             */
+            int rowsPerBuffer = (int) Math.max(1, Math.min(nRows, Integer.MAX_VALUE / rowBytes));
+            MappedByteBuffer[] buffers = new MappedByteBuffer[(nRows + rowsPerBuffer - 1)
+                    / rowsPerBuffer];
+            for (int i = 0; i < buffers.length; i++) {
+                int bandRows = Math.min(rowsPerBuffer, nRows - i * rowsPerBuffer);
+                buffers[i] = channel.map(MapMode.READ_ONLY, HEADER_SIZE + i * rowsPerBuffer
+                        * rowBytes, bandRows * rowBytes);
+            }
+            return new EsriAsciiGrid(nCols, nRows, header.getDouble(16), header.getDouble(24),
+                    header.getDouble(32), bytesPerValue, buffers, rowsPerBuffer);
+        }
+    }
+
+    int getNCols() {
+        return nCols;
+    }
+
+    int getNRows() {
+        return nRows;
+    }
+
+    /**
+     * @return The x-coordinate of the first column, as given in the header of
+     *         the ASCII file
+     */
+    double getXStart() {
+        return xStart;
+    }
+
+    /**
+     * @return The y-coordinate of the first (southernmost) row, as given in
+     *         the header of the ASCII file
+     */
+    double getYStart() {
+        return yStart;
+    }
+
+    double getCellSize() {
+        return cellSize;
+    }
+
+    /**
+     * @return The number of bytes used to store each value - 1 or 2
+     */
+    int getBytesPerValue() {
+        return bytesPerValue;
+    }
+
+    /**
+     * Reads a single value
+     * 
+     * @param y
+     *            The row index, counted from the south
+     * @param x
+     *            The column index
+     * @return The value, or <code>null</code> if it is missing or outside the
+     *         grid
+     */
+    Integer get(int y, int x) {
+        if (y < 0 || y >= nRows || x < 0 || x >= nCols) {
+            return null;
+        }
+        MappedByteBuffer buffer = buffers[y / rowsPerBuffer];
+        int index = ((y % rowsPerBuffer) * nCols + x) * bytesPerValue;
+        if (bytesPerValue == 1) {
+            int value = buffer.get(index) & 0xFF;
+            return value == BYTE_MISSING ? null : value;
+        } else {
+            short value = buffer.getShort(index);
+            return value == SHORT_MISSING ? null : (int) value;
+        }
+    }
+
+    private static ByteBuffer readHeader(FileChannel channel) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        while (header.hasRemaining()) {
+            if (channel.read(header) < 0) {
+                return null;
+            }
+        }
+        if (header.getInt(0) != MAGIC) {
+            return null;
+        }
+        return header;
+    }
+
+    private static boolean isUpToDate(File asciiFile, File sidecar) throws IOException {
+        if (!sidecar.exists()) {
+            return false;
+        }
+        try (RandomAccessFile raf = new RandomAccessFile(sidecar, "r")) {
+            ByteBuffer header = readHeader(raf.getChannel());
+            return header != null && header.getLong(40) == asciiFile.length()
+                    && header.getLong(48) == asciiFile.lastModified();
+        }
+    }
+
+    /**
+     * Converts an ASCII grid to a sidecar file. The values are first written
+     * as shorts, and then compacted to bytes if they all fit.
+     * 
+     * Intermediate files have unique names, so that concurrent conversions of
+     * the same grid (e.g. by two servers sharing a working directory) don't
+     * write over each other. Whichever finishes last replaces the sidecar.
+     */
+    private static void convert(File asciiFile, File sidecar) throws IOException,
+            DataReadingException {
+        File shortFile = createTempFile(sidecar);
+        try {
+            int nCols = -1;
+            int nRows = -1;
+            double xStart = Double.NaN;
+            double yStart = Double.NaN;
+            double cellSize = Double.NaN;
+            Integer noData = null;
+            boolean fitsInByte = true;
+
+            try (Tokenizer tokens = new Tokenizer(asciiFile);
+                    RandomAccessFile raf = new RandomAccessFile(shortFile, "rw")) {
+                /*
+                 * Read the header. This is a series of keyword-value pairs,
+                 * ended by the first numeric token
+                 */
+                boolean hasToken;
+                while ((hasToken = tokens.next()) && tokens.isKeyword()) {
+                    String token = tokens.text();
+                    if (!tokens.next()) {
+                        throw new DataReadingException("No value for " + token + " in "
+                                + asciiFile);
+                    }
+                    String value = tokens.text();
+                    switch (token.toLowerCase(Locale.ENGLISH)) {
+                    case "ncols":
+                        nCols = Integer.parseInt(value);
+                        break;
+                    case "nrows":
+                        nRows = Integer.parseInt(value);
+                        break;
+                    case "xllcorner":
+                    case "xllcenter":
+                        xStart = Double.parseDouble(value);
+                        break;
+                    case "yllcorner":
+                    case "yllcenter":
+                        yStart = Double.parseDouble(value);
+                        break;
+                    case "cellsize":
+                        cellSize = Double.parseDouble(value);
+                        break;
+                    case "nodata_value":
+                        noData = (int) Double.parseDouble(value);
+                        break;
+                    default:
+                        throw new DataReadingException("Unknown ASCII grid header: " + token);
+                    }
+                }
+                if (nCols <= 0 || nRows <= 0 || Double.isNaN(xStart) || Double.isNaN(yStart)
+                        || Double.isNaN(cellSize)) {
+                    throw new DataReadingException("Incomplete ASCII grid header in "
+                            + asciiFile);
+                }
+
+                FileChannel channel = raf.getChannel();
+                raf.setLength(0L);
+                ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+                header.putInt(0, MAGIC).putInt(4, 2).putInt(8, nRows).putInt(12, nCols)
+                        .putDouble(16, xStart).putDouble(24, yStart).putDouble(32, cellSize)
+                        .putLong(40, asciiFile.length()).putLong(48, asciiFile.lastModified());
+                channel.write(header, 0L);
+
+                /*
+                 * The ASCII file has the northernmost row first
+                 */
+                ByteBuffer row = ByteBuffer.allocate(nCols * 2);
+                for (int r = 0; r < nRows; r++) {
+                    row.clear();
+                    for (int c = 0; c < nCols; c++) {
+                        if (!hasToken) {
+                            throw new DataReadingException("ASCII grid " + asciiFile
+                                    + " has fewer values than expected");
+                        }
+                        int value = tokens.intValue();
+                        if (noData != null && value == noData) {
+                            row.putShort(SHORT_MISSING);
+                        } else {
+                            if (value <= Short.MIN_VALUE || value > Short.MAX_VALUE) {
+                                throw new DataReadingException("Value " + value
+                                        + " is out of range for an ASCII grid");
+                            }
+                            if (value < 0 || value >= BYTE_MISSING) {
+                                fitsInByte = false;
+                            }
+                            row.putShort((short) value);
+                        }
+                        hasToken = tokens.next();
+                    }
+                    row.flip();
+                    long position = HEADER_SIZE + (long) (nRows - r - 1) * nCols * 2;
+                    while (row.hasRemaining()) {
+                        position += channel.write(row, position);
+                    }
+                }
+            }
+
+            if (fitsInByte) {
+                compact(shortFile, sidecar, nRows, nCols);
+            } else {
+                replace(shortFile, sidecar);
+            }
+        } finally {
+            shortFile.delete();
+        }
+    }
+
+    /**
+     * Converts a sidecar file of shorts into one of unsigned bytes
+     */
+    private static void compact(File shortFile, File sidecar, int nRows, int nCols)
+            throws IOException {
+        File byteFile = createTempFile(sidecar);
+        try {
+            try (RandomAccessFile in = new RandomAccessFile(shortFile, "r");
+                    RandomAccessFile out = new RandomAccessFile(byteFile, "rw")) {
+                FileChannel inChannel = in.getChannel();
+                FileChannel outChannel = out.getChannel();
+                out.setLength(0L);
+
+                ByteBuffer header = readHeader(inChannel);
+                header.putInt(4, 1);
+                header.clear();
+                outChannel.write(header);
+
+                ByteBuffer shorts = ByteBuffer.allocate(1 << 16);
+                ByteBuffer bytes = ByteBuffer.allocate(1 << 15);
+                while (inChannel.read(shorts) >= 0) {
+                    shorts.flip();
+                    while (shorts.remaining() >= 2) {
+                        short value = shorts.getShort();
+                        bytes.put((byte) (value == SHORT_MISSING ? BYTE_MISSING : value));
+                    }
+                    shorts.compact();
+                    bytes.flip();
+                    while (bytes.hasRemaining()) {
+                        outChannel.write(bytes);
+                    }
+                    bytes.clear();
+                }
+            }
+            replace(byteFile, sidecar);
+        } finally {
+            byteFile.delete();
+        }
+    }
+
+    /*
+     * Creates a uniquely-named file alongside the sidecar, so that it can be
+     * renamed over it
+     */
+    private static File createTempFile(File sidecar) throws IOException {
+        return File.createTempFile(sidecar.getName() + "-", ".tmp", sidecar.getAbsoluteFile()
+                .getParentFile());
+    }
+
+    private static void replace(File newFile, File target) throws IOException {
+        if (newFile.renameTo(target)) {
+            return;
+        }
+        /*
+         * Some platforms won't rename over an existing file
+         */
+        if (target.exists() && !target.delete()) {
+            throw new IOException("Cannot replace " + target);
+        }
+        if (!newFile.renameTo(target)) {
+            throw new IOException("Cannot create " + target);
+        }
+    }
+
+    /**
+     * Splits a file into whitespace-separated tokens, without reading it into
+     * memory. Integer tokens are parsed directly from the bytes of the file,
+     * so that no objects are created for each value.
+     */
+    private static final class Tokenizer implements AutoCloseable {
+        private final InputStream in;
+        private byte[] token = new byte[32];
+        private int length = 0;
+
+        public Tokenizer(File file) throws IOException {
+            in = new BufferedInputStream(new FileInputStream(file), 1 << 16);
+        }
+
+        /**
+         * Reads the next token
+         * 
+         * @return <code>false</code> if the end of the file has been reached
+         */
+        boolean next() throws IOException {
+            length = 0;
+            int b;
+            while ((b = in.read()) >= 0) {
+                if (b <= ' ') {
+                    if (length > 0) {
+                        break;
+                    }
+                } else {
+                    if (length == token.length) {
+                        token = Arrays.copyOf(token, length * 2);
+                    }
+                    token[length++] = (byte) b;
+                }
+            }
+            return length > 0;
+        }
+
+        boolean isKeyword() {
+            return Character.isLetter(token[0]);
+        }
+
+        String text() {
+            return new String(token, 0, length, StandardCharsets.US_ASCII);
+        }
+
+        int intValue() throws DataReadingException {
+            int i = 0;
+            boolean negative = false;
+            if (token[0] == '-' || token[0] == '+') {
+                negative = token[0] == '-';
+                i++;
+            }
+            long value = 0;
+            if (i < length && length - i < 11) {
+                for (; i < length; i++) {
+                    int digit = token[i] - '0';
+                    if (digit < 0 || digit > 9) {
+                        break;
+                    }
+                    value = value * 10 + digit;
+                }
+                if (i == length) {
+                    return (int) (negative ? -value : value);
+                }
+            }
+            /*
+             * Some tools write integer grids with a decimal point
+             */
+            String text = text();
+            try {
+                double doubleValue = Double.parseDouble(text);
+                if (doubleValue == Math.rint(doubleValue)
+                        && Math.abs(doubleValue) < Integer.MAX_VALUE) {
+                    return (int) doubleValue;
+                }
+            } catch (NumberFormatException e) {
+                /*
+                 * Fall through to the exception below
+                 */
+            }
+            throw new DataReadingException("Invalid value in ASCII grid: " + text);
+        }
+
+        @Override
+        public void close() throws IOException {
+            in.close();
+        }
+    }
+}
@@ -28,9 +28,7 @@
 
 package uk.ac.rdg.resc.edal.dataset.cdm;
 
-import java.io.BufferedReader;
 import java.io.File;
-import java.io.FileReader;
 import java.io.IOException;
 import java.util.Arrays;
 import java.util.Collection;
@@ -53,43 +51,23 @@ import uk.ac.rdg.resc.edal.metadata.GridVariableMetadata;
 import uk.ac.rdg.resc.edal.metadata.Parameter;
 import uk.ac.rdg.resc.edal.metadata.Parameter.Category;
 import uk.ac.rdg.resc.edal.util.Array4D;
-import uk.ac.rdg.resc.edal.util.ValuesArray4D;
 
 public class ModisLcDatasetFactory extends DatasetFactory {
 
     @Override
     public Dataset createDataset(String id, String location, boolean forceRefresh) throws IOException, EdalException {
         File file = new File(location);
-        BufferedReader reader = new BufferedReader(new FileReader(file));
-
-        int rows = Integer.parseInt(reader.readLine().split("\\s+")[1]);
-        int cols = Integer.parseInt(reader.readLine().split("\\s+")[1]);
-
-        double xstart = Double.parseDouble(reader.readLine().split("\\s+")[1]);
-        double ystart = Double.parseDouble(reader.readLine().split("\\s+")[1]);
-        double inc = Double.parseDouble(reader.readLine().split("\\s+")[1]);
-        int nodata = Integer.parseInt(reader.readLine().split("\\s+")[1]);
-
-        String[] data = reader.readLine().split("\\s+");
-        reader.close();
-
-        ValuesArray4D vals = new ValuesArray4D(1, 1, rows, cols);
-        for (int r = 0; r < rows; r++) {
-            for (int c = 0; c < cols; c++) {
-                /*
-                 * Add 1 because the first element is an empty string
-                 */
-                int index = 1 + c + r * cols;
-                Integer value = Integer.parseInt(data[index]);
-                if (value == nodata) {
-                    value = null;
-                }
-                vals.set(value, 0, 0, rows - r - 1, c);
-            }
-        }
-
-        RegularAxisImpl xAxis = new RegularAxisImpl("x", xstart, inc, cols, true);
-        RegularAxisImpl yAxis = new RegularAxisImpl("y", ystart, inc, rows, true);
+        /*
+         * The ASCII grid is converted to a memory-mapped binary file the first
+         * time it is read, and this is reused until the grid changes
+         */
+        EsriAsciiGrid grid = EsriAsciiGrid.open(file, getSidecarFile(file), forceRefresh);
+
+        double inc = grid.getCellSize();
+        RegularAxisImpl xAxis = new RegularAxisImpl("x", grid.getXStart(), inc, grid.getNCols(),
+                true);
+        RegularAxisImpl yAxis = new RegularAxisImpl("y", grid.getYStart(), inc, grid.getNRows(),
+                true);
 
         Map<Integer, Category> categories = new HashMap<>();
         categories.put(0, new Category("Water", "Water", "#000080", null));
@@ -114,13 +92,31 @@ public class ModisLcDatasetFactory extends DatasetFactory {
                 xAxis, yAxis, DefaultGeographicCRS.WGS84), null, null, true);
 
         List<GridVariableMetadata> metadataCollection = Arrays.asList(metadata);
-        return new ModisGridDataset(id, metadataCollection, vals);
+        return new ModisGridDataset(id, metadataCollection, grid);
+    }
+
+    /**
+     * @return The file to store the binary form of the given ASCII grid in.
+     *         This is in the working directory if one has been set, otherwise
+     *         in the system temporary directory. Data directories are never
+     *         written to.
+     */
+    private static File getSidecarFile(File asciiFile) {
+        String name = asciiFile.getName() + "-"
+                + Integer.toHexString(asciiFile.getAbsolutePath().hashCode()) + ".grid";
+        if (workingDir != null) {
+            File dir = new File(workingDir, "modis-lc");
+            if (dir.isDirectory() || dir.mkdirs()) {
+                return new File(dir, name);
+            }
+        }
+        return new File(System.getProperty("java.io.tmpdir"), name);
     }
 
     private final class ModisGridDataset extends GriddedDataset {
-        private ValuesArray4D data;
+        private EsriAsciiGrid data;
 
-        public ModisGridDataset(String id, Collection<GridVariableMetadata> vars, ValuesArray4D data) {
+        public ModisGridDataset(String id, Collection<GridVariableMetadata> vars, EsriAsciiGrid data) {
             super(id, vars);
             this.data = data;
         }
@@ -136,11 +132,13 @@ public class ModisLcDatasetFactory extends DatasetFactory {
                             xmax - xmin + 1) {
                         @Override
                         public Number get(int... coords) {
-                            int tIndex = tmin + coords[0];
-                            int zIndex = zmin + coords[1];
+                            /*
+                             * Values are only read from the mapped file as
+                             * they are requested
+                             */
                             int yIndex = ymin + coords[2];
                             int xIndex = xmin + coords[3];
-                            return data.get(tIndex, zIndex, yIndex, xIndex);
+                            return data.get(yIndex, xIndex);
                         }
 
                         @Override
@@ -158,7 +156,7 @@ public class ModisLcDatasetFactory extends DatasetFactory {
 
         @Override
         protected DataReadingStrategy getDataReadingStrategy() {
-            return DataReadingStrategy.PIXEL_BY_PIXEL;
+            return DataReadingStrategy.BOUNDING_BOX;
         }
     }
 }
@@ -298,7 +298,15 @@ public class NetcdfDatasetAggregator {
                     nc = NcMLReader.readNcML(new StringReader(ncmlString), null);
                 }
             }
-            datasetCache.put(location, nc);
+            NetcdfDataset previous = datasetCache.put(location, nc);
+            if (previous != null && previous != nc) {
+                /*
+                 * Any pooled data sources refer to the old dataset
+                 */
+                CdmGridDataSource.invalidate(previous);
+                CdmMeshDataSource.invalidate(previous);
+            }
+            CdmGridDataSource.register(nc);
         }
         /*
          * Mark this dataset as active. It will not be removed from the cache
@@ -425,6 +433,8 @@ public class NetcdfDatasetAggregator {
     private static void closeDataset(NetcdfDataset nc) throws IOException {
         if (nc == null)
             return;
+        CdmGridDataSource.invalidate(nc);
+        CdmMeshDataSource.invalidate(nc);
         nc.close();
     }
 }
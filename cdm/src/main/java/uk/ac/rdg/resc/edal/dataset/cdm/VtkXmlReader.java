@@ -0,0 +1,914 @@
+/*******************************************************************************
+ * Copyright (c) 2016 The University of Reading
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the University of Reading, nor the names of the
+ *    authors or contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ******************************************************************************/
+
+package uk.ac.rdg.resc.edal.dataset.cdm;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+import uk.ac.rdg.resc.edal.dataset.FloatMeshDataSource;
+import uk.ac.rdg.resc.edal.exceptions.DataReadingException;
+import uk.ac.rdg.resc.edal.position.HorizontalPosition;
+
+/**
+ * A streaming reader for VTK XML unstructured grid files, as written by
+ * hydrodynamic models.
+ * 
+ * The file is read with StAX, and the numeric content of each
+ * <code>DataArray</code> is decoded directly into primitive arrays as it is
+ * read, so that the text of an array is never held in memory. Arrays may be
+ * stored in any of the VTK formats:
+ * <ul>
+ * <li><code>ascii</code></li>
+ * <li><code>binary</code> - base64-encoded, optionally zlib-compressed</li>
+ * <li><code>appended</code> - in the <code>AppendedData</code> section, either
+ * raw or base64-encoded, optionally zlib-compressed</li>
+ * </ul>
+ * 
+ * The points and cells of the mesh are held on the heap. The values of the
+ * point data arrays are passed to a {@link FloatMeshDataSource.Builder}, which
+ * may write them to disk.
+ * 
+ * @author Guy Griffiths
+ */
+final class VtkXmlReader {
+    private static final String ZLIB_COMPRESSOR = "vtkZLibDataCompressor";
+
+    private VtkXmlReader() {
+    }
+
+    /**
+     * Reads a VTK XML file
+     * 
+     * @param file
+     *            The file to read
+     * @param values
+     *            The {@link FloatMeshDataSource.Builder} to write the values
+     *            of each point data array to. Any commas in the names of the
+     *            arrays are replaced with colons. Only the first component of
+     *            multi-component arrays is stored.
+     * @return The {@link VtkMesh} describing the points and cells of the file
+     * @throws IOException
+     *             If there is a problem reading the file
+     * @throws DataReadingException
+     *             If the file is not a valid VTK XML unstructured grid
+     */
+    static VtkMesh read(File file, FloatMeshDataSource.Builder values) throws IOException,
+            DataReadingException {
+        XMLInputFactory factory = XMLInputFactory.newInstance();
+        factory.setProperty(XMLInputFactory.IS_COALESCING, false);
+        factory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+
+        ReaderState state = new ReaderState(values);
+        try (InputStream in = new BufferedInputStream(new FileInputStream(file))) {
+            XMLStreamReader reader = factory.createXMLStreamReader(in);
+            try {
+                List<String> path = new ArrayList<>();
+                TextConsumer text = null;
+                ArrayTarget target = null;
+                boolean reachedAppendedData = false;
+                while (reader.hasNext() && !reachedAppendedData) {
+                    switch (reader.next()) {
+                    case XMLStreamConstants.START_ELEMENT:
+                        String name = reader.getLocalName();
+                        String parent = path.isEmpty() ? null : path.get(path.size() - 1);
+                        if ("VTKFile".equals(name)) {
+                            state.setFileAttributes(reader.getAttributeValue(null, "byte_order"),
+                                    reader.getAttributeValue(null, "header_type"),
+                                    reader.getAttributeValue(null, "compressor"));
+                        } else if ("Piece".equals(name)) {
+                            if (++state.pieces > 1) {
+                                throw new DataReadingException(
+                                        "Only VTK files with a single Piece are supported");
+                            }
+                        } else if ("DataArray".equals(name)) {
+                            target = state.getTarget(parent,
+                                    reader.getAttributeValue(null, "Name"),
+                                    reader.getAttributeValue(null, "NumberOfComponents"));
+                            if (target != null) {
+                                String type = reader.getAttributeValue(null, "type");
+                                String format = reader.getAttributeValue(null, "format");
+                                if ("appended".equals(format)) {
+                                    String offset = reader.getAttributeValue(null, "offset");
+                                    if (offset == null) {
+                                        throw new DataReadingException(
+                                                "Appended DataArray has no offset");
+                                    }
+                                    state.appended.add(new AppendedArray(Long.parseLong(offset
+                                            .trim()), type, target));
+                                    target = null;
+                                } else {
+                                    target.begin();
+                                    if ("binary".equals(format)) {
+                                        text = new Base64Decoder(state.binaryDecoder(type, target));
+                                    } else {
+                                        text = new AsciiParser(target);
+                                    }
+                                }
+                            }
+                        } else if ("AppendedData".equals(name)) {
+                            /*
+                             * Raw appended data is not valid XML, so we stop
+                             * parsing here and read it from the file directly
+                             */
+                            readAppendedData(file, reader.getAttributeValue(null, "encoding"),
+                                    state);
+                            reachedAppendedData = true;
+                        }
+                        path.add(name);
+                        break;
+                    case XMLStreamConstants.CHARACTERS:
+                    case XMLStreamConstants.CDATA:
+                        if (text != null) {
+                            text.write(reader.getTextCharacters(), reader.getTextStart(),
+                                    reader.getTextLength());
+                        }
+                        break;
+                    case XMLStreamConstants.END_ELEMENT:
+                        path.remove(path.size() - 1);
+                        if ("DataArray".equals(reader.getLocalName()) && text != null) {
+                            text.finish();
+                            target.end();
+                            text = null;
+                            target = null;
+                        }
+                        break;
+                    default:
+                        break;
+                    }
+                }
+            } finally {
+                reader.close();
+            }
+        } catch (XMLStreamException e) {
+            throw new DataReadingException("Cannot parse VTK XML file " + file, e);
+        }
+        return state.toMesh();
+    }
+
+    /**
+     * Reads all arrays stored in the AppendedData section of a file
+     */
+    private static void readAppendedData(File file, String encoding, ReaderState state)
+            throws IOException, DataReadingException {
+        if (state.appended.isEmpty()) {
+            return;
+        }
+        boolean base64 = "base64".equals(encoding);
+        if (!base64 && !"raw".equals(encoding)) {
+            throw new DataReadingException("Unsupported AppendedData encoding: " + encoding);
+        }
+        long dataStart = findAppendedDataStart(file);
+        List<AppendedArray> arrays = new ArrayList<>(state.appended);
+        Collections.sort(arrays, new Comparator<AppendedArray>() {
+            @Override
+            public int compare(AppendedArray a1, AppendedArray a2) {
+                return Long.compare(a1.offset, a2.offset);
+            }
+        });
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+            FileChannel channel = raf.getChannel();
+            ByteBuffer buffer = ByteBuffer.allocate(1 << 16);
+            char[] chars = new char[1 << 16];
+            for (AppendedArray array : arrays) {
+                array.target.begin();
+                BinaryDecoder decoder = state.binaryDecoder(array.type, array.target);
+                Base64Decoder base64Decoder = base64 ? new Base64Decoder(decoder) : null;
+                channel.position(dataStart + array.offset);
+                while (!decoder.isComplete()) {
+                    buffer.clear();
+                    if (channel.read(buffer) < 0) {
+                        break;
+                    }
+                    buffer.flip();
+                    if (base64) {
+                        int n = buffer.remaining();
+                        for (int i = 0; i < n; i++) {
+                            chars[i] = (char) (buffer.get(i) & 0xFF);
+                        }
+                        base64Decoder.write(chars, 0, n);
+                    } else {
+                        decoder.write(buffer.array(), 0, buffer.remaining());
+                    }
+                }
+                if (base64) {
+                    base64Decoder.finish();
+                } else {
+                    decoder.finish();
+                }
+                array.target.end();
+            }
+        }
+    }
+
+    /**
+     * Finds the position in the file of the first byte of appended data. This
+     * is the byte after the underscore which follows the AppendedData start
+     * tag.
+     */
+    private static long findAppendedDataStart(File file) throws IOException,
+            DataReadingException {
+        byte[] tag = "<AppendedData".getBytes("US-ASCII");
+        try (InputStream in = new BufferedInputStream(new FileInputStream(file))) {
+            long position = 0;
+            int matched = 0;
+            boolean inTag = false;
+            int b;
+            while ((b = in.read()) >= 0) {
+                position++;
+                if (matched < tag.length) {
+                    matched = b == tag[matched] ? matched + 1 : (b == tag[0] ? 1 : 0);
+                } else if (!inTag) {
+                    if (b == '>') {
+                        inTag = true;
+                    }
+                } else if (b == '_') {
+                    return position;
+                }
+            }
+        }
+        throw new DataReadingException("Cannot find the start of the AppendedData section");
+    }
+
+    /**
+     * The points and cells read from a VTK file
+     */
+    static final class VtkMesh {
+        private final double[] points;
+        private final int pointComponents;
+        private final int[] connectivity;
+        private final int[] offsets;
+        private final List<String> variableIds;
+
+        private VtkMesh(double[] points, int pointComponents, int[] connectivity, int[] offsets,
+                List<String> variableIds) {
+            this.points = points;
+            this.pointComponents = pointComponents;
+            this.connectivity = connectivity;
+            this.offsets = offsets;
+            this.variableIds = variableIds;
+        }
+
+        int getNumPoints() {
+            return points.length / pointComponents;
+        }
+
+        /**
+         * @return The points of the mesh. The first component of each point is
+         *         the y-coordinate, and the second is the x-coordinate.
+         */
+        List<HorizontalPosition> getPositions() {
+            return new AbstractList<HorizontalPosition>() {
+                @Override
+                public HorizontalPosition get(int index) {
+                    int i = index * pointComponents;
+                    return new HorizontalPosition(points[i + 1], points[i]);
+                }
+
+                @Override
+                public int size() {
+                    return getNumPoints();
+                }
+            };
+        }
+
+        /**
+         * @return The vertex indices of each cell of the mesh. If the file has
+         *         no cell offsets, all cells are assumed to be triangles.
+         */
+        List<int[]> getCells() {
+            if (offsets == null) {
+                return new AbstractList<int[]>() {
+                    @Override
+                    public int[] get(int index) {
+                        return Arrays.copyOfRange(connectivity, index * 3, index * 3 + 3);
+                    }
+
+                    @Override
+                    public int size() {
+                        return connectivity.length / 3;
+                    }
+                };
+            } else {
+                return new AbstractList<int[]>() {
+                    @Override
+                    public int[] get(int index) {
+                        int start = index == 0 ? 0 : offsets[index - 1];
+                        return Arrays.copyOfRange(connectivity, start, offsets[index]);
+                    }
+
+                    @Override
+                    public int size() {
+                        return offsets.length;
+                    }
+                };
+            }
+        }
+
+        /**
+         * @return The IDs of the variables which were written to the
+         *         {@link FloatMeshDataSource.Builder}
+         */
+        List<String> getVariableIds() {
+            return variableIds;
+        }
+    }
+
+    /**
+     * Holds everything read so far
+     */
+    private static final class ReaderState {
+        private final FloatMeshDataSource.Builder values;
+        private ByteOrder byteOrder = ByteOrder.LITTLE_ENDIAN;
+        private int headerSize = 4;
+        private boolean compressed = false;
+        private int pieces = 0;
+
+        private DoubleArrayTarget points = null;
+        private int pointComponents = 3;
+        private DoubleArrayTarget connectivity = null;
+        private DoubleArrayTarget offsets = null;
+        private final List<String> variableIds = new ArrayList<>();
+        private final List<AppendedArray> appended = new ArrayList<>();
+
+        public ReaderState(FloatMeshDataSource.Builder values) {
+            this.values = values;
+        }
+
+        void setFileAttributes(String byteOrderAttr, String headerType, String compressor)
+                throws DataReadingException {
+            if ("BigEndian".equals(byteOrderAttr)) {
+                byteOrder = ByteOrder.BIG_ENDIAN;
+            }
+            if ("UInt64".equals(headerType)) {
+                headerSize = 8;
+            } else if (headerType != null && !"UInt32".equals(headerType)) {
+                throw new DataReadingException("Unsupported VTK header type: " + headerType);
+            }
+            if (compressor != null && !compressor.isEmpty()) {
+                if (!ZLIB_COMPRESSOR.equals(compressor)) {
+                    throw new DataReadingException("Unsupported VTK compressor: " + compressor);
+                }
+                compressed = true;
+            }
+        }
+
+        /**
+         * @return The {@link ArrayTarget} which a DataArray should be read
+         *         into, or <code>null</code> if it is not needed
+         */
+        ArrayTarget getTarget(String parent, String name, String numberOfComponents) {
+            int components = numberOfComponents == null ? 1 : Integer
+                    .parseInt(numberOfComponents.trim());
+            if ("Points".equals(parent)) {
+                if (points == null) {
+                    points = new DoubleArrayTarget();
+                    pointComponents = numberOfComponents == null ? 3 : components;
+                    return points;
+                }
+            } else if ("Cells".equals(parent)) {
+                if ("connectivity".equals(name)) {
+                    connectivity = new DoubleArrayTarget();
+                    return connectivity;
+                } else if ("offsets".equals(name)) {
+                    offsets = new DoubleArrayTarget();
+                    return offsets;
+                }
+            } else if ("PointData".equals(parent) && name != null) {
+                /*
+                 * Cannot have commas in the variable name
+                 * 
+                 * TODO fix this at the Parameter level
+                 */
+                String varId = name.replace(",", ":");
+                variableIds.add(varId);
+                return new VariableTarget(values, varId, components);
+            }
+            return null;
+        }
+
+        BinaryDecoder binaryDecoder(String type, ArrayTarget target)
+                throws DataReadingException {
+            return new BinaryDecoder(type, byteOrder, headerSize, compressed, target);
+        }
+
+        VtkMesh toMesh() throws DataReadingException {
+            if (points == null || points.size == 0) {
+                throw new DataReadingException("No points found in VTK file");
+            }
+            if (connectivity == null) {
+                throw new DataReadingException("No cell connectivity found in VTK file");
+            }
+            return new VtkMesh(Arrays.copyOf(points.values, points.size), pointComponents,
+                    connectivity.toIntArray(), offsets == null ? null : offsets.toIntArray(),
+                    variableIds);
+        }
+    }
+
+    private static final class AppendedArray {
+        final long offset;
+        final String type;
+        final ArrayTarget target;
+
+        public AppendedArray(long offset, String type, ArrayTarget target) {
+            this.offset = offset;
+            this.type = type;
+            this.target = target;
+        }
+    }
+
+    /**
+     * Somewhere to put the values of a DataArray
+     */
+    private interface ArrayTarget {
+        public void begin() throws IOException;
+
+        public void put(double value) throws IOException;
+
+        public void end() throws IOException;
+    }
+
+    private static final class DoubleArrayTarget implements ArrayTarget {
+        private double[] values = new double[1024];
+        private int size = 0;
+
+        @Override
+        public void begin() {
+        }
+
+        @Override
+        public void put(double value) {
+            if (size == values.length) {
+                values = Arrays.copyOf(values, values.length * 2);
+            }
+            values[size++] = value;
+        }
+
+        @Override
+        public void end() {
+        }
+
+        int[] toIntArray() {
+            int[] ret = new int[size];
+            for (int i = 0; i < size; i++) {
+                ret[i] = (int) values[i];
+            }
+            return ret;
+        }
+    }
+
+    private static final class VariableTarget implements ArrayTarget {
+        private final FloatMeshDataSource.Builder values;
+        private final String varId;
+        private final int components;
+        private long count = 0;
+
+        public VariableTarget(FloatMeshDataSource.Builder values, String varId, int components) {
+            this.values = values;
+            this.varId = varId;
+            this.components = components;
+        }
+
+        @Override
+        public void begin() throws IOException {
+            values.startVariable(varId);
+        }
+
+        @Override
+        public void put(double value) throws IOException {
+            if (count++ % components == 0) {
+                values.add((float) value);
+            }
+        }
+
+        @Override
+        public void end() throws IOException {
+            values.endVariable();
+        }
+    }
+
+    /**
+     * Something which consumes the text content of a DataArray
+     */
+    private interface TextConsumer {
+        public void write(char[] chars, int start, int length) throws IOException,
+                DataReadingException;
+
+        public void finish() throws IOException, DataReadingException;
+    }
+
+    /**
+     * Parses whitespace-separated numbers
+     */
+    private static final class AsciiParser implements TextConsumer {
+        private final ArrayTarget target;
+        private final StringBuilder token = new StringBuilder();
+
+        public AsciiParser(ArrayTarget target) {
+            this.target = target;
+        }
+
+        @Override
+        public void write(char[] chars, int start, int length) throws IOException,
+                DataReadingException {
+            for (int i = start; i < start + length; i++) {
+                char c = chars[i];
+                if (Character.isWhitespace(c)) {
+                    parseToken();
+                } else {
+                    token.append(c);
+                }
+            }
+        }
+
+        @Override
+        public void finish() throws IOException, DataReadingException {
+            parseToken();
+        }
+
+        private void parseToken() throws IOException, DataReadingException {
+            if (token.length() == 0) {
+                return;
+            }
+            String value = token.toString();
+            token.setLength(0);
+            try {
+                target.put(Double.parseDouble(value));
+            } catch (NumberFormatException e) {
+                if (value.equalsIgnoreCase("nan")) {
+                    target.put(Double.NaN);
+                } else {
+                    throw new DataReadingException("Invalid value in VTK DataArray: " + value, e);
+                }
+            }
+        }
+    }
+
+    /**
+     * Decodes base64 text, passing the bytes on to a {@link BinaryDecoder}.
+     * 
+     * Compressed arrays have their header and data encoded separately, so
+     * padding characters can appear part way through the text. These
+     * terminate the current group of characters, and decoding then continues
+     * as normal.
+     */
+    private static final class Base64Decoder implements TextConsumer {
+        private final BinaryDecoder decoder;
+        private final byte[] out = new byte[1 << 16];
+        private int outLength = 0;
+        private int quantum = 0;
+        private int quantumChars = 0;
+
+        public Base64Decoder(BinaryDecoder decoder) {
+            this.decoder = decoder;
+        }
+
+        @Override
+        public void write(char[] chars, int start, int length) throws IOException,
+                DataReadingException {
+            for (int i = start; i < start + length; i++) {
+                char c = chars[i];
+                int value;
+                if (c >= 'A' && c <= 'Z') {
+                    value = c - 'A';
+                } else if (c >= 'a' && c <= 'z') {
+                    value = c - 'a' + 26;
+                } else if (c >= '0' && c <= '9') {
+                    value = c - '0' + 52;
+                } else if (c == '+') {
+                    value = 62;
+                } else if (c == '/') {
+                    value = 63;
+                } else if (c == '=') {
+                    endQuantum();
+                    continue;
+                } else {
+                    /*
+                     * Whitespace
+                     */
+                    continue;
+                }
+                quantum = (quantum << 6) | value;
+                if (++quantumChars == 4) {
+                    emit((byte) (quantum >> 16));
+                    emit((byte) (quantum >> 8));
+                    emit((byte) quantum);
+                    quantum = 0;
+                    quantumChars = 0;
+                }
+            }
+        }
+
+        private void endQuantum() throws IOException, DataReadingException {
+            if (quantumChars == 2) {
+                emit((byte) (quantum >> 4));
+            } else if (quantumChars == 3) {
+                emit((byte) (quantum >> 10));
+                emit((byte) (quantum >> 2));
+            }
+            quantum = 0;
+            quantumChars = 0;
+        }
+
+        private void emit(byte b) throws IOException, DataReadingException {
+            out[outLength++] = b;
+            if (outLength == out.length) {
+                flush();
+            }
+        }
+
+        private void flush() throws IOException, DataReadingException {
+            decoder.write(out, 0, outLength);
+            outLength = 0;
+        }
+
+        @Override
+        public void finish() throws IOException, DataReadingException {
+            endQuantum();
+            flush();
+            decoder.finish();
+        }
+    }
+
+    /**
+     * Decodes the bytes of a binary DataArray: a header giving the size of
+     * the data (and of each compressed block, if compressed), followed by the
+     * data itself
+     */
+    private static final class BinaryDecoder {
+        private final ByteOrder byteOrder;
+        private final int headerSize;
+        private final boolean compressed;
+        private final ValueDecoder values;
+
+        private ByteBuffer header;
+        private boolean inHeader = true;
+        private boolean complete = false;
+
+        /* Uncompressed data */
+        private long remainingBytes;
+
+        /* Compressed data */
+        private long[] blockSizes;
+        private long[] compressedSizes;
+        private int block = 0;
+        private byte[] compressedBlock;
+        private int compressedLength = 0;
+        private byte[] uncompressedBlock;
+
+        public BinaryDecoder(String type, ByteOrder byteOrder, int headerSize,
+                boolean compressed, ArrayTarget target) throws DataReadingException {
+            this.byteOrder = byteOrder;
+            this.headerSize = headerSize;
+            this.compressed = compressed;
+            this.values = new ValueDecoder(type, byteOrder, target);
+            header = ByteBuffer.allocate(compressed ? 3 * headerSize : headerSize).order(
+                    byteOrder);
+        }
+
+        boolean isComplete() {
+            return complete;
+        }
+
+        void write(byte[] bytes, int start, int length) throws IOException,
+                DataReadingException {
+            int pos = start;
+            int end = start + length;
+            while (pos < end && !complete) {
+                if (inHeader) {
+                    int n = Math.min(header.remaining(), end - pos);
+                    header.put(bytes, pos, n);
+                    pos += n;
+                    if (!header.hasRemaining()) {
+                        parseHeader();
+                    }
+                } else if (!compressed) {
+                    int n = (int) Math.min(remainingBytes, end - pos);
+                    values.write(bytes, pos, n);
+                    pos += n;
+                    remainingBytes -= n;
+                    if (remainingBytes == 0) {
+                        complete = true;
+                    }
+                } else {
+                    int n = (int) Math.min(compressedBlock.length - compressedLength, end
+                            - pos);
+                    System.arraycopy(bytes, pos, compressedBlock, compressedLength, n);
+                    pos += n;
+                    compressedLength += n;
+                    if (compressedLength == compressedBlock.length) {
+                        inflateBlock();
+                    }
+                }
+            }
+        }
+
+        private long getHeaderValue(int index) {
+            return headerSize == 8 ? header.getLong(index * 8)
+                    : header.getInt(index * 4) & 0xFFFFFFFFL;
+        }
+
+        private void parseHeader() throws DataReadingException {
+            if (!compressed) {
+                remainingBytes = getHeaderValue(0);
+                inHeader = false;
+                complete = remainingBytes == 0;
+                return;
+            }
+            int nBlocks = (int) getHeaderValue(0);
+            if (compressedSizes == null && nBlocks > 0) {
+                /*
+                 * We now know how many blocks there are, so we can read the
+                 * rest of the header
+                 */
+                compressedSizes = new long[nBlocks];
+                ByteBuffer fullHeader = ByteBuffer.allocate((3 + nBlocks) * headerSize).order(
+                        byteOrder);
+                header.flip();
+                fullHeader.put(header);
+                header = fullHeader;
+                return;
+            }
+            inHeader = false;
+            if (nBlocks == 0) {
+                complete = true;
+                return;
+            }
+            long blockSize = getHeaderValue(1);
+            long lastBlockSize = getHeaderValue(2);
+            blockSizes = new long[nBlocks];
+            for (int i = 0; i < nBlocks; i++) {
+                compressedSizes[i] = getHeaderValue(3 + i);
+                blockSizes[i] = blockSize;
+            }
+            if (lastBlockSize != 0) {
+                blockSizes[nBlocks - 1] = lastBlockSize;
+            }
+            startBlock();
+        }
+
+        private void startBlock() {
+            if (compressedBlock == null || compressedBlock.length != compressedSizes[block]) {
+                compressedBlock = new byte[(int) compressedSizes[block]];
+            }
+            if (uncompressedBlock == null || uncompressedBlock.length != blockSizes[block]) {
+                uncompressedBlock = new byte[(int) blockSizes[block]];
+            }
+            compressedLength = 0;
+        }
+
+        private void inflateBlock() throws IOException, DataReadingException {
+            Inflater inflater = new Inflater();
+            try {
+                inflater.setInput(compressedBlock);
+                int length = 0;
+                while (length < uncompressedBlock.length && !inflater.finished()) {
+                    int n = inflater.inflate(uncompressedBlock, length, uncompressedBlock.length
+                            - length);
+                    if (n == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                        break;
+                    }
+                    length += n;
+                }
+                values.write(uncompressedBlock, 0, length);
+            } catch (DataFormatException e) {
+                throw new DataReadingException("Invalid compressed data in VTK file", e);
+            } finally {
+                inflater.end();
+            }
+            if (++block == compressedSizes.length) {
+                complete = true;
+            } else {
+                startBlock();
+            }
+        }
+
+        void finish() throws DataReadingException {
+            if (!complete) {
+                throw new DataReadingException("Binary VTK DataArray is truncated");
+            }
+        }
+    }
+
+    /**
+     * Converts bytes into numeric values of a given VTK type
+     */
+    private static final class ValueDecoder {
+        private final String type;
+        private final int size;
+        private final ArrayTarget target;
+        private final ByteBuffer pending;
+
+        public ValueDecoder(String type, ByteOrder byteOrder, ArrayTarget target)
+                throws DataReadingException {
+            this.type = type;
+            this.size = getSize(type);
+            this.target = target;
+            pending = ByteBuffer.allocate(size).order(byteOrder);
+        }
+
+        private static int getSize(String type) throws DataReadingException {
+            if (type == null) {
+                throw new DataReadingException("VTK DataArray has no type");
+            }
+            switch (type) {
+            case "Int8":
+            case "UInt8":
+                return 1;
+            case "Int16":
+            case "UInt16":
+                return 2;
+            case "Int32":
+            case "UInt32":
+            case "Float32":
+                return 4;
+            case "Int64":
+            case "UInt64":
+            case "Float64":
+                return 8;
+            default:
+                throw new DataReadingException("Unsupported VTK data type: " + type);
+            }
+        }
+
+        void write(byte[] bytes, int start, int length) throws IOException {
+            for (int i = start; i < start + length; i++) {
+                pending.put(bytes[i]);
+                if (!pending.hasRemaining()) {
+                    target.put(decode());
+                    pending.clear();
+                }
+            }
+        }
+
+        private double decode() {
+            switch (type) {
+            case "Int8":
+                return pending.get(0);
+            case "UInt8":
+                return pending.get(0) & 0xFF;
+            case "Int16":
+                return pending.getShort(0);
+            case "UInt16":
+                return pending.getShort(0) & 0xFFFF;
+            case "Int32":
+                return pending.getInt(0);
+            case "UInt32":
+                return pending.getInt(0) & 0xFFFFFFFFL;
+            case "Float32":
+                return pending.getFloat(0);
+            case "Int64":
+            case "UInt64":
+                return pending.getLong(0);
+            case "Float64":
+            default:
+                return pending.getDouble(0);
+            }
+        }
+    }
+}
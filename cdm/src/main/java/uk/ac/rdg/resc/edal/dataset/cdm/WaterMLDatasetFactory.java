@@ -31,28 +31,17 @@ package uk.ac.rdg.resc.edal.dataset.cdm;
 import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
 
-import javax.xml.parsers.DocumentBuilder;
-import javax.xml.parsers.DocumentBuilderFactory;
-import javax.xml.parsers.ParserConfigurationException;
-import javax.xml.xpath.XPath;
-import javax.xml.xpath.XPathConstants;
-import javax.xml.xpath.XPathExpression;
-import javax.xml.xpath.XPathExpressionException;
-import javax.xml.xpath.XPathFactory;
-
 import org.geotoolkit.referencing.crs.DefaultGeographicCRS;
+import org.joda.time.Chronology;
 import org.joda.time.DateTime;
 import org.joda.time.chrono.ISOChronology;
-import org.w3c.dom.Document;
-import org.w3c.dom.Node;
-import org.w3c.dom.NodeList;
-import org.xml.sax.SAXException;
 
 import uk.ac.rdg.resc.edal.dataset.PointDataset;
 import uk.ac.rdg.resc.edal.dataset.Dataset;
@@ -61,9 +50,12 @@ import uk.ac.rdg.resc.edal.dataset.DiscreteFeatureReader;
 import uk.ac.rdg.resc.edal.dataset.FeatureIndexer;
 import uk.ac.rdg.resc.edal.dataset.FeatureIndexer.FeatureBounds;
 import uk.ac.rdg.resc.edal.dataset.PRTreeFeatureIndexer;
+import uk.ac.rdg.resc.edal.dataset.cdm.WaterMLSeriesStore.Series;
+import uk.ac.rdg.resc.edal.dataset.cdm.WaterMLSeriesStore.SeriesEntry;
 import uk.ac.rdg.resc.edal.domain.Extent;
 import uk.ac.rdg.resc.edal.domain.HorizontalDomain;
 import uk.ac.rdg.resc.edal.domain.SimpleHorizontalDomain;
+import uk.ac.rdg.resc.edal.domain.SimpleTemporalDomain;
 import uk.ac.rdg.resc.edal.domain.TemporalDomain;
 import uk.ac.rdg.resc.edal.exceptions.DataReadingException;
 import uk.ac.rdg.resc.edal.exceptions.EdalException;
@@ -76,149 +68,79 @@ import uk.ac.rdg.resc.edal.metadata.Parameter;
 import uk.ac.rdg.resc.edal.metadata.VariableMetadata;
 import uk.ac.rdg.resc.edal.position.HorizontalPosition;
 import uk.ac.rdg.resc.edal.util.Array1D;
+import uk.ac.rdg.resc.edal.util.Extents;
 import uk.ac.rdg.resc.edal.util.GISUtils;
-import uk.ac.rdg.resc.edal.util.TimeUtils;
 import uk.ac.rdg.resc.edal.util.ValuesArray1D;
 
 public class WaterMLDatasetFactory extends DatasetFactory {
+    private static final Chronology CHRONOLOGY = ISOChronology.getInstance();
 
     @Override
     public Dataset createDataset(String id, String location, boolean forceRefresh)
             throws IOException, EdalException {
-        try {
-            /*
-             * First we read the GetSiteInfoFile.xml which maps site codes to
-             * physical locations.
-             */
-            Map<String, HorizontalPosition> sites = new HashMap<>();
-            File wmlSites = new File(location + "/" + "GetSiteInfoFile.xml");
-            DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
-            DocumentBuilder builder = factory.newDocumentBuilder();
-            Document doc = builder.parse(wmlSites);
-            XPathFactory xPathfactory = XPathFactory.newInstance();
-            XPath xpath = xPathfactory.newXPath();
-            /*
-             * Find all elements within timeSeriesResponse/timeSeries - this is
-             * a list of nodes each of which contain an individual site
-             * definition
-             */
-            NodeList sitesList = (NodeList) xpath.compile("timeSeriesResponse/timeSeries")
-                    .evaluate(doc, XPathConstants.NODESET);
-            /*
-             * Precompile some XPath expressions for convenience
-             */
-            XPathExpression siteCodeExpr = xpath.compile("sourceInfo/siteCode");
-            XPathExpression latitudeExpr = xpath
-                    .compile("sourceInfo/geoLocation/geogLocation/latitude");
-            XPathExpression longitudeExpr = xpath
-                    .compile("sourceInfo/geoLocation/geogLocation/longitude");
-            for (int i = 0; i < sitesList.getLength(); i++) {
-                Node site = sitesList.item(i);
-                String siteCode = siteCodeExpr.evaluate(site);
-                Double latitude = (Double) latitudeExpr.evaluate(site, XPathConstants.NUMBER);
-                Double longitude = (Double) longitudeExpr.evaluate(site, XPathConstants.NUMBER);
-                sites.put(siteCode, new HorizontalPosition(longitude, latitude,
-                        DefaultGeographicCRS.WGS84));
+        /*
+         * The GetSiteInfoFile.xml (which maps site codes to physical
+         * locations) and ExportValues.xml (which contains the actual
+         * timeseries) files are parsed once, into a binary store in the
+         * working directory. Timeseries are then read from the store as they
+         * are needed.
+         */
+        WaterMLSeriesStore store = WaterMLSeriesStore.open(location, new File(workingDir, id
+                + ".wml.index.ser"), new File(workingDir, id + ".wml.dat"), forceRefresh);
+
+        Collection<VariableMetadata> metadata = new ArrayList<>();
+        /*
+         * We can't use Parameter as the key to the bounds object, because
+         * Parameters can be considered equal even if they have different
+         * IDs
+         */
+        Map<Parameter, List<HorizontalDomain>> hDomains = new HashMap<>();
+        Map<Parameter, List<TemporalDomain>> tDomains = new HashMap<>();
+        List<FeatureBounds> featureBounds = new ArrayList<>();
+        for (SeriesEntry entry : store.getEntries()) {
+            Parameter parameter = getParameter(entry);
+            if (!hDomains.containsKey(parameter)) {
+                hDomains.put(parameter, new ArrayList<HorizontalDomain>());
+                tDomains.put(parameter, new ArrayList<TemporalDomain>());
             }
-            /*
-             * We now have a Map of site code to physical location.
-             * 
-             * Now read the ExportValues file which contains the actual
-             * timeseries
-             */
+            hDomains.get(parameter).add(
+                    new SimpleHorizontalDomain(entry.longitude, entry.latitude, entry.longitude,
+                            entry.latitude, DefaultGeographicCRS.WGS84));
+            DateTime tMin = new DateTime(entry.tMin, CHRONOLOGY);
+            DateTime tMax = new DateTime(entry.tMax, CHRONOLOGY);
+            tDomains.get(parameter).add(new SimpleTemporalDomain(tMin, tMax));
+
+            featureBounds.add(new FeatureBounds(entry.featureId, getPosition(entry), null,
+                    Extents.newExtent(tMin, tMax), Arrays.asList(entry.varId)));
+        }
+        for (Parameter p : hDomains.keySet()) {
+            metadata.add(new VariableMetadata(p, GISUtils
+                    .getIntersectionOfHorizontalDomains(hDomains.get(p).toArray(
+                            new HorizontalDomain[0])), null, GISUtils
+                    .getIntersectionOfTemporalDomains(tDomains.get(p).toArray(
+                            new TemporalDomain[0]))));
+        }
+        FeatureIndexer featureIndexer = new PRTreeFeatureIndexer();
+        featureIndexer.addFeatures(featureBounds);
+        return new WaterMLDataset(id, metadata, featureIndexer, store);
+    }
 
-            File wmlData = new File(location + "/" + "ExportValues.xml");
-            builder = factory.newDocumentBuilder();
-            doc = builder.parse(wmlData);
-            NodeList timeseriesList = (NodeList) xpath.compile("timeSeriesResponse/timeSeries")
-                    .evaluate(doc, XPathConstants.NODESET);
+    private static Parameter getParameter(SeriesEntry entry) {
+        return new Parameter(entry.varId, entry.varId, null, entry.units, entry.valueType);
+    }
 
-            Collection<PointSeriesFeature> features = new ArrayList<>();
-            XPathExpression varIdExpr = xpath.compile("variable/variableCode");
-            XPathExpression typeExpr = xpath.compile("variable/valueType");
-            XPathExpression valuesExpr = xpath.compile("values/value");
-            XPathExpression unitsExpr = xpath.compile("variable/units");
-            for (int i = 0; i < timeseriesList.getLength(); i++) {
-                Node timeseries = timeseriesList.item(i);
-                String siteCode = siteCodeExpr.evaluate(timeseries);
-                String varId = varIdExpr.evaluate(timeseries);
-                String featureId = siteCode + ":" + varId;
-                NodeList valuesList = (NodeList) valuesExpr.evaluate(timeseries,
-                        XPathConstants.NODESET);
-                List<DateTime> axisValues = new ArrayList<>();
-                Array1D<Number> dataValues = new ValuesArray1D(valuesList.getLength());
-                for (int j = 0; j < valuesList.getLength(); j++) {
-                    Node valueNode = valuesList.item(j);
-                    DateTime time = TimeUtils.iso8601ToDateTime(valueNode.getAttributes()
-                            .getNamedItem("dateTime").getNodeValue(), ISOChronology.getInstance());
-                    axisValues.add(time);
-                    Double value = Double.parseDouble(valueNode.getTextContent());
-                    if (value != null && value == -9999) {
-                        value = null;
-                    }
-                    dataValues.set(value, j);
-                }
-                Map<String, Array1D<Number>> valuesMap = new HashMap<>();
-                valuesMap.put(varId, dataValues);
-                Node evaluate = (Node) unitsExpr.evaluate(timeseries, XPathConstants.NODE);
-                Map<String, Parameter> parameters = new HashMap<>();
-                parameters.put(varId, new Parameter(varId, varId, null, evaluate.getAttributes()
-                        .getNamedItem("unitsCode").getNodeValue(), typeExpr.evaluate(timeseries)));
-                features.add(new PointSeriesFeature(featureId, varId + " at " + siteCode,
-                        "Timeseries feature of " + varId + " at site " + siteCode,
-                        new TimeAxisImpl("Time axis for " + varId, axisValues),
-                        sites.get(siteCode), null, parameters, valuesMap));
-            }
-            Collection<VariableMetadata> metadata = new ArrayList<>();
-            /*
-             * We can't use Parameter as the key to the bounds object, because
-             * Parameters can be considered equal even if they have different
-             * IDs
-             */
-            Map<Parameter, List<HorizontalDomain>> hDomains = new HashMap<>();
-            Map<Parameter, List<TemporalDomain>> tDomains = new HashMap<>();
-            for (PointSeriesFeature feature : features) {
-                for (String parameterId : feature.getParameterIds()) {
-                    Parameter parameter = feature.getParameter(parameterId);
-                    if (!hDomains.containsKey(parameter)) {
-                        hDomains.put(parameter, new ArrayList<HorizontalDomain>());
-                        tDomains.put(parameter, new ArrayList<TemporalDomain>());
-                    }
-                    HorizontalPosition pos = feature.getHorizontalPosition();
-                    hDomains.get(parameter).add(
-                            new SimpleHorizontalDomain(pos.getX(), pos.getY(), pos.getX(), pos
-                                    .getY(), pos.getCoordinateReferenceSystem()));
-                    tDomains.get(parameter).add(feature.getDomain());
-                }
-            }
-            for (Parameter p : hDomains.keySet()) {
-                metadata.add(new VariableMetadata(p, GISUtils
-                        .getIntersectionOfHorizontalDomains(hDomains.get(p).toArray(
-                                new HorizontalDomain[0])), null, GISUtils
-                        .getIntersectionOfTemporalDomains(tDomains.get(p).toArray(
-                                new TemporalDomain[0]))));
-            }
-            FeatureIndexer featureIndexer = new PRTreeFeatureIndexer();
-            List<FeatureBounds> featureBounds = new ArrayList<>();
-            for (PointSeriesFeature feature : features) {
-                featureBounds.add(FeatureBounds.fromPointSeriesFeature(feature));
-            }
-            featureIndexer.addFeatures(featureBounds);
-            return new WaterMLDataset(id, metadata, featureIndexer, features);
-        } catch (ParserConfigurationException | SAXException | XPathExpressionException e) {
-            // TODO Auto-generated catch block
-            e.printStackTrace();
-            return null;
-        }
+    private static HorizontalPosition getPosition(SeriesEntry entry) {
+        return new HorizontalPosition(entry.longitude, entry.latitude,
+                DefaultGeographicCRS.WGS84);
     }
 
     class WaterMLDataset extends PointDataset<PointSeriesFeature> {
         private WaterMLFeatureReader featureReader;
 
         public WaterMLDataset(String id, Collection<VariableMetadata> vars,
-                FeatureIndexer featureIndexer, Collection<PointSeriesFeature> features) {
+                FeatureIndexer featureIndexer, WaterMLSeriesStore store) {
             super(id, vars, featureIndexer);
-            featureReader = new WaterMLFeatureReader(features);
+            featureReader = new WaterMLFeatureReader(store);
         }
 
         @Override
@@ -249,19 +171,33 @@ public class WaterMLDatasetFactory extends DatasetFactory {
     }
 
     private final class WaterMLFeatureReader implements DiscreteFeatureReader<PointSeriesFeature> {
-        private Map<String, PointSeriesFeature> features;
+        private WaterMLSeriesStore store;
 
-        public WaterMLFeatureReader(Collection<PointSeriesFeature> features) {
-            this.features = new HashMap<>();
-            for (PointSeriesFeature feature : features) {
-                this.features.put(feature.getId(), feature);
-            }
+        public WaterMLFeatureReader(WaterMLSeriesStore store) {
+            this.store = store;
         }
 
         @Override
         public PointSeriesFeature readFeature(String id, Set<String> variableIds)
                 throws DataReadingException {
-            return features.get(id);
+            SeriesEntry entry = store.getEntry(id);
+            if (entry == null) {
+                return null;
+            }
+            Series series = store.readSeries(id);
+            Array1D<Number> dataValues = new ValuesArray1D(series.values.length);
+            for (int i = 0; i < series.values.length; i++) {
+                double value = series.values[i];
+                dataValues.set(Double.isNaN(value) ? null : value, i);
+            }
+            Map<String, Array1D<Number>> valuesMap = new HashMap<>();
+            valuesMap.put(entry.varId, dataValues);
+            Map<String, Parameter> parameters = new HashMap<>();
+            parameters.put(entry.varId, getParameter(entry));
+            return new PointSeriesFeature(id, entry.varId + " at " + entry.siteCode,
+                    "Timeseries feature of " + entry.varId + " at site " + entry.siteCode,
+                    new TimeAxisImpl("Time axis for " + entry.varId, series.times, CHRONOLOGY),
+                    getPosition(entry), null, parameters, valuesMap);
         }
 
         @Override
@@ -0,0 +1,547 @@
+/*******************************************************************************
+ * Copyright (c) 2016 The University of Reading
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the University of Reading, nor the names of the
+ *    authors or contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ******************************************************************************/
+
+package uk.ac.rdg.resc.edal.dataset.cdm;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.RandomAccessFile;
+import java.io.Serializable;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+import org.joda.time.chrono.ISOChronology;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import uk.ac.rdg.resc.edal.exceptions.DataReadingException;
+import uk.ac.rdg.resc.edal.util.TimeUtils;
+
+/**
+ * An on-disk store of WaterML timeseries.
+ * 
+ * The WaterML XML files are parsed as a stream, once. The time and value
+ * arrays of each series are written contiguously to a binary data file, and a
+ * small {@link SeriesEntry} describing each series (its site, variable,
+ * position, time extent and location in the data file) is kept in memory and
+ * serialised to an index file. Subsequent loads just read the index file, as
+ * long as the XML files are unchanged.
+ * 
+ * Each time the XML files are parsed, a new data file is written, and the
+ * index (which names the data file it describes) is only replaced once the
+ * data file is complete. An interrupted parse therefore never leaves an index
+ * pointing at incomplete data, and stores which are still reading the
+ * previous data file are unaffected.
+ * 
+ * Series are read from the data file on demand, and the most recently read
+ * series are cached.
+ * 
+ * @author Guy Griffiths
+ */
+final class WaterMLSeriesStore {
+    private static final Logger log = LoggerFactory.getLogger(WaterMLSeriesStore.class);
+
+    private static final String SITES_FILENAME = "GetSiteInfoFile.xml";
+    private static final String VALUES_FILENAME = "ExportValues.xml";
+    private static final String SERIES_PATH = "timeSeriesResponse/timeSeries";
+    private static final double MISSING_VALUE = -9999;
+    private static final int MAX_CACHED_SERIES = 256;
+
+    private final File dataFile;
+    private final List<SeriesEntry> entries;
+    private final Map<String, SeriesEntry> entriesById;
+    private final Map<String, Series> cache;
+
+    private WaterMLSeriesStore(File dataFile, List<SeriesEntry> entries) {
+        this.dataFile = dataFile;
+        this.entries = entries;
+        entriesById = new HashMap<>();
+        for (SeriesEntry entry : entries) {
+            entriesById.put(entry.featureId, entry);
+        }
+        cache = new LinkedHashMap<String, Series>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Series> eldest) {
+                return size() > MAX_CACHED_SERIES;
+            }
+        };
+    }
+
+    /**
+     * Opens the store for a directory of WaterML files, parsing them if they
+     * have not already been stored or have changed since
+     * 
+     * @param location
+     *            The directory containing the WaterML files
+     *            (GetSiteInfoFile.xml and ExportValues.xml)
+     * @param indexFile
+     *            The file to store the series index in
+     * @param dataFile
+     *            The base name of the files to store the series values in.
+     *            Each data file is this name followed by a unique suffix.
+     * @param forceRefresh
+     *            Whether to re-parse the WaterML files even if they are
+     *            unchanged
+     * @return The {@link WaterMLSeriesStore}
+     * @throws IOException
+     *             If there is a problem reading or writing any of the files
+     * @throws DataReadingException
+     *             If the WaterML files cannot be parsed
+     */
+    static WaterMLSeriesStore open(String location, File indexFile, File dataFile,
+            boolean forceRefresh) throws IOException, DataReadingException {
+        File sitesFile = new File(location, SITES_FILENAME);
+        File valuesFile = new File(location, VALUES_FILENAME);
+        List<Long> stamp = Arrays.asList(sitesFile.length(), sitesFile.lastModified(),
+                valuesFile.length(), valuesFile.lastModified());
+
+        File dir = dataFile.getAbsoluteFile().getParentFile();
+        File indexedDataFile = null;
+        if (indexFile.exists()) {
+            try (ObjectInputStream in = new ObjectInputStream(new BufferedInputStream(
+                    new FileInputStream(indexFile)))) {
+                Object indexStamp = in.readObject();
+                indexedDataFile = new File(dir, (String) in.readObject());
+                if (stamp.equals(indexStamp) && indexedDataFile.exists() && !forceRefresh) {
+                    @SuppressWarnings("unchecked")
+                    List<SeriesEntry> entries = (List<SeriesEntry>) in.readObject();
+                    log.debug("Read WaterML series index from file");
+                    return new WaterMLSeriesStore(indexedDataFile, entries);
+                }
+            } catch (ClassNotFoundException | IOException | ClassCastException e) {
+                /*
+                 * We will just recreate the store, so it's not a big problem
+                 */
+                log.warn("Problem reading WaterML series index", e);
+            }
+        }
+
+        Map<String, double[]> sites = readSites(sitesFile);
+        File newDataFile = File.createTempFile(dataFile.getName() + ".", "", dir);
+        List<SeriesEntry> entries;
+        try {
+            entries = writeSeries(valuesFile, sites, newDataFile);
+        } catch (IOException | RuntimeException e) {
+            newDataFile.delete();
+            throw e;
+        }
+        writeIndex(indexFile, stamp, newDataFile.getName(), entries);
+        deleteOldDataFiles(dataFile, newDataFile, indexedDataFile);
+        return new WaterMLSeriesStore(newDataFile, entries);
+    }
+
+    /**
+     * Writes the index to a temporary file and then renames it, so that the
+     * index file is always complete
+     */
+    private static void writeIndex(File indexFile, List<Long> stamp, String dataFileName,
+            List<SeriesEntry> entries) {
+        File tempFile = null;
+        try {
+            tempFile = File.createTempFile(indexFile.getName() + "-", ".tmp", indexFile
+                    .getAbsoluteFile().getParentFile());
+            try (ObjectOutputStream out = new ObjectOutputStream(new BufferedOutputStream(
+                    new FileOutputStream(tempFile)))) {
+                out.writeObject(stamp);
+                out.writeObject(dataFileName);
+                out.writeObject(entries);
+            }
+            if (!tempFile.renameTo(indexFile)) {
+                /*
+                 * Some platforms won't rename over an existing file
+                 */
+                if (!indexFile.delete() || !tempFile.renameTo(indexFile)) {
+                    throw new IOException("Cannot replace " + indexFile);
+                }
+            }
+        } catch (IOException e) {
+            log.warn("Unable to write WaterML series index to file", e);
+            if (tempFile != null) {
+                tempFile.delete();
+            }
+        }
+    }
+
+    /**
+     * Deletes the data files of earlier parses. The one which was indexed
+     * before this parse is kept, since it may still be being read by a
+     * previous store.
+     */
+    private static void deleteOldDataFiles(File dataFile, File currentFile, File previousFile) {
+        File[] files = dataFile.getAbsoluteFile().getParentFile().listFiles();
+        if (files == null) {
+            return;
+        }
+        String prefix = dataFile.getName() + ".";
+        for (File file : files) {
+            String name = file.getName();
+            if ((name.equals(dataFile.getName()) || name.startsWith(prefix))
+                    && !file.equals(currentFile) && !file.equals(previousFile)) {
+                file.delete();
+            }
+        }
+    }
+
+    /**
+     * @return Descriptions of all of the series in this store
+     */
+    List<SeriesEntry> getEntries() {
+        return entries;
+    }
+
+    /**
+     * @param featureId
+     *            The ID of the series
+     * @return The description of the series, or <code>null</code> if it is
+     *         not in this store
+     */
+    SeriesEntry getEntry(String featureId) {
+        return entriesById.get(featureId);
+    }
+
+    /**
+     * Reads a series
+     * 
+     * @param featureId
+     *            The ID of the series
+     * @return The {@link Series}, or <code>null</code> if it is not in this
+     *         store
+     * @throws DataReadingException
+     *             If there is a problem reading the data file
+     */
+    Series readSeries(String featureId) throws DataReadingException {
+        SeriesEntry entry = entriesById.get(featureId);
+        if (entry == null) {
+            return null;
+        }
+        synchronized (cache) {
+            Series series = cache.get(featureId);
+            if (series != null) {
+                return series;
+            }
+        }
+        Series series = new Series(new long[entry.count], new double[entry.count]);
+        ByteBuffer buffer = ByteBuffer.allocate(entry.count * 16);
+        try (RandomAccessFile raf = new RandomAccessFile(dataFile, "r")) {
+            FileChannel channel = raf.getChannel();
+            long position = entry.offset;
+            while (buffer.hasRemaining()) {
+                int read = channel.read(buffer, position);
+                if (read < 0) {
+                    throw new DataReadingException("WaterML data file " + dataFile
+                            + " is truncated");
+                }
+                position += read;
+            }
+        } catch (IOException e) {
+            throw new DataReadingException("Problem reading WaterML series " + featureId, e);
+        }
+        buffer.flip();
+        buffer.asLongBuffer().get(series.times);
+        buffer.position(entry.count * 8);
+        buffer.asDoubleBuffer().get(series.values);
+        synchronized (cache) {
+            cache.put(featureId, series);
+        }
+        return series;
+    }
+
+    /**
+     * Reads the locations of all sites
+     * 
+     * @return A map of site code to [longitude, latitude]
+     */
+    private static Map<String, double[]> readSites(File sitesFile) throws IOException,
+            DataReadingException {
+        final Map<String, double[]> sites = new HashMap<>();
+        parse(sitesFile, new ElementHandler() {
+            private String siteCode;
+            private Double latitude;
+            private Double longitude;
+
+            @Override
+            public void start(String path, XMLStreamReader reader) {
+                if (path.equals(SERIES_PATH)) {
+                    siteCode = null;
+                    latitude = null;
+                    longitude = null;
+                }
+            }
+
+            @Override
+            public void end(String path, String text) {
+                if (path.equals(SERIES_PATH + "/sourceInfo/siteCode")) {
+                    siteCode = text;
+                } else if (path.equals(SERIES_PATH
+                        + "/sourceInfo/geoLocation/geogLocation/latitude")) {
+                    latitude = Double.parseDouble(text);
+                } else if (path.equals(SERIES_PATH
+                        + "/sourceInfo/geoLocation/geogLocation/longitude")) {
+                    longitude = Double.parseDouble(text);
+                } else if (path.equals(SERIES_PATH) && siteCode != null && latitude != null
+                        && longitude != null) {
+                    sites.put(siteCode, new double[] { longitude, latitude });
+                }
+            }
+        });
+        return sites;
+    }
+
+    /**
+     * Parses the timeseries, writing their times and values to the data file
+     */
+    private static List<SeriesEntry> writeSeries(File valuesFile,
+            final Map<String, double[]> sites, File dataFile) throws IOException,
+            DataReadingException {
+        final List<SeriesEntry> entries = new ArrayList<>();
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                new FileOutputStream(dataFile), 1 << 16))) {
+            parse(valuesFile, new ElementHandler() {
+                private long offset = 0L;
+                private String siteCode;
+                private String varId;
+                private String units;
+                private String valueType;
+                private long[] times = new long[1024];
+                private double[] values = new double[1024];
+                private int count;
+                private String dateTime;
+
+                @Override
+                public void start(String path, XMLStreamReader reader) {
+                    if (path.equals(SERIES_PATH)) {
+                        siteCode = null;
+                        varId = null;
+                        units = null;
+                        valueType = null;
+                        count = 0;
+                    } else if (path.equals(SERIES_PATH + "/variable/units")) {
+                        units = reader.getAttributeValue(null, "unitsCode");
+                    } else if (path.equals(SERIES_PATH + "/values/value")) {
+                        dateTime = reader.getAttributeValue(null, "dateTime");
+                    }
+                }
+
+                @Override
+                public void end(String path, String text) throws IOException {
+                    if (path.equals(SERIES_PATH + "/sourceInfo/siteCode")) {
+                        siteCode = text;
+                    } else if (path.equals(SERIES_PATH + "/variable/variableCode")) {
+                        varId = text;
+                    } else if (path.equals(SERIES_PATH + "/variable/valueType")) {
+                        valueType = text;
+                    } else if (path.equals(SERIES_PATH + "/values/value")) {
+                        if (count == times.length) {
+                            times = Arrays.copyOf(times, count * 2);
+                            values = Arrays.copyOf(values, count * 2);
+                        }
+                        times[count] = TimeUtils.iso8601ToDateTime(dateTime,
+                                ISOChronology.getInstance()).getMillis();
+                        double value = Double.parseDouble(text);
+                        values[count] = value == MISSING_VALUE ? Double.NaN : value;
+                        count++;
+                    } else if (path.equals(SERIES_PATH)) {
+                        endSeries();
+                    }
+                }
+
+                private void endSeries() throws IOException {
+                    double[] position = sites.get(siteCode);
+                    if (position == null || varId == null || count == 0) {
+                        log.warn("Skipping WaterML timeseries " + varId + " at site " + siteCode
+                                + " - no location or values");
+                        return;
+                    }
+                    long tMin = Long.MAX_VALUE;
+                    long tMax = Long.MIN_VALUE;
+                    for (int i = 0; i < count; i++) {
+                        out.writeLong(times[i]);
+                        tMin = Math.min(tMin, times[i]);
+                        tMax = Math.max(tMax, times[i]);
+                    }
+                    for (int i = 0; i < count; i++) {
+                        out.writeDouble(values[i]);
+                    }
+                    entries.add(new SeriesEntry(siteCode + ":" + varId, siteCode, varId,
+                            units, valueType, position[0], position[1], offset, count, tMin,
+                            tMax));
+                    offset += count * 16L;
+                }
+            });
+        }
+        return entries;
+    }
+
+    /**
+     * Receives the elements of an XML document
+     */
+    private interface ElementHandler {
+        /**
+         * Called at the start of each element
+         * 
+         * @param path
+         *            The path of the element from the root, separated by "/"
+         * @param reader
+         *            The reader, positioned at the start of the element
+         */
+        public void start(String path, XMLStreamReader reader);
+
+        /**
+         * Called at the end of each element
+         * 
+         * @param path
+         *            The path of the element from the root, separated by "/"
+         * @param text
+         *            The trimmed text content of the element, excluding any
+         *            child elements
+         */
+        public void end(String path, String text) throws IOException;
+    }
+
+    private static void parse(File file, ElementHandler handler) throws IOException,
+            DataReadingException {
+        XMLInputFactory factory = XMLInputFactory.newInstance();
+        factory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+        factory.setProperty(XMLInputFactory.IS_NAMESPACE_AWARE, false);
+        try (InputStream in = new BufferedInputStream(new FileInputStream(file))) {
+            XMLStreamReader reader = factory.createXMLStreamReader(in);
+            try {
+                List<Integer> pathLengths = new ArrayList<>();
+                StringBuilder path = new StringBuilder();
+                StringBuilder text = new StringBuilder();
+                while (reader.hasNext()) {
+                    switch (reader.next()) {
+                    case XMLStreamConstants.START_ELEMENT:
+                        pathLengths.add(path.length());
+                        if (path.length() > 0) {
+                            path.append('/');
+                        }
+                        path.append(getLocalName(reader.getLocalName()));
+                        text.setLength(0);
+                        handler.start(path.toString(), reader);
+                        break;
+                    case XMLStreamConstants.CHARACTERS:
+                    case XMLStreamConstants.CDATA:
+                        text.append(reader.getTextCharacters(), reader.getTextStart(),
+                                reader.getTextLength());
+                        break;
+                    case XMLStreamConstants.END_ELEMENT:
+                        handler.end(path.toString(), text.toString().trim());
+                        text.setLength(0);
+                        path.setLength(pathLengths.remove(pathLengths.size() - 1));
+                        break;
+                    default:
+                        break;
+                    }
+                }
+            } finally {
+                reader.close();
+            }
+        } catch (XMLStreamException | NumberFormatException e) {
+            throw new DataReadingException("Cannot parse WaterML file " + file, e);
+        }
+    }
+
+    private static String getLocalName(String name) {
+        /*
+         * The parser is not namespace-aware, so strip any prefix
+         */
+        int colon = name.indexOf(':');
+        return colon < 0 ? name : name.substring(colon + 1);
+    }
+
+    /**
+     * The description of a single timeseries in the store
+     */
+    static final class SeriesEntry implements Serializable {
+        private static final long serialVersionUID = 1L;
+
+        final String featureId;
+        final String siteCode;
+        final String varId;
+        final String units;
+        final String valueType;
+        final double longitude;
+        final double latitude;
+        final long offset;
+        final int count;
+        final long tMin;
+        final long tMax;
+
+        private SeriesEntry(String featureId, String siteCode, String varId, String units,
+                String valueType, double longitude, double latitude, long offset, int count,
+                long tMin, long tMax) {
+            this.featureId = featureId;
+            this.siteCode = siteCode;
+            this.varId = varId;
+            this.units = units;
+            this.valueType = valueType;
+            this.longitude = longitude;
+            this.latitude = latitude;
+            this.offset = offset;
+            this.count = count;
+            this.tMin = tMin;
+            this.tMax = tMax;
+        }
+    }
+
+    /**
+     * The times and values of a single timeseries. Missing values are
+     * represented by {@link Double#NaN}.
+     */
+    static final class Series {
+        final long[] times;
+        final double[] values;
+
+        private Series(long[] times, double[] values) {
+            this.times = times;
+            this.values = values;
+        }
+    }
+}
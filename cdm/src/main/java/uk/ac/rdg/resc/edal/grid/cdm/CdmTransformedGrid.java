@@ -54,6 +54,7 @@ import uk.ac.rdg.resc.edal.grid.GridCell2D;
 import uk.ac.rdg.resc.edal.grid.GridCell2DImpl;
 import uk.ac.rdg.resc.edal.grid.HorizontalGrid;
 import uk.ac.rdg.resc.edal.grid.ReferenceableAxis;
+import uk.ac.rdg.resc.edal.grid.RegularAxis;
 import uk.ac.rdg.resc.edal.position.HorizontalPosition;
 import uk.ac.rdg.resc.edal.position.LonLatPosition;
 import uk.ac.rdg.resc.edal.util.Array2D;
@@ -119,6 +120,7 @@ public class CdmTransformedGrid extends AbstractTransformedGrid {
     }
 
     private final ReferenceableAxis<Double> yAxis;
+    private final boolean xAxisIsLongitude;
     private final BoundingBox bbox;
 
     private transient Array2D<GridCell2D> domainObjs = null;
@@ -134,7 +136,7 @@ public class CdmTransformedGrid extends AbstractTransformedGrid {
          * If this is a rotated-pole projection then the x axis is longitude and
          * hence wraps at 0/360 degrees.
          */
-        boolean xAxisIsLongitude = proj instanceof RotatedPole;
+        xAxisIsLongitude = proj instanceof RotatedPole;
         xAxis = CdmUtils.createReferenceableAxis((CoordinateAxis1D) coordSys.getXHorizAxis(),
                 xAxisIsLongitude);
         yAxis = CdmUtils.createReferenceableAxis((CoordinateAxis1D) coordSys.getYHorizAxis());
@@ -264,9 +266,11 @@ public class CdmTransformedGrid extends AbstractTransformedGrid {
     public GridCoordinates2D findIndexOf(HorizontalPosition position) {
         /*
          * Ensure position is in CRS84, so that we can use our cached projection
-         * to transform it
+         * to transform it. Most positions will already be in exactly this CRS,
+         * in which case we can skip the more expensive check.
          */
-        if (!GISUtils.crsMatch(getCoordinateReferenceSystem(),
+        if (position.getCoordinateReferenceSystem() != getCoordinateReferenceSystem()
+                && !GISUtils.crsMatch(getCoordinateReferenceSystem(),
                 position.getCoordinateReferenceSystem())) {
             position = GISUtils.transformPosition(position, getCoordinateReferenceSystem());
         }
@@ -281,6 +285,49 @@ public class CdmTransformedGrid extends AbstractTransformedGrid {
                 yAxis.findIndexOf(transformed.getY()));
     }
 
+    /**
+     * Projects all of the positions in one call to the array form of
+     * {@link ProjectionImpl#latLonToProj(double[][], double[][], int, int)},
+     * and finds indices along regular axes arithmetically
+     */
+    @Override
+    public void findIndicesOf(double[] lons, double[] lats, int[] xIndices, int[] yIndices) {
+        double[][] latLons = new double[][] { lats, lons };
+        double[][] projected = proj.latLonToProj(latLons, new double[2][lons.length], 0, 1);
+        findAxisIndices(xAxis, xAxisIsLongitude, projected[0], xIndices);
+        findAxisIndices(yAxis, false, projected[1], yIndices);
+    }
+
+    private static void findAxisIndices(ReferenceableAxis<Double> axis, boolean isLongitude,
+            double[] values, int[] indices) {
+        if (axis instanceof RegularAxis) {
+            /*
+             * Equivalent to RegularAxisImpl.findIndexOf(), but without boxing
+             * each value
+             */
+            double firstValue = axis.getCoordinateValue(0);
+            double spacing = ((RegularAxis) axis).getCoordinateSpacing();
+            double lowerBound = isLongitude ? axis.getCoordinateExtent().getLow() : 0.0;
+            int size = axis.size();
+            for (int i = 0; i < values.length; i++) {
+                double value = values[i];
+                if (Double.isNaN(value)) {
+                    indices[i] = -1;
+                    continue;
+                }
+                if (isLongitude) {
+                    value = GISUtils.getNextEquivalentLongitude(lowerBound, value);
+                }
+                long index = Math.round((value - firstValue) / spacing);
+                indices[i] = (index < 0 || index >= size) ? -1 : (int) index;
+            }
+        } else {
+            for (int i = 0; i < values.length; i++) {
+                indices[i] = axis.findIndexOf(values[i]);
+            }
+        }
+    }
+
     @Override
     public double transformNativeHeadingToWgs84(double xComp, double yComp, double lon, double lat) {
         double dxy = 1e-8;
@@ -38,7 +38,6 @@ import java.util.List;
 import org.apache.oro.io.GlobFilenameFilter;
 import org.geotoolkit.referencing.crs.DefaultGeographicCRS;
 import org.joda.time.Chronology;
-import org.joda.time.DateTime;
 import org.joda.time.chrono.GregorianChronology;
 import org.joda.time.chrono.ISOChronology;
 import org.joda.time.chrono.JulianChronology;
@@ -271,11 +270,13 @@ public final class CdmUtils {
             throw new IllegalArgumentException("The calendar system " + cal.getStringValue()
                     + " cannot be handled");
         }
-        List<DateTime> timesteps = new ArrayList<DateTime>();
-        for (CalendarDate date : timeAxis.getCalendarDates()) {
-            timesteps.add(new DateTime(date.getMillis(), chron));
+        List<CalendarDate> dates = timeAxis.getCalendarDates();
+        long[] timesteps = new long[dates.size()];
+        int i = 0;
+        for (CalendarDate date : dates) {
+            timesteps[i++] = date.getMillis();
         }
-        return new TimeAxisImpl("time", timesteps);
+        return new TimeAxisImpl("time", timesteps, chron);
     }
 
     /*
@@ -1,29 +1,86 @@
 package uk.ac.rdg.resc.edal.dataset.cdm;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
 
+import java.io.File;
 import java.io.IOException;
 import java.net.URL;
 
 import org.junit.Before;
 import org.junit.Test;
 
+import ucar.ma2.Array;
+import ucar.ma2.DataType;
+import ucar.ma2.Index;
+import ucar.ma2.InvalidRangeException;
+import ucar.nc2.Attribute;
+import ucar.nc2.Variable;
+import ucar.nc2.NetcdfFileWriter;
 import ucar.nc2.dataset.NetcdfDataset;
+import ucar.nc2.dataset.VariableDS;
 import uk.ac.rdg.resc.edal.exceptions.DataReadingException;
 import uk.ac.rdg.resc.edal.util.Array4D;
+import uk.ac.rdg.resc.edal.util.cdm.CdmUtils;
 
 public class CdmGridDataSourceTest {
     private CdmGridDataSource datasource;
+    private String location;
     private static final double delta = 1e-5;
 
     @Before
     public void setUp() throws Exception {
         URL url = this.getClass().getResource("/rectilinear_test_data.nc");
-        String location = url.getPath();
+        location = url.getPath();
         NetcdfDataset nc = NetcdfDatasetAggregator.getDataset(location);
         datasource = new CdmGridDataSource(nc);
     }
 
+    @Test
+    public void poolTest() throws Exception {
+        NetcdfDataset nc = NetcdfDatasetAggregator.getDataset(location);
+        CdmGridDataSource first = CdmGridDataSource.acquire(nc);
+        first.close();
+
+        /*
+         * A closed data source should be reused for the same dataset
+         */
+        nc = NetcdfDatasetAggregator.getDataset(location);
+        CdmGridDataSource second = CdmGridDataSource.acquire(nc);
+        assertSame(first, second);
+
+        /*
+         * ...but not handed out twice at once
+         */
+        nc = NetcdfDatasetAggregator.getDataset(location);
+        CdmGridDataSource third = CdmGridDataSource.acquire(nc);
+        assertNotSame(second, third);
+        second.close();
+        third.close();
+
+        /*
+         * Once the dataset has been invalidated, a new data source is needed
+         */
+        CdmGridDataSource.invalidate(nc);
+        nc = NetcdfDatasetAggregator.getDataset(location);
+        CdmGridDataSource fourth = CdmGridDataSource.acquire(nc);
+        assertNotSame(first, fourth);
+        assertNotSame(third, fourth);
+        fourth.close();
+
+        /*
+         * ...and data sources for an invalidated dataset are not pooled again
+         */
+        nc = NetcdfDatasetAggregator.getDataset(location);
+        CdmGridDataSource fifth = CdmGridDataSource.acquire(nc);
+        assertNotSame(fourth, fifth);
+        fifth.close();
+        datasource.close();
+    }
+
     @Test
     public void readTest() throws IOException, DataReadingException {
         int tmin = 0;
@@ -67,4 +124,169 @@ public class CdmGridDataSourceTest {
         datasource.close();
     }
 
+    @Test
+    public void enhancedReadTest() throws IOException, InvalidRangeException,
+            DataReadingException {
+        File file = File.createTempFile("edal-enhance", ".nc");
+        try {
+            writeEnhanceTestFile(file);
+            NetcdfDataset nc = NetcdfDatasetAggregator.getDataset(file.getPath());
+            CdmGridDataSource enhanceSource = new CdmGridDataSource(nc);
+
+            /*
+             * Packed data: the fill value is checked against the packed value,
+             * not the scaled one
+             */
+            Array4D<Number> packed = readAll(enhanceSource, "packedShort");
+            assertNull(packed.get(0, 0, 0, 0));
+            assertEquals(-999.0, packed.get(0, 0, 0, 1).doubleValue(), delta);
+            assertEquals(5.5, packed.get(0, 0, 1, 0).doubleValue(), delta);
+
+            /*
+             * Unsigned data: the fill value is -1 as a signed byte
+             */
+            Array4D<Number> unsigned = readAll(enhanceSource, "unsignedByte");
+            assertNull(unsigned.get(0, 0, 0, 0));
+            assertEquals(20.0, unsigned.get(0, 0, 0, 1).doubleValue(), delta);
+
+            Array4D<Number> validRange = readAll(enhanceSource, "validRange");
+            assertNull(validRange.get(0, 0, 0, 0));
+            assertNull(validRange.get(0, 0, 0, 1));
+            assertEquals(5.0, validRange.get(0, 0, 1, 0).doubleValue(), delta);
+
+            /*
+             * All values should match those enhanced by the VariableDS
+             */
+            for (String varId : new String[] { "packedShort", "unsignedByte", "validRange",
+                    "permuted", "doubleData" }) {
+                assertMatchesEnhanced(nc, varId, readAll(enhanceSource, varId));
+            }
+            enhanceSource.close();
+        } finally {
+            file.delete();
+        }
+    }
+
+    private static Array4D<Number> readAll(CdmGridDataSource dataSource, String varId)
+            throws IOException, DataReadingException {
+        return dataSource.read(varId, 0, 0, 0, 0, 0, NY - 1, 0, NX - 1);
+    }
+
+    /**
+     * Checks values read from a {@link CdmGridDataSource} against those from
+     * {@link VariableDS#convertScaleOffsetMissing(Array)}, which is how they
+     * were previously enhanced
+     */
+    private static void assertMatchesEnhanced(NetcdfDataset nc, String varId,
+            Array4D<Number> values) throws IOException, DataReadingException {
+        VariableDS var = CdmUtils.getGridDataset(nc).findGridDatatype(varId).getVariable();
+        Variable origVar = var.getOriginalVariable();
+        Array expected = origVar == null ? var.read() : var.convertScaleOffsetMissing(origVar
+                .read());
+        boolean xFirst = var.getDimension(0).getShortName().equals("lon");
+        Index index = expected.getIndex();
+        for (int y = 0; y < NY; y++) {
+            for (int x = 0; x < NX; x++) {
+                if (xFirst) {
+                    index.set(x, y);
+                } else {
+                    index.set(y, x);
+                }
+                double expectedValue = expected.getDouble(index);
+                Number value = values.get(0, 0, y, x);
+                String message = varId + " at " + x + "," + y;
+                if (var.isMissing(expectedValue)) {
+                    assertNull(message, value);
+                } else {
+                    assertNotNull(message, value);
+                    assertEquals(message, expectedValue, value.doubleValue(), delta);
+                }
+            }
+        }
+    }
+
+    private static final int NX = 5;
+    private static final int NY = 4;
+
+    private static void writeEnhanceTestFile(File file) throws IOException,
+            InvalidRangeException {
+        NetcdfFileWriter writer = NetcdfFileWriter.createNew(NetcdfFileWriter.Version.netcdf3,
+                file.getPath());
+        writer.addDimension(null, "lat", NY);
+        writer.addDimension(null, "lon", NX);
+
+        Variable lat = writer.addVariable(null, "lat", DataType.FLOAT, "lat");
+        writer.addVariableAttribute(lat, new Attribute("units", "degrees_north"));
+        writer.addVariableAttribute(lat, new Attribute("_CoordinateAxisType", "Lat"));
+        Variable lon = writer.addVariable(null, "lon", DataType.FLOAT, "lon");
+        writer.addVariableAttribute(lon, new Attribute("units", "degrees_east"));
+        writer.addVariableAttribute(lon, new Attribute("_CoordinateAxisType", "Lon"));
+
+        Variable packedShort = writer.addVariable(null, "packedShort", DataType.SHORT, "lat lon");
+        writer.addVariableAttribute(packedShort, new Attribute("scale_factor", 0.5f));
+        writer.addVariableAttribute(packedShort, new Attribute("add_offset", 1.0f));
+        writer.addVariableAttribute(packedShort, new Attribute("_FillValue", (short) -999));
+
+        Variable unsignedByte = writer.addVariable(null, "unsignedByte", DataType.BYTE,
+                "lat lon");
+        writer.addVariableAttribute(unsignedByte, new Attribute("_Unsigned", "true"));
+        writer.addVariableAttribute(unsignedByte, new Attribute("scale_factor", 0.1));
+        writer.addVariableAttribute(unsignedByte, new Attribute("_FillValue", (byte) -1));
+
+        Variable validRange = writer.addVariable(null, "validRange", DataType.FLOAT, "lat lon");
+        writer.addVariableAttribute(validRange,
+                new Attribute("valid_range", Array.factory(new float[] { 0.0f, 10.0f })));
+
+        Variable permuted = writer.addVariable(null, "permuted", DataType.FLOAT, "lon lat");
+        writer.addVariableAttribute(permuted, new Attribute("missing_value", 3.0f));
+
+        Variable doubleData = writer.addVariable(null, "doubleData", DataType.DOUBLE, "lat lon");
+        writer.addVariableAttribute(doubleData, new Attribute("_FillValue", -1e30));
+
+        writer.create();
+
+        float[] lats = new float[NY];
+        for (int y = 0; y < NY; y++) {
+            lats[y] = 10.0f * y;
+        }
+        float[] lons = new float[NX];
+        for (int x = 0; x < NX; x++) {
+            lons[x] = 10.0f * x;
+        }
+        writer.write(lat, Array.factory(lats));
+        writer.write(lon, Array.factory(lons));
+
+        int[] shape = new int[] { NY, NX };
+        short[] packedValues = new short[NX * NY];
+        byte[] unsignedValues = new byte[NX * NY];
+        float[] rangeValues = new float[NX * NY];
+        float[] permutedValues = new float[NX * NY];
+        double[] doubleValues = new double[NX * NY];
+        for (int i = 0; i < NX * NY; i++) {
+            packedValues[i] = (short) (i * 2 - 1);
+            unsignedValues[i] = (byte) (i * 20);
+            rangeValues[i] = i - 5.0f;
+            permutedValues[i] = i;
+            doubleValues[i] = i * 1e-3;
+        }
+        /* The fill value, and a packed value which scales to the fill value */
+        packedValues[0] = -999;
+        packedValues[1] = -2000;
+        /* The fill value, and 200 as an unsigned byte */
+        unsignedValues[0] = -1;
+        unsignedValues[1] = (byte) 200;
+        /* Values outside the valid range */
+        rangeValues[0] = -1.0f;
+        rangeValues[1] = 10.5f;
+        rangeValues[NX] = 5.0f;
+        doubleValues[2] = -1e30;
+
+        writer.write(packedShort, Array.factory(DataType.SHORT, shape, packedValues));
+        writer.write(unsignedByte, Array.factory(DataType.BYTE, shape, unsignedValues));
+        writer.write(validRange, Array.factory(DataType.FLOAT, shape, rangeValues));
+        writer.write(permuted, Array.factory(DataType.FLOAT, new int[] { NX, NY },
+                permutedValues));
+        writer.write(doubleData, Array.factory(DataType.DOUBLE, shape, doubleValues));
+        writer.close();
+    }
 }
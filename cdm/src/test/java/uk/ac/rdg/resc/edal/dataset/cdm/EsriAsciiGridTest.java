@@ -0,0 +1,157 @@
+/*******************************************************************************
+ * Copyright (c) 2016 The University of Reading
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the University of Reading, nor the names of the
+ *    authors or contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ******************************************************************************/
+
+package uk.ac.rdg.resc.edal.dataset.cdm;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import uk.ac.rdg.resc.edal.exceptions.DataReadingException;
+
+/**
+ * Test class for {@link EsriAsciiGrid}
+ * 
+ * @author Guy Griffiths
+ */
+public class EsriAsciiGridTest {
+    private static final String HEADER = "ncols 3\nnrows 2\nxllcorner -10.5\n"
+            + "yllcorner 40.0\ncellsize 0.5\nNODATA_value -9999\n";
+
+    private File asciiFile;
+    private File sidecar;
+
+    @Before
+    public void setUp() throws IOException {
+        asciiFile = File.createTempFile("edal-grid", ".asc");
+        sidecar = new File(asciiFile.getPath() + ".grid");
+    }
+
+    @After
+    public void tearDown() {
+        asciiFile.delete();
+        sidecar.delete();
+    }
+
+    @Test
+    public void testByteGrid() throws IOException, DataReadingException {
+        /*
+         * Data on a single line, as written by some tools
+         */
+        write(HEADER + " 1 2 -9999 4.0 5 16");
+        EsriAsciiGrid grid = EsriAsciiGrid.open(asciiFile, sidecar, false);
+        assertEquals(1, grid.getBytesPerValue());
+        checkGrid(grid, 16);
+
+        /*
+         * The intermediate files should have been removed
+         */
+        String[] leftovers = sidecar.getParentFile().list(new FilenameFilter() {
+            @Override
+            public boolean accept(File dir, String name) {
+                return name.startsWith(sidecar.getName() + "-");
+            }
+        });
+        assertEquals(0, leftovers.length);
+    }
+
+    @Test
+    public void testShortGrid() throws IOException, DataReadingException {
+        write(HEADER + "1 2 -9999\n4 5 300\n");
+        EsriAsciiGrid grid = EsriAsciiGrid.open(asciiFile, sidecar, false);
+        assertEquals(2, grid.getBytesPerValue());
+        checkGrid(grid, 300);
+    }
+
+    @Test
+    public void testSidecarReused() throws IOException, DataReadingException {
+        write(HEADER + "1 2 -9999\n4 5 16\n");
+        EsriAsciiGrid.open(asciiFile, sidecar, false);
+        assertTrue(sidecar.setLastModified(1000L));
+        EsriAsciiGrid.open(asciiFile, sidecar, false);
+        assertEquals(1000L, sidecar.lastModified());
+
+        EsriAsciiGrid.open(asciiFile, sidecar, true);
+        assertTrue(sidecar.lastModified() != 1000L);
+
+        /*
+         * Changing the ASCII file should regenerate the sidecar
+         */
+        write(HEADER + "1 2 -9999\n4 5 17\n");
+        EsriAsciiGrid grid = EsriAsciiGrid.open(asciiFile, sidecar, false);
+        assertEquals(17, grid.get(0, 2).intValue());
+    }
+
+    @Test(expected = DataReadingException.class)
+    public void testTruncated() throws IOException, DataReadingException {
+        write(HEADER + "1 2 -9999\n4 5\n");
+        EsriAsciiGrid.open(asciiFile, sidecar, false);
+    }
+
+    private static void checkGrid(EsriAsciiGrid grid, int lastValue) {
+        assertEquals(3, grid.getNCols());
+        assertEquals(2, grid.getNRows());
+        assertEquals(-10.5, grid.getXStart(), 0.0);
+        assertEquals(40.0, grid.getYStart(), 0.0);
+        assertEquals(0.5, grid.getCellSize(), 0.0);
+
+        /*
+         * The first row in the file is the northernmost
+         */
+        assertEquals(4, grid.get(0, 0).intValue());
+        assertEquals(5, grid.get(0, 1).intValue());
+        assertEquals(lastValue, grid.get(0, 2).intValue());
+        assertEquals(1, grid.get(1, 0).intValue());
+        assertEquals(2, grid.get(1, 1).intValue());
+        assertNull(grid.get(1, 2));
+        assertNull(grid.get(2, 0));
+        assertNull(grid.get(0, -1));
+    }
+
+    private void write(String contents) throws IOException {
+        try (OutputStream out = new FileOutputStream(asciiFile)) {
+            out.write(contents.getBytes(StandardCharsets.US_ASCII));
+        }
+        /*
+         * Ensure that a rewrite is detected even within the timestamp
+         * resolution of the filesystem
+         */
+        asciiFile.setLastModified(asciiFile.lastModified() + 2000L);
+    }
+}
@@ -0,0 +1,256 @@
+/*******************************************************************************
+ * Copyright (c) 2016 The University of Reading
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the University of Reading, nor the names of the
+ *    authors or contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ******************************************************************************/
+
+package uk.ac.rdg.resc.edal.dataset.cdm;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.Deflater;
+
+import javax.xml.bind.DatatypeConverter;
+
+import org.junit.Test;
+
+import uk.ac.rdg.resc.edal.dataset.FloatMeshDataSource;
+import uk.ac.rdg.resc.edal.dataset.HZTDataSource.MeshCoordinates3D;
+import uk.ac.rdg.resc.edal.exceptions.DataReadingException;
+import uk.ac.rdg.resc.edal.position.HorizontalPosition;
+
+/**
+ * Test class for {@link VtkXmlReader}. Each test writes the same mesh - two
+ * triangles sharing an edge - in a different VTK format.
+ * 
+ * @author Guy Griffiths
+ */
+public class VtkXmlReaderTest {
+    private static final double[] POINTS = new double[] { 50, 0, 0, 50, 1, 0, 51, 1, 0, 51,
+            0, 0 };
+    private static final int[] CONNECTIVITY = new int[] { 0, 1, 2, 0, 2, 3 };
+    private static final float[] VALUES = new float[] { 1.5f, 2.5f, Float.NaN, 4.5f };
+
+    private static final String HEADER = "<?xml version=\"1.0\"?>\n<VTKlist>\n";
+    private static final String FOOTER = "</VTKlist>\n";
+
+    @Test
+    public void testAscii() throws IOException, DataReadingException {
+        StringBuilder xml = new StringBuilder(HEADER);
+        xml.append("<VTKFile type=\"UnstructuredGrid\" version=\"0.1\">\n");
+        xml.append("<UnstructuredGrid><Piece NumberOfPoints=\"4\" NumberOfCells=\"2\">\n");
+        xml.append("<Points><DataArray type=\"Float64\" NumberOfComponents=\"3\""
+                + " format=\"ascii\">\n");
+        for (int i = 0; i < POINTS.length; i += 3) {
+            xml.append(POINTS[i] + " " + POINTS[i + 1] + " " + POINTS[i + 2] + "\n");
+        }
+        xml.append("</DataArray></Points>\n");
+        xml.append("<Cells><DataArray type=\"Int32\" Name=\"connectivity\" format=\"ascii\">");
+        for (int c : CONNECTIVITY) {
+            xml.append(c + " ");
+        }
+        xml.append("</DataArray></Cells>\n");
+        xml.append("<PointData><DataArray type=\"Float32\" Name=\"temp,surface\""
+                + " format=\"ascii\">");
+        for (float v : VALUES) {
+            xml.append(Float.isNaN(v) ? "nan" : String.valueOf(v)).append(" ");
+        }
+        xml.append("</DataArray></PointData>\n");
+        xml.append("</Piece></UnstructuredGrid></VTKFile>\n");
+        xml.append(FOOTER);
+
+        checkMesh(writeFile(xml.toString().getBytes(StandardCharsets.UTF_8)), "temp:surface");
+    }
+
+    @Test
+    public void testCompressedBinary() throws IOException, DataReadingException {
+        StringBuilder xml = new StringBuilder(HEADER);
+        xml.append("<VTKFile type=\"UnstructuredGrid\" version=\"0.1\""
+                + " byte_order=\"LittleEndian\" compressor=\"vtkZLibDataCompressor\">\n");
+        xml.append("<UnstructuredGrid><Piece NumberOfPoints=\"4\" NumberOfCells=\"2\">\n");
+        xml.append("<Points><DataArray type=\"Float64\" NumberOfComponents=\"3\""
+                + " format=\"binary\">");
+        xml.append(compressedBase64(doubleBytes(POINTS), 40));
+        xml.append("</DataArray></Points>\n");
+        xml.append("<Cells><DataArray type=\"Int32\" Name=\"connectivity\" format=\"binary\">");
+        xml.append(compressedBase64(intBytes(CONNECTIVITY), 1 << 15));
+        xml.append("</DataArray>\n");
+        xml.append("<DataArray type=\"Int32\" Name=\"offsets\" format=\"binary\">");
+        xml.append(compressedBase64(intBytes(new int[] { 3, 6 }), 1 << 15));
+        xml.append("</DataArray></Cells>\n");
+        xml.append("<PointData><DataArray type=\"Float32\" Name=\"temp\" format=\"binary\">");
+        xml.append(compressedBase64(floatBytes(VALUES), 1 << 15));
+        xml.append("</DataArray></PointData>\n");
+        xml.append("</Piece></UnstructuredGrid></VTKFile>\n");
+        xml.append(FOOTER);
+
+        checkMesh(writeFile(xml.toString().getBytes(StandardCharsets.UTF_8)), "temp");
+    }
+
+    @Test
+    public void testAppendedRaw() throws IOException, DataReadingException {
+        byte[] points = withHeader(doubleBytes(POINTS));
+        byte[] connectivity = withHeader(intBytes(CONNECTIVITY));
+        byte[] values = withHeader(floatBytes(VALUES));
+
+        StringBuilder xml = new StringBuilder(HEADER);
+        xml.append("<VTKFile type=\"UnstructuredGrid\" version=\"0.1\""
+                + " byte_order=\"LittleEndian\" header_type=\"UInt32\">\n");
+        xml.append("<UnstructuredGrid><Piece NumberOfPoints=\"4\" NumberOfCells=\"2\">\n");
+        /*
+         * Arrays don't have to be appended in the order they are declared
+         */
+        xml.append("<Points><DataArray type=\"Float64\" NumberOfComponents=\"3\""
+                + " format=\"appended\" offset=\"" + values.length + "\"/></Points>\n");
+        xml.append("<Cells><DataArray type=\"Int32\" Name=\"connectivity\" format=\"appended\""
+                + " offset=\"" + (values.length + points.length) + "\"/></Cells>\n");
+        xml.append("<PointData><DataArray type=\"Float32\" Name=\"temp\" format=\"appended\""
+                + " offset=\"0\"/></PointData>\n");
+        xml.append("</Piece></UnstructuredGrid>\n");
+        xml.append("<AppendedData encoding=\"raw\">\n_");
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        bytes.write(xml.toString().getBytes(StandardCharsets.UTF_8));
+        bytes.write(values);
+        bytes.write(points);
+        bytes.write(connectivity);
+        bytes.write(("\n</AppendedData>\n</VTKFile>\n" + FOOTER).getBytes(StandardCharsets.UTF_8));
+
+        checkMesh(writeFile(bytes.toByteArray()), "temp");
+    }
+
+    private static void checkMesh(File file, String varId) throws IOException,
+            DataReadingException {
+        FloatMeshDataSource.Builder builder = new FloatMeshDataSource.Builder();
+        VtkXmlReader.VtkMesh mesh = VtkXmlReader.read(file, builder);
+
+        assertEquals(4, mesh.getNumPoints());
+        List<HorizontalPosition> positions = mesh.getPositions();
+        assertEquals(4, positions.size());
+        for (int i = 0; i < positions.size(); i++) {
+            assertEquals(POINTS[i * 3], positions.get(i).getY(), 1e-10);
+            assertEquals(POINTS[i * 3 + 1], positions.get(i).getX(), 1e-10);
+        }
+
+        List<int[]> cells = mesh.getCells();
+        assertEquals(2, cells.size());
+        assertArrayEquals(Arrays.copyOfRange(CONNECTIVITY, 0, 3), cells.get(0));
+        assertArrayEquals(Arrays.copyOfRange(CONNECTIVITY, 3, 6), cells.get(1));
+
+        assertEquals(Arrays.asList(varId), mesh.getVariableIds());
+        FloatMeshDataSource dataSource = builder.build(mesh.getNumPoints(), 1);
+        List<MeshCoordinates3D> coords = new ArrayList<>();
+        for (int i = 0; i < VALUES.length; i++) {
+            coords.add(new MeshCoordinates3D(i, 0, 0));
+        }
+        List<Number> read = dataSource.read(varId, coords);
+        for (int i = 0; i < VALUES.length; i++) {
+            if (Float.isNaN(VALUES[i])) {
+                assertNull(read.get(i));
+            } else {
+                assertEquals(VALUES[i], read.get(i).floatValue(), 0f);
+            }
+        }
+    }
+
+    private static File writeFile(byte[] contents) throws IOException {
+        File file = File.createTempFile("edal-vtk", ".vtu");
+        file.deleteOnExit();
+        try (OutputStream out = new FileOutputStream(file)) {
+            out.write(contents);
+        }
+        return file;
+    }
+
+    private static byte[] doubleBytes(double[] values) {
+        ByteBuffer buffer = ByteBuffer.allocate(values.length * 8).order(ByteOrder.LITTLE_ENDIAN);
+        for (double value : values) {
+            buffer.putDouble(value);
+        }
+        return buffer.array();
+    }
+
+    private static byte[] intBytes(int[] values) {
+        ByteBuffer buffer = ByteBuffer.allocate(values.length * 4).order(ByteOrder.LITTLE_ENDIAN);
+        for (int value : values) {
+            buffer.putInt(value);
+        }
+        return buffer.array();
+    }
+
+    private static byte[] floatBytes(float[] values) {
+        ByteBuffer buffer = ByteBuffer.allocate(values.length * 4).order(ByteOrder.LITTLE_ENDIAN);
+        for (float value : values) {
+            buffer.putFloat(value);
+        }
+        return buffer.array();
+    }
+
+    /**
+     * Prefixes uncompressed data with its UInt32 length
+     */
+    private static byte[] withHeader(byte[] data) {
+        return ByteBuffer.allocate(data.length + 4).order(ByteOrder.LITTLE_ENDIAN)
+                .putInt(data.length).put(data).array();
+    }
+
+    /**
+     * Compresses data in the way VTK does, with the header and data encoded
+     * separately
+     */
+    private static String compressedBase64(byte[] data, int blockSize) {
+        int nBlocks = (data.length + blockSize - 1) / blockSize;
+        int lastBlockSize = data.length % blockSize;
+        ByteBuffer header = ByteBuffer.allocate((3 + nBlocks) * 4).order(ByteOrder.LITTLE_ENDIAN);
+        header.putInt(nBlocks).putInt(blockSize).putInt(lastBlockSize);
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+        byte[] buffer = new byte[blockSize * 2 + 64];
+        for (int b = 0; b < nBlocks; b++) {
+            Deflater deflater = new Deflater();
+            int start = b * blockSize;
+            deflater.setInput(data, start, Math.min(blockSize, data.length - start));
+            deflater.finish();
+            int length = deflater.deflate(buffer);
+            deflater.end();
+            header.putInt(length);
+            compressed.write(buffer, 0, length);
+        }
+        return DatatypeConverter.printBase64Binary(header.array())
+                + DatatypeConverter.printBase64Binary(compressed.toByteArray());
+    }
+}
@@ -0,0 +1,208 @@
+/*******************************************************************************
+ * Copyright (c) 2016 The University of Reading
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the University of Reading, nor the names of the
+ *    authors or contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ******************************************************************************/
+
+package uk.ac.rdg.resc.edal.dataset.cdm;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import uk.ac.rdg.resc.edal.dataset.cdm.WaterMLSeriesStore.Series;
+import uk.ac.rdg.resc.edal.dataset.cdm.WaterMLSeriesStore.SeriesEntry;
+import uk.ac.rdg.resc.edal.exceptions.DataReadingException;
+
+/**
+ * Test class for {@link WaterMLSeriesStore}
+ * 
+ * @author Guy Griffiths
+ */
+public class WaterMLSeriesStoreTest {
+    private static final String SITES = "<?xml version=\"1.0\"?>\n"
+            + "<timeSeriesResponse xmlns:wml=\"http://www.cuahsi.org/waterML/1.1/\">\n"
+            + site("S1", 51.5, -1.0) + site("S2", 52.0, 0.5) + "</timeSeriesResponse>\n";
+
+    private static final String VALUES = "<?xml version=\"1.0\"?>\n"
+            + "<timeSeriesResponse>\n"
+            + series("S1", "flow", "2000-01-01T00:00:00Z 1.5", "2000-01-02T00:00:00Z -9999",
+                    "2000-01-03T00:00:00Z 3.5")
+            + series("S2", "flow", "2001-01-01T00:00:00Z 10")
+            /*
+             * No location for this site, so it should be skipped
+             */
+            + series("S3", "flow", "2001-01-01T00:00:00Z 10") + "</timeSeriesResponse>\n";
+
+    private File dir;
+    private File indexFile;
+    private File dataFile;
+
+    @Before
+    public void setUp() throws IOException {
+        dir = Files.createTempDirectory("edal-wml").toFile();
+        write(new File(dir, "GetSiteInfoFile.xml"), SITES);
+        write(new File(dir, "ExportValues.xml"), VALUES);
+        indexFile = new File(dir, "test.wml.index.ser");
+        dataFile = new File(dir, "test.wml.dat");
+    }
+
+    @After
+    public void tearDown() {
+        for (File file : dir.listFiles()) {
+            file.delete();
+        }
+        dir.delete();
+    }
+
+    @Test
+    public void testStore() throws IOException, DataReadingException {
+        WaterMLSeriesStore store = WaterMLSeriesStore.open(dir.getPath(), indexFile, dataFile,
+                false);
+        checkStore(store);
+    }
+
+    @Test
+    public void testReopen() throws IOException, DataReadingException {
+        WaterMLSeriesStore.open(dir.getPath(), indexFile, dataFile, false);
+        assertTrue(indexFile.setLastModified(1000L));
+
+        WaterMLSeriesStore store = WaterMLSeriesStore.open(dir.getPath(), indexFile, dataFile,
+                false);
+        assertEquals(1000L, indexFile.lastModified());
+        checkStore(store);
+
+        store = WaterMLSeriesStore.open(dir.getPath(), indexFile, dataFile, true);
+        assertTrue(indexFile.lastModified() != 1000L);
+        checkStore(store);
+    }
+
+    @Test
+    public void testRebuild() throws IOException, DataReadingException {
+        /*
+         * Each rebuild writes a new data file, so that existing stores can
+         * carry on reading theirs
+         */
+        WaterMLSeriesStore first = WaterMLSeriesStore.open(dir.getPath(), indexFile, dataFile,
+                false);
+        WaterMLSeriesStore second = WaterMLSeriesStore.open(dir.getPath(), indexFile, dataFile,
+                true);
+        checkStore(first);
+        checkStore(second);
+
+        /*
+         * Only the current and previous data files are kept
+         */
+        WaterMLSeriesStore.open(dir.getPath(), indexFile, dataFile, true);
+        WaterMLSeriesStore.open(dir.getPath(), indexFile, dataFile, true);
+        assertEquals(2, countDataFiles());
+
+        /*
+         * An incomplete index should cause the store to be rebuilt. It no
+         * longer says which data file was previous, so only the new one is kept
+         */
+        write(indexFile, "truncated");
+        checkStore(WaterMLSeriesStore.open(dir.getPath(), indexFile, dataFile, false));
+        assertEquals(1, countDataFiles());
+    }
+
+    private int countDataFiles() {
+        int count = 0;
+        for (File file : dir.listFiles()) {
+            if (file.getName().startsWith(dataFile.getName())) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    private static void checkStore(WaterMLSeriesStore store) throws DataReadingException {
+        assertEquals(2, store.getEntries().size());
+        assertNull(store.getEntry("S3:flow"));
+        assertNull(store.readSeries("S3:flow"));
+
+        SeriesEntry entry = store.getEntry("S1:flow");
+        assertEquals("S1", entry.siteCode);
+        assertEquals("flow", entry.varId);
+        assertEquals("m3/s", entry.units);
+        assertEquals(-1.0, entry.longitude, 0.0);
+        assertEquals(51.5, entry.latitude, 0.0);
+        assertEquals(3, entry.count);
+        assertEquals(new DateTime(2000, 1, 1, 0, 0, DateTimeZone.UTC).getMillis(), entry.tMin);
+        assertEquals(new DateTime(2000, 1, 3, 0, 0, DateTimeZone.UTC).getMillis(), entry.tMax);
+
+        Series series = store.readSeries("S1:flow");
+        assertEquals(entry.tMin, series.times[0]);
+        assertEquals(entry.tMax, series.times[2]);
+        assertEquals(1.5, series.values[0], 0.0);
+        assertTrue(Double.isNaN(series.values[1]));
+        assertEquals(3.5, series.values[2], 0.0);
+
+        series = store.readSeries("S2:flow");
+        assertEquals(1, series.values.length);
+        assertEquals(10.0, series.values[0], 0.0);
+    }
+
+    private static String site(String code, double lat, double lon) {
+        return "<timeSeries><sourceInfo><siteCode>" + code + "</siteCode>"
+                + "<geoLocation><geogLocation><wml:latitude>" + lat + "</wml:latitude>"
+                + "<wml:longitude>" + lon + "</wml:longitude></geogLocation></geoLocation>"
+                + "</sourceInfo></timeSeries>\n";
+    }
+
+    private static String series(String code, String varId, String... values) {
+        StringBuilder xml = new StringBuilder("<timeSeries><sourceInfo><siteCode>" + code
+                + "</siteCode></sourceInfo>");
+        xml.append("<variable><variableCode>" + varId + "</variableCode>"
+                + "<valueType>Field Observation</valueType>"
+                + "<units unitsCode=\"m3/s\">cubic metres per second</units></variable>");
+        xml.append("<values>");
+        for (String value : values) {
+            String[] parts = value.split(" ");
+            xml.append("<value dateTime=\"" + parts[0] + "\">" + parts[1] + "</value>");
+        }
+        xml.append("</values></timeSeries>\n");
+        return xml.toString();
+    }
+
+    private static void write(File file, String contents) throws IOException {
+        try (OutputStream out = new FileOutputStream(file)) {
+            out.write(contents.getBytes(StandardCharsets.UTF_8));
+        }
+    }
+}
@@ -0,0 +1,137 @@
+/*******************************************************************************
+ * Copyright (c) 2016 The University of Reading
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the University of Reading, nor the names of the
+ *    authors or contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ******************************************************************************/
+
+package uk.ac.rdg.resc.edal.grid.cdm;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import java.net.URL;
+
+import org.geotoolkit.referencing.crs.DefaultGeographicCRS;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import ucar.nc2.dataset.NetcdfDataset;
+import ucar.nc2.dt.GridCoordSystem;
+import ucar.nc2.dt.GridDatatype;
+import ucar.nc2.dt.grid.GridDataset;
+import ucar.unidata.geoloc.projection.RotatedPole;
+import uk.ac.rdg.resc.edal.dataset.cdm.NetcdfDatasetAggregator;
+import uk.ac.rdg.resc.edal.geometry.BoundingBox;
+import uk.ac.rdg.resc.edal.position.HorizontalPosition;
+import uk.ac.rdg.resc.edal.util.GridCoordinates2D;
+import uk.ac.rdg.resc.edal.util.cdm.CdmUtils;
+
+/**
+ * Tests that the batched index lookup of {@link CdmTransformedGrid} agrees
+ * with the per-point lookup on a rotated-pole grid
+ *
+ * @author Guy Griffiths
+ */
+public class CdmTransformedGridTest {
+    private NetcdfDataset nc;
+    private CdmTransformedGrid grid;
+
+    @Before
+    public void setUp() throws Exception {
+        URL url = this.getClass().getResource("/input-rotated.nc");
+        nc = NetcdfDatasetAggregator.getDataset(url.getPath());
+        GridDataset gridDataset = CdmUtils.getGridDataset(nc);
+        for (GridDatatype gridDatatype : gridDataset.getGrids()) {
+            GridCoordSystem coordSys = gridDatatype.getCoordinateSystem();
+            if (coordSys.getProjection() instanceof RotatedPole) {
+                grid = new CdmTransformedGrid(coordSys);
+                break;
+            }
+        }
+        assertNotNull("No rotated-pole grid found in test data", grid);
+    }
+
+    @After
+    public void tearDown() {
+        NetcdfDatasetAggregator.releaseDataset(nc);
+    }
+
+    @Test
+    public void testFindIndicesOfMatchesFindIndexOf() {
+        /*
+         * Sample a lon-lat grid which extends beyond the bounding box of the
+         * data on all sides, so that we test points outside the grid as well
+         * as inside it
+         */
+        BoundingBox bbox = grid.getBoundingBox();
+        double xPad = (bbox.getMaxX() - bbox.getMinX()) * 0.1;
+        double yPad = (bbox.getMaxY() - bbox.getMinY()) * 0.1;
+        double minLon = bbox.getMinX() - xPad;
+        double minLat = Math.max(bbox.getMinY() - yPad, -90.0);
+        double maxLon = bbox.getMaxX() + xPad;
+        double maxLat = Math.min(bbox.getMaxY() + yPad, 90.0);
+
+        int nSamples = 101;
+        int n = nSamples * nSamples;
+        /*
+         * Add the same positions again, shifted by a full turn of longitude,
+         * to check that wrapping is handled consistently
+         */
+        double[] lons = new double[2 * n];
+        double[] lats = new double[2 * n];
+        for (int j = 0; j < nSamples; j++) {
+            for (int i = 0; i < nSamples; i++) {
+                int k = j * nSamples + i;
+                lons[k] = minLon + (maxLon - minLon) * i / (nSamples - 1);
+                lats[k] = minLat + (maxLat - minLat) * j / (nSamples - 1);
+                lons[n + k] = lons[k] + 360.0;
+                lats[n + k] = lats[k];
+            }
+        }
+
+        int[] xIndices = new int[lons.length];
+        int[] yIndices = new int[lons.length];
+        grid.findIndicesOf(lons, lats, xIndices, yIndices);
+
+        int found = 0;
+        for (int k = 0; k < lons.length; k++) {
+            GridCoordinates2D expected = grid.findIndexOf(new HorizontalPosition(lons[k], lats[k],
+                    DefaultGeographicCRS.WGS84));
+            String message = "Position " + lons[k] + "," + lats[k];
+            assertEquals(message, expected.getX(), xIndices[k]);
+            assertEquals(message, expected.getY(), yIndices[k]);
+            if (xIndices[k] >= 0 && yIndices[k] >= 0) {
+                found++;
+            }
+        }
+        /*
+         * Make sure we've actually tested some points inside the grid
+         */
+        assertTrue(found > 0);
+        assertTrue(found < lons.length);
+    }
+}
@@ -65,6 +65,14 @@ public abstract class AbstractContinuousDomainDataset extends AbstractDataset {
         this.featureIndexer = featureIndexer;
     }
 
+    /**
+     * @return The {@link FeatureIndexer} used to spatially index the features
+     *         of this dataset
+     */
+    protected FeatureIndexer getFeatureIndexer() {
+        return featureIndexer;
+    }
+
     @Override
     public DiscreteFeature<?, ?> readFeature(String featureId) throws DataReadingException {
         return getFeatureReader().readFeature(featureId, null);
@@ -38,6 +38,7 @@ import uk.ac.rdg.resc.edal.dataset.DomainMapper.Scanline;
 import uk.ac.rdg.resc.edal.exceptions.DataReadingException;
 import uk.ac.rdg.resc.edal.util.Array2D;
 import uk.ac.rdg.resc.edal.util.Array4D;
+import uk.ac.rdg.resc.edal.util.RequestTrace;
 import uk.ac.rdg.resc.edal.util.ValuesArray2D;
 
 /**
@@ -140,6 +141,7 @@ public enum DataReadingStrategy {
 
                 Array4D<Number> data = dataSource.read(varId, tIndex, tIndex, zIndex, zIndex, j, j,
                         imin, imax);
+                RequestTrace.count(RequestTrace.VALUES_READ, imax - imin + 1);
 
                 for (DomainMapperEntry<int[]> dme : entries) {
                     List<int[]> targetGridPoints = dme.getTargetIndices();
@@ -173,6 +175,8 @@ public enum DataReadingStrategy {
             int jmax = domainMapper.getMaxJIndex();
             Array4D<Number> data = dataSource.read(varId, tIndex, tIndex, zIndex, zIndex, jmin,
                     jmax, imin, imax);
+            RequestTrace.count(RequestTrace.VALUES_READ, (long) (imax - imin + 1)
+                    * (jmax - jmin + 1));
             for (DomainMapperEntry<int[]> pme : domainMapper) {
                 List<int[]> targetGridPoints = pme.getTargetIndices();
                 Number value = data.get(0, 0, pme.getSourceGridJIndex() - jmin,
@@ -196,7 +200,9 @@ public enum DataReadingStrategy {
                 int zIndex, Domain2DMapper domainMapper) throws IOException, DataReadingException {
             Array2D<Number> ret = new ValuesArray2D(domainMapper.getTargetYSize(),
                     domainMapper.getTargetXSize());
+            long valuesRead = 0L;
             for (DomainMapperEntry<int[]> pme : domainMapper) {
+                valuesRead++;
                 Array4D<Number> data = dataSource.read(varId, tIndex, tIndex, zIndex, zIndex,
                         pme.getSourceGridJIndex(), pme.getSourceGridJIndex(),
                         pme.getSourceGridIIndex(), pme.getSourceGridIIndex());
@@ -205,6 +211,7 @@ public enum DataReadingStrategy {
                     ret.set(data.get(0, 0, 0, 0), new int[] { targetPoint[1], targetPoint[0] });
                 }
             }
+            RequestTrace.count(RequestTrace.VALUES_READ, valuesRead);
             return ret;
         }
     };
@@ -30,7 +30,13 @@ package uk.ac.rdg.resc.edal.dataset;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 
 import uk.ac.rdg.resc.edal.exceptions.EdalException;
@@ -145,4 +151,110 @@ public abstract class DatasetFactory {
      */
     public abstract Dataset createDataset(String id, String location, boolean forceRefresh)
             throws IOException, EdalException;
+
+    /**
+     * Writes a snapshot of the metadata of a {@link Dataset} created by this
+     * factory, which can later be used by
+     * {@link DatasetFactory#createDatasetFromSnapshot(String, String, File)}
+     * to recreate the {@link Dataset} without reading its source data.
+     * 
+     * By default, snapshots are not supported and this does nothing.
+     * 
+     * @param dataset
+     *            The {@link Dataset} to write a snapshot of
+     * @param location
+     *            The location the {@link Dataset} was created from
+     * @param snapshotFile
+     *            The file to write the snapshot to
+     * @return <code>true</code> if a snapshot was written
+     * @throws IOException
+     *             If there is a problem writing the snapshot
+     */
+    public boolean writeSnapshot(Dataset dataset, String location, File snapshotFile)
+            throws IOException {
+        return false;
+    }
+
+    /**
+     * Recreates a {@link Dataset} from a snapshot written by
+     * {@link DatasetFactory#writeSnapshot(Dataset, String, File)}. The snapshot
+     * is only used if the source data has not changed since it was written.
+     * 
+     * By default, snapshots are not supported and this returns
+     * <code>null</code>.
+     * 
+     * @param id
+     *            The ID to assign to this dataset
+     * @param location
+     *            The location of the source data
+     * @param snapshotFile
+     *            The file containing the snapshot
+     * @return The recreated {@link Dataset}, or <code>null</code> if there is
+     *         no usable snapshot
+     * @throws EdalException
+     *             If there is a problem creating the dataset
+     */
+    public Dataset createDatasetFromSnapshot(String id, String location, File snapshotFile)
+            throws EdalException {
+        return null;
+    }
+
+    /**
+     * Gets the local files which a {@link Dataset} at the given location is
+     * read from. These are used to detect when information derived from the
+     * {@link Dataset} and stored on disk is out of date.
+     * 
+     * By default, this is the file at the given location, if it exists.
+     * 
+     * @param location
+     *            The location of the source data
+     * @return The source files, or an empty list if they cannot be determined
+     *         cheaply (e.g. for remote data)
+     */
+    public List<File> getSourceFiles(String location) {
+        File file = new File(location);
+        if (file.isFile()) {
+            return Collections.singletonList(file);
+        }
+        return Collections.emptyList();
+    }
+
+    /**
+     * Gets a stamp which changes whenever any of the files returned by
+     * {@link DatasetFactory#getSourceFiles(String)} are changed, added or
+     * removed.
+     * 
+     * @param location
+     *            The location of the source data
+     * @return The stamp, or <code>null</code> if there are no source files to
+     *         check
+     */
+    public String getSourceStamp(String location) {
+        List<String> fileStamps = new ArrayList<>();
+        for (File file : getSourceFiles(location)) {
+            fileStamps.add(file.getAbsolutePath() + "|" + file.length() + "|"
+                    + file.lastModified());
+        }
+        if (fileStamps.isEmpty()) {
+            return null;
+        }
+        Collections.sort(fileStamps);
+        try {
+            MessageDigest digest = MessageDigest.getInstance("MD5");
+            for (String fileStamp : fileStamps) {
+                digest.update(fileStamp.getBytes("UTF-8"));
+                digest.update((byte) '\n');
+            }
+            StringBuilder stamp = new StringBuilder();
+            for (byte b : digest.digest()) {
+                stamp.append(String.format("%02x", b));
+            }
+            return stamp.toString();
+        } catch (NoSuchAlgorithmException | UnsupportedEncodingException e) {
+            /*
+             * MD5 and UTF-8 are always available
+             */
+            throw new IllegalStateException(e);
+        }
+    }
 }
@@ -75,7 +75,10 @@ public interface DiscreteFeatureReader<F extends DiscreteFeature<?, ?>> {
      * Reads {@link DiscreteFeature}s from the underlying data source.
      * 
      * @param ids
-     *            The identifier of the features within their collection.
+     *            The identifier of the features within their collection. This
+     *            may be a view which only creates each ID as it is needed (see
+     *            {@link FeatureIndexer}), so it is best iterated over once
+     *            rather than copied.
      * @param variableIds
      *            The variables which must be included in the feature.
      *            Additional variables can be present if this is more convenient
@@ -28,6 +28,7 @@
 
 package uk.ac.rdg.resc.edal.dataset;
 
+import java.util.Arrays;
 import java.util.List;
 
 import net.sf.ehcache.Cache;
@@ -39,6 +40,7 @@ import net.sf.ehcache.config.Configuration;
 import net.sf.ehcache.config.PersistenceConfiguration;
 import net.sf.ehcache.config.PersistenceConfiguration.Strategy;
 import net.sf.ehcache.store.MemoryStoreEvictionPolicy;
+import uk.ac.rdg.resc.edal.grid.AbstractTransformedGrid;
 import uk.ac.rdg.resc.edal.grid.GridCell2D;
 import uk.ac.rdg.resc.edal.grid.HorizontalGrid;
 import uk.ac.rdg.resc.edal.grid.RectilinearGrid;
@@ -135,6 +137,11 @@ public class Domain2DMapper extends DomainMapper<int[]> {
              * works when it should!
              */
             ret = forMatchingCrsGrids((RectilinearGrid) sourceGrid, (RectilinearGrid) targetGrid);
+        } else if (sourceGrid instanceof AbstractTransformedGrid) {
+            /*
+             * Projected grids can transform whole rows of positions at once
+             */
+            ret = forTransformedGrids((AbstractTransformedGrid) sourceGrid, targetGrid);
         } else {
             /*
              * We can't gain efficiency, so we just initialise for general grids
@@ -193,6 +200,64 @@ public class Domain2DMapper extends DomainMapper<int[]> {
         return mapper;
     }
 
+    /*
+     * Initialise the Domain2DMapper for a source grid which uses a projection.
+     * 
+     * The target grid is processed a row at a time, with the positions held in
+     * primitive arrays and transformed in bulk
+     */
+    private static Domain2DMapper forTransformedGrids(AbstractTransformedGrid sourceGrid,
+            HorizontalGrid targetGrid) {
+        int xSize = targetGrid.getXSize();
+        int ySize = targetGrid.getYSize();
+        Domain2DMapper mapper = new Domain2DMapper(sourceGrid, xSize, ySize);
+
+        double[] xs = new double[xSize];
+        double[] ys = new double[xSize];
+        int[] xIndices = new int[xSize];
+        int[] yIndices = new int[xSize];
+
+        /*
+         * For rectilinear target grids we can take the positions straight from
+         * the axes rather than generating every grid cell
+         */
+        double[] targetXs = null;
+        ReferenceableAxis<Double> targetYAxis = null;
+        Array<GridCell2D> targetDomainObjects = null;
+        if (targetGrid instanceof RectilinearGrid) {
+            ReferenceableAxis<Double> targetXAxis = ((RectilinearGrid) targetGrid).getXAxis();
+            targetYAxis = ((RectilinearGrid) targetGrid).getYAxis();
+            targetXs = new double[xSize];
+            for (int i = 0; i < xSize; i++) {
+                targetXs[i] = targetXAxis.getCoordinateValue(i);
+            }
+        } else {
+            targetDomainObjects = targetGrid.getDomainObjects();
+        }
+
+        for (int j = 0; j < ySize; j++) {
+            if (targetXs != null) {
+                System.arraycopy(targetXs, 0, xs, 0, xSize);
+                Arrays.fill(ys, targetYAxis.getCoordinateValue(j));
+            } else {
+                for (int i = 0; i < xSize; i++) {
+                    HorizontalPosition centre = targetDomainObjects.get(j, i).getCentre();
+                    xs[i] = centre.getX();
+                    ys[i] = centre.getY();
+                }
+            }
+            GISUtils.transformPositions(xs, ys, targetGrid.getCoordinateReferenceSystem(),
+                    sourceGrid.getCoordinateReferenceSystem());
+            sourceGrid.findIndicesOf(xs, ys, xIndices, yIndices);
+            for (int i = 0; i < xSize; i++) {
+                mapper.put(xIndices[i], yIndices[i], mapper.convertCoordsToIndex(i, j));
+            }
+        }
+
+        mapper.sortIndices();
+        return mapper;
+    }
+
     /*
      * Initialise the Domain2DMapper for general HorizontalGrids
      */
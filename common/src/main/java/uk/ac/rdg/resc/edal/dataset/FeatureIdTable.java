@@ -0,0 +1,208 @@
+/*******************************************************************************
+ * Copyright (c) 2016 The University of Reading
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the University of Reading, nor the names of the
+ *    authors or contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ******************************************************************************/
+
+package uk.ac.rdg.resc.edal.dataset;
+
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.Serializable;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * A compact table of feature IDs, used by {@link FeatureIndexer}s. IDs are
+ * stored as UTF-8 in a single byte array and referred to by integer handles,
+ * assigned in the order in which IDs are added. This avoids the overhead of a
+ * {@link String} (and a hash set entry) per feature for datasets with many
+ * millions of features.
+ * 
+ * @author Guy Griffiths
+ */
+final class FeatureIdTable implements Serializable {
+    private static final long serialVersionUID = 1L;
+    private static final int MAX_ARRAY_SIZE = Integer.MAX_VALUE - 8;
+
+    private byte[] data = new byte[1024];
+    /*
+     * offsets[i] is the start of ID i in data, and offsets[size] is the end of
+     * the last ID
+     */
+    private int[] offsets = new int[64];
+    private int size = 0;
+    /*
+     * An open-addressed hash table of (handle + 1). A value of 0 is an empty
+     * slot. The length is always a power of 2.
+     * 
+     * This is at least twice the size of offsets, so it is not serialized, but
+     * rebuilt from the IDs when the table is read back in.
+     */
+    private transient int[] slots = new int[128];
+
+    /**
+     * @return The number of IDs in this table
+     */
+    int size() {
+        return size;
+    }
+
+    /**
+     * Adds an ID to this table
+     * 
+     * @param id
+     *            The ID to add
+     * @return The handle of the ID. If the ID is already present, its existing
+     *         handle is returned.
+     */
+    int add(String id) {
+        byte[] bytes = id.getBytes(StandardCharsets.UTF_8);
+        int slot = findSlot(bytes, hash(bytes, 0, bytes.length));
+        if (slots[slot] != 0) {
+            return slots[slot] - 1;
+        }
+
+        int end = offsets[size];
+        if (end + bytes.length > data.length) {
+            data = Arrays.copyOf(data, grow(data.length, end + bytes.length));
+        }
+        if (size + 2 > offsets.length) {
+            offsets = Arrays.copyOf(offsets, grow(offsets.length, size + 2));
+        }
+        System.arraycopy(bytes, 0, data, end, bytes.length);
+        int handle = size++;
+        offsets[size] = end + bytes.length;
+
+        slots[slot] = handle + 1;
+        if (size * 2 > slots.length) {
+            rehash(slots.length * 2);
+        }
+        return handle;
+    }
+
+    /**
+     * @param handle
+     *            The handle of an ID in this table
+     * @return The corresponding ID
+     */
+    String get(int handle) {
+        if (handle < 0 || handle >= size) {
+            throw new IndexOutOfBoundsException("No feature ID with handle " + handle);
+        }
+        return new String(data, offsets[handle], offsets[handle + 1] - offsets[handle],
+                StandardCharsets.UTF_8);
+    }
+
+    /**
+     * @param id
+     *            The ID to find
+     * @return The handle of the given ID, or -1 if it is not in this table
+     */
+    int indexOf(String id) {
+        if (id == null) {
+            return -1;
+        }
+        byte[] bytes = id.getBytes(StandardCharsets.UTF_8);
+        return slots[findSlot(bytes, hash(bytes, 0, bytes.length))] - 1;
+    }
+
+    /**
+     * Releases any unused capacity. This should be called once all IDs have
+     * been added.
+     */
+    void trim() {
+        data = Arrays.copyOf(data, offsets[size]);
+        offsets = Arrays.copyOf(offsets, size + 1);
+    }
+
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        in.defaultReadObject();
+        int length = 128;
+        while (size * 2 > length) {
+            length *= 2;
+        }
+        rehash(length);
+    }
+
+    /*
+     * Returns the slot containing the given ID, or the empty slot where it
+     * should go
+     */
+    private int findSlot(byte[] bytes, int hash) {
+        int mask = slots.length - 1;
+        int slot = hash & mask;
+        while (slots[slot] != 0 && !idEquals(slots[slot] - 1, bytes)) {
+            slot = (slot + 1) & mask;
+        }
+        return slot;
+    }
+
+    private boolean idEquals(int handle, byte[] bytes) {
+        int start = offsets[handle];
+        if (offsets[handle + 1] - start != bytes.length) {
+            return false;
+        }
+        for (int i = 0; i < bytes.length; i++) {
+            if (data[start + i] != bytes[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void rehash(int newLength) {
+        slots = new int[newLength];
+        int mask = newLength - 1;
+        for (int handle = 0; handle < size; handle++) {
+            int slot = hash(data, offsets[handle], offsets[handle + 1]) & mask;
+            while (slots[slot] != 0) {
+                slot = (slot + 1) & mask;
+            }
+            slots[slot] = handle + 1;
+        }
+    }
+
+    /*
+     * FNV-1a, with the high bits folded in since only the low bits are used to
+     * pick a slot
+     */
+    private static int hash(byte[] bytes, int start, int end) {
+        int hash = 0x811c9dc5;
+        for (int i = start; i < end; i++) {
+            hash ^= bytes[i];
+            hash *= 0x01000193;
+        }
+        return hash ^ (hash >>> 16);
+    }
+
+    private static int grow(int current, int required) {
+        if (required < 0 || required > MAX_ARRAY_SIZE) {
+            throw new IllegalStateException("Too many feature IDs to store");
+        }
+        long doubled = 2L * current;
+        return (int) Math.max(required, Math.min(doubled, MAX_ARRAY_SIZE));
+    }
+}
@@ -29,7 +29,9 @@
 package uk.ac.rdg.resc.edal.dataset;
 
 import java.io.Serializable;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Set;
 
@@ -46,6 +48,16 @@ import uk.ac.rdg.resc.edal.util.Extents;
 /**
  * A class representing a spatial indexer for features.
  * 
+ * Each indexed feature is identified by an integer handle as well as its ID.
+ * Handles are in the range 0 to {@link FeatureIndexer#getNumberOfFeatures()} -
+ * 1, and allow large numbers of features to be referred to without
+ * creating a {@link String} for each of them.
+ * 
+ * Default implementations of the handle-based methods are provided which
+ * number features in the iteration order of
+ * {@link FeatureIndexer#getAllFeatureIds()}. These scan all feature IDs, so
+ * indexers holding many features should override them.
+ * 
  * @author Guy Griffiths
  */
 public interface FeatureIndexer extends Serializable {
@@ -70,11 +82,97 @@ public interface FeatureIndexer extends Serializable {
             Extent<Double> verticalExtent, Extent<DateTime> timeExtent,
             Collection<String> variableIds);
 
+    /**
+     * Finds the handles of features with the given spatio-temporal
+     * constraints. This is equivalent to
+     * {@link FeatureIndexer#findFeatureIds(BoundingBox, Extent, Extent, Collection)}
+     * , but does not create any feature IDs.
+     * 
+     * @param horizontalExtent
+     *            The {@link BoundingBox} which features must have positions in.
+     * @param verticalExtent
+     *            The vertical range which features must have positions in.
+     * @param timeExtent
+     *            The time range which features must have positions in.
+     * @param variableIds
+     *            The variable IDs which features must contain
+     * @return The handles of features which match all of the given
+     *         constraints
+     */
+    public default int[] findFeatureHandles(BoundingBox horizontalExtent,
+            Extent<Double> verticalExtent, Extent<DateTime> timeExtent,
+            Collection<String> variableIds) {
+        Collection<String> ids = findFeatureIds(horizontalExtent, verticalExtent, timeExtent,
+                variableIds);
+        int[] handles = new int[ids.size()];
+        int nHandles = 0;
+        for (String id : ids) {
+            int handle = getFeatureHandle(id);
+            if (handle >= 0) {
+                handles[nHandles++] = handle;
+            }
+        }
+        return Arrays.copyOf(handles, nHandles);
+    }
+
     /**
      * @return All feature IDs present in this {@link FeatureIndexer}
      */
     public Set<String> getAllFeatureIds();
 
+    /**
+     * @return The number of features in this {@link FeatureIndexer}
+     */
+    public default int getNumberOfFeatures() {
+        return getAllFeatureIds().size();
+    }
+
+    /**
+     * @param handle
+     *            The handle of a feature in this {@link FeatureIndexer}
+     * @return The ID of the feature
+     */
+    public default String getFeatureId(int handle) {
+        if (handle >= 0) {
+            Iterator<String> ids = getAllFeatureIds().iterator();
+            for (int i = 0; ids.hasNext(); i++) {
+                String id = ids.next();
+                if (i == handle) {
+                    return id;
+                }
+            }
+        }
+        throw new IndexOutOfBoundsException("No feature with handle " + handle);
+    }
+
+    /**
+     * @param id
+     *            The ID of a feature
+     * @return The handle of the feature with the given ID, or -1 if it is not
+     *         in this {@link FeatureIndexer}
+     */
+    public default int getFeatureHandle(String id) {
+        int handle = 0;
+        for (String featureId : getAllFeatureIds()) {
+            if (featureId.equals(id)) {
+                return handle;
+            }
+            handle++;
+        }
+        return -1;
+    }
+
+    /**
+     * @param handle
+     *            The handle of a feature in this {@link FeatureIndexer}
+     * @return The indexed horizontal position of the feature, in WGS84, or
+     *         <code>null</code> if this {@link FeatureIndexer} does not store
+     *         feature positions
+     */
+    public default HorizontalPosition getFeaturePosition(int handle) {
+        return null;
+    }
+
     /**
      * Adds features to this indexer. Features are defined in terms of
      * {@link FeatureBounds} objects which define the spatial boundaries of
@@ -86,7 +184,8 @@ public interface FeatureIndexer extends Serializable {
 
     /**
      * A class representing the spatial bounds of a feature with a single point.
-     * This is used to index features.
+     * This is used to add features to a {@link FeatureIndexer}, which need not
+     * keep hold of it once the feature has been added.
      */
     public static class FeatureBounds implements Serializable {
         private static final long serialVersionUID = 1L;
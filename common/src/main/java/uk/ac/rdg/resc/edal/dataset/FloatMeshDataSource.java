@@ -0,0 +1,302 @@
+/*******************************************************************************
+ * Copyright (c) 2016 The University of Reading
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the University of Reading, nor the names of the
+ *    authors or contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ******************************************************************************/
+
+package uk.ac.rdg.resc.edal.dataset;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import uk.ac.rdg.resc.edal.exceptions.DataReadingException;
+
+/**
+ * An {@link HZTDataSource} which stores each variable as a block of
+ * single-precision values, either in primitive arrays on the heap or in a
+ * memory-mapped file.
+ * 
+ * The memory-mapped form allows datasets which are far larger than the
+ * available heap to be served, with the operating system paging values in as
+ * they are read. The file is deleted as soon as it has been mapped, so its
+ * space is reclaimed once the data source has been garbage collected, and
+ * nothing is left behind if the JVM exits abnormally.
+ * 
+ * Instances are created with a {@link Builder}, which accepts values one at a
+ * time so that they can be written straight from a parser without being held
+ * in memory.
+ * 
+ * @author Guy Griffiths
+ */
+public class FloatMeshDataSource implements HZTDataSource {
+    private final int hSize;
+    private final int zSize;
+    private final Map<String, FloatBuffer> data;
+
+    private FloatMeshDataSource(int hSize, int zSize, Map<String, FloatBuffer> data) {
+        this.hSize = hSize;
+        this.zSize = zSize;
+        this.data = data;
+    }
+
+    @Override
+    public List<Number> read(String variableId, List<MeshCoordinates3D> coordsToRead)
+            throws DataReadingException {
+        List<Number> ret = new ArrayList<>(coordsToRead.size());
+        FloatBuffer values = data.get(variableId);
+        for (MeshCoordinates3D coords : coordsToRead) {
+            if (values == null || coords.h < 0 || coords.h >= hSize || coords.z < 0
+                    || coords.z >= zSize || coords.t < 0) {
+                ret.add(null);
+                continue;
+            }
+            long index = ((long) coords.t * zSize + coords.z) * hSize + coords.h;
+            if (index >= values.limit()) {
+                ret.add(null);
+            } else {
+                float value = values.get((int) index);
+                ret.add(Float.isNaN(value) ? null : value);
+            }
+        }
+        return ret;
+    }
+
+    /**
+     * Does nothing - a single instance is usually shared by all reads of a
+     * dataset, so the values are held until it is garbage collected
+     */
+    @Override
+    public void close() throws DataReadingException {
+    }
+
+    /**
+     * Builds a {@link FloatMeshDataSource}, one variable at a time.
+     * 
+     * Values for each variable should be added in order of horizontal index,
+     * then z-index, then time index (i.e. with the horizontal index varying
+     * fastest).
+     */
+    public static class Builder {
+        private final File file;
+        private final RandomAccessFile raf;
+        private final FileChannel channel;
+        private final ByteBuffer writeBuffer;
+
+        private final Map<String, float[]> heapValues = new HashMap<>();
+        private final Map<String, long[]> fileRegions = new HashMap<>();
+
+        private String currentVariable = null;
+        private float[] currentValues;
+        private long currentCount;
+        private long currentStart;
+
+        /**
+         * Creates a {@link Builder} which stores all values on the heap
+         */
+        public Builder() {
+            file = null;
+            raf = null;
+            channel = null;
+            writeBuffer = null;
+        }
+
+        /**
+         * Creates a {@link Builder} which writes values to a file, which will
+         * be memory-mapped by the built {@link FloatMeshDataSource}. Any
+         * existing contents of the file are overwritten, and the file is
+         * deleted once it has been mapped or the {@link Builder} is
+         * discarded.
+         * 
+         * @param file
+         *            The file to write values to
+         * @throws IOException
+         *             If the file cannot be opened for writing
+         */
+        public Builder(File file) throws IOException {
+            this.file = file;
+            raf = new RandomAccessFile(file, "rw");
+            raf.setLength(0L);
+            channel = raf.getChannel();
+            writeBuffer = ByteBuffer.allocateDirect(1 << 16).order(ByteOrder.nativeOrder());
+        }
+
+        /**
+         * Starts a new variable. Any variable currently being written is
+         * ended.
+         * 
+         * @param variableId
+         *            The ID of the variable
+         */
+        public void startVariable(String variableId) throws IOException {
+            if (currentVariable != null) {
+                endVariable();
+            }
+            currentVariable = variableId;
+            currentCount = 0L;
+            if (channel == null) {
+                currentValues = new float[1024];
+            } else {
+                flush();
+                currentStart = channel.position();
+            }
+        }
+
+        /**
+         * Adds the next value of the current variable
+         * 
+         * @param value
+         *            The value to add. Missing data should be represented by
+         *            {@link Float#NaN}
+         */
+        public void add(float value) throws IOException {
+            if (currentVariable == null) {
+                throw new IllegalStateException("No variable has been started");
+            }
+            if (channel == null) {
+                if (currentCount == currentValues.length) {
+                    if (currentValues.length == Integer.MAX_VALUE - 8) {
+                        throw new IllegalStateException("Too many values for variable "
+                                + currentVariable);
+                    }
+                    currentValues = Arrays.copyOf(currentValues,
+                            (int) Math.min(Integer.MAX_VALUE - 8, currentValues.length * 2L));
+                }
+                currentValues[(int) currentCount] = value;
+            } else {
+                if (!writeBuffer.hasRemaining()) {
+                    flush();
+                }
+                writeBuffer.putFloat(value);
+            }
+            currentCount++;
+        }
+
+        /**
+         * Ends the current variable
+         */
+        public void endVariable() throws IOException {
+            if (currentVariable == null) {
+                return;
+            }
+            /*
+             * Each variable is mapped as a single buffer, so must fit within
+             * Integer.MAX_VALUE bytes
+             */
+            if (channel != null && currentCount * 4 > Integer.MAX_VALUE) {
+                throw new IllegalStateException("Too many values for variable "
+                        + currentVariable);
+            }
+            if (channel == null) {
+                heapValues.put(currentVariable, Arrays.copyOf(currentValues, (int) currentCount));
+                currentValues = null;
+            } else {
+                flush();
+                fileRegions.put(currentVariable, new long[] { currentStart, currentCount });
+            }
+            currentVariable = null;
+        }
+
+        private void flush() throws IOException {
+            writeBuffer.flip();
+            while (writeBuffer.hasRemaining()) {
+                channel.write(writeBuffer);
+            }
+            writeBuffer.clear();
+        }
+
+        /**
+         * Abandons this {@link Builder}, deleting any file it has written
+         */
+        public void discard() {
+            if (raf != null) {
+                try {
+                    raf.close();
+                } catch (IOException e) {
+                    /*
+                     * Ignore - we're deleting the file anyway
+                     */
+                }
+                file.delete();
+            }
+            heapValues.clear();
+        }
+
+        /**
+         * Creates the {@link FloatMeshDataSource}
+         * 
+         * @param hSize
+         *            The number of horizontal positions in the mesh
+         * @param zSize
+         *            The number of vertical levels
+         * @return The new {@link FloatMeshDataSource}
+         * @throws IOException
+         *             If there is a problem mapping the values file
+         */
+        public FloatMeshDataSource build(int hSize, int zSize) throws IOException {
+            endVariable();
+            Map<String, FloatBuffer> data = new HashMap<>();
+            for (Map.Entry<String, float[]> entry : heapValues.entrySet()) {
+                data.put(entry.getKey(), FloatBuffer.wrap(entry.getValue()));
+            }
+            if (channel != null) {
+                try {
+                    for (Map.Entry<String, long[]> entry : fileRegions.entrySet()) {
+                        long[] region = entry.getValue();
+                        /*
+                         * Mapped buffers remain valid once the channel is
+                         * closed
+                         */
+                        data.put(entry.getKey(),
+                                channel.map(MapMode.READ_ONLY, region[0], region[1] * 4)
+                                        .order(ByteOrder.nativeOrder()).asFloatBuffer());
+                    }
+                } finally {
+                    raf.close();
+                    /*
+                     * The mapped buffers keep the values readable after the
+                     * file has been deleted. Some platforms (e.g. Windows)
+                     * don't allow mapped files to be deleted, in which case we
+                     * do it when the JVM exits.
+                     */
+                    if (!file.delete()) {
+                        file.deleteOnExit();
+                    }
+                }
+            }
+            return new FloatMeshDataSource(hSize, zSize, data);
+        }
+    }
+}
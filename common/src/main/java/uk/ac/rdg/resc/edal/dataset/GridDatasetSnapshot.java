@@ -0,0 +1,604 @@
+/*******************************************************************************
+ * Copyright (c) 2016 The University of Reading
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the University of Reading, nor the names of the
+ *    authors or contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ******************************************************************************/
+
+package uk.ac.rdg.resc.edal.dataset;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+
+import org.geotoolkit.referencing.crs.DefaultGeographicCRS;
+import org.joda.time.Chronology;
+import org.joda.time.DateTimeZone;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import uk.ac.rdg.resc.edal.dataset.plugins.ValueErrorPlugin;
+import uk.ac.rdg.resc.edal.dataset.plugins.VariablePlugin;
+import uk.ac.rdg.resc.edal.dataset.plugins.VectorPlugin;
+import uk.ac.rdg.resc.edal.domain.Extent;
+import uk.ac.rdg.resc.edal.grid.DefinedBoundsAxis;
+import uk.ac.rdg.resc.edal.grid.HorizontalGrid;
+import uk.ac.rdg.resc.edal.grid.RectilinearGridImpl;
+import uk.ac.rdg.resc.edal.grid.ReferenceableAxis;
+import uk.ac.rdg.resc.edal.grid.ReferenceableAxisImpl;
+import uk.ac.rdg.resc.edal.grid.RegularAxis;
+import uk.ac.rdg.resc.edal.grid.RegularAxisImpl;
+import uk.ac.rdg.resc.edal.grid.RegularGridImpl;
+import uk.ac.rdg.resc.edal.grid.TimeAxis;
+import uk.ac.rdg.resc.edal.grid.TimeAxisImpl;
+import uk.ac.rdg.resc.edal.grid.VerticalAxis;
+import uk.ac.rdg.resc.edal.grid.VerticalAxisImpl;
+import uk.ac.rdg.resc.edal.metadata.GridVariableMetadata;
+import uk.ac.rdg.resc.edal.metadata.Parameter;
+import uk.ac.rdg.resc.edal.metadata.Parameter.Category;
+import uk.ac.rdg.resc.edal.metadata.VariableMetadata;
+import uk.ac.rdg.resc.edal.position.VerticalCrs;
+import uk.ac.rdg.resc.edal.position.VerticalCrsImpl;
+import uk.ac.rdg.resc.edal.util.Extents;
+import uk.ac.rdg.resc.edal.util.GISUtils;
+
+/**
+ * A snapshot of the metadata of a {@link GriddedDataset}: its variables, their
+ * horizontal grids and vertical/time axes, its {@link VariablePlugin}s and its
+ * {@link DataReadingStrategy}.
+ * 
+ * Snapshots are written to disk after a dataset has been loaded, and allow the
+ * metadata to be recreated on a subsequent run without opening any of the data
+ * files. Each snapshot records the size and modification time of the files
+ * making up the dataset, so that out-of-date snapshots can be detected cheaply.
+ * 
+ * Only rectilinear WGS84 grids, and the standard {@link VariablePlugin}s are
+ * supported. {@link #create(GriddedDataset, String, List)} returns
+ * <code>null</code> for datasets containing anything else.
+ * 
+ * @author Guy Griffiths
+ */
+public final class GridDatasetSnapshot implements Serializable {
+    private static final long serialVersionUID = 1L;
+    private static final Logger log = LoggerFactory.getLogger(GridDatasetSnapshot.class);
+
+    /**
+     * The version of the snapshot format. This should be incremented whenever
+     * the information stored in a snapshot changes meaning, so that old
+     * snapshots are ignored.
+     */
+    public static final int FORMAT_VERSION = 1;
+
+    private final int formatVersion;
+    private final String datasetId;
+    private final String location;
+    private final List<FileStamp> sourceFiles;
+    private final List<VariableSpec> variables;
+    private final List<PluginSpec> plugins;
+    private final DataReadingStrategy dataReadingStrategy;
+
+    private GridDatasetSnapshot(String datasetId, String location, List<FileStamp> sourceFiles,
+            List<VariableSpec> variables, List<PluginSpec> plugins,
+            DataReadingStrategy dataReadingStrategy) {
+        this.formatVersion = FORMAT_VERSION;
+        this.datasetId = datasetId;
+        this.location = location;
+        this.sourceFiles = sourceFiles;
+        this.variables = variables;
+        this.plugins = plugins;
+        this.dataReadingStrategy = dataReadingStrategy;
+    }
+
+    /**
+     * Creates a snapshot of a {@link GriddedDataset}
+     * 
+     * @param dataset
+     *            The {@link GriddedDataset} to take a snapshot of
+     * @param location
+     *            The location the dataset was loaded from
+     * @param sourceFiles
+     *            The files making up the dataset. If any of these change, the
+     *            snapshot will be considered out-of-date
+     * @return The snapshot, or <code>null</code> if the dataset contains
+     *         domains or plugins which cannot be included in a snapshot
+     */
+    public static GridDatasetSnapshot create(GriddedDataset dataset, String location,
+            List<File> sourceFiles) {
+        /*
+         * Derived variables are recreated by re-adding the plugins, so only
+         * the variables read from the data are stored
+         */
+        Set<String> derivedIds = new HashSet<>();
+        List<PluginSpec> pluginSpecs = new ArrayList<>();
+        for (VariablePlugin plugin : dataset.plugins) {
+            PluginSpec spec = PluginSpec.of(plugin);
+            if (spec == null) {
+                return null;
+            }
+            pluginSpecs.add(spec);
+            derivedIds.addAll(Arrays.asList(plugin.providesVariables()));
+        }
+
+        List<VariableSpec> variableSpecs = new ArrayList<>();
+        for (VariableMetadata metadata : dataset.vars.values()) {
+            if (derivedIds.contains(metadata.getId())) {
+                continue;
+            }
+            if (!(metadata instanceof GridVariableMetadata)) {
+                return null;
+            }
+            VariableSpec spec = VariableSpec.of((GridVariableMetadata) metadata);
+            if (spec == null) {
+                return null;
+            }
+            variableSpecs.add(spec);
+        }
+
+        return new GridDatasetSnapshot(dataset.getId(), location, FileStamp.of(sourceFiles),
+                variableSpecs, pluginSpecs, dataset.getDataReadingStrategy());
+    }
+
+    /**
+     * Checks whether this snapshot can be used in place of loading a dataset
+     * from its source files
+     * 
+     * @param datasetId
+     *            The ID of the dataset being loaded
+     * @param location
+     *            The location of the dataset being loaded
+     * @param sourceFiles
+     *            The files which currently make up the dataset
+     * @return <code>true</code> if this snapshot was taken of the same dataset,
+     *         and none of its files have been added, removed or modified since
+     */
+    public boolean isSnapshotOf(String datasetId, String location, List<File> sourceFiles) {
+        if (!this.datasetId.equals(datasetId) || !this.location.equals(location)
+                || sourceFiles.isEmpty()) {
+            return false;
+        }
+        return new HashSet<>(this.sourceFiles).equals(new HashSet<>(FileStamp.of(sourceFiles)));
+    }
+
+    /**
+     * @return Newly-created {@link GridVariableMetadata} for each of the
+     *         non-derived variables in the dataset
+     */
+    public List<GridVariableMetadata> getVariables() {
+        List<GridVariableMetadata> ret = new ArrayList<>();
+        for (VariableSpec spec : variables) {
+            ret.add(spec.toMetadata());
+        }
+        return ret;
+    }
+
+    /**
+     * @return Newly-created {@link VariablePlugin}s, in the order they should
+     *         be added to the dataset
+     */
+    public List<VariablePlugin> getPlugins() {
+        List<VariablePlugin> ret = new ArrayList<>();
+        for (PluginSpec spec : plugins) {
+            ret.add(spec.toPlugin());
+        }
+        return ret;
+    }
+
+    /**
+     * @return The {@link DataReadingStrategy} used by the dataset
+     */
+    public DataReadingStrategy getDataReadingStrategy() {
+        return dataReadingStrategy;
+    }
+
+    /**
+     * Writes this snapshot to disk. The snapshot is written to a temporary file
+     * first, so that a partially-written snapshot is never read.
+     * 
+     * @param file
+     *            The file to write to
+     * @throws IOException
+     *             If there is a problem writing the file
+     */
+    public void write(File file) throws IOException {
+        File parent = file.getAbsoluteFile().getParentFile();
+        if (!parent.exists()) {
+            parent.mkdirs();
+        }
+        File tempFile = new File(parent, file.getName() + ".tmp");
+        try (ObjectOutputStream out = new ObjectOutputStream(new BufferedOutputStream(
+                new FileOutputStream(tempFile)))) {
+            out.writeObject(this);
+        }
+        if (file.exists()) {
+            file.delete();
+        }
+        if (!tempFile.renameTo(file)) {
+            tempFile.delete();
+            throw new IOException("Could not move snapshot to " + file.getAbsolutePath());
+        }
+    }
+
+    /**
+     * Reads a snapshot from disk
+     * 
+     * @param file
+     *            The file to read
+     * @return The snapshot, or <code>null</code> if the file does not exist or
+     *         was not written by this version of the snapshot format
+     */
+    public static GridDatasetSnapshot read(File file) {
+        if (!file.exists()) {
+            return null;
+        }
+        try (ObjectInputStream in = new ObjectInputStream(new BufferedInputStream(
+                new FileInputStream(file)))) {
+            GridDatasetSnapshot snapshot = (GridDatasetSnapshot) in.readObject();
+            if (snapshot.formatVersion != FORMAT_VERSION) {
+                return null;
+            }
+            return snapshot;
+        } catch (IOException | ClassNotFoundException | ClassCastException e) {
+            log.warn("Could not read dataset snapshot " + file.getAbsolutePath()
+                    + ".  It will be regenerated");
+            return null;
+        }
+    }
+
+    /**
+     * The path, size and modification time of a file
+     */
+    private static final class FileStamp implements Serializable {
+        private static final long serialVersionUID = 1L;
+
+        private final String path;
+        private final long length;
+        private final long lastModified;
+
+        private FileStamp(File file) {
+            path = file.getAbsolutePath();
+            length = file.length();
+            lastModified = file.lastModified();
+        }
+
+        private static List<FileStamp> of(List<File> files) {
+            List<FileStamp> stamps = new ArrayList<>();
+            for (File file : files) {
+                stamps.add(new FileStamp(file));
+            }
+            return stamps;
+        }
+
+        @Override
+        public int hashCode() {
+            final int prime = 31;
+            int result = 1;
+            result = prime * result + (int) (lastModified ^ (lastModified >>> 32));
+            result = prime * result + (int) (length ^ (length >>> 32));
+            result = prime * result + ((path == null) ? 0 : path.hashCode());
+            return result;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (this == obj)
+                return true;
+            if (obj == null)
+                return false;
+            if (getClass() != obj.getClass())
+                return false;
+            FileStamp other = (FileStamp) obj;
+            if (lastModified != other.lastModified)
+                return false;
+            if (length != other.length)
+                return false;
+            if (path == null) {
+                if (other.path != null)
+                    return false;
+            } else if (!path.equals(other.path))
+                return false;
+            return true;
+        }
+    }
+
+    /**
+     * The metadata of a single variable
+     */
+    private static final class VariableSpec implements Serializable {
+        private static final long serialVersionUID = 1L;
+
+        /* Parameter */
+        private String varId;
+        private String title;
+        private String description;
+        private String units;
+        private String standardName;
+        private int[] categoryValues;
+        private String[][] categories;
+
+        /* Domains */
+        private AxisSpec xAxis;
+        private AxisSpec yAxis;
+        private boolean regular;
+        private String zName;
+        private double[] zValues;
+        private String zUnits;
+        private boolean zPressure;
+        private boolean zDimensionless;
+        private boolean zPositiveUpwards;
+        private String tName;
+        private long[] tValues;
+        private String tChronology;
+
+        private boolean scalar;
+
+        private static VariableSpec of(GridVariableMetadata metadata) {
+            VariableSpec spec = new VariableSpec();
+
+            Parameter parameter = metadata.getParameter();
+            spec.varId = parameter.getVariableId();
+            spec.title = parameter.getTitle();
+            spec.description = parameter.getDescription();
+            spec.units = parameter.getUnits();
+            spec.standardName = parameter.getStandardName();
+            Map<Integer, Category> categoryMap = parameter.getCategories();
+            if (categoryMap != null) {
+                spec.categoryValues = new int[categoryMap.size()];
+                spec.categories = new String[categoryMap.size()][];
+                int i = 0;
+                for (Entry<Integer, Category> entry : categoryMap.entrySet()) {
+                    Category category = entry.getValue();
+                    spec.categoryValues[i] = entry.getKey();
+                    spec.categories[i] = new String[] { category.getId(), category.getLabel(),
+                            category.getColour(), category.getDescription() };
+                    i++;
+                }
+            }
+
+            HorizontalGrid hGrid = metadata.getHorizontalDomain();
+            if ((hGrid.getClass() != RegularGridImpl.class
+                    && hGrid.getClass() != RectilinearGridImpl.class)
+                    || !GISUtils.isWgs84LonLat(hGrid.getCoordinateReferenceSystem())) {
+                return null;
+            }
+            RectilinearGridImpl rectilinearGrid = (RectilinearGridImpl) hGrid;
+            spec.regular = hGrid instanceof RegularGridImpl;
+            spec.xAxis = AxisSpec.of(rectilinearGrid.getXAxis());
+            spec.yAxis = AxisSpec.of(rectilinearGrid.getYAxis());
+            if (spec.xAxis == null || spec.yAxis == null) {
+                return null;
+            }
+
+            VerticalAxis zAxis = metadata.getVerticalDomain();
+            if (zAxis != null) {
+                if (zAxis.getClass() != VerticalAxisImpl.class) {
+                    return null;
+                }
+                spec.zName = zAxis.getName();
+                List<Double> values = zAxis.getCoordinateValues();
+                spec.zValues = new double[values.size()];
+                for (int i = 0; i < spec.zValues.length; i++) {
+                    spec.zValues[i] = values.get(i);
+                }
+                VerticalCrs vCrs = zAxis.getVerticalCrs();
+                spec.zUnits = vCrs.getUnits();
+                spec.zPressure = vCrs.isPressure();
+                spec.zDimensionless = vCrs.isDimensionless();
+                spec.zPositiveUpwards = vCrs.isPositiveUpwards();
+            }
+
+            TimeAxis tAxis = metadata.getTemporalDomain();
+            if (tAxis != null) {
+                if (tAxis.getClass() != TimeAxisImpl.class) {
+                    return null;
+                }
+                TimeAxisImpl timeAxis = (TimeAxisImpl) tAxis;
+                Chronology chronology = timeAxis.getChronology();
+                /*
+                 * Chronologies are recreated from their class, so only the
+                 * standard UTC instances can be stored
+                 */
+                if (chronology == null || !DateTimeZone.UTC.equals(chronology.getZone())
+                        || getChronology(chronology.getClass().getName()) != chronology) {
+                    return null;
+                }
+                spec.tName = timeAxis.getName();
+                spec.tChronology = chronology.getClass().getName();
+                spec.tValues = new long[timeAxis.size()];
+                for (int i = 0; i < spec.tValues.length; i++) {
+                    spec.tValues[i] = timeAxis.getCoordinateMillis(i);
+                }
+            }
+
+            spec.scalar = metadata.isScalar();
+            return spec;
+        }
+
+        private GridVariableMetadata toMetadata() {
+            Map<Integer, Category> categoryMap = null;
+            if (categoryValues != null) {
+                categoryMap = new HashMap<>();
+                for (int i = 0; i < categoryValues.length; i++) {
+                    categoryMap.put(categoryValues[i], new Category(categories[i][0],
+                            categories[i][1], categories[i][2], categories[i][3]));
+                }
+            }
+            Parameter parameter = new Parameter(varId, title, description, units, standardName,
+                    categoryMap);
+
+            HorizontalGrid hGrid;
+            if (regular) {
+                hGrid = new RegularGridImpl((RegularAxis) xAxis.toAxis(),
+                        (RegularAxis) yAxis.toAxis(), DefaultGeographicCRS.WGS84);
+            } else {
+                hGrid = new RectilinearGridImpl(xAxis.toAxis(), yAxis.toAxis(),
+                        DefaultGeographicCRS.WGS84);
+            }
+
+            VerticalAxis zAxis = null;
+            if (zValues != null) {
+                List<Double> values = new ArrayList<>();
+                for (double value : zValues) {
+                    values.add(value);
+                }
+                zAxis = new VerticalAxisImpl(zName, values, new VerticalCrsImpl(zUnits,
+                        zPressure, zDimensionless, zPositiveUpwards));
+            }
+
+            TimeAxis tAxis = null;
+            if (tValues != null) {
+                tAxis = new TimeAxisImpl(tName, tValues, getChronology(tChronology));
+            }
+
+            return new GridVariableMetadata(parameter, hGrid, zAxis, tAxis, scalar);
+        }
+
+        private static Chronology getChronology(String className) {
+            try {
+                return (Chronology) Class.forName(className).getMethod("getInstanceUTC")
+                        .invoke(null);
+            } catch (ReflectiveOperationException | ClassCastException e) {
+                return null;
+            }
+        }
+    }
+
+    /**
+     * A horizontal axis of a rectilinear grid
+     */
+    private static final class AxisSpec implements Serializable {
+        private static final long serialVersionUID = 1L;
+
+        private String name;
+        private boolean longitude;
+        /* Regular axes */
+        private double start;
+        private double spacing;
+        private int size;
+        /* Irregular axes */
+        private double[] values;
+        /* Axes with explicitly-defined bounds */
+        private double[] lowBounds;
+        private double[] highBounds;
+
+        private static AxisSpec of(ReferenceableAxis<Double> axis) {
+            AxisSpec spec = new AxisSpec();
+            spec.name = axis.getName();
+            spec.size = axis.size();
+            if (axis.getClass() == RegularAxisImpl.class) {
+                RegularAxisImpl regularAxis = (RegularAxisImpl) axis;
+                spec.longitude = regularAxis.isLongitude();
+                spec.start = regularAxis.getCoordinateValue(0);
+                spec.spacing = regularAxis.getCoordinateSpacing();
+            } else if (axis.getClass() == ReferenceableAxisImpl.class
+                    || axis.getClass() == DefinedBoundsAxis.class) {
+                ReferenceableAxisImpl irregularAxis = (ReferenceableAxisImpl) axis;
+                spec.longitude = irregularAxis.isLongitude();
+                spec.values = new double[spec.size];
+                for (int i = 0; i < spec.size; i++) {
+                    spec.values[i] = irregularAxis.getCoordinateValue(i);
+                }
+                if (axis instanceof DefinedBoundsAxis) {
+                    spec.lowBounds = new double[spec.size];
+                    spec.highBounds = new double[spec.size];
+                    for (int i = 0; i < spec.size; i++) {
+                        Extent<Double> bounds = axis.getCoordinateBounds(i);
+                        spec.lowBounds[i] = bounds.getLow();
+                        spec.highBounds[i] = bounds.getHigh();
+                    }
+                }
+            } else {
+                return null;
+            }
+            return spec;
+        }
+
+        private ReferenceableAxis<Double> toAxis() {
+            if (values == null) {
+                return new RegularAxisImpl(name, start, spacing, size, longitude);
+            }
+            List<Double> axisValues = new ArrayList<>();
+            for (double value : values) {
+                axisValues.add(value);
+            }
+            if (lowBounds == null) {
+                return new ReferenceableAxisImpl(name, axisValues, longitude);
+            }
+            List<Extent<Double>> axisBounds = new ArrayList<>();
+            for (int i = 0; i < lowBounds.length; i++) {
+                axisBounds.add(Extents.newExtent(lowBounds[i], highBounds[i]));
+            }
+            return new DefinedBoundsAxis(name, axisValues, axisBounds, longitude);
+        }
+    }
+
+    /**
+     * A {@link VariablePlugin} added to the dataset
+     */
+    private static final class PluginSpec implements Serializable {
+        private static final long serialVersionUID = 1L;
+
+        private boolean vector;
+        private String[] uses;
+        private String title;
+        private boolean eastNorthComps;
+
+        private static PluginSpec of(VariablePlugin plugin) {
+            PluginSpec spec = new PluginSpec();
+            spec.uses = plugin.usesVariables();
+            if (plugin.getClass() == VectorPlugin.class) {
+                spec.vector = true;
+                spec.title = ((VectorPlugin) plugin).getCommonName();
+                spec.eastNorthComps = ((VectorPlugin) plugin).isEastNorthComponents();
+            } else if (plugin.getClass() == ValueErrorPlugin.class) {
+                spec.vector = false;
+                spec.title = ((ValueErrorPlugin) plugin).getTitle();
+            } else {
+                return null;
+            }
+            return spec;
+        }
+
+        private VariablePlugin toPlugin() {
+            if (vector) {
+                return new VectorPlugin(uses[0], uses[1], title, eastNorthComps);
+            } else {
+                return new ValueErrorPlugin(uses[0], uses[1], title);
+            }
+        }
+    }
+}
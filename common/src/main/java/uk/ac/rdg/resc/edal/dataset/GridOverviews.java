@@ -0,0 +1,870 @@
+/*******************************************************************************
+ * Copyright (c) 2016 The University of Reading
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the University of Reading, nor the names of the
+ *    authors or contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ******************************************************************************/
+
+package uk.ac.rdg.resc.edal.dataset;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UnsupportedEncodingException;
+import java.net.URLEncoder;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import uk.ac.rdg.resc.edal.dataset.DomainMapper.DomainMapperEntry;
+import uk.ac.rdg.resc.edal.dataset.DomainMapper.Scanline;
+import uk.ac.rdg.resc.edal.util.Array2D;
+import uk.ac.rdg.resc.edal.util.Array4D;
+import uk.ac.rdg.resc.edal.util.ValuesArray2D;
+
+/**
+ * Manages a pyramid of reduced-resolution overviews of the horizontal slices
+ * of the variables in a {@link GriddedDataset}. When a map is requested at a
+ * resolution much coarser than the native grid, the data can be read from a
+ * small overview rather than from the full-resolution source.
+ * 
+ * Overview levels are decimated by successive factors of 2 from the source
+ * grid, and are stored in a simple chunked binary format in a local directory.
+ * They are generated in the background the first time a slice is requested at
+ * a resolution where they would be used, so the first requests for each slice
+ * will be read from the source data as normal.
+ * 
+ * Since overviews are indexed in the same way as the source grid (each level
+ * simply divides the grid indices by its decimation factor), they work for any
+ * type of {@link uk.ac.rdg.resc.edal.grid.HorizontalGrid}.
+ * 
+ * Each level file is stamped with the source stamp of the dataset (see
+ * {@link DatasetFactory#getSourceStamp(String)}), and levels with a different
+ * stamp are discarded. The total size of the level files is limited, with the
+ * least recently opened levels being removed first.
+ * 
+ * @author Guy Griffiths
+ */
+public class GridOverviews {
+    private static final Logger log = LoggerFactory.getLogger(GridOverviews.class);
+
+    /**
+     * The method used to generate overview levels from the source data
+     */
+    public enum Decimation {
+        /**
+         * Each overview value is taken from the source value closest to the
+         * centre of the area it covers. This is suitable for all data,
+         * including categorical data.
+         */
+        NEAREST,
+        /**
+         * Each overview value is the mean of all non-missing source values
+         * which it covers.
+         */
+        MEAN
+    }
+
+    /**
+     * No overview level will be generated which is smaller than this in both
+     * dimensions
+     */
+    public static final int MIN_LEVEL_SIZE = 256;
+
+    private static final int CHUNK_SIZE = 64;
+    private static final int FILE_MAGIC = 0x45444c4f;
+    private static final int FILE_VERSION = 2;
+    private static final int HEADER_SIZE = 8 * 4;
+    private static final String FILE_SUFFIX = ".ovr";
+
+    /**
+     * The default maximum total size of the overview files of a single
+     * {@link GridOverviews}, in bytes
+     */
+    public static final long DEFAULT_MAX_DISK_SIZE = 4L * 1024 * 1024 * 1024;
+
+    /*
+     * The maximum total size of the overview levels to keep open (i.e.
+     * memory-mapped), in bytes
+     */
+    private static final long MAX_OPEN_SIZE = 512L * 1024 * 1024;
+
+    private final File directory;
+    private final Decimation decimation;
+    private final long sourceStamp;
+    private final long maxDiskSize;
+
+    /*
+     * Open levels, in access order. Guarded by itself, as is openSize.
+     */
+    private final Map<String, OverviewLevel> openLevels;
+    private long openSize = 0L;
+    private final Set<String> pendingSlices = Collections
+            .newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+    private final ExecutorService generationExecutor;
+
+    /**
+     * Creates a new {@link GridOverviews} which does not know the state of the
+     * source data, and so discards any existing overviews in its directory
+     * 
+     * @param directory
+     *            The directory in which to store the overviews. Each
+     *            {@link GridOverviews} object should have its own directory.
+     * @param decimation
+     *            The {@link Decimation} method used to generate overviews
+     */
+    public GridOverviews(File directory, Decimation decimation) {
+        this(directory, decimation, null, DEFAULT_MAX_DISK_SIZE);
+    }
+
+    /**
+     * Creates a new {@link GridOverviews}
+     * 
+     * @param directory
+     *            The directory in which to store the overviews. Each
+     *            {@link GridOverviews} object should have its own directory.
+     * @param decimation
+     *            The {@link Decimation} method used to generate overviews
+     * @param sourceStamp
+     *            The stamp of the source data, as returned by
+     *            {@link DatasetFactory#getSourceStamp(String)}. Existing
+     *            overviews with a different stamp will not be used. If this
+     *            is <code>null</code>, all existing overviews are discarded.
+     * @param maxDiskSize
+     *            The maximum total size of the overview files, in bytes
+     */
+    public GridOverviews(File directory, Decimation decimation, String sourceStamp,
+            long maxDiskSize) {
+        this.directory = directory;
+        this.decimation = decimation;
+        this.sourceStamp = hashStamp(sourceStamp);
+        this.maxDiskSize = maxDiskSize;
+        openLevels = new LinkedHashMap<String, OverviewLevel>(16, 0.75f, true);
+        if (sourceStamp == null) {
+            clear();
+        }
+        generationExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "grid-overviews");
+                thread.setDaemon(true);
+                thread.setPriority(Thread.MIN_PRIORITY);
+                return thread;
+            }
+        });
+    }
+
+    public Decimation getDecimation() {
+        return decimation;
+    }
+
+    /**
+     * Calculates the largest decimation factor which can be used for a
+     * {@link Domain2DMapper} without losing resolution. This is found from the
+     * minimum spacing (in grid indices) between the source grid points which
+     * are actually used in each direction.
+     * 
+     * @param domainMapper
+     *            The {@link Domain2DMapper} from the source grid to the target
+     *            grid
+     * @return The largest power of 2 which is not greater than the spacing of
+     *         the source points. This will be 1 if no overview can be used.
+     */
+    public static int getResolutionFactor(Domain2DMapper domainMapper) {
+        if (domainMapper.isEmpty()) {
+            return 1;
+        }
+        int minIGap = Integer.MAX_VALUE;
+        int minJGap = Integer.MAX_VALUE;
+        int lastJ = -1;
+        Iterator<Scanline<int[]>> it = domainMapper.scanlineIterator();
+        while (it.hasNext() && (minIGap > 1 || minJGap > 1)) {
+            Scanline<int[]> scanline = it.next();
+            int j = scanline.getSourceGridJIndex();
+            if (lastJ >= 0) {
+                minJGap = Math.min(minJGap, j - lastJ);
+            }
+            lastJ = j;
+            int lastI = -1;
+            for (DomainMapperEntry<int[]> entry : scanline.getPixelMapEntries()) {
+                int i = entry.getSourceGridIIndex();
+                if (lastI >= 0) {
+                    minIGap = Math.min(minIGap, i - lastI);
+                }
+                lastI = i;
+            }
+        }
+        int minGap = Math.min(minIGap, minJGap);
+        if (minGap == Integer.MAX_VALUE) {
+            /*
+             * We are only using a single source point, so there is no need to
+             * use an overview
+             */
+            return 1;
+        }
+        return Integer.highestOneBit(minGap);
+    }
+
+    /**
+     * Gets the most coarse overview level which is available for a slice and
+     * has a decimation factor no greater than the given factor
+     * 
+     * @param sliceId
+     *            The ID of the slice, as returned by
+     *            {@link GridOverviews#getSliceId(String, Object, Object)}
+     * @param maxFactor
+     *            The maximum permissible decimation factor
+     * @return The {@link OverviewLevel}, or <code>null</code> if none is
+     *         available
+     */
+    public OverviewLevel getLevel(String sliceId, int maxFactor) {
+        for (int factor = Integer.highestOneBit(maxFactor); factor > 1; factor /= 2) {
+            String levelId = sliceId + "_" + factor;
+            synchronized (openLevels) {
+                OverviewLevel level = openLevels.get(levelId);
+                if (level != null) {
+                    return level;
+                }
+            }
+            File levelFile = getFile(levelId);
+            if (levelFile.exists()) {
+                try {
+                    OverviewLevel level = OverviewLevel.open(levelFile, sourceStamp);
+                    if (level == null) {
+                        /*
+                         * The source data has changed since this level was
+                         * generated
+                         */
+                        log.debug("Discarding out-of-date overview " + levelFile);
+                        levelFile.delete();
+                        continue;
+                    }
+                    /*
+                     * Record when the level was last used, so that the least
+                     * recently used levels are removed first
+                     */
+                    levelFile.setLastModified(System.currentTimeMillis());
+                    addOpenLevel(levelId, level);
+                    return level;
+                } catch (IOException e) {
+                    log.warn("Problem opening overview " + levelFile + ".  It will be ignored.", e);
+                }
+            }
+        }
+        return null;
+    }
+
+    private void addOpenLevel(String levelId, OverviewLevel level) {
+        synchronized (openLevels) {
+            OverviewLevel oldLevel = openLevels.put(levelId, level);
+            if (oldLevel != null) {
+                openSize -= oldLevel.getSize();
+            }
+            openSize += level.getSize();
+            /*
+             * Close the least recently used levels until we are within budget.
+             * The mapped memory is released when they are garbage collected.
+             */
+            Iterator<OverviewLevel> it = openLevels.values().iterator();
+            while (openSize > MAX_OPEN_SIZE && it.hasNext()) {
+                OverviewLevel openLevel = it.next();
+                if (openLevel != level) {
+                    openSize -= openLevel.getSize();
+                    it.remove();
+                }
+            }
+        }
+    }
+
+    private void removeOpenLevel(String levelId) {
+        synchronized (openLevels) {
+            OverviewLevel level = openLevels.remove(levelId);
+            if (level != null) {
+                openSize -= level.getSize();
+            }
+        }
+    }
+
+    /**
+     * Reads data from an overview level onto the target domain of a
+     * {@link Domain2DMapper}
+     * 
+     * @param level
+     *            The {@link OverviewLevel} to read from
+     * @param domainMapper
+     *            The {@link Domain2DMapper} from the full-resolution source
+     *            grid to the target domain
+     * @return The data on the target domain
+     */
+    public static Array2D<Number> readMapData(OverviewLevel level, Domain2DMapper domainMapper) {
+        Array2D<Number> ret = new ValuesArray2D(domainMapper.getTargetYSize(),
+                domainMapper.getTargetXSize());
+        int factor = level.getFactor();
+        for (DomainMapperEntry<int[]> dme : domainMapper) {
+            float value = level.getValue(dme.getSourceGridIIndex() / factor,
+                    dme.getSourceGridJIndex() / factor);
+            if (Float.isNaN(value)) {
+                continue;
+            }
+            for (int[] targetPoint : dme.getTargetIndices()) {
+                ret.set(value, new int[] { targetPoint[1], targetPoint[0] });
+            }
+        }
+        return ret;
+    }
+
+    /**
+     * Gets an ID for a slice of a variable.
+     * 
+     * @param varId
+     *            The ID of the variable
+     * @param time
+     *            An object representing the time of the slice, or
+     *            <code>null</code> if the variable has no time axis
+     * @param z
+     *            An object representing the elevation of the slice, or
+     *            <code>null</code> if the variable has no vertical axis
+     * @return A {@link String} which uniquely identifies the slice within the
+     *         dataset
+     */
+    public static String getSliceId(String varId, Object time, Object z) {
+        return varId + "_t" + time + "_z" + z;
+    }
+
+    /**
+     * Generates all overview levels for a slice in the background. If the
+     * overviews are already being generated, this does nothing.
+     * 
+     * @param sliceId
+     *            The ID of the slice
+     * @param generator
+     *            A {@link Runnable} which should call
+     *            {@link GridOverviews#generate(String, GridDataSource, DataReadingStrategy, String, int, int, int, int)}
+     *            with a suitable {@link GridDataSource}
+     */
+    public void generateInBackground(final String sliceId, final Runnable generator) {
+        if (!pendingSlices.add(sliceId)) {
+            return;
+        }
+        generationExecutor.submit(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    generator.run();
+                } catch (Exception e) {
+                    log.error("Problem generating overviews for " + sliceId, e);
+                } finally {
+                    pendingSlices.remove(sliceId);
+                }
+            }
+        });
+    }
+
+    /**
+     * @return Whether any overview levels can be generated for a grid of the
+     *         given size
+     */
+    public static boolean canGenerate(int xSize, int ySize) {
+        return getMaxFactor(xSize, ySize) > 1;
+    }
+
+    private static int getMaxFactor(int xSize, int ySize) {
+        int size = Math.max(xSize, ySize);
+        int factor = 1;
+        while ((size + 2 * factor - 1) / (2 * factor) >= MIN_LEVEL_SIZE) {
+            factor *= 2;
+        }
+        return factor;
+    }
+
+    /**
+     * Generates all overview levels for a slice of a variable. This reads the
+     * entire slice in strips, so only a small amount of memory is needed.
+     * 
+     * @param sliceId
+     *            The ID of the slice
+     * @param dataSource
+     *            The {@link GridDataSource} to read from
+     * @param dataReadingStrategy
+     *            The {@link DataReadingStrategy} of the dataset. Each strip is
+     *            read in a single operation for
+     *            {@link DataReadingStrategy#BOUNDING_BOX}, one row at a time
+     *            for {@link DataReadingStrategy#SCANLINE}, and (when using
+     *            {@link Decimation#NEAREST}) one required point at a time for
+     *            {@link DataReadingStrategy#PIXEL_BY_PIXEL}
+     * @param varId
+     *            The ID of the variable in the {@link GridDataSource}
+     * @param tIndex
+     *            The time index of the slice
+     * @param zIndex
+     *            The vertical index of the slice
+     * @param xSize
+     *            The x-size of the source grid
+     * @param ySize
+     *            The y-size of the source grid
+     * @throws IOException
+     *             If there is a problem reading the source data or writing the
+     *             overviews
+     */
+    public void generate(String sliceId, GridDataSource dataSource,
+            DataReadingStrategy dataReadingStrategy, String varId, int tIndex, int zIndex,
+            int xSize, int ySize) throws IOException {
+        int maxFactor = getMaxFactor(xSize, ySize);
+        if (maxFactor < 2) {
+            return;
+        }
+        if (!directory.exists() && !directory.mkdirs()) {
+            throw new IOException("Cannot create directory " + directory + " for overviews");
+        }
+
+        long t1 = System.currentTimeMillis();
+        List<LevelWriter> writers = new ArrayList<>();
+        try {
+            for (int factor = 2; factor <= maxFactor; factor *= 2) {
+                writers.add(new LevelWriter(getFile(sliceId + "_" + factor), xSize, ySize,
+                        factor, sourceStamp));
+            }
+
+            /*
+             * Read the source data in strips which are as tall as the largest
+             * decimation factor, so that every level can be generated from
+             * each strip
+             */
+            float[] strip = new float[maxFactor * xSize];
+            for (int jStart = 0; jStart < ySize; jStart += maxFactor) {
+                int nRows = Math.min(jStart + maxFactor, ySize) - jStart;
+                readStrip(strip, dataSource, dataReadingStrategy, varId, tIndex, zIndex, jStart,
+                        nRows, xSize, writers);
+                for (LevelWriter writer : writers) {
+                    writer.writeStrip(strip, jStart, nRows, decimation);
+                }
+            }
+
+            List<File> written = new ArrayList<>();
+            for (LevelWriter writer : writers) {
+                writer.commit();
+                written.add(writer.file);
+                removeOpenLevel(sliceId + "_" + writer.factor);
+            }
+            log.debug("Generated " + writers.size() + " overview levels for " + sliceId + " in "
+                    + (System.currentTimeMillis() - t1) + "ms");
+            enforceDiskBudget(written);
+        } finally {
+            for (LevelWriter writer : writers) {
+                writer.abort();
+            }
+        }
+    }
+
+    /*
+     * Reads a strip of source data, starting at row jStart, into the supplied
+     * array, using the given DataReadingStrategy
+     */
+    private void readStrip(float[] strip, GridDataSource dataSource,
+            DataReadingStrategy dataReadingStrategy, String varId, int tIndex, int zIndex,
+            int jStart, int nRows, int xSize, List<LevelWriter> writers) throws IOException {
+        if (dataReadingStrategy == DataReadingStrategy.PIXEL_BY_PIXEL
+                && decimation == Decimation.NEAREST) {
+            /*
+             * Only the points which are sampled by one of the levels are
+             * needed
+             */
+            boolean[] required = new boolean[nRows * xSize];
+            for (LevelWriter writer : writers) {
+                writer.markSampledPoints(required, nRows);
+            }
+            for (int j = 0; j < nRows; j++) {
+                for (int i = 0; i < xSize; i++) {
+                    float value = Float.NaN;
+                    if (required[j * xSize + i]) {
+                        Number number = dataSource.read(varId, tIndex, tIndex, zIndex, zIndex,
+                                jStart + j, jStart + j, i, i).get(0, 0, 0, 0);
+                        value = number == null ? Float.NaN : number.floatValue();
+                    }
+                    strip[j * xSize + i] = value;
+                }
+            }
+        } else if (dataReadingStrategy == DataReadingStrategy.SCANLINE
+                || dataReadingStrategy == DataReadingStrategy.PIXEL_BY_PIXEL) {
+            for (int j = 0; j < nRows; j++) {
+                Array4D<Number> data = dataSource.read(varId, tIndex, tIndex, zIndex, zIndex,
+                        jStart + j, jStart + j, 0, xSize - 1);
+                for (int i = 0; i < xSize; i++) {
+                    Number value = data.get(0, 0, 0, i);
+                    strip[j * xSize + i] = value == null ? Float.NaN : value.floatValue();
+                }
+            }
+        } else {
+            Array4D<Number> data = dataSource.read(varId, tIndex, tIndex, zIndex, zIndex,
+                    jStart, jStart + nRows - 1, 0, xSize - 1);
+            for (int j = 0; j < nRows; j++) {
+                for (int i = 0; i < xSize; i++) {
+                    Number value = data.get(0, 0, j, i);
+                    strip[j * xSize + i] = value == null ? Float.NaN : value.floatValue();
+                }
+            }
+        }
+    }
+
+    /*
+     * Removes the least recently used overview files until the total size is
+     * within the budget. The files which have just been written are kept.
+     */
+    private void enforceDiskBudget(Collection<File> keep) {
+        File[] files = directory.listFiles();
+        if (files == null) {
+            return;
+        }
+        List<File> overviewFiles = new ArrayList<>();
+        long totalSize = 0L;
+        for (File file : files) {
+            if (file.getName().endsWith(FILE_SUFFIX)) {
+                overviewFiles.add(file);
+                totalSize += file.length();
+            }
+        }
+        if (totalSize <= maxDiskSize) {
+            return;
+        }
+        final Map<File, Long> lastModified = new HashMap<>();
+        for (File file : overviewFiles) {
+            lastModified.put(file, file.lastModified());
+        }
+        Collections.sort(overviewFiles, new Comparator<File>() {
+            @Override
+            public int compare(File f1, File f2) {
+                return lastModified.get(f1).compareTo(lastModified.get(f2));
+            }
+        });
+        for (File file : overviewFiles) {
+            if (totalSize <= maxDiskSize) {
+                break;
+            }
+            if (keep.contains(file)) {
+                continue;
+            }
+            long length = file.length();
+            if (file.delete()) {
+                totalSize -= length;
+                forgetOpenLevel(file);
+            } else {
+                log.warn("Could not delete overview file " + file);
+            }
+        }
+    }
+
+    private void forgetOpenLevel(File file) {
+        synchronized (openLevels) {
+            for (String levelId : new ArrayList<>(openLevels.keySet())) {
+                if (getFile(levelId).equals(file)) {
+                    removeOpenLevel(levelId);
+                }
+            }
+        }
+    }
+
+    /**
+     * Removes all overviews. This should be called when the underlying data
+     * has changed.
+     */
+    public void clear() {
+        synchronized (openLevels) {
+            openLevels.clear();
+            openSize = 0L;
+        }
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                if (file.getName().endsWith(FILE_SUFFIX) && !file.delete()) {
+                    log.warn("Could not delete overview file " + file);
+                }
+            }
+        }
+    }
+
+    /**
+     * Stops any background generation of overviews
+     */
+    public void shutdown() {
+        generationExecutor.shutdownNow();
+    }
+
+    private File getFile(String levelId) {
+        try {
+            return new File(directory, URLEncoder.encode(levelId, "UTF-8") + FILE_SUFFIX);
+        } catch (UnsupportedEncodingException e) {
+            /*
+             * UTF-8 is always supported
+             */
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /*
+     * Reduces a source stamp to a value which can be stored in the header of
+     * each level file
+     */
+    private static long hashStamp(String sourceStamp) {
+        if (sourceStamp == null) {
+            return 0L;
+        }
+        long hash = 1125899906842597L;
+        for (int i = 0; i < sourceStamp.length(); i++) {
+            hash = 31 * hash + sourceStamp.charAt(i);
+        }
+        return hash;
+    }
+
+    /*
+     * Calculates the position (in floats, after the header) of a value within
+     * a chunked overview file
+     */
+    private static long getPosition(int i, int j, int nChunksX) {
+        int chunk = (j / CHUNK_SIZE) * nChunksX + (i / CHUNK_SIZE);
+        return (long) chunk * CHUNK_SIZE * CHUNK_SIZE + (j % CHUNK_SIZE) * CHUNK_SIZE
+                + (i % CHUNK_SIZE);
+    }
+
+    private static long getFileSize(int xSize, int ySize) {
+        long nChunks = (long) ((xSize + CHUNK_SIZE - 1) / CHUNK_SIZE)
+                * ((ySize + CHUNK_SIZE - 1) / CHUNK_SIZE);
+        return HEADER_SIZE + nChunks * CHUNK_SIZE * CHUNK_SIZE * 4;
+    }
+
+    /**
+     * A single, memory-mapped level of an overview pyramid
+     */
+    public static class OverviewLevel {
+        private final int xSize;
+        private final int ySize;
+        private final int factor;
+        private final int nChunksX;
+        private final ByteBuffer buffer;
+
+        private OverviewLevel(int xSize, int ySize, int factor, ByteBuffer buffer) {
+            this.xSize = xSize;
+            this.ySize = ySize;
+            this.factor = factor;
+            this.nChunksX = (xSize + CHUNK_SIZE - 1) / CHUNK_SIZE;
+            this.buffer = buffer;
+        }
+
+        /*
+         * Returns null if the level was generated from different source data
+         */
+        private static OverviewLevel open(File file, long sourceStamp) throws IOException {
+            try (RandomAccessFile raf = new RandomAccessFile(file, "r");
+                    FileChannel channel = raf.getChannel()) {
+                if (channel.size() < HEADER_SIZE) {
+                    throw new IOException("Not a recognised overview file");
+                }
+                MappedByteBuffer buffer = channel.map(MapMode.READ_ONLY, 0, channel.size());
+                if (buffer.getInt(0) != FILE_MAGIC) {
+                    throw new IOException("Not a recognised overview file");
+                }
+                if (buffer.getInt(4) != FILE_VERSION || buffer.getLong(24) != sourceStamp) {
+                    return null;
+                }
+                int chunkSize = buffer.getInt(20);
+                if (chunkSize != CHUNK_SIZE) {
+                    throw new IOException("Unsupported chunk size: " + chunkSize);
+                }
+                int xSize = buffer.getInt(8);
+                int ySize = buffer.getInt(12);
+                if (channel.size() != getFileSize(xSize, ySize)) {
+                    throw new IOException("Overview file is the wrong size");
+                }
+                return new OverviewLevel(xSize, ySize, buffer.getInt(16), buffer);
+            }
+        }
+
+        /**
+         * @return The factor by which the source grid indices are divided to
+         *         give the indices in this level
+         */
+        public int getFactor() {
+            return factor;
+        }
+
+        /**
+         * @return The size of this level, in bytes
+         */
+        long getSize() {
+            return buffer.capacity();
+        }
+
+        /**
+         * @return The value at the given position in this level, or NaN if it
+         *         is missing or outside the level
+         */
+        public float getValue(int i, int j) {
+            if (i < 0 || j < 0 || i >= xSize || j >= ySize) {
+                return Float.NaN;
+            }
+            return buffer.getFloat((int) (HEADER_SIZE + 4 * getPosition(i, j, nChunksX)));
+        }
+    }
+
+    /**
+     * Writes a single overview level to a temporary file, which is renamed
+     * once it is complete so that partially-written levels are never read.
+     */
+    private static class LevelWriter {
+        private final File file;
+        private final File tempFile;
+        private final int sourceXSize;
+        private final int xSize;
+        private final int ySize;
+        private final int factor;
+        private final int nChunksX;
+        private RandomAccessFile raf;
+        private MappedByteBuffer buffer;
+
+        LevelWriter(File file, int sourceXSize, int sourceYSize, int factor, long sourceStamp)
+                throws IOException {
+            this.file = file;
+            this.tempFile = new File(file.getPath() + ".tmp");
+            this.sourceXSize = sourceXSize;
+            this.xSize = (sourceXSize + factor - 1) / factor;
+            this.ySize = (sourceYSize + factor - 1) / factor;
+            this.factor = factor;
+            this.nChunksX = (xSize + CHUNK_SIZE - 1) / CHUNK_SIZE;
+
+            long fileSize = getFileSize(xSize, ySize);
+            if (fileSize > Integer.MAX_VALUE) {
+                throw new IOException("Overview level is too large to be stored");
+            }
+            raf = new RandomAccessFile(tempFile, "rw");
+            raf.setLength(fileSize);
+            buffer = raf.getChannel().map(MapMode.READ_WRITE, 0, fileSize);
+            buffer.putInt(0, FILE_MAGIC);
+            buffer.putInt(4, FILE_VERSION);
+            buffer.putInt(8, xSize);
+            buffer.putInt(12, ySize);
+            buffer.putInt(16, factor);
+            buffer.putInt(20, CHUNK_SIZE);
+            buffer.putLong(24, sourceStamp);
+        }
+
+        /*
+         * Marks the points of a strip which are sampled by this level when
+         * using Decimation.NEAREST
+         */
+        void markSampledPoints(boolean[] required, int nRows) {
+            for (int rowStart = 0; rowStart < nRows; rowStart += factor) {
+                int row = (rowStart + Math.min(rowStart + factor, nRows) - 1) / 2;
+                for (int i = 0; i < xSize; i++) {
+                    int colStart = i * factor;
+                    int col = (colStart + Math.min(colStart + factor, sourceXSize) - 1) / 2;
+                    required[row * sourceXSize + col] = true;
+                }
+            }
+        }
+
+        /*
+         * Decimates a strip of source data into this level. The strip always
+         * starts on a multiple of this level's factor.
+         */
+        void writeStrip(float[] strip, int sourceJStart, int nRows, Decimation decimation) {
+            for (int rowStart = 0; rowStart < nRows; rowStart += factor) {
+                int j = (sourceJStart + rowStart) / factor;
+                int rowEnd = Math.min(rowStart + factor, nRows);
+                for (int i = 0; i < xSize; i++) {
+                    int colStart = i * factor;
+                    int colEnd = Math.min(colStart + factor, sourceXSize);
+                    float value;
+                    if (decimation == Decimation.MEAN) {
+                        double sum = 0.0;
+                        int count = 0;
+                        for (int row = rowStart; row < rowEnd; row++) {
+                            for (int col = colStart; col < colEnd; col++) {
+                                float sourceValue = strip[row * sourceXSize + col];
+                                if (!Float.isNaN(sourceValue)) {
+                                    sum += sourceValue;
+                                    count++;
+                                }
+                            }
+                        }
+                        value = count > 0 ? (float) (sum / count) : Float.NaN;
+                    } else {
+                        /*
+                         * Use the value closest to the centre of the block
+                         */
+                        int row = (rowStart + rowEnd - 1) / 2;
+                        int col = (colStart + colEnd - 1) / 2;
+                        value = strip[row * sourceXSize + col];
+                    }
+                    buffer.putFloat((int) (HEADER_SIZE + 4 * getPosition(i, j, nChunksX)), value);
+                }
+            }
+        }
+
+        void commit() throws IOException {
+            buffer.force();
+            buffer = null;
+            raf.close();
+            raf = null;
+            if (file.exists() && !file.delete()) {
+                throw new IOException("Cannot replace existing overview " + file);
+            }
+            if (!tempFile.renameTo(file)) {
+                throw new IOException("Cannot rename " + tempFile + " to " + file);
+            }
+        }
+
+        /*
+         * Cleans up if the level was not committed
+         */
+        void abort() {
+            if (raf != null) {
+                try {
+                    raf.close();
+                } catch (IOException e) {
+                    log.debug("Problem closing temporary overview file", e);
+                }
+                raf = null;
+                buffer = null;
+                tempFile.delete();
+            }
+        }
+    }
+}
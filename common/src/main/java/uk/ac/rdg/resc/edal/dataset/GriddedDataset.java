@@ -38,6 +38,7 @@ import java.util.Map;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import uk.ac.rdg.resc.edal.dataset.GridOverviews.OverviewLevel;
 import uk.ac.rdg.resc.edal.dataset.plugins.VariablePlugin;
 import uk.ac.rdg.resc.edal.domain.GridDomain;
 import uk.ac.rdg.resc.edal.domain.SimpleGridDomain;
@@ -46,6 +47,8 @@ import uk.ac.rdg.resc.edal.exceptions.VariableNotFoundException;
 import uk.ac.rdg.resc.edal.feature.GridFeature;
 import uk.ac.rdg.resc.edal.grid.GridCell2D;
 import uk.ac.rdg.resc.edal.grid.HorizontalGrid;
+import uk.ac.rdg.resc.edal.grid.TimeAxis;
+import uk.ac.rdg.resc.edal.grid.VerticalAxis;
 import uk.ac.rdg.resc.edal.metadata.GridVariableMetadata;
 import uk.ac.rdg.resc.edal.metadata.Parameter;
 import uk.ac.rdg.resc.edal.metadata.VariableMetadata;
@@ -54,6 +57,7 @@ import uk.ac.rdg.resc.edal.util.Array1D;
 import uk.ac.rdg.resc.edal.util.Array2D;
 import uk.ac.rdg.resc.edal.util.Array4D;
 import uk.ac.rdg.resc.edal.util.GridCoordinates2D;
+import uk.ac.rdg.resc.edal.util.RequestTrace;
 import uk.ac.rdg.resc.edal.util.ValuesArray1D;
 
 /**
@@ -67,10 +71,33 @@ public abstract class GriddedDataset extends
         DiscreteLayeredDataset<GridDataSource, GridVariableMetadata> {
     private static final Logger log = LoggerFactory.getLogger(GriddedDataset.class);
 
+    private GridOverviews overviews = null;
+
     public GriddedDataset(String id, Collection<GridVariableMetadata> vars) {
         super(id, vars);
     }
 
+    /**
+     * Sets the {@link GridOverviews} to use for this dataset. When set,
+     * low-resolution maps will be read from reduced-resolution overviews of
+     * the data where possible.
+     * 
+     * @param overviews
+     *            The {@link GridOverviews} to use, or <code>null</code> to
+     *            always read from the source data
+     */
+    public void setOverviews(GridOverviews overviews) {
+        this.overviews = overviews;
+    }
+
+    /**
+     * @return The {@link GridOverviews} used by this dataset, or
+     *         <code>null</code> if none is used
+     */
+    public GridOverviews getOverviews() {
+        return overviews;
+    }
+
     @Override
     public Class<GridFeature> getFeatureType(String variableId) {
         /*
@@ -253,21 +280,96 @@ public abstract class GriddedDataset extends
         /*
          * Create a DomainMapper from the source and target grids
          */
+        long stageStart = RequestTrace.startStage();
         Domain2DMapper domainMapper = Domain2DMapper.forGrid(sourceGrid, targetGrid);
+        RequestTrace.endStage(RequestTrace.DOMAIN_MAPPING, stageStart);
+
+        /*
+         * If the target grid is much coarser than the source grid, we may be
+         * able to read from an overview instead
+         */
+        if (overviews != null) {
+            stageStart = RequestTrace.startStage();
+            Array2D<Number> overviewData = extractOverviewData(metadata, tIndex, zIndex,
+                    domainMapper);
+            RequestTrace.endStage(RequestTrace.OVERVIEW_READ, stageStart);
+            if (overviewData != null) {
+                return overviewData;
+            }
+        }
 
         /*
          * Now use the appropriate DataReadingStrategy to read data
          */
         Array2D<Number> data;
+        stageStart = RequestTrace.startStage();
         try {
             data = getDataReadingStrategy().readMapData(dataSource, metadata.getId(), tIndex, zIndex,
                     domainMapper);
         } catch (IOException e) {
             throw new DataReadingException("Could not read underlying data", e);
+        } finally {
+            RequestTrace.endStage(RequestTrace.DATA_READ, stageStart);
         }
         return data;
     }
 
+    /**
+     * Reads data from the most coarse overview which still has sufficient
+     * resolution for the target domain. If the overviews for this slice have
+     * not yet been generated, they will be generated in the background.
+     * 
+     * @return The data on the target domain, or <code>null</code> if no
+     *         suitable overview is available
+     */
+    private Array2D<Number> extractOverviewData(final GridVariableMetadata metadata,
+            final int tIndex, final int zIndex, Domain2DMapper domainMapper) {
+        int factor = GridOverviews.getResolutionFactor(domainMapper);
+        final HorizontalGrid sourceGrid = metadata.getHorizontalDomain();
+        if (factor < 2
+                || !GridOverviews.canGenerate(sourceGrid.getXSize(), sourceGrid.getYSize())) {
+            return null;
+        }
+
+        /*
+         * Identify the slice by its time and elevation rather than its
+         * indices, since the axes may change if the dataset is reloaded
+         */
+        TimeAxis tAxis = metadata.getTemporalDomain();
+        VerticalAxis zAxis = metadata.getVerticalDomain();
+        final String sliceId = GridOverviews.getSliceId(metadata.getId(), tAxis == null ? null
+                : tAxis.getCoordinateValue(tIndex).getMillis(), zAxis == null ? null : zAxis
+                .getCoordinateValue(zIndex));
+
+        OverviewLevel level = overviews.getLevel(sliceId, factor);
+        if (level == null) {
+            overviews.generateInBackground(sliceId, new Runnable() {
+                @Override
+                public void run() {
+                    GridDataSource dataSource = null;
+                    try {
+                        dataSource = openDataSource();
+                        overviews.generate(sliceId, dataSource, getDataReadingStrategy(),
+                                metadata.getId(), tIndex, zIndex, sourceGrid.getXSize(),
+                                sourceGrid.getYSize());
+                    } catch (IOException e) {
+                        throw new DataReadingException("Problem generating overviews", e);
+                    } finally {
+                        if (dataSource != null) {
+                            try {
+                                dataSource.close();
+                            } catch (DataReadingException e) {
+                                log.error("Problem closing data source", e);
+                            }
+                        }
+                    }
+                }
+            });
+            return null;
+        }
+        return GridOverviews.readMapData(level, domainMapper);
+    }
+
     @Override
     protected Array1D<Number> extractProfileData(GridVariableMetadata metadata, List<Integer> zs, int tIndex,
             HorizontalPosition hPos, GridDataSource dataSource) throws DataReadingException {
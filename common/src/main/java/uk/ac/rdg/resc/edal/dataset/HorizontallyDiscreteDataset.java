@@ -1311,6 +1311,59 @@ public abstract class HorizontallyDiscreteDataset<DS extends DataSource> extends
         }
     }
 
+    /**
+     * Reads the values of several variables at a single point. This is
+     * intended for the case where a small number of values are needed quickly
+     * (e.g. a GetFeatureInfo request). All of the values are read using a
+     * single {@link DataSource} and no features or domains are constructed.
+     * 
+     * @param varIds
+     *            The IDs of the variables to read. These must all be scalar
+     *            variables
+     * @param position
+     *            The {@link HorizontalPosition} at which to read the values
+     * @param zVal
+     *            The vertical position at which to read the values. If this is
+     *            <code>null</code>, the value closest to the surface will be
+     *            used
+     * @param time
+     *            The time at which to read the values. If this is
+     *            <code>null</code>, the value closest to the current time will
+     *            be used
+     * @return A {@link Map} of variable ID to the value read at the point. A
+     *         variable whose domain does not contain the given position maps to
+     *         <code>null</code>
+     * @throws DataReadingException
+     *             If there is a problem reading the underlying data
+     * @throws VariableNotFoundException
+     *             If one or more of the variable IDs is not present in this
+     *             dataset
+     */
+    public final Map<String, Number> readSinglePoints(Set<String> varIds,
+            HorizontalPosition position, Double zVal, DateTime time)
+            throws DataReadingException, VariableNotFoundException {
+        Map<String, Number> values = new HashMap<String, Number>();
+        if (varIds.isEmpty()) {
+            return values;
+        }
+        DS dataSource = null;
+        try {
+            dataSource = openDataSource();
+            for (String varId : varIds) {
+                values.put(varId, readPointData(varId, position, zVal, time, dataSource));
+            }
+            return values;
+        } finally {
+            if (dataSource != null) {
+                try {
+                    dataSource.close();
+                } catch (DataReadingException e) {
+                    log.error("Problem closing data source");
+                }
+            }
+        }
+    }
+
     private final Array1D<Number> readMultiplePointData(String variableId,
             List<GeoPosition> positions, DS dataSource) throws DataReadingException,
             VariableNotFoundException {
@@ -1345,7 +1398,7 @@ public abstract class HorizontallyDiscreteDataset<DS extends DataSource> extends
                  * method, we safely cover the cases where derived variables are
                  * derived from other derived variables
                  */
-                baseValues[i] = readUnderlyingPointData(variableId, position, zVal, time,
+                baseValues[i] = readPointData(baseVariables[i], position, zVal, time,
                         dataSource);
             }
 
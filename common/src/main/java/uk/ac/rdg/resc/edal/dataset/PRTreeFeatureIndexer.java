@@ -28,16 +28,24 @@
 
 package uk.ac.rdg.resc.edal.dataset;
 
+import java.util.AbstractList;
+import java.util.AbstractSet;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
 import java.util.Collection;
-import java.util.HashSet;
+import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
 import java.util.Set;
 
 import org.geotoolkit.referencing.crs.DefaultGeographicCRS;
 import org.joda.time.DateTime;
 import org.khelekore.prtree.MBR;
 import org.khelekore.prtree.MBRConverter;
+import org.khelekore.prtree.NodeFilter;
 import org.khelekore.prtree.PRTree;
 import org.khelekore.prtree.SimpleMBR;
 import org.opengis.metadata.extent.GeographicBoundingBox;
@@ -55,49 +63,198 @@ import uk.ac.rdg.resc.edal.util.GISUtils;
  * WGS84 with longitudes in the range (-180:180] - this is guaranteed by the
  * {@link PRTreeFeatureIndexer#addFeatures} method.
  * 
+ * The bounds of features are not stored as {@link FeatureBounds} objects, but
+ * packed into primitive arrays indexed by feature handle. Feature IDs are held
+ * in a compact table, and the variables present in each feature are stored as
+ * an index into a shared list of the distinct sets of variables. The
+ * {@link PRTree} itself only holds feature handles.
+ * 
  * @author Guy Griffiths
  */
-public class PRTreeFeatureIndexer implements FeatureIndexer,
-        MBRConverter<FeatureIndexer.FeatureBounds> {
+public class PRTreeFeatureIndexer implements FeatureIndexer, MBRConverter<Integer> {
+
+    private static final long serialVersionUID = 2L;
+    private static final int INITIAL_CAPACITY = 1024;
+
+    private final FeatureIdTable featureIds = new FeatureIdTable();
+    /*
+     * The bounds of each feature, indexed by handle
+     */
+    private double[] x = new double[INITIAL_CAPACITY];
+    private double[] y = new double[INITIAL_CAPACITY];
+    private double[] zLow = new double[INITIAL_CAPACITY];
+    private double[] zHigh = new double[INITIAL_CAPACITY];
+    private long[] tLow = new long[INITIAL_CAPACITY];
+    private long[] tHigh = new long[INITIAL_CAPACITY];
+    /*
+     * The index within variableSets of the variables each feature contains
+     */
+    private int[] variableSetIndices = new int[INITIAL_CAPACITY];
 
-    private static final long serialVersionUID = 1L;
-    private PRTree<FeatureBounds> prTree;
-    private Set<String> featureIds;
+    /*
+     * All variable IDs which features contain, and the distinct sets of them
+     * which features have, as bitmaps over the variable IDs
+     */
+    private final List<String> variableIds = new ArrayList<>();
+    private final List<BitSet> variableSets = new ArrayList<>();
+    private final Map<BitSet, Integer> variableSetIndex = new HashMap<>();
+
+    /*
+     * A PRTree can only be loaded once, so this is built from all features
+     * when it is first needed, and discarded if further features are added.
+     * It is rebuilt from the packed bounds after deserialisation.
+     */
+    private transient PRTree<Integer> prTree = null;
 
     public PRTreeFeatureIndexer() {
-        prTree = new PRTree<FeatureBounds>(this, 2);
-        featureIds = new HashSet<>();
     }
 
+    /**
+     * {@inheritDoc}
+     * 
+     * If a feature has the same ID as one which has already been added, it
+     * will replace the existing feature.
+     */
     @Override
-    public void addFeatures(final List<FeatureBounds> features) {
+    public synchronized void addFeatures(final List<FeatureBounds> features) {
         for (FeatureBounds feature : features) {
-            featureIds.add(feature.id);
-
+            HorizontalPosition position = feature.horizontalPosition;
             /*
              * Transform to WGS84 if required
              */
-            if (!GISUtils.isWgs84LonLat(feature.horizontalPosition.getCoordinateReferenceSystem())) {
-                feature.horizontalPosition = GISUtils.transformPosition(feature.horizontalPosition,
-                        DefaultGeographicCRS.WGS84);
+            if (!GISUtils.isWgs84LonLat(position.getCoordinateReferenceSystem())) {
+                position = GISUtils.transformPosition(position, DefaultGeographicCRS.WGS84);
             }
 
+            int handle = featureIds.add(feature.id);
+            if (handle >= x.length) {
+                growArrays(handle + 1);
+            }
             /*
              * Now ensure position is in the range (-180:180]
              */
-            double constrainedX = GISUtils.constrainLongitude180(feature.horizontalPosition.getX());
-            if (feature.horizontalPosition.getX() != constrainedX) {
-                feature.horizontalPosition = new HorizontalPosition(constrainedX,
-                        feature.horizontalPosition.getY(),
-                        feature.horizontalPosition.getCoordinateReferenceSystem());
+            x[handle] = GISUtils.constrainLongitude180(position.getX());
+            y[handle] = position.getY();
+            zLow[handle] = feature.verticalExtent.getLow();
+            zHigh[handle] = feature.verticalExtent.getHigh();
+            tLow[handle] = feature.timeExtent.getLow();
+            tHigh[handle] = feature.timeExtent.getHigh();
+            variableSetIndices[handle] = getVariableSetIndex(feature.variableIds);
+        }
+        prTree = null;
+    }
+
+    private void growArrays(int required) {
+        int capacity = (int) Math.min(Math.max(required, 2L * x.length), Integer.MAX_VALUE - 8);
+        x = Arrays.copyOf(x, capacity);
+        y = Arrays.copyOf(y, capacity);
+        zLow = Arrays.copyOf(zLow, capacity);
+        zHigh = Arrays.copyOf(zHigh, capacity);
+        tLow = Arrays.copyOf(tLow, capacity);
+        tHigh = Arrays.copyOf(tHigh, capacity);
+        variableSetIndices = Arrays.copyOf(variableSetIndices, capacity);
+    }
+
+    private int getVariableSetIndex(Collection<String> featureVariableIds) {
+        BitSet variables = new BitSet();
+        if (featureVariableIds != null) {
+            for (String variableId : featureVariableIds) {
+                int index = variableIds.indexOf(variableId);
+                if (index < 0) {
+                    index = variableIds.size();
+                    variableIds.add(variableId);
+                }
+                variables.set(index);
             }
         }
+        Integer index = variableSetIndex.get(variables);
+        if (index == null) {
+            index = variableSets.size();
+            variableSets.add(variables);
+            variableSetIndex.put(variables, index);
+        }
+        return index;
+    }
 
-        prTree.load(features);
+    /*
+     * Gets the PRTree, building it if any features have been added since it
+     * was last built
+     */
+    private synchronized PRTree<Integer> getTree() {
+        if (prTree == null) {
+            /*
+             * We are about to query, so it's likely that all features have now
+             * been added. Release any spare capacity.
+             */
+            final int size = featureIds.size();
+            if (x.length != size) {
+                x = Arrays.copyOf(x, size);
+                y = Arrays.copyOf(y, size);
+                zLow = Arrays.copyOf(zLow, size);
+                zHigh = Arrays.copyOf(zHigh, size);
+                tLow = Arrays.copyOf(tLow, size);
+                tHigh = Arrays.copyOf(tHigh, size);
+                variableSetIndices = Arrays.copyOf(variableSetIndices, size);
+                featureIds.trim();
+            }
+            PRTree<Integer> tree = new PRTree<Integer>(this, 2);
+            tree.load(new AbstractList<Integer>() {
+                @Override
+                public Integer get(int index) {
+                    return index;
+                }
+
+                @Override
+                public int size() {
+                    return size;
+                }
+            });
+            prTree = tree;
+        }
+        return prTree;
+    }
+
+    /*
+     * Gets a filter which only accepts features containing all of the given
+     * variables, or null if all features should be accepted
+     */
+    private synchronized NodeFilter<Integer> getVariableFilter(Collection<String> requiredIds) {
+        if (requiredIds == null || requiredIds.isEmpty()) {
+            return null;
+        }
+        BitSet required = new BitSet();
+        for (String variableId : requiredIds) {
+            int index = variableIds.indexOf(variableId);
+            if (index < 0) {
+                /*
+                 * No features contain this variable
+                 */
+                return new NodeFilter<Integer>() {
+                    @Override
+                    public boolean accept(Integer handle) {
+                        return false;
+                    }
+                };
+            }
+            required.set(index);
+        }
+        final boolean[] acceptedSets = new boolean[variableSets.size()];
+        for (int i = 0; i < acceptedSets.length; i++) {
+            BitSet missing = (BitSet) required.clone();
+            missing.andNot(variableSets.get(i));
+            acceptedSets[i] = missing.isEmpty();
+        }
+        final int[] setIndices = variableSetIndices;
+        return new NodeFilter<Integer>() {
+            @Override
+            public boolean accept(Integer handle) {
+                return acceptedSets[setIndices[handle]];
+            }
+        };
     }
 
     @Override
-    public Collection<String> findFeatureIds(BoundingBox horizontalExtent,
+    public int[] findFeatureHandles(BoundingBox horizontalExtent,
             Extent<Double> verticalExtent, Extent<DateTime> timeExtent,
             Collection<String> variableIds) {
 
@@ -136,79 +293,160 @@ public class PRTreeFeatureIndexer implements FeatureIndexer,
                     horizontalExtent.getMaxY(), horizontalExtent.getCoordinateReferenceSystem());
         }
 
-        Double zLow = -Double.MAX_VALUE;
-        Double zHigh = Double.MAX_VALUE;
+        double zLow = -Double.MAX_VALUE;
+        double zHigh = Double.MAX_VALUE;
         if (verticalExtent != null) {
             zLow = verticalExtent.getLow();
             zHigh = verticalExtent.getHigh();
         }
-        Long tLow = -Long.MAX_VALUE;
-        Long tHigh = Long.MAX_VALUE;
+        long tLow = -Long.MAX_VALUE;
+        long tHigh = Long.MAX_VALUE;
         if (timeExtent != null) {
             tLow = timeExtent.getLow().getMillis();
             tHigh = timeExtent.getHigh().getMillis();
         }
 
+        /*
+         * The PRTree reads the packed bounds arrays while searching, so hold
+         * the lock to stop them being resized or rebuilt by addFeatures
+         */
+        List<Integer> handles = new ArrayList<>();
+        synchronized (this) {
+            PRTree<Integer> tree = getTree();
+            NodeFilter<Integer> filter = getVariableFilter(variableIds);
+            findInTree(tree, horizontalExtent, zLow, zHigh, tLow, tHigh, filter, handles);
+        }
+
+        int[] ret = new int[handles.size()];
+        for (int i = 0; i < ret.length; i++) {
+            ret[i] = handles.get(i);
+        }
+        return ret;
+    }
+
+    private static void findInTree(PRTree<Integer> tree, BoundingBox horizontalExtent,
+            double zLow, double zHigh, long tLow, long tHigh, NodeFilter<Integer> filter,
+            List<Integer> handles) {
         /*
          * Check to see if we have a bounding box which crosses the date line.
          * If so, make 2 requests to the PRTree
          */
-        Collection<String> featureIds = new ArrayList<>();
-        Iterable<FeatureBounds> features;
         if (horizontalExtent.getMaxX() > 180) {
             if (horizontalExtent.getMaxX() > 540) {
                 /*
                  * We have a bounding box that spans the date line at both ends
                  */
-                MBR mbr = new SimpleMBR(-180, 180, horizontalExtent.getMinY(),
-                        horizontalExtent.getMaxY(), zLow, zHigh, tLow, tHigh);
-                features = prTree.find(mbr);
+                find(tree, new SimpleMBR(-180, 180, horizontalExtent.getMinY(),
+                        horizontalExtent.getMaxY(), zLow, zHigh, tLow, tHigh), filter, handles);
             } else {
-                MBR mbr = new SimpleMBR(horizontalExtent.getMinX(), 180,
+                find(tree, new SimpleMBR(horizontalExtent.getMinX(), 180,
                         horizontalExtent.getMinY(), horizontalExtent.getMaxY(), zLow, zHigh, tLow,
-                        tHigh);
-                features = prTree.find(mbr);
-                for (FeatureBounds feature : features) {
-                    featureIds.add(feature.id);
-                }
-
-                mbr = new SimpleMBR(-180,
-                        GISUtils.constrainLongitude180(horizontalExtent.getMaxX()),
-                        horizontalExtent.getMinY(), horizontalExtent.getMaxY(), zLow, zHigh, tLow,
-                        tHigh);
-                features = prTree.find(mbr);
-            }
-            for (FeatureBounds feature : features) {
-                featureIds.add(feature.id);
+                        tHigh), filter, handles);
+                find(tree,
+                        new SimpleMBR(-180, GISUtils.constrainLongitude180(horizontalExtent
+                                .getMaxX()), horizontalExtent.getMinY(), horizontalExtent
+                                .getMaxY(), zLow, zHigh, tLow, tHigh), filter, handles);
             }
         } else {
-            MBR mbr = new SimpleMBR(horizontalExtent.getMinX(), horizontalExtent.getMaxX(),
+            find(tree, new SimpleMBR(horizontalExtent.getMinX(), horizontalExtent.getMaxX(),
                     horizontalExtent.getMinY(), horizontalExtent.getMaxY(), zLow, zHigh, tLow,
-                    tHigh);
-            features = prTree.find(mbr);
-            for (FeatureBounds feature : features) {
-                /*
-                 * Make sure that the returned features contain all of the
-                 * required variables.
-                 */
-                boolean addFeature = true;
-                for (String varId : variableIds) {
-                    if (!feature.variableIds.contains(varId)) {
-                        addFeature = false;
-                        break;
+                    tHigh), filter, handles);
+        }
+    }
+
+    private static void find(PRTree<Integer> tree, MBR mbr, NodeFilter<Integer> filter,
+            List<Integer> handles) {
+        if (filter == null) {
+            tree.find(mbr, handles);
+        } else {
+            tree.find(mbr, handles, filter);
+        }
+    }
+
+    @Override
+    public Collection<String> findFeatureIds(BoundingBox horizontalExtent,
+            Extent<Double> verticalExtent, Extent<DateTime> timeExtent,
+            Collection<String> variableIds) {
+        final int[] handles = findFeatureHandles(horizontalExtent, verticalExtent, timeExtent,
+                variableIds);
+        /*
+         * IDs are only created as they are needed
+         */
+        return new AbstractList<String>() {
+            @Override
+            public String get(int index) {
+                return getFeatureId(handles[index]);
+            }
+
+            @Override
+            public int size() {
+                return handles.length;
+            }
+        };
+    }
+
+    @Override
+    public Set<String> getAllFeatureIds() {
+        return new AbstractSet<String>() {
+            @Override
+            public Iterator<String> iterator() {
+                return new Iterator<String>() {
+                    private final int size = getNumberOfFeatures();
+                    private int handle = 0;
+
+                    @Override
+                    public boolean hasNext() {
+                        return handle < size;
                     }
-                }
-                if (addFeature) {
-                    featureIds.add(feature.id);
-                }
+
+                    @Override
+                    public String next() {
+                        if (handle >= size) {
+                            throw new NoSuchElementException();
+                        }
+                        return getFeatureId(handle++);
+                    }
+
+                    @Override
+                    public void remove() {
+                        throw new UnsupportedOperationException();
+                    }
+                };
+            }
+
+            @Override
+            public boolean contains(Object o) {
+                return o instanceof String && getFeatureHandle((String) o) >= 0;
+            }
+
+            @Override
+            public int size() {
+                return getNumberOfFeatures();
             }
+        };
+    }
+
+    @Override
+    public synchronized String getFeatureId(int handle) {
+        return featureIds.get(handle);
+    }
+
+    @Override
+    public synchronized int getFeatureHandle(String id) {
+        return featureIds.indexOf(id);
+    }
+
+    @Override
+    public synchronized HorizontalPosition getFeaturePosition(int handle) {
+        if (handle < 0 || handle >= featureIds.size()) {
+            throw new IndexOutOfBoundsException("No feature with handle " + handle);
         }
-        return featureIds;
+        return new HorizontalPosition(x[handle], y[handle], DefaultGeographicCRS.WGS84);
     }
 
     @Override
-    public Set<String> getAllFeatureIds() {
-        return featureIds;
+    public synchronized int getNumberOfFeatures() {
+        return featureIds.size();
     }
 
     @Override
@@ -217,32 +455,32 @@ public class PRTreeFeatureIndexer implements FeatureIndexer,
     }
 
     @Override
-    public double getMax(int axis, FeatureBounds bounds) {
+    public double getMax(int axis, Integer handle) {
         switch (axis) {
         case 0:
-            return bounds.horizontalPosition.getX();
+            return x[handle];
         case 1:
-            return bounds.horizontalPosition.getY();
+            return y[handle];
         case 2:
-            return bounds.verticalExtent.getHigh();
+            return zHigh[handle];
         case 3:
-            return bounds.timeExtent.getHigh();
+            return tHigh[handle];
         default:
             return Double.NaN;
         }
     }
 
     @Override
-    public double getMin(int axis, FeatureBounds bounds) {
+    public double getMin(int axis, Integer handle) {
         switch (axis) {
         case 0:
-            return bounds.horizontalPosition.getX();
+            return x[handle];
         case 1:
-            return bounds.horizontalPosition.getY();
+            return y[handle];
         case 2:
-            return bounds.verticalExtent.getLow();
+            return zLow[handle];
         case 3:
-            return bounds.timeExtent.getLow();
+            return tLow[handle];
         default:
             return Double.NaN;
         }
@@ -29,6 +29,7 @@
 package uk.ac.rdg.resc.edal.dataset;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.HashMap;
 import java.util.List;
@@ -37,6 +38,7 @@ import java.util.Set;
 
 import org.geotoolkit.referencing.crs.DefaultGeographicCRS;
 import org.joda.time.DateTime;
+import org.opengis.metadata.extent.GeographicBoundingBox;
 
 import uk.ac.rdg.resc.edal.domain.Extent;
 import uk.ac.rdg.resc.edal.domain.TemporalDomain;
@@ -73,6 +75,12 @@ import uk.ac.rdg.resc.edal.util.ImmutableArray1D;
  */
 public abstract class PointDataset<F extends DiscreteFeature<?, ?>> extends
         AbstractContinuousDomainDataset {
+    /**
+     * The default number of features read at once by a
+     * {@link PointFeatureStream}
+     */
+    public static final int DEFAULT_STREAMING_BATCH_SIZE = 1000;
+
     private BoundingBox bbox;
     private Extent<Double> zExtent;
     private Extent<DateTime> tExtent;
@@ -157,6 +165,207 @@ public abstract class PointDataset<F extends DiscreteFeature<?, ?>> extends
         return pointFeatures;
     }
 
+    /**
+     * Extracts features to be plotted on a map without reading them all into
+     * memory at once. Features are read in batches as the returned
+     * {@link PointFeatureStream} is iterated over.
+     * 
+     * If more than <code>maxFeatures</code> features match the extraction
+     * parameters, they are thinned spatially by dividing the bounding box into
+     * a grid of <code>xCells</code> by <code>yCells</code> cells and keeping
+     * only the first feature in each cell (in index order) which has a value
+     * at the target depth and time, up to a maximum of <code>maxFeatures</code>
+     * cells. Choosing a grid with one cell per pixel of the output image means
+     * that no visible information is lost when zoomed out.
+     * 
+     * @param varIds
+     *            The IDs of the variables to be extracted
+     * @param hExtent
+     *            The {@link BoundingBox} from which to extract features
+     * @param zExtent
+     *            The vertical extent from which to extract features
+     * @param tExtent
+     *            The time range from which to extract features
+     * @param targetZ
+     *            The target depth of the extracted {@link PointFeature}s
+     * @param targetT
+     *            The target time of the extracted {@link PointFeature}s
+     * @param maxFeatures
+     *            The maximum number of features to read. If this is less than
+     *            1, all matching features will be read
+     * @param xCells
+     *            The number of cells in the x-direction of the thinning grid
+     * @param yCells
+     *            The number of cells in the y-direction of the thinning grid
+     * @return A {@link PointFeatureStream} which reads the features on demand
+     * @throws DataReadingException
+     *             If there is a problem reading the underlying data
+     */
+    public PointFeatureStream<F> streamMapFeatures(Set<String> varIds, BoundingBox hExtent,
+            Extent<Double> zExtent, Extent<DateTime> tExtent, Double targetZ, DateTime targetT,
+            int maxFeatures, int xCells, int yCells) throws DataReadingException {
+        if (hExtent == null) {
+            hExtent = getDatasetBoundingBox();
+        }
+        if (zExtent == null) {
+            zExtent = getDatasetVerticalExtent();
+        }
+        if (tExtent == null) {
+            tExtent = getDatasetTimeExtent();
+        }
+        FeatureIndexer indexer = getFeatureIndexer();
+        int[] handles = indexer.findFeatureHandles(hExtent, zExtent, tExtent, varIds);
+        /*
+         * Sorting the handles means that features are read in the order they
+         * were indexed, which is generally the order they are stored in, and
+         * also makes the choice of features when thinning deterministic
+         */
+        Arrays.sort(handles);
+        int[] cellStarts = null;
+        if (maxFeatures > 0 && handles.length > maxFeatures) {
+            ThinnedHandles thinned = thinFeatureHandles(indexer, handles, hExtent, maxFeatures,
+                    xCells, yCells);
+            handles = thinned.handles;
+            cellStarts = thinned.cellStarts;
+        }
+        return new PointFeatureStream<>(this, indexer, handles, cellStarts,
+                DEFAULT_STREAMING_BATCH_SIZE, varIds, hExtent, zExtent, tExtent, targetZ,
+                targetT);
+    }
+
+    /**
+     * Groups a set of feature handles by the cell of a regular grid covering a
+     * bounding box which they fall in, so that at most one feature per cell
+     * need be read
+     * 
+     * @param indexer
+     *            The {@link FeatureIndexer} containing the features
+     * @param handles
+     *            The sorted handles of the features to thin
+     * @param bbox
+     *            The {@link BoundingBox} to divide into cells
+     * @param maxFeatures
+     *            The maximum number of cells to return
+     * @param xCells
+     *            The number of cells in the x-direction
+     * @param yCells
+     *            The number of cells in the y-direction
+     * @return The {@link ThinnedHandles}. Cells are in the order of the first
+     *         handle which falls in them, and the handles within each cell are
+     *         in their original order. Features whose positions are not known
+     *         by the indexer each have a cell of their own.
+     */
+    static ThinnedHandles thinFeatureHandles(FeatureIndexer indexer, int[] handles,
+            BoundingBox bbox, int maxFeatures, int xCells, int yCells) {
+        xCells = Math.max(xCells, 1);
+        yCells = Math.max(yCells, 1);
+        /*
+         * Feature positions are indexed in WGS84, so do the thinning in
+         * geographic co-ordinates
+         */
+        GeographicBoundingBox geoBbox = GISUtils.toGeographicBoundingBox(bbox);
+        double minX = geoBbox.getWestBoundLongitude();
+        double maxX = geoBbox.getEastBoundLongitude();
+        if (maxX < minX) {
+            maxX += 360.0;
+        }
+        double minY = geoBbox.getSouthBoundLatitude();
+        double cellWidth = Math.max(maxX - minX, Double.MIN_VALUE) / xCells;
+        double cellHeight = Math.max(geoBbox.getNorthBoundLatitude() - minY, Double.MIN_VALUE)
+                / yCells;
+
+        /*
+         * Sort the handles by cell, keeping their order within each cell, by
+         * packing the cell and the index of the handle into a single key
+         */
+        long nGridCells = (long) xCells * yCells;
+        long[] keys = new long[handles.length];
+        for (int h = 0; h < handles.length; h++) {
+            HorizontalPosition position = indexer.getFeaturePosition(handles[h]);
+            long cell;
+            if (position == null) {
+                /*
+                 * The indexer doesn't know where this feature is, so we can't
+                 * thin it
+                 */
+                cell = nGridCells + h;
+            } else {
+                double x = position.getX();
+                /*
+                 * Shift longitudes into the range of the bounding box
+                 */
+                while (x < minX) {
+                    x += 360.0;
+                }
+                while (x >= minX + 360.0) {
+                    x -= 360.0;
+                }
+                int i = Math.min(Math.max((int) ((x - minX) / cellWidth), 0), xCells - 1);
+                int j = Math.min(Math.max((int) ((position.getY() - minY) / cellHeight), 0),
+                        yCells - 1);
+                cell = (long) j * xCells + i;
+            }
+            keys[h] = cell * handles.length + h;
+        }
+        Arrays.sort(keys);
+
+        /*
+         * Find the first handle of each occupied cell, and order the cells by
+         * it, packing the index of the cell's first key alongside
+         */
+        long[] cellOrder = new long[handles.length];
+        int nCells = 0;
+        long lastCell = -1;
+        for (int k = 0; k < keys.length; k++) {
+            long cell = keys[k] / handles.length;
+            if (cell != lastCell) {
+                cellOrder[nCells++] = (keys[k] % handles.length) << 32 | k;
+                lastCell = cell;
+            }
+        }
+        cellOrder = Arrays.copyOf(cellOrder, nCells);
+        Arrays.sort(cellOrder);
+
+        int nKept = Math.min(nCells, maxFeatures);
+        int[] cellStarts = new int[nKept + 1];
+        int[] thinned = new int[handles.length];
+        int nThinned = 0;
+        for (int c = 0; c < nKept; c++) {
+            cellStarts[c] = nThinned;
+            int k = (int) cellOrder[c];
+            long cell = keys[k] / handles.length;
+            while (k < keys.length && keys[k] / handles.length == cell) {
+                thinned[nThinned++] = handles[(int) (keys[k] % handles.length)];
+                k++;
+            }
+        }
+        cellStarts[nKept] = nThinned;
+        return new ThinnedHandles(Arrays.copyOf(thinned, nThinned), cellStarts);
+    }
+
+    /**
+     * The handles of features grouped into the cells of a thinning grid, as
+     * returned by
+     * {@link PointDataset#thinFeatureHandles(FeatureIndexer, int[], BoundingBox, int, int, int)}
+     */
+    static final class ThinnedHandles {
+        /*
+         * The handles in cell c are those from cellStarts[c] up to (but not
+         * including) cellStarts[c+1]
+         */
+        final int[] handles;
+        final int[] cellStarts;
+
+        ThinnedHandles(int[] handles, int[] cellStarts) {
+            this.handles = handles;
+            this.cellStarts = cellStarts;
+        }
+
+        int getNumberOfCells() {
+            return cellStarts.length - 1;
+        }
+    }
+
     /**
      * {@inheritDoc}
      * 
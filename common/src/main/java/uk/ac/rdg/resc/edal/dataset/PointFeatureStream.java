@@ -0,0 +1,267 @@
+/*******************************************************************************
+ * Copyright (c) 2016 The University of Reading
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the University of Reading, nor the names of the
+ *    authors or contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ******************************************************************************/
+
+package uk.ac.rdg.resc.edal.dataset;
+
+import java.util.AbstractCollection;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+import org.joda.time.DateTime;
+
+import uk.ac.rdg.resc.edal.domain.Extent;
+import uk.ac.rdg.resc.edal.feature.DiscreteFeature;
+import uk.ac.rdg.resc.edal.feature.PointFeature;
+import uk.ac.rdg.resc.edal.geometry.BoundingBox;
+
+/**
+ * A {@link Collection} of {@link PointFeature}s which are read from a
+ * {@link PointDataset} as they are needed, rather than all being held in memory
+ * at once.
+ * 
+ * Features are read in batches, in the order of their handles in the
+ * {@link FeatureIndexer} of the dataset. If the features have been thinned,
+ * only one feature is read from each thinning cell at a time. Should it have no
+ * value at the target depth and time, the next feature in that cell is read in
+ * a later batch in its place. Each batch is converted to
+ * {@link PointFeature}s and can be discarded before the next batch is read, so
+ * the memory required to iterate over this {@link Collection} is bounded by the
+ * batch size rather than the number of features.
+ * 
+ * Every iteration reads the features from the dataset again, so callers should
+ * iterate over a {@link PointFeatureStream} as few times as possible. For the
+ * same reason, {@link PointFeatureStream}s should not be cached.
+ * 
+ * @param <F>
+ *            The type of {@link DiscreteFeature} which the underlying
+ *            {@link PointDataset} reads natively
+ * 
+ * @author Guy Griffiths
+ */
+public class PointFeatureStream<F extends DiscreteFeature<?, ?>> extends
+        AbstractCollection<PointFeature> {
+    private final PointDataset<F> dataset;
+    private final FeatureIndexer indexer;
+    private final int[] handles;
+    /*
+     * The start of each thinning cell within the handles, or null if the
+     * features have not been thinned
+     */
+    private final int[] cellStarts;
+    private final int batchSize;
+
+    private final Set<String> varIds;
+    private final BoundingBox hExtent;
+    private final Extent<Double> zExtent;
+    private final Extent<DateTime> tExtent;
+    private final Double targetZ;
+    private final DateTime targetT;
+
+    private int size = -1;
+
+    PointFeatureStream(PointDataset<F> dataset, FeatureIndexer indexer, int[] handles,
+            int[] cellStarts, int batchSize, Set<String> varIds, BoundingBox hExtent,
+            Extent<Double> zExtent, Extent<DateTime> tExtent, Double targetZ, DateTime targetT) {
+        if (batchSize < 1) {
+            throw new IllegalArgumentException("Batch size must be at least 1");
+        }
+        this.dataset = dataset;
+        this.indexer = indexer;
+        this.handles = handles;
+        this.cellStarts = cellStarts;
+        this.batchSize = batchSize;
+        this.varIds = varIds;
+        this.hExtent = hExtent;
+        this.zExtent = zExtent;
+        this.tExtent = tExtent;
+        this.targetZ = targetZ;
+        this.targetT = targetT;
+    }
+
+    /**
+     * @return <code>true</code> if some of the features matching the
+     *         extraction parameters have been left out of this
+     *         {@link PointFeatureStream} to keep it within the maximum number
+     *         of features requested
+     */
+    public boolean isThinned() {
+        return cellStarts != null;
+    }
+
+    /**
+     * @return The number of features which will be returned if all of them
+     *         have a value at the target depth/time. This is an upper bound on
+     *         {@link PointFeatureStream#size()}, since features with no value
+     *         are dropped when they are converted to {@link PointFeature}s.
+     */
+    public int getNumberOfFeaturesToRead() {
+        return getNumberOfCells();
+    }
+
+    private int getNumberOfCells() {
+        return cellStarts == null ? handles.length : cellStarts.length - 1;
+    }
+
+    @Override
+    public Iterator<PointFeature> iterator() {
+        return new Iterator<PointFeature>() {
+            /*
+             * The cells still to be read, as a circular queue. Each cell is in
+             * the queue at most once, so it never needs to grow.
+             */
+            private final int[] queue = initQueue();
+            private int queueStart = 0;
+            private int queueSize = queue.length;
+            /*
+             * For thinned features, the index of the handle to read next in
+             * each cell
+             */
+            private final int[] nextInCell = cellStarts == null ? null : Arrays.copyOf(
+                    cellStarts, cellStarts.length - 1);
+
+            private Iterator<PointFeature> batch = Collections.<PointFeature> emptyList()
+                    .iterator();
+
+            @Override
+            public boolean hasNext() {
+                while (!batch.hasNext()) {
+                    if (queueSize == 0) {
+                        return false;
+                    }
+                    batch = readBatch();
+                }
+                return true;
+            }
+
+            @Override
+            public PointFeature next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                return batch.next();
+            }
+
+            @Override
+            public void remove() {
+                throw new UnsupportedOperationException("Features cannot be removed");
+            }
+
+            private int[] initQueue() {
+                int[] cells = new int[getNumberOfCells()];
+                for (int i = 0; i < cells.length; i++) {
+                    cells[i] = i;
+                }
+                return cells;
+            }
+
+            private Iterator<PointFeature> readBatch() {
+                int nCells = Math.min(batchSize, queueSize);
+                final int[] cells = new int[nCells];
+                Map<String, Integer> cellsById = new HashMap<>();
+                for (int i = 0; i < nCells; i++) {
+                    cells[i] = queue[queueStart];
+                    queueStart = (queueStart + 1) % queue.length;
+                    queueSize--;
+                }
+                List<String> ids = new ArrayList<>(nCells);
+                for (int cell : cells) {
+                    String id = indexer.getFeatureId(nextInCell == null ? handles[cell]
+                            : handles[nextInCell[cell]]);
+                    ids.add(id);
+                    if (nextInCell != null) {
+                        cellsById.put(id, cell);
+                    }
+                }
+
+                List<PointFeature> features = new ArrayList<>();
+                Set<Integer> filledCells = new HashSet<>();
+                for (F feature : dataset.getFeatureReader().readFeatures(ids, varIds)) {
+                    PointFeature pointFeature = dataset.convertFeature(feature, hExtent,
+                            zExtent, tExtent, targetZ, targetT);
+                    if (pointFeature != null) {
+                        features.add(pointFeature);
+                        Integer cell = cellsById.get(feature.getId());
+                        if (cell != null) {
+                            filledCells.add(cell);
+                        }
+                    }
+                }
+
+                if (nextInCell != null) {
+                    /*
+                     * Any cell whose feature had no value gets another go with
+                     * its next feature, if it has one
+                     */
+                    for (int cell : cells) {
+                        if (!filledCells.contains(cell)
+                                && ++nextInCell[cell] < cellStarts[cell + 1]) {
+                            queue[(queueStart + queueSize) % queue.length] = cell;
+                            queueSize++;
+                        }
+                    }
+                }
+                return features.iterator();
+            }
+        };
+    }
+
+    /**
+     * {@inheritDoc}
+     * 
+     * <p>
+     * The first call to this method reads all of the features to count those
+     * which can be converted.
+     */
+    @Override
+    public synchronized int size() {
+        if (size < 0) {
+            int count = 0;
+            Iterator<PointFeature> iterator = iterator();
+            while (iterator.hasNext()) {
+                iterator.next();
+                count++;
+            }
+            size = count;
+        }
+        return size;
+    }
+
+    @Override
+    public boolean isEmpty() {
+        return getNumberOfCells() == 0 || !iterator().hasNext();
+    }
+}
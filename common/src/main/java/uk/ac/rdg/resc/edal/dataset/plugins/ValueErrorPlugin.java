@@ -66,6 +66,13 @@ public class ValueErrorPlugin extends VariablePlugin {
         this.title = title;
     }
 
+    /**
+     * @return The title of the quantity which the components represent
+     */
+    public String getTitle() {
+        return title;
+    }
+
     @Override
     protected VariableMetadata[] doProcessVariableMetadata(VariableMetadata... metadata) {
         /*
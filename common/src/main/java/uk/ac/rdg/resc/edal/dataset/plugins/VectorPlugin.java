@@ -105,6 +105,22 @@ public class VectorPlugin extends VariablePlugin {
         this.eastNorthComps = eastNorthComps;
     }
 
+    /**
+     * @return The common part of the standard name of the quantity which the
+     *         components represent
+     */
+    public String getCommonName() {
+        return title;
+    }
+
+    /**
+     * @return <code>true</code> if the components are eastwards/northwards
+     *         regardless of the CRS of the data
+     */
+    public boolean isEastNorthComponents() {
+        return eastNorthComps;
+    }
+
     @Override
     protected VariableMetadata[] doProcessVariableMetadata(VariableMetadata... metadata)
             throws EdalException {
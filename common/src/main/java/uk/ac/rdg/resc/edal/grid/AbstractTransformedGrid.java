@@ -31,6 +31,9 @@ package uk.ac.rdg.resc.edal.grid;
 import org.geotoolkit.referencing.crs.DefaultGeographicCRS;
 import org.opengis.referencing.crs.CoordinateReferenceSystem;
 
+import uk.ac.rdg.resc.edal.position.HorizontalPosition;
+import uk.ac.rdg.resc.edal.util.GridCoordinates2D;
+
 /**
  * This is an abstract implementation of a {@link HorizontalGrid} for which
  * there exists a transformation to convert WGS84 to the native CRS.
@@ -62,6 +65,37 @@ public abstract class AbstractTransformedGrid implements HorizontalGrid {
     public abstract double transformNativeHeadingToWgs84(double xComp, double yComp, double lon,
             double lat);
 
+    /**
+     * Finds the grid indices of many WGS84 positions at once. This is used
+     * when mapping whole target grids onto this grid, and subclasses should
+     * override it if they can transform positions more efficiently in bulk
+     * than one at a time.
+     * 
+     * @param lons
+     *            The longitudes of the positions
+     * @param lats
+     *            The latitudes of the positions
+     * @param xIndices
+     *            An array to write the x-index of each position into. This
+     *            will be -1 for positions outside the grid
+     * @param yIndices
+     *            An array to write the y-index of each position into. This
+     *            will be -1 for positions outside the grid
+     */
+    public void findIndicesOf(double[] lons, double[] lats, int[] xIndices, int[] yIndices) {
+        for (int i = 0; i < lons.length; i++) {
+            GridCoordinates2D indices = findIndexOf(new HorizontalPosition(lons[i], lats[i],
+                    DefaultGeographicCRS.WGS84));
+            if (indices == null) {
+                xIndices[i] = -1;
+                yIndices[i] = -1;
+            } else {
+                xIndices[i] = indices.getX();
+                yIndices[i] = indices.getY();
+            }
+        }
+    }
+
     /**
      * Always returns {@link DefaultGeographicCRS#WGS84}. Transformations
      * between native CRS and WGS84 are done behind the scenes
@@ -42,7 +42,6 @@ import uk.ac.rdg.resc.edal.geometry.BoundingBox;
 import uk.ac.rdg.resc.edal.geometry.Polygon;
 import uk.ac.rdg.resc.edal.geometry.SimplePolygon;
 import uk.ac.rdg.resc.edal.grid.kdtree.KDTree;
-import uk.ac.rdg.resc.edal.grid.kdtree.Point;
 import uk.ac.rdg.resc.edal.position.HorizontalPosition;
 import uk.ac.rdg.resc.edal.util.AbstractImmutableArray;
 import uk.ac.rdg.resc.edal.util.Array;
@@ -508,9 +507,7 @@ public class HorizontalMesh implements DiscreteHorizontalDomain<HorizontalCell>
             return -1;
         }
 
-        Point nearestNeighbour = kdTree.nearestNeighbour(position);
-
-        int index = nearestNeighbour.getIndex();
+        int index = kdTree.nearestNeighbour(position);
 
         if (cellBounds == null) {
             /*
@@ -531,14 +528,13 @@ public class HorizontalMesh implements DiscreteHorizontalDomain<HorizontalCell>
                  * bounding box which is 5x the size of the MBR of the cell but
                  * centred on the same point)
                  */
-                ArrayList<Point> possibles = kdTree.rangeQuery(GISUtils.getLargeBoundingBox(
-                        cellBounds.get(index).getBoundingBox(), 500));
+                int[] possibles = kdTree.rangeQuery(GISUtils.getLargeBoundingBox(cellBounds
+                        .get(index).getBoundingBox(), 500));
                 /*
                  * Now check all of these cells to see if the position is
                  * contained in one of them
                  */
-                for (Point p : possibles) {
-                    int pIndex = p.getIndex();
+                for (int pIndex : possibles) {
                     if (cellBounds.get(pIndex).contains(position)) {
                         return pIndex;
                     }
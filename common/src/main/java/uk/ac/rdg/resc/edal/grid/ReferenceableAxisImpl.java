@@ -66,6 +66,13 @@ public class ReferenceableAxisImpl extends AbstractIrregularAxis<Double> {
         this.isLongitude = isLongitude;
     }
 
+    /**
+     * @return <code>true</code> if this is a longitude axis in degrees
+     */
+    public boolean isLongitude() {
+        return isLongitude;
+    }
+
     @Override
     public int findIndexOf(Double position) {
         if (position == null || Double.isNaN(position))
@@ -75,6 +75,13 @@ public final class RegularAxisImpl extends AbstractReferenceableAxis<Double> imp
         return spacing;
     }
 
+    /**
+     * @return <code>true</code> if this is a longitude axis in degrees
+     */
+    public boolean isLongitude() {
+        return isLongitude;
+    }
+
     @Override
     public Double getCoordinateValue(int index) {
         if (index < 0 || index >= size) {
@@ -28,7 +28,12 @@
 
 package uk.ac.rdg.resc.edal.grid;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 
 import org.joda.time.Chronology;
 import org.joda.time.DateTime;
@@ -37,26 +42,266 @@ import uk.ac.rdg.resc.edal.domain.Extent;
 import uk.ac.rdg.resc.edal.util.Extents;
 
 /**
- * An implementation of a {@link TimeAxis}
+ * An implementation of a {@link TimeAxis}.
+ * 
+ * Axis values are held as milliseconds since the epoch, with a single
+ * {@link Chronology} for the whole axis. {@link DateTime} objects are only
+ * created when they are requested. Axes with a constant spacing between values
+ * (which is the common case for model output) do not store their values at
+ * all - they are calculated from the first value and the spacing.
  * 
  * @author Guy
  * @author Jon
  * 
  */
-public final class TimeAxisImpl extends AbstractIrregularAxis<DateTime> implements TimeAxis {
+public final class TimeAxisImpl extends AbstractReferenceableAxis<DateTime> implements TimeAxis {
+
+    private final Chronology chronology;
+    /*
+     * The axis values, always in ascending order to simplify searching. This
+     * is null if the axis is regularly spaced.
+     */
+    private final long[] millis;
+    /*
+     * The first (lowest) value and spacing of a regularly-spaced axis. For
+     * irregular axes the step is zero.
+     */
+    private final long start;
+    private final long step;
+    private final int size;
+    /*
+     * True if the axis values have been reversed to make them ascend
+     */
+    private final boolean reversed;
 
-    private Chronology chronology;
+    private volatile Map<Integer, Map<Integer, List<Integer>>> datesWithData = null;
 
+    /**
+     * Creates a new {@link TimeAxisImpl} from a list of {@link DateTime}s. The
+     * {@link Chronology} of the axis is taken from the first value.
+     * 
+     * @param name
+     *            The name of the axis
+     * @param axisValues
+     *            The values of the axis. These must either increase or decrease
+     *            monotonically.
+     */
     public TimeAxisImpl(String name, List<DateTime> axisValues) {
-        super(name, axisValues);
-        chronology = axisValues.get(0).getChronology();
+        this(name, toMillis(axisValues), axisValues.get(0).getChronology());
+    }
+
+    /**
+     * Creates a new {@link TimeAxisImpl} from an array of times
+     * 
+     * @param name
+     *            The name of the axis
+     * @param axisValues
+     *            The values of the axis, in milliseconds since 1970-01-01T00:00Z.
+     *            These must either increase or decrease monotonically.
+     * @param chronology
+     *            The {@link Chronology} of the axis values
+     */
+    public TimeAxisImpl(String name, long[] axisValues, Chronology chronology) {
+        super(name);
+        if (axisValues.length == 0) {
+            throw new IllegalArgumentException("Zero-length array");
+        }
+        this.chronology = chronology;
+        this.size = axisValues.length;
+
+        long[] ascending = axisValues.clone();
+        reversed = size > 1 && ascending[1] < ascending[0];
+        if (reversed) {
+            /*
+             * Reverse the coordinates so that they are in increasing order
+             */
+            for (int i = 0; i < size / 2; i++) {
+                long tmp = ascending[i];
+                ascending[i] = ascending[size - 1 - i];
+                ascending[size - 1 - i] = tmp;
+            }
+        }
+
+        boolean regular = true;
+        long firstStep = size > 1 ? ascending[1] - ascending[0] : 0L;
+        for (int i = 1; i < size; i++) {
+            long diff = ascending[i] - ascending[i - 1];
+            if (diff <= 0) {
+                throw new IllegalArgumentException(
+                        "Coordinate values must increase or decrease monotonically");
+            }
+            if (diff != firstStep) {
+                regular = false;
+            }
+        }
+
+        start = ascending[0];
+        if (regular) {
+            step = firstStep;
+            millis = null;
+        } else {
+            step = 0L;
+            millis = ascending;
+        }
+    }
+
+    private static long[] toMillis(List<DateTime> axisValues) {
+        if (axisValues.isEmpty()) {
+            throw new IllegalArgumentException("Zero-length array");
+        }
+        long[] ret = new long[axisValues.size()];
+        int i = 0;
+        for (DateTime time : axisValues) {
+            ret[i++] = time.getMillis();
+        }
+        return ret;
+    }
+
+    /*
+     * Gets the time at the given index of the ascending values
+     */
+    private long getAscendingMillis(int index) {
+        if (millis == null) {
+            return start + index * step;
+        } else {
+            return millis[index];
+        }
+    }
+
+    /*
+     * If the array has been reversed, we need to reverse the index
+     */
+    private int maybeReverseIndex(int index) {
+        if (reversed) {
+            return size - 1 - index;
+        } else {
+            return index;
+        }
+    }
+
+    /**
+     * Returns the value of this axis at the given index in milliseconds since
+     * 1970-01-01T00:00Z. This avoids creating a {@link DateTime} object.
+     * 
+     * @param index
+     *            The index of the axis value
+     * @return The axis value, in milliseconds
+     */
+    public long getCoordinateMillis(int index) {
+        if (index < 0 || index >= size) {
+            throw new IndexOutOfBoundsException("Index " + index
+                    + " out of bounds for axis of size " + size);
+        }
+        return getAscendingMillis(maybeReverseIndex(index));
+    }
+
+    @Override
+    public DateTime getCoordinateValue(int index) {
+        return new DateTime(getCoordinateMillis(index), chronology);
+    }
+
+    @Override
+    public int findIndexOf(DateTime value) {
+        if (value == null) {
+            return -1;
+        }
+        long t = value.getMillis();
+        /*
+         * The bounds of each time axis value are just the value itself, so
+         * anything outside the range of values is not on the axis. Anything
+         * within it gets the index of the nearest value.
+         */
+        if (t < start || t > getAscendingMillis(size - 1)) {
+            return -1;
+        }
+        if (millis == null) {
+            if (size == 1) {
+                return 0;
+            }
+            long offset = t - start;
+            int index = (int) (offset / step);
+            long remainder = offset % step;
+            if (step - remainder < remainder) {
+                index++;
+            }
+            return maybeReverseIndex(index);
+        }
+        int index = Arrays.binarySearch(millis, t);
+        if (index >= 0) {
+            return maybeReverseIndex(index);
+        }
+        int insertionPoint = -(index + 1);
+        if (millis[insertionPoint] - t < t - millis[insertionPoint - 1]) {
+            return maybeReverseIndex(insertionPoint);
+        } else {
+            return maybeReverseIndex(insertionPoint - 1);
+        }
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public boolean isAscending() {
+        return !reversed;
+    }
+
+    /**
+     * Returns the dates on which this axis has values, in the UTC zone of the
+     * axis {@link Chronology}. This is calculated once and then cached.
+     * 
+     * @return A {@link Map} of year to a {@link Map} of month-of-year (1-based)
+     *         to the days of that month which have data. All maps and lists are
+     *         in the order of the axis values.
+     */
+    public Map<Integer, Map<Integer, List<Integer>>> getDatesWithData() {
+        if (datesWithData == null) {
+            /*
+             * We must make sure that fields are calculated in UTC or
+             * getDayOfMonth() etc might return unexpected results
+             */
+            Chronology utc = chronology.withUTC();
+            Map<Integer, Map<Integer, List<Integer>>> dates = new LinkedHashMap<>();
+            Map<Integer, List<Integer>> months = null;
+            List<Integer> days = null;
+            int lastYear = 0;
+            int lastMonth = 0;
+            for (int i = 0; i < size; i++) {
+                long t = getCoordinateMillis(i);
+                int year = utc.year().get(t);
+                int month = utc.monthOfYear().get(t);
+                int day = utc.dayOfMonth().get(t);
+                /*
+                 * Values are monotonic, so a change of year or month means that
+                 * we will never see the previous one again
+                 */
+                if (months == null || year != lastYear) {
+                    months = new LinkedHashMap<>();
+                    dates.put(year, Collections.unmodifiableMap(months));
+                    lastYear = year;
+                    days = null;
+                }
+                if (days == null || month != lastMonth) {
+                    days = new ArrayList<>();
+                    months.put(month, Collections.unmodifiableList(days));
+                    lastMonth = month;
+                }
+                if (days.isEmpty() || days.get(days.size() - 1) != day) {
+                    days.add(day);
+                }
+            }
+            datesWithData = Collections.unmodifiableMap(dates);
+        }
+        return datesWithData;
     }
 
     @Override
     public boolean contains(DateTime position) {
         return getCoordinateExtent().contains(position);
     }
-    
+
     @Override
     protected DateTime extendFirstValue(DateTime firstVal, DateTime nextVal) {
         long tVal = (long) (firstVal.getMillis() - 0.5 * (nextVal.getMillis() - firstVal
@@ -69,16 +314,6 @@ public final class TimeAxisImpl extends AbstractIrregularAxis<DateTime> implemen
         return lastVal;
     }
 
-    @Override
-    protected double difference(DateTime pos1, DateTime pos2) {
-        return pos1.getMillis() - pos2.getMillis();
-    }
-
-    @Override
-    protected DateTime getMidpoint(DateTime pos1, DateTime pos2) {
-        return new DateTime((long) (0.5 * (pos1.getMillis() + pos2.getMillis())), chronology);
-    }
-
     @Override
     public Extent<DateTime> getExtent() {
         return Extents.newExtent(getFirstValue(), getLastValue());
@@ -94,16 +329,27 @@ public final class TimeAxisImpl extends AbstractIrregularAxis<DateTime> implemen
         DateTime time = getCoordinateValue(index);
         return Extents.newExtent(time, time);
     }
-    
+
     @Override
     public Extent<DateTime> getCoordinateExtent() {
-        return Extents.newExtent(getCoordinateValue(0), getCoordinateValue(size()-1));
+        return Extents.newExtent(getCoordinateValue(0), getCoordinateValue(size - 1));
     }
 
     @Override
     public int hashCode() {
         final int prime = 31;
         int result = super.hashCode();
+        /*
+         * Equivalent to Arrays.hashCode() on the ascending values, regardless
+         * of whether they are actually stored
+         */
+        int valuesHash = 1;
+        for (int i = 0; i < size; i++) {
+            long t = getAscendingMillis(i);
+            valuesHash = prime * valuesHash + (int) (t ^ (t >>> 32));
+        }
+        result = prime * result + valuesHash;
+        result = prime * result + (reversed ? 1231 : 1237);
         result = prime * result + ((chronology == null) ? 0 : chronology.hashCode());
         return result;
     }
@@ -117,11 +363,24 @@ public final class TimeAxisImpl extends AbstractIrregularAxis<DateTime> implemen
         if (getClass() != obj.getClass())
             return false;
         TimeAxisImpl other = (TimeAxisImpl) obj;
+        if (size != other.size)
+            return false;
+        if (reversed != other.reversed)
+            return false;
         if (chronology == null) {
             if (other.chronology != null)
                 return false;
         } else if (!chronology.toString().equals(other.chronology.toString()))
             return false;
+        if (millis == null && other.millis == null) {
+            if (start != other.start || step != other.step)
+                return false;
+        } else {
+            for (int i = 0; i < size; i++) {
+                if (getAscendingMillis(i) != other.getAscendingMillis(i))
+                    return false;
+            }
+        }
         return true;
     }
 
@@ -1,359 +1,617 @@
 package uk.ac.rdg.resc.edal.grid.kdtree;
 
-import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Comparator;
 import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
 
 import org.opengis.referencing.crs.CoordinateReferenceSystem;
-import org.slf4j.Logger;
-import org.slf4j.LoggerFactory;
 
 import uk.ac.rdg.resc.edal.geometry.BoundingBox;
 import uk.ac.rdg.resc.edal.position.HorizontalPosition;
 import uk.ac.rdg.resc.edal.util.GISUtils;
 
 /**
- * Implementation of a 2-dimensional KDTree. Taken from old ncWMS codebase
- * (where it was uncredited) and modified to meet coding standards etc.
- *
+ * Implementation of a 2-dimensional KDTree.
+ * 
+ * The tree is stored implicitly in primitive arrays: the points of each
+ * subtree occupy a contiguous range of the arrays, with the median point of
+ * that range (on the axis with the largest spread) stored at its centre, the
+ * left subtree in the lower half and the right subtree in the upper half. This
+ * means that no objects are created per point, and nearest-neighbour queries
+ * do not allocate at all.
+ * 
+ * Queries return the indices of the points in the list/arrays used to create
+ * the tree.
+ * 
  * @author Guy Griffiths
  * @author Paul Karaenke
  */
 public class KDTree {
-    private static final Logger log = LoggerFactory.getLogger(KDTree.class);
+    /*
+     * Subtrees larger than this are built in parallel
+     */
+    private static final int PARALLEL_BUILD_THRESHOLD = 1 << 15;
 
-    private List<HorizontalPosition> points;
-    private CoordinateReferenceSystem crs = null;
-    private boolean latLon = false;
+    private final int size;
+    private final CoordinateReferenceSystem crs;
+    private final boolean latLon;
 
-    private TreeNode[] tree = null;
+    /*
+     * The co-ordinates and original indices of the points, in tree order
+     */
+    private final double[] xs;
+    private final double[] ys;
+    private final int[] indices;
+    /*
+     * Whether the node at each position splits its subtree on the y-axis
+     */
+    private final boolean[] splitOnY;
 
-    public KDTree(List<HorizontalPosition> points) {
-        this.points = points;
-    }
+    private volatile boolean built = false;
 
-    public void buildTree() {
-        /* Load data from files into sourceData, and keep track of min/max */
-        double minY = Double.POSITIVE_INFINITY;
-        double maxY = Double.NEGATIVE_INFINITY;
-        double minX = Double.NEGATIVE_INFINITY;
-        double maxX = Double.POSITIVE_INFINITY;
-        Point[] sourceData = new Point[points.size()];
-        for (int i = 0; i < points.size(); i++) {
+    /**
+     * Creates a new {@link KDTree}. {@link KDTree#buildTree()} must be called
+     * before it can be queried.
+     * 
+     * @param points
+     *            The points to store in the tree. These will be transformed
+     *            into the CRS of the first point if necessary
+     */
+    public KDTree(List<HorizontalPosition> points) {
+        size = points.size();
+        xs = new double[size];
+        ys = new double[size];
+        CoordinateReferenceSystem pointsCrs = null;
+        for (int i = 0; i < size; i++) {
             HorizontalPosition pos = points.get(i);
-            /*
-             * Set the CRS or convert the
-             */
-            if (crs == null) {
-                crs = pos.getCoordinateReferenceSystem();
-            } else {
-                if (!GISUtils.crsMatch(pos.getCoordinateReferenceSystem(), crs)) {
-                    pos = GISUtils.transformPosition(pos, crs);
-                }
-            }
-            if (GISUtils.isWgs84LonLat(crs)) {
-                latLon = true;
-                pos = new HorizontalPosition(GISUtils.constrainLongitude360(pos.getX()), pos.getY());
+            if (pointsCrs == null) {
+                pointsCrs = pos.getCoordinateReferenceSystem();
+            } else if (!GISUtils.crsMatch(pos.getCoordinateReferenceSystem(), pointsCrs)) {
+                pos = GISUtils.transformPosition(pos, pointsCrs);
             }
+            xs[i] = pos.getX();
+            ys[i] = pos.getY();
+        }
+        crs = pointsCrs;
+        latLon = crs != null && GISUtils.isWgs84LonLat(crs);
+        indices = new int[size];
+        splitOnY = new boolean[size];
+        initialise();
+    }
 
-            minX = Math.min(minX, pos.getX());
-            maxX = Math.max(maxX, pos.getX());
-            minY = Math.min(minY, pos.getY());
-            maxY = Math.max(maxY, pos.getY());
-            sourceData[i] = new Point(pos.getX(), pos.getY(), i);
+    /**
+     * Creates a new {@link KDTree}. {@link KDTree#buildTree()} must be called
+     * before it can be queried.
+     * 
+     * @param xs
+     *            The x-co-ordinates of the points to store in the tree
+     * @param ys
+     *            The y-co-ordinates of the points to store in the tree
+     * @param crs
+     *            The {@link CoordinateReferenceSystem} of the points
+     */
+    public KDTree(double[] xs, double[] ys, CoordinateReferenceSystem crs) {
+        if (xs.length != ys.length) {
+            throw new IllegalArgumentException("Must supply the same number of x and y values");
         }
-        /*
-         * Perform an initial sort of the source data by longitude (likely to be
-         * bigger for world data)
-         */
-        Comparator<Point> xComp = new PointComparator(false);
-        Arrays.sort(sourceData, xComp);
+        this.size = xs.length;
+        this.xs = Arrays.copyOf(xs, size);
+        this.ys = Arrays.copyOf(ys, size);
+        this.crs = crs;
+        this.latLon = crs != null && GISUtils.isWgs84LonLat(crs);
+        this.indices = new int[size];
+        this.splitOnY = new boolean[size];
+        initialise();
+    }
 
-        /* Calculate the number of elements needed in the tree */
-        int nLeafElements = (int) Math.pow(2.0, Math.ceil(Math.log(points.size()) / Math.log(2.0)));
-        int nTreeElements = 2 * nLeafElements - 1;
-        /* Create the uninitialised tree with this number of elements */
-        tree = new TreeNode[nTreeElements];
+    private void initialise() {
+        for (int i = 0; i < size; i++) {
+            indices[i] = i;
+            if (latLon) {
+                /*
+                 * Store longitudes in the range [0,360) so that queries only
+                 * need to consider wrapping at one point
+                 */
+                xs[i] = GISUtils.constrainLongitude360(xs[i]);
+            }
+        }
+    }
 
-        /* Recursively build this into a tree */
-        recursiveBuildTree(0, points.size() - 1, 0, false, sourceData);
+    /**
+     * Builds the tree. Large trees are built in parallel.
+     */
+    public synchronized void buildTree() {
+        if (built) {
+            return;
+        }
+        if (size > PARALLEL_BUILD_THRESHOLD) {
+            ForkJoinPool.commonPool().invoke(new BuildTask(0, size));
+        } else {
+            build(0, size);
+        }
+        built = true;
     }
 
     /**
-     * Verify the correctness of the tree
+     * @return The number of points in this tree
      */
-    public void verifyChildren() {
-        verifyChildren(0);
+    public int size() {
+        return size;
     }
 
-    private void verifyChildren(int currentIndex) {
-        /* Reached a leaf node, no more checks can be made */
-        if (tree[currentIndex] instanceof Point) {
-            return;
-        }
+    /**
+     * @return The {@link CoordinateReferenceSystem} of the points in this tree
+     */
+    public CoordinateReferenceSystem getCoordinateReferenceSystem() {
+        return crs;
+    }
 
-        int leftChildIndex = 2 * currentIndex + 1;
-        int rightChildIndex = 2 * currentIndex + 2;
+    private final class BuildTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+        private final int lo;
+        private final int hi;
 
-        NonTerminalTreeNode myself = (NonTerminalTreeNode) tree[currentIndex];
+        public BuildTask(int lo, int hi) {
+            this.lo = lo;
+            this.hi = hi;
+        }
 
-        /*
-         * If child nodes are leaf nodes, check that the fall on the correct
-         * side of the current discriminator If the child nodes are non terminal
-         * tree nodes, then they can only be checked if the discriminators are
-         * of the same type
-         */
-        if (tree[leftChildIndex] instanceof Point) {
-            Point leftChild = (Point) tree[leftChildIndex];
-            if (myself.isY()) {
-                if (leftChild.getY() > myself.getDiscriminator()) {
-                    log.error("Left child latitude greater than self");
-                }
+        @Override
+        protected void compute() {
+            if (hi - lo <= PARALLEL_BUILD_THRESHOLD) {
+                build(lo, hi);
             } else {
-                if (leftChild.getX() > myself.getDiscriminator()) {
-                    log.error("Left child longitude greater than self");
-                }
+                int median = split(lo, hi);
+                invokeAll(new BuildTask(lo, median), new BuildTask(median + 1, hi));
             }
-        } else {
-            NonTerminalTreeNode leftChild = (NonTerminalTreeNode) tree[leftChildIndex];
-            if (!(myself.isY() ^ leftChild.isY())) {
-                if (leftChild.getDiscriminator() > myself.getDiscriminator()) {
-                    log.error("Compatible left child discriminator greater than self");
-                }
+        }
+    }
+
+    private void build(int lo, int hi) {
+        while (hi - lo > 1) {
+            int median = split(lo, hi);
+            /*
+             * Recurse on the smaller side and loop on the larger
+             */
+            if (median - lo < hi - median - 1) {
+                build(lo, median);
+                lo = median + 1;
+            } else {
+                build(median + 1, hi);
+                hi = median;
             }
         }
+    }
+
+    /**
+     * Partitions the points in the range [lo,hi) about the median of the axis
+     * with the largest spread, and records that axis at the median position
+     * 
+     * @return The position of the median
+     */
+    private int split(int lo, int hi) {
+        double minX = Double.POSITIVE_INFINITY;
+        double maxX = Double.NEGATIVE_INFINITY;
+        double minY = Double.POSITIVE_INFINITY;
+        double maxY = Double.NEGATIVE_INFINITY;
+        for (int i = lo; i < hi; i++) {
+            minX = Math.min(minX, xs[i]);
+            maxX = Math.max(maxX, xs[i]);
+            minY = Math.min(minY, ys[i]);
+            maxY = Math.max(maxY, ys[i]);
+        }
+        boolean onY = (maxY - minY) >= (maxX - minX);
+        int median = (lo + hi) >>> 1;
+        select(lo, hi - 1, median, onY ? ys : xs);
+        splitOnY[median] = onY;
+        return median;
+    }
 
-        if (tree[rightChildIndex] instanceof Point) {
-            Point rightChild = (Point) tree[rightChildIndex];
-            if (myself.isY()) {
-                if (rightChild.getY() < myself.getDiscriminator()) {
-                    log.error("Right child latitude lesser than self");
+    /*
+     * Quickselect: rearranges the points in [lo,hi] so that the point at k
+     * has the kth smallest key, with no larger keys before it and no smaller
+     * keys after it
+     */
+    private void select(int lo, int hi, int k, double[] keys) {
+        while (hi > lo) {
+            int mid = (lo + hi) >>> 1;
+            double a = keys[lo];
+            double b = keys[mid];
+            double c = keys[hi];
+            double pivot = Math.max(Math.min(a, b), Math.min(Math.max(a, b), c));
+            int i = lo;
+            int j = hi;
+            while (i <= j) {
+                while (keys[i] < pivot) {
+                    i++;
                 }
-            } else {
-                if (rightChild.getX() < myself.getDiscriminator()) {
-                    log.error("Right child longitude lesser than self");
+                while (keys[j] > pivot) {
+                    j--;
                 }
-            }
-        } else {
-            NonTerminalTreeNode rightChild = (NonTerminalTreeNode) tree[rightChildIndex];
-            if (!(myself.isY() ^ rightChild.isY())) {
-                if (rightChild.getDiscriminator() < myself.getDiscriminator()) {
-                    log.error("Compatible right child discriminator lesser than self");
+                if (i <= j) {
+                    swap(i, j);
+                    i++;
+                    j--;
                 }
             }
+            if (k <= j) {
+                hi = j;
+            } else if (k >= i) {
+                lo = i;
+            } else {
+                return;
+            }
         }
+    }
 
-        /*
-         * Call recursively for both children
-         */
-        verifyChildren(leftChildIndex);
-        verifyChildren((rightChildIndex));
+    private void swap(int i, int j) {
+        double tx = xs[i];
+        xs[i] = xs[j];
+        xs[j] = tx;
+        double ty = ys[i];
+        ys[i] = ys[j];
+        ys[j] = ty;
+        int tIndex = indices[i];
+        indices[i] = indices[j];
+        indices[j] = tIndex;
     }
 
-    private void recursiveBuildTree(int sourceIndexFirst, int sourceIndexLast,
-            int treeIndexCurrent, boolean sortedByY, Point[] sourceData) {
+    private void checkBuilt() {
+        if (!built) {
+            throw new IllegalStateException("buildTree() must be called before querying");
+        }
+    }
 
-        if (sourceIndexFirst == sourceIndexLast) {
-            /*
-             * If the recursion has bottomed out and there is only one point of
-             * source data left, store it in the tree at the current index
-             */
-            tree[treeIndexCurrent] = sourceData[sourceIndexFirst];
-            return;
+    private double distSquared(int pos, double x, double y) {
+        double dx = xs[pos] - x;
+        double dy = ys[pos] - y;
+        return dx * dx + dy * dy;
+    }
+
+    /**
+     * Finds the nearest point to a given position
+     * 
+     * @param pos
+     *            The {@link HorizontalPosition} to find the nearest point to
+     * @return The index of the nearest point, or -1 if the tree is empty
+     */
+    public int nearestNeighbour(HorizontalPosition pos) {
+        if (size == 0) {
+            return -1;
         }
-        /*
-         * Determine whether latitude or longitude has the biggest range across
-         * our current set of source data A discriminator node will then be
-         * inserted that splits this data into 2 (high and low)
-         * 
-         * Determine whether we should be sorting by latitude or longitude
-         */
-        double minY = Double.POSITIVE_INFINITY;
-        double maxY = Double.NEGATIVE_INFINITY;
-        double minX = Double.POSITIVE_INFINITY;
-        double maxX = Double.NEGATIVE_INFINITY;
-        for (int i = sourceIndexFirst; i <= sourceIndexLast; i++) {
-            minY = Math.min(minY, sourceData[i].getY());
-            maxY = Math.max(maxY, sourceData[i].getY());
-            minX = Math.min(minX, sourceData[i].getX());
-            maxX = Math.max(maxX, sourceData[i].getX());
+        if (!GISUtils.crsMatch(pos.getCoordinateReferenceSystem(), crs)) {
+            pos = GISUtils.transformPosition(pos, crs);
         }
-        boolean discriminateOnY = (Math.abs(maxY - minY) >= Math.abs(maxX - minX));
+        return nearestNeighbour(pos.getX(), pos.getY());
+    }
 
+    /**
+     * Finds the nearest point to a given position
+     * 
+     * @param x
+     *            The x-co-ordinate of the position, in the CRS of this tree
+     * @param y
+     *            The y-co-ordinate of the position, in the CRS of this tree
+     * @return The index of the nearest point, or -1 if the tree is empty
+     */
+    public int nearestNeighbour(double x, double y) {
+        checkBuilt();
+        if (size == 0) {
+            return -1;
+        }
+        if (!latLon) {
+            return indices[nearest(0, size, x, y, -1, Double.POSITIVE_INFINITY)];
+        }
         /*
-         * Determine if we need to sort - if discriminateOnY and sortedByYhave
-         * different values
+         * Search at the position in the range [0,360), and then at its images
+         * either side if a closer point could be found across the date line
          */
-        if (discriminateOnY ^ sortedByY) {
-            /* Sort by x or y as appropriate */
-            Comparator<Point> comp = new PointComparator(discriminateOnY);
-            Arrays.sort(sourceData, sourceIndexFirst, sourceIndexLast + 1, comp);
+        x = GISUtils.constrainLongitude360(x);
+        int best = nearest(0, size, x, y, -1, Double.POSITIVE_INFINITY);
+        double bestDist = distSquared(best, x, y);
+        if (x * x < bestDist) {
+            int wrapped = nearest(0, size, x + 360.0, y, -1, bestDist);
+            if (wrapped >= 0) {
+                best = wrapped;
+                bestDist = distSquared(wrapped, x + 360.0, y);
+            }
         }
+        if ((360.0 - x) * (360.0 - x) < bestDist) {
+            int wrapped = nearest(0, size, x - 360.0, y, -1, bestDist);
+            if (wrapped >= 0) {
+                best = wrapped;
+            }
+        }
+        return indices[best];
+    }
 
-        /*
-         * Work out the median, and the indices of the values surrounding the
-         * median
-         */
-        int endLeft;
-        int startRight;
-        double discriminator;
-        if (((sourceIndexLast - sourceIndexFirst) % 2) != 0) {
-            /* Even number of elements */
-            endLeft = sourceIndexFirst + ((sourceIndexLast - sourceIndexFirst - 1) / 2);
-            startRight = endLeft + 1;
-            if (discriminateOnY) {
-                discriminator = (sourceData[endLeft].getY() + sourceData[startRight].getY()) / 2.0;
-            } else {
-                discriminator = (sourceData[endLeft].getX() + sourceData[startRight].getX()) / 2.0;
+    /*
+     * Returns the tree position of the nearest point in [lo,hi) which is closer
+     * than the current best (or than bound, if there is no current best), or
+     * the current best if there is no such point
+     */
+    private int nearest(int lo, int hi, double x, double y, int best, double bound) {
+        while (lo < hi) {
+            int median = (lo + hi) >>> 1;
+            double bestDist = best < 0 ? bound : distSquared(best, x, y);
+            if (distSquared(median, x, y) < bestDist) {
+                best = median;
+                bestDist = distSquared(median, x, y);
             }
-        } else {
-            /* Odd number of elements */
-            endLeft = ((sourceIndexLast - sourceIndexFirst) / 2) + sourceIndexFirst;
-            startRight = endLeft + 1;
-            if (discriminateOnY) {
-                discriminator = sourceData[endLeft].getY();
+            double diff = splitOnY[median] ? y - ys[median] : x - xs[median];
+            /*
+             * Search the near side first, and only search the far side if it
+             * may contain a closer point
+             */
+            if (diff < 0) {
+                best = nearest(lo, median, x, y, best, bound);
+                bestDist = best < 0 ? bound : distSquared(best, x, y);
+                if (diff * diff >= bestDist) {
+                    return best;
+                }
+                lo = median + 1;
             } else {
-                discriminator = sourceData[endLeft].getX();
+                best = nearest(median + 1, hi, x, y, best, bound);
+                bestDist = best < 0 ? bound : distSquared(best, x, y);
+                if (diff * diff >= bestDist) {
+                    return best;
+                }
+                hi = median;
             }
         }
-
-        /*
-         * Store this information back into the tree to create the discriminator
-         * node
-         */
-        tree[treeIndexCurrent] = new NonTerminalTreeNode(discriminator, discriminateOnY);
-
-        /* Call recursively for both sides */
-        recursiveBuildTree(sourceIndexFirst, endLeft, 2 * treeIndexCurrent + 1, discriminateOnY,
-                sourceData);
-        recursiveBuildTree(startRight, sourceIndexLast, 2 * treeIndexCurrent + 2, discriminateOnY,
-                sourceData);
+        return best;
     }
 
-    private final double squaredDistance(Point p, HorizontalPosition pos) {
-        return (p.getX() - pos.getX()) * (p.getX() - pos.getX()) + (p.getY() - pos.getY())
-                * (p.getY() - pos.getY());
-    }
-    
-    public Point nearestNeighbour(HorizontalPosition pos) {
-        /*
-         * Transform position into correct CRS if necessary
-         */
+    /**
+     * Finds the k nearest points to a given position
+     * 
+     * @param pos
+     *            The {@link HorizontalPosition} to find the nearest points to
+     * @param k
+     *            The number of points to find
+     * @return The indices of the nearest points, in order of increasing
+     *         distance. This will have fewer than k elements if there are
+     *         fewer than k points in the tree
+     */
+    public int[] nearestNeighbours(HorizontalPosition pos, int k) {
+        checkBuilt();
+        k = Math.min(k, size);
+        if (k <= 0) {
+            return new int[0];
+        }
         if (!GISUtils.crsMatch(pos.getCoordinateReferenceSystem(), crs)) {
             pos = GISUtils.transformPosition(pos, crs);
         }
+        double x = pos.getX();
+        double y = pos.getY();
+        /*
+         * A max-heap of the best k points found so far
+         */
+        NeighbourHeap heap = new NeighbourHeap(k);
         if (latLon) {
-            double x180 = GISUtils.constrainLongitude180(pos.getX());
-            double x360 = GISUtils.constrainLongitude360(pos.getX());
-            if (x180 != x360) {
-                HorizontalPosition pos180 = new HorizontalPosition(x180, pos.getY());
-                HorizontalPosition pos360 = new HorizontalPosition(x360, pos.getY());
-                Point nn180 = nearestNeighbourRecurse(pos180, 0);
-                Point nn360 = nearestNeighbourRecurse(pos360, 0);
-                if (squaredDistance(nn180, pos180) < squaredDistance(nn360, pos360)) {
-                    return nn180;
-                } else {
-                    return nn360;
-                }
-            } else {
-                return nearestNeighbourRecurse(new HorizontalPosition(x180, pos.getY()), 0);
+            x = GISUtils.constrainLongitude360(x);
+            nearestK(0, size, x, y, heap);
+            if (x * x < heap.bound()) {
+                nearestK(0, size, x + 360.0, y, heap);
+            }
+            if ((360.0 - x) * (360.0 - x) < heap.bound()) {
+                nearestK(0, size, x - 360.0, y, heap);
             }
         } else {
-            return nearestNeighbourRecurse(pos, 0);
+            nearestK(0, size, x, y, heap);
         }
+        return heap.sortedIndices();
     }
 
-    private final Point nearestNeighbourRecurse(HorizontalPosition pos, int currentIndex) {
-        if (tree[currentIndex] instanceof Point) {
-            /* Terminal node reached - return it */
-            return (Point) tree[currentIndex];
-        } else {
-            /* Non-terminal */
-            NonTerminalTreeNode node = (NonTerminalTreeNode) tree[currentIndex];
-            double pivotTargetDistance;
-            if (node.isY()) {
-                pivotTargetDistance = node.getDiscriminator() - pos.getY();
+    private void nearestK(int lo, int hi, double x, double y, NeighbourHeap heap) {
+        while (lo < hi) {
+            int median = (lo + hi) >>> 1;
+            double dist = distSquared(median, x, y);
+            if (dist < heap.bound()) {
+                heap.offer(median, dist);
+            }
+            double diff = splitOnY[median] ? y - ys[median] : x - xs[median];
+            if (diff < 0) {
+                nearestK(lo, median, x, y, heap);
+                if (diff * diff >= heap.bound()) {
+                    return;
+                }
+                lo = median + 1;
             } else {
-                pivotTargetDistance = node.getDiscriminator() - pos.getX();
+                nearestK(median + 1, hi, x, y, heap);
+                if (diff * diff >= heap.bound()) {
+                    return;
+                }
+                hi = median;
             }
+        }
+    }
+
+    /**
+     * A bounded max-heap of tree positions, keyed on squared distance
+     */
+    private final class NeighbourHeap {
+        private final int[] positions;
+        private final double[] dists;
+        private int count = 0;
+
+        public NeighbourHeap(int capacity) {
+            positions = new int[capacity];
+            dists = new double[capacity];
+        }
+
+        /*
+         * Points closer than this are candidates for inclusion
+         */
+        public double bound() {
+            return count < positions.length ? Double.POSITIVE_INFINITY : dists[0];
+        }
 
-            /* Search the 'near' branch */
-            Point best;
-            if (pivotTargetDistance > 0) {
-                best = nearestNeighbourRecurse(pos, 2 * currentIndex + 1);
+        public void offer(int position, double dist) {
+            /*
+             * When searching across the date line the same point can be found
+             * more than once, at different distances
+             */
+            for (int i = 0; i < count; i++) {
+                if (positions[i] == position) {
+                    if (dist < dists[i]) {
+                        dists[i] = dist;
+                        siftUp(i);
+                    }
+                    return;
+                }
+            }
+            if (count < positions.length) {
+                positions[count] = position;
+                dists[count] = dist;
+                siftUp(count++);
             } else {
-                best = nearestNeighbourRecurse(pos, 2 * currentIndex + 2);
+                positions[0] = position;
+                dists[0] = dist;
+                siftDown(0);
             }
+        }
+
+        private void siftUp(int i) {
             /*
-             * Only search the 'away' branch if the squared distance between the
-             * current best and the target is greater Than the squared distance
-             * between the target and the branch pivot
+             * Reducing a distance in a max-heap may need the element moving
+             * down, not up
              */
-            if (squaredDistance(best, pos) > Math.pow(pivotTargetDistance, 2.0)) {
-                Point potentialBest;
-                /* Search the 'away' branch */
-                if (pivotTargetDistance > 0) {
-                    potentialBest = nearestNeighbourRecurse(pos, 2 * (currentIndex + 1));
-                } else {
-                    potentialBest = nearestNeighbourRecurse(pos, (2 * (currentIndex + 1)) - 1);
+            while (i > 0) {
+                int parent = (i - 1) / 2;
+                if (dists[parent] >= dists[i]) {
+                    break;
+                }
+                swapHeap(parent, i);
+                i = parent;
+            }
+            siftDown(i);
+        }
+
+        private void siftDown(int i) {
+            while (true) {
+                int largest = i;
+                int left = 2 * i + 1;
+                int right = left + 1;
+                if (left < count && dists[left] > dists[largest]) {
+                    largest = left;
                 }
-                if (squaredDistance(potentialBest, pos) < squaredDistance(best, pos)) {
-                    return potentialBest;
+                if (right < count && dists[right] > dists[largest]) {
+                    largest = right;
                 }
+                if (largest == i) {
+                    return;
+                }
+                swapHeap(i, largest);
+                i = largest;
             }
+        }
 
-            return best;
+        private void swapHeap(int i, int j) {
+            int tPos = positions[i];
+            positions[i] = positions[j];
+            positions[j] = tPos;
+            double tDist = dists[i];
+            dists[i] = dists[j];
+            dists[j] = tDist;
         }
-    }
 
-    public ArrayList<Point> rangeQuery(BoundingBox bbox) {
-        ArrayList<Point> results = new ArrayList<Point>();
-        rangeQueryRecurse(bbox.getMinX(), bbox.getMaxX(), bbox.getMinY(), bbox.getMaxY(), results,
-                0);
-        return results;
+        public int[] sortedIndices() {
+            int[] ret = new int[count];
+            while (count > 0) {
+                ret[count - 1] = indices[positions[0]];
+                count--;
+                positions[0] = positions[count];
+                dists[0] = dists[count];
+                siftDown(0);
+            }
+            return ret;
+        }
     }
 
-    private final void rangeQueryRecurse(double minX, double maxX, double minY, double maxY,
-            ArrayList<Point> results, int treeCurrentIndex) {
+    /**
+     * Finds all points within a bounding box
+     * 
+     * @param bbox
+     *            The {@link BoundingBox} to search, in the CRS of this tree
+     * @return The indices of all points within the bounding box (inclusive)
+     */
+    public int[] rangeQuery(BoundingBox bbox) {
+        checkBuilt();
+        IndexCollector results = new IndexCollector();
+        double minX = bbox.getMinX();
+        double maxX = bbox.getMaxX();
+        double minY = bbox.getMinY();
+        double maxY = bbox.getMaxY();
         if (latLon) {
-            minX = GISUtils.constrainLongitude360(minX);
-            maxX = GISUtils.constrainLongitude360(maxX);
+            if (maxX - minX >= 360.0) {
+                rangeQuery(0, size, 0.0, 360.0, minY, maxY, results);
+            } else {
+                /*
+                 * Points are stored in the range [0,360), so a box which
+                 * crosses 360 needs to be split into 2
+                 */
+                double width = maxX - minX;
+                minX = GISUtils.constrainLongitude360(minX);
+                maxX = minX + width;
+                rangeQuery(0, size, minX, Math.min(maxX, 360.0), minY, maxY, results);
+                if (maxX >= 360.0) {
+                    rangeQuery(0, size, 0.0, maxX - 360.0, minY, maxY, results);
+                }
+            }
+        } else {
+            rangeQuery(0, size, minX, maxX, minY, maxY, results);
         }
+        return results.toArray();
+    }
 
-        if (tree[treeCurrentIndex] instanceof Point) {
-            /* Terminal - return this point if it's within bounds */
-            Point terminalPoint = (Point) tree[treeCurrentIndex];
-            if (terminalPoint.getX() >= minX && terminalPoint.getX() <= maxX
-                    && terminalPoint.getY() >= minY && terminalPoint.getY() <= maxY) {
-                results.add(terminalPoint);
+    private void rangeQuery(int lo, int hi, double minX, double maxX, double minY, double maxY,
+            IndexCollector results) {
+        while (lo < hi) {
+            int median = (lo + hi) >>> 1;
+            double x = xs[median];
+            double y = ys[median];
+            if (x >= minX && x <= maxX && y >= minY && y <= maxY) {
+                results.add(indices[median]);
             }
-            return;
-        } else {
             /*-
-             * 3 cases - the discriminator in the non-terminal node can be less
-             * than search range, within it, or greater than it
+             * The split value can be less than the search range, within it, or
+             * greater than it:
              * 
              * Less than: Search right of this node
              * Within: Search left and right of this node
              * Greater than: Search left of this node
              */
-            boolean searchLeft, searchRight;
-            NonTerminalTreeNode node = (NonTerminalTreeNode) tree[treeCurrentIndex];
-            if (node.isY()) {
-                searchLeft = (node.getDiscriminator() >= minY);
-                searchRight = (node.getDiscriminator() <= maxY);
+            double split = splitOnY[median] ? y : x;
+            boolean searchLeft = split >= (splitOnY[median] ? minY : minX);
+            boolean searchRight = split <= (splitOnY[median] ? maxY : maxX);
+            if (searchLeft && searchRight) {
+                rangeQuery(lo, median, minX, maxX, minY, maxY, results);
+                lo = median + 1;
+            } else if (searchLeft) {
+                hi = median;
+            } else if (searchRight) {
+                lo = median + 1;
             } else {
-                searchLeft = (node.getDiscriminator() >= minX);
-                searchRight = (node.getDiscriminator() <= maxX);
+                return;
             }
+        }
+    }
 
-            if (searchLeft) {
-                rangeQueryRecurse(minX, maxX, minY, maxY, results, (2 * (treeCurrentIndex + 1)) - 1);
-            }
-            if (searchRight) {
-                rangeQueryRecurse(minX, maxX, minY, maxY, results, (2 * (treeCurrentIndex + 1)));
+    private static final class IndexCollector {
+        private int[] indices = new int[16];
+        private int count = 0;
+
+        public void add(int index) {
+            if (count == indices.length) {
+                indices = Arrays.copyOf(indices, count * 2);
             }
+            indices[count++] = index;
+        }
+
+        public int[] toArray() {
+            return Arrays.copyOf(indices, count);
         }
     }
 }
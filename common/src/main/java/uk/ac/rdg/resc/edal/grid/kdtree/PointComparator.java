@@ -1,58 +0,0 @@
-/*******************************************************************************
- * Copyright (c) 2015 The University of Reading
- * All rights reserved.
- *
- * Redistribution and use in source and binary forms, with or without
- * modification, are permitted provided that the following conditions
- * are met:
- * 1. Redistributions of source code must retain the above copyright
- *    notice, this list of conditions and the following disclaimer.
- * 2. Redistributions in binary form must reproduce the above copyright
- *    notice, this list of conditions and the following disclaimer in the
- *    documentation and/or other materials provided with the distribution.
- * 3. Neither the name of the University of Reading, nor the names of the
- *    authors or contributors may be used to endorse or promote products
- *    derived from this software without specific prior written permission.
- *
- * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
- * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
- * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
- * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
- * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
- * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
- * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
- * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
- * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
- * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
- *******************************************************************************/
-
-package uk.ac.rdg.resc.edal.grid.kdtree;
-
-import java.util.Comparator;
-
-public class PointComparator implements Comparator<Point> {
-
-    Boolean sort_by_latitude;
-
-    public PointComparator(Boolean sortByLatitude) {
-        sort_by_latitude = sortByLatitude;
-    }
-
-    @Override
-    public int compare(Point o1, Point o2) {
-        double difference;
-        if (sort_by_latitude) {
-            difference = (o1.getY() - o2.getY());
-        } else {
-            difference = (o1.getX() - o2.getX());
-        }
-        if (difference < 0) {
-            return -1;
-        } else if (difference > 0) {
-            return 1;
-        } else {
-            return 0;
-        }
-
-    }
-}
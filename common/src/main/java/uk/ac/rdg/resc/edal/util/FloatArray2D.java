@@ -0,0 +1,118 @@
+/*******************************************************************************
+ * Copyright (c) 2016 The University of Reading
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the University of Reading, nor the names of the
+ *    authors or contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ******************************************************************************/
+
+package uk.ac.rdg.resc.edal.util;
+
+import java.util.Arrays;
+
+/**
+ * Implementation of an {@link Array2D} which stores its values in a single
+ * primitive <code>float</code> array. Missing values are stored as
+ * {@link Float#NaN} and returned as <code>null</code>.
+ * 
+ * This is much more compact than {@link ValuesArray2D}, at the expense of
+ * converting all values to single precision.
+ * 
+ * @author Guy Griffiths
+ */
+public class FloatArray2D extends Array2D<Number> {
+    private final float[] data;
+
+    public FloatArray2D(int ySize, int xSize) {
+        this(ySize, xSize, new float[ySize * xSize]);
+        Arrays.fill(data, Float.NaN);
+    }
+
+    /**
+     * @param ySize
+     *            The size of the y-dimension
+     * @param xSize
+     *            The size of the x-dimension
+     * @param data
+     *            The values, with the x-dimension varying fastest. This is used
+     *            directly, not copied.
+     */
+    public FloatArray2D(int ySize, int xSize, float[] data) {
+        super(ySize, xSize);
+        if (data.length != ySize * xSize) {
+            throw new IllegalArgumentException("Data must have " + (ySize * xSize)
+                    + " values, but has " + data.length);
+        }
+        this.data = data;
+    }
+
+    /**
+     * Creates a {@link FloatArray2D} containing the same values as another
+     * {@link Array2D}
+     * 
+     * @param values
+     *            The {@link Array2D} to copy
+     * @return A new {@link FloatArray2D}
+     */
+    public static FloatArray2D copyOf(Array2D<Number> values) {
+        int xSize = values.getXSize();
+        int ySize = values.getYSize();
+        float[] data = new float[xSize * ySize];
+        int index = 0;
+        for (int j = 0; j < ySize; j++) {
+            for (int i = 0; i < xSize; i++) {
+                Number value = values.get(j, i);
+                data[index++] = value == null ? Float.NaN : value.floatValue();
+            }
+        }
+        return new FloatArray2D(ySize, xSize, data);
+    }
+
+    /**
+     * @return The underlying values, with the x-dimension varying fastest.
+     *         This is not a copy, so must not be modified.
+     */
+    public float[] getData() {
+        return data;
+    }
+
+    @Override
+    public Number get(int... coords) {
+        if (coords.length != 2) {
+            throw new IllegalArgumentException("Wrong number of co-ordinates (" + coords.length
+                    + ") for this Array (needs 2)");
+        }
+        float value = data[coords[Y_IND] * getXSize() + coords[X_IND]];
+        return Float.isNaN(value) ? null : value;
+    }
+
+    @Override
+    public void set(Number value, int... coords) {
+        if (coords.length != 2) {
+            throw new IllegalArgumentException("Wrong number of co-ordinates (" + coords.length
+                    + ") for this Array (needs 2)");
+        }
+        data[coords[Y_IND] * getXSize() + coords[X_IND]] = value == null ? Float.NaN : value
+                .floatValue();
+    }
+}
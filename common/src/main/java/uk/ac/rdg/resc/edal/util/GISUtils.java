@@ -237,6 +237,55 @@ public final class GISUtils {
         }
     }
 
+    /**
+     * Transforms a set of positions from one {@link CoordinateReferenceSystem}
+     * to another in a single operation. This is much faster than calling
+     * {@link GISUtils#transformPosition(HorizontalPosition, CoordinateReferenceSystem)}
+     * for each position.
+     * 
+     * @param xs
+     *            The x-coordinates of the positions. These will be overwritten
+     *            with the transformed x-coordinates
+     * @param ys
+     *            The y-coordinates of the positions. These will be overwritten
+     *            with the transformed y-coordinates
+     * @param sourceCrs
+     *            The CRS of the positions. If this is <code>null</code> the
+     *            positions are assumed to already be in the target CRS
+     * @param targetCrs
+     *            The CRS to translate into
+     * @throws NullPointerException
+     *             if {@code targetCrs} is null.
+     */
+    public static void transformPositions(double[] xs, double[] ys,
+            CoordinateReferenceSystem sourceCrs, CoordinateReferenceSystem targetCrs) {
+        if (targetCrs == null) {
+            throw new NullPointerException("Target CRS cannot be null");
+        }
+        if (sourceCrs == null) {
+            return;
+        }
+        try {
+            MathTransform transform = CRS.findMathTransform(sourceCrs, targetCrs, true);
+            if (transform.isIdentity()) {
+                return;
+            }
+            int n = Math.min(xs.length, ys.length);
+            double[] points = new double[2 * n];
+            for (int i = 0; i < n; i++) {
+                points[2 * i] = xs[i];
+                points[2 * i + 1] = ys[i];
+            }
+            transform.transform(points, 0, points, 0, n);
+            for (int i = 0; i < n; i++) {
+                xs[i] = points[2 * i];
+                ys[i] = points[2 * i + 1];
+            }
+        } catch (Exception e) {
+            throw new RuntimeException(e);
+        }
+    }
+
     /**
      * Transforms the given lat-lon heading to a different
      * {@link CoordinateReferenceSystem}
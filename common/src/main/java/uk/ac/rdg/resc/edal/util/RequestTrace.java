@@ -0,0 +1,246 @@
+/*******************************************************************************
+ * Copyright (c) 2016 The University of Reading
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the University of Reading, nor the names of the
+ *    authors or contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ******************************************************************************/
+
+package uk.ac.rdg.resc.edal.util;
+
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Map.Entry;
+
+/**
+ * Records the time spent in each stage of handling a single request, along
+ * with counts of the work done (values read, pixels coloured etc.).
+ * 
+ * A trace is associated with the thread handling the request with
+ * {@link RequestTrace#begin(String)}. Code anywhere in the processing chain
+ * can then record against it with the static methods
+ * {@link RequestTrace#endStage(String, long)} and
+ * {@link RequestTrace#count(String, long)}, which do nothing if no trace is
+ * active, so are cheap enough to leave in place permanently. Work which is
+ * handed off to other threads can be recorded against the same trace by
+ * calling {@link RequestTrace#setCurrent(RequestTrace)} in those threads.
+ * 
+ * Stage times are summed over all threads, so when work is done in parallel
+ * the total of the stages can exceed the elapsed time of the request.
+ * 
+ * @author Guy Griffiths
+ */
+public class RequestTrace {
+    /** Parsing the request parameters */
+    public static final String PARSE = "parse";
+    /** Building the image generator from the requested styles */
+    public static final String STYLE = "style";
+    /** Mapping the target domain onto the source grid */
+    public static final String DOMAIN_MAPPING = "domainMapping";
+    /** Reading data from the underlying data source */
+    public static final String DATA_READ = "dataRead";
+    /** Reading data from pre-generated overviews */
+    public static final String OVERVIEW_READ = "overviewRead";
+    /** Converting data values to colours */
+    public static final String COLOUR_MAPPING = "colourMapping";
+    /** Encoding the output image */
+    public static final String ENCODING = "encoding";
+
+    /** The number of data values read from data sources */
+    public static final String VALUES_READ = "valuesRead";
+    /** The number of pixels converted to colours */
+    public static final String PIXELS_MAPPED = "pixelsMapped";
+    /** The number of feature requests answered from a cache */
+    public static final String CACHE_HITS = "cacheHits";
+    /** The number of feature requests which needed data to be extracted */
+    public static final String CACHE_MISSES = "cacheMisses";
+
+    private static final ThreadLocal<RequestTrace> CURRENT = new ThreadLocal<>();
+
+    private final String name;
+    private final long startTime;
+    private long endTime = -1L;
+    private final Map<String, Long> stageNanos = new LinkedHashMap<>();
+    private final Map<String, Long> counts = new LinkedHashMap<>();
+
+    /**
+     * Creates a new {@link RequestTrace}. This is not associated with any
+     * thread - for that, use {@link RequestTrace#begin(String)}
+     * 
+     * @param name
+     *            The name of the request being traced
+     */
+    public RequestTrace(String name) {
+        this.name = name;
+        this.startTime = System.nanoTime();
+    }
+
+    /**
+     * Starts a new trace and associates it with the current thread
+     * 
+     * @param name
+     *            The name of the request being traced
+     * @return The new {@link RequestTrace}
+     */
+    public static RequestTrace begin(String name) {
+        RequestTrace trace = new RequestTrace(name);
+        CURRENT.set(trace);
+        return trace;
+    }
+
+    /**
+     * @return The {@link RequestTrace} associated with the current thread, or
+     *         <code>null</code> if there is none
+     */
+    public static RequestTrace current() {
+        return CURRENT.get();
+    }
+
+    /**
+     * Associates a trace with the current thread
+     * 
+     * @param trace
+     *            The {@link RequestTrace} to record against, or
+     *            <code>null</code> to stop recording
+     */
+    public static void setCurrent(RequestTrace trace) {
+        if (trace == null) {
+            CURRENT.remove();
+        } else {
+            CURRENT.set(trace);
+        }
+    }
+
+    /**
+     * Marks the start of a stage. The returned value should be passed to
+     * {@link RequestTrace#endStage(String, long)} when the stage completes.
+     * 
+     * @return The current time, in nanoseconds
+     */
+    public static long startStage() {
+        return System.nanoTime();
+    }
+
+    /**
+     * Records the time spent in a stage against the current thread's trace,
+     * if there is one
+     * 
+     * @param stage
+     *            The name of the stage
+     * @param start
+     *            The value returned from {@link RequestTrace#startStage()}
+     *            when the stage began
+     */
+    public static void endStage(String stage, long start) {
+        RequestTrace trace = CURRENT.get();
+        if (trace != null) {
+            trace.addStageTime(stage, System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * Adds to a counter on the current thread's trace, if there is one
+     * 
+     * @param counter
+     *            The name of the counter
+     * @param amount
+     *            The amount to add
+     */
+    public static void count(String counter, long amount) {
+        RequestTrace trace = CURRENT.get();
+        if (trace != null) {
+            trace.addCount(counter, amount);
+        }
+    }
+
+    public synchronized void addStageTime(String stage, long nanos) {
+        Long existing = stageNanos.get(stage);
+        stageNanos.put(stage, existing == null ? nanos : existing + nanos);
+    }
+
+    public synchronized void addCount(String counter, long amount) {
+        Long existing = counts.get(counter);
+        counts.put(counter, existing == null ? amount : existing + amount);
+    }
+
+    /**
+     * Marks this trace as complete. Subsequent calls have no effect.
+     */
+    public synchronized void finish() {
+        if (endTime < 0) {
+            endTime = System.nanoTime();
+        }
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * @return The time between the creation of this trace and the call to
+     *         {@link RequestTrace#finish()}, or the current time if it has not
+     *         yet finished, in nanoseconds
+     */
+    public synchronized long getElapsedNanos() {
+        return (endTime < 0 ? System.nanoTime() : endTime) - startTime;
+    }
+
+    /**
+     * @return A copy of the total time spent in each stage, in nanoseconds, in
+     *         the order that the stages were first recorded
+     */
+    public synchronized Map<String, Long> getStageNanos() {
+        return new LinkedHashMap<>(stageNanos);
+    }
+
+    /**
+     * @return A copy of the value of each counter
+     */
+    public synchronized Map<String, Long> getCounts() {
+        return new LinkedHashMap<>(counts);
+    }
+
+    @Override
+    public synchronized String toString() {
+        StringBuilder sb = new StringBuilder();
+        sb.append(name).append(" took ").append(formatMillis(getElapsedNanos())).append(" [");
+        boolean first = true;
+        for (Entry<String, Long> stage : stageNanos.entrySet()) {
+            if (!first) {
+                sb.append(", ");
+            }
+            sb.append(stage.getKey()).append("=").append(formatMillis(stage.getValue()));
+            first = false;
+        }
+        sb.append("]");
+        for (Entry<String, Long> count : counts.entrySet()) {
+            sb.append(" ").append(count.getKey()).append("=").append(count.getValue());
+        }
+        return sb.toString();
+    }
+
+    private static String formatMillis(long nanos) {
+        return String.format(Locale.ROOT, "%.1fms", nanos / 1e6);
+    }
+}
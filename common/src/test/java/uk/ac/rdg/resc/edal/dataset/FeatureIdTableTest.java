@@ -0,0 +1,121 @@
+/*******************************************************************************
+ * Copyright (c) 2016 The University of Reading
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the University of Reading, nor the names of the
+ *    authors or contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ******************************************************************************/
+
+package uk.ac.rdg.resc.edal.dataset;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.nio.charset.StandardCharsets;
+
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests for {@link FeatureIdTable}
+ *
+ * @author Guy Griffiths
+ */
+public class FeatureIdTableTest {
+    private static final int N_IDS = 100000;
+
+    private FeatureIdTable table;
+    private long idBytes;
+
+    @Before
+    public void setUp() {
+        table = new FeatureIdTable();
+        idBytes = 0L;
+        for (int i = 0; i < N_IDS; i++) {
+            String id = getId(i);
+            assertEquals(i, table.add(id));
+            idBytes += id.getBytes(StandardCharsets.UTF_8).length;
+        }
+        table.trim();
+    }
+
+    private static String getId(int i) {
+        /*
+         * Include some non-ASCII IDs
+         */
+        return i % 10 == 0 ? "bouée-" + i : "feature-" + i;
+    }
+
+    @Test
+    public void testLookup() {
+        assertEquals(N_IDS, table.size());
+        /*
+         * Adding an existing ID returns its handle
+         */
+        assertEquals(42, table.add(getId(42)));
+        assertEquals(N_IDS, table.size());
+        for (int i = 0; i < N_IDS; i++) {
+            assertEquals(getId(i), table.get(i));
+            assertEquals(i, table.indexOf(getId(i)));
+        }
+        assertEquals(-1, table.indexOf("missing"));
+        assertEquals(-1, table.indexOf(null));
+    }
+
+    @Test
+    public void testSerialization() throws IOException, ClassNotFoundException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+            out.writeObject(table);
+        }
+        /*
+         * Only the IDs and their offsets are stored, not the hash table
+         */
+        assertTrue(bytes.size() < idBytes + 4L * (N_IDS + 1) + 1024);
+
+        FeatureIdTable read;
+        try (ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(
+                bytes.toByteArray()))) {
+            read = (FeatureIdTable) in.readObject();
+        }
+        assertEquals(N_IDS, read.size());
+        for (int i = 0; i < N_IDS; i++) {
+            assertEquals(getId(i), read.get(i));
+            assertEquals(i, read.indexOf(getId(i)));
+        }
+        assertEquals(-1, read.indexOf("missing"));
+
+        /*
+         * The table can still be added to
+         */
+        assertEquals(7, read.add(getId(7)));
+        assertEquals(N_IDS, read.add("new"));
+        assertEquals(N_IDS, read.indexOf("new"));
+        assertEquals(N_IDS - 1, read.indexOf(getId(N_IDS - 1)));
+    }
+}
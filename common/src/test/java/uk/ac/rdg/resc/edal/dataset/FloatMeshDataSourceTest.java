@@ -0,0 +1,129 @@
+/*******************************************************************************
+ * Copyright (c) 2016 The University of Reading
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the University of Reading, nor the names of the
+ *    authors or contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ******************************************************************************/
+
+package uk.ac.rdg.resc.edal.dataset;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+import uk.ac.rdg.resc.edal.dataset.HZTDataSource.MeshCoordinates3D;
+import uk.ac.rdg.resc.edal.exceptions.DataReadingException;
+
+/**
+ * Test class for {@link FloatMeshDataSource}
+ * 
+ * @author Guy Griffiths
+ */
+public class FloatMeshDataSourceTest {
+    private static final int H_SIZE = 100;
+    private static final int Z_SIZE = 3;
+    private static final int T_SIZE = 2;
+
+    @Test
+    public void testHeap() throws IOException, DataReadingException {
+        FloatMeshDataSource.Builder builder = new FloatMeshDataSource.Builder();
+        populate(builder);
+        checkValues(builder.build(H_SIZE, Z_SIZE));
+    }
+
+    @Test
+    public void testMapped() throws IOException, DataReadingException {
+        File file = File.createTempFile("edal-mesh", ".dat");
+        FloatMeshDataSource.Builder builder = new FloatMeshDataSource.Builder(file);
+        populate(builder);
+        FloatMeshDataSource dataSource = builder.build(H_SIZE, Z_SIZE);
+        /*
+         * The file is no longer needed once it has been mapped
+         */
+        if (!System.getProperty("os.name").startsWith("Windows")) {
+            assertFalse(file.exists());
+        }
+        checkValues(dataSource);
+    }
+
+    @Test
+    public void testDiscard() throws IOException {
+        File file = File.createTempFile("edal-mesh", ".dat");
+        FloatMeshDataSource.Builder builder = new FloatMeshDataSource.Builder(file);
+        populate(builder);
+        builder.discard();
+        assertFalse(file.exists());
+    }
+
+    private static void populate(FloatMeshDataSource.Builder builder) throws IOException {
+        builder.startVariable("a");
+        for (int i = 0; i < H_SIZE * Z_SIZE * T_SIZE; i++) {
+            builder.add(i == 5 ? Float.NaN : i);
+        }
+        /*
+         * Starting a new variable should end the previous one
+         */
+        builder.startVariable("b");
+        for (int i = 0; i < H_SIZE * Z_SIZE * T_SIZE; i++) {
+            builder.add(-i);
+        }
+        builder.endVariable();
+    }
+
+    private static void checkValues(FloatMeshDataSource dataSource) throws DataReadingException {
+        List<MeshCoordinates3D> coords = new ArrayList<>();
+        for (int t = 0; t < T_SIZE; t++) {
+            for (int z = 0; z < Z_SIZE; z++) {
+                for (int h = 0; h < H_SIZE; h++) {
+                    coords.add(new MeshCoordinates3D(h, z, t));
+                }
+            }
+        }
+        List<Number> a = dataSource.read("a", coords);
+        List<Number> b = dataSource.read("b", coords);
+        for (int i = 0; i < coords.size(); i++) {
+            if (i == 5) {
+                assertNull(a.get(i));
+            } else {
+                assertEquals(i, a.get(i).floatValue(), 0f);
+            }
+            assertEquals(-i, b.get(i).floatValue(), 0f);
+        }
+
+        List<MeshCoordinates3D> outside = new ArrayList<>();
+        outside.add(new MeshCoordinates3D(H_SIZE, 0, 0));
+        outside.add(new MeshCoordinates3D(0, 0, T_SIZE));
+        for (Number value : dataSource.read("a", outside)) {
+            assertNull(value);
+        }
+        assertNull(dataSource.read("c", coords).get(0));
+    }
+}
@@ -0,0 +1,191 @@
+/*******************************************************************************
+ * Copyright (c) 2016 The University of Reading
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the University of Reading, nor the names of the
+ *    authors or contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ******************************************************************************/
+
+package uk.ac.rdg.resc.edal.dataset;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.geotoolkit.referencing.crs.DefaultGeographicCRS;
+import org.joda.time.chrono.ISOChronology;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import uk.ac.rdg.resc.edal.dataset.plugins.VariablePlugin;
+import uk.ac.rdg.resc.edal.dataset.plugins.VectorPlugin;
+import uk.ac.rdg.resc.edal.exceptions.DataReadingException;
+import uk.ac.rdg.resc.edal.exceptions.EdalException;
+import uk.ac.rdg.resc.edal.grid.RectilinearGridImpl;
+import uk.ac.rdg.resc.edal.grid.ReferenceableAxisImpl;
+import uk.ac.rdg.resc.edal.grid.RegularAxisImpl;
+import uk.ac.rdg.resc.edal.grid.RegularGridImpl;
+import uk.ac.rdg.resc.edal.grid.TimeAxisImpl;
+import uk.ac.rdg.resc.edal.grid.VerticalAxisImpl;
+import uk.ac.rdg.resc.edal.metadata.GridVariableMetadata;
+import uk.ac.rdg.resc.edal.metadata.Parameter;
+import uk.ac.rdg.resc.edal.metadata.Parameter.Category;
+import uk.ac.rdg.resc.edal.position.VerticalCrsImpl;
+
+/**
+ * Tests for {@link GridDatasetSnapshot}
+ * 
+ * @author Guy Griffiths
+ */
+public class GridDatasetSnapshotTest {
+    private File dataFile;
+    private File snapshotFile;
+    private SnapshotTestDataset dataset;
+
+    @Before
+    public void setUp() throws IOException, EdalException {
+        dataFile = File.createTempFile("edal-snapshot", ".nc");
+        writeData(10);
+        snapshotFile = new File(dataFile.getAbsolutePath() + ".snapshot");
+
+        RegularGridImpl regularGrid = new RegularGridImpl(new RegularAxisImpl("lon", -179.5,
+                1.0, 360, true), new RegularAxisImpl("lat", -89.5, 1.0, 180, false),
+                DefaultGeographicCRS.WGS84);
+        RectilinearGridImpl rectilinearGrid = new RectilinearGridImpl(new ReferenceableAxisImpl(
+                "lon", Arrays.asList(0.0, 1.0, 3.0), true), new ReferenceableAxisImpl("lat",
+                Arrays.asList(10.0, 20.0), false), DefaultGeographicCRS.WGS84);
+        VerticalAxisImpl zAxis = new VerticalAxisImpl("depth", Arrays.asList(0.0, 5.0, 10.0),
+                new VerticalCrsImpl("m", false, false, false));
+        TimeAxisImpl tAxis = new TimeAxisImpl("time", new long[] { 0L, 86400000L },
+                ISOChronology.getInstanceUTC());
+
+        Map<Integer, Category> categories = new HashMap<>();
+        categories.put(1, new Category("land", "Land", "#00ff00", null));
+
+        List<GridVariableMetadata> vars = new ArrayList<>();
+        vars.add(new GridVariableMetadata(new Parameter("u", "U", "Eastward velocity", "m/s",
+                "eastward_sea_water_velocity"), regularGrid, zAxis, tAxis, true));
+        vars.add(new GridVariableMetadata(new Parameter("v", "V", "Northward velocity", "m/s",
+                "northward_sea_water_velocity"), regularGrid, zAxis, tAxis, true));
+        vars.add(new GridVariableMetadata(new Parameter("mask", "Mask", "Land mask", "",
+                "land_mask", categories), rectilinearGrid, null, null, true));
+        dataset = new SnapshotTestDataset("test", vars);
+        dataset.addVariablePlugin(new VectorPlugin("u", "v", "sea_water_velocity", true));
+    }
+
+    @After
+    public void tearDown() {
+        dataFile.delete();
+        snapshotFile.delete();
+    }
+
+    private void writeData(int size) throws IOException {
+        try (FileOutputStream out = new FileOutputStream(dataFile)) {
+            out.write(new byte[size]);
+        }
+    }
+
+    @Test
+    public void testRoundTrip() throws IOException, EdalException {
+        List<File> files = Arrays.asList(dataFile);
+        GridDatasetSnapshot.create(dataset, "/data/test.nc", files).write(snapshotFile);
+
+        GridDatasetSnapshot snapshot = GridDatasetSnapshot.read(snapshotFile);
+        assertNotNull(snapshot);
+        assertTrue(snapshot.isSnapshotOf("test", "/data/test.nc", files));
+        assertFalse(snapshot.isSnapshotOf("other", "/data/test.nc", files));
+        assertFalse(snapshot.isSnapshotOf("test", "/data/other.nc", files));
+        assertEquals(DataReadingStrategy.BOUNDING_BOX, snapshot.getDataReadingStrategy());
+
+        /*
+         * Only the non-derived variables should be stored
+         */
+        List<GridVariableMetadata> vars = snapshot.getVariables();
+        assertEquals(3, vars.size());
+        SnapshotTestDataset restored = new SnapshotTestDataset("test", vars);
+        for (VariablePlugin plugin : snapshot.getPlugins()) {
+            restored.addVariablePlugin(plugin);
+        }
+        assertEquals(dataset.getVariableIds(), restored.getVariableIds());
+        for (String varId : dataset.getVariableIds()) {
+            GridVariableMetadata expected = (GridVariableMetadata) dataset
+                    .getVariableMetadata(varId);
+            GridVariableMetadata actual = (GridVariableMetadata) restored
+                    .getVariableMetadata(varId);
+            assertEquals(expected.getParameter(), actual.getParameter());
+            assertEquals(expected.getHorizontalDomain(), actual.getHorizontalDomain());
+            assertEquals(expected.getVerticalDomain(), actual.getVerticalDomain());
+            assertEquals(expected.getTemporalDomain(), actual.getTemporalDomain());
+            assertEquals(expected.isScalar(), actual.isScalar());
+        }
+        Category land = restored.getVariableMetadata("mask").getParameter().getCategories()
+                .get(1);
+        assertEquals("land", land.getId());
+        assertEquals("#00ff00", land.getColour());
+    }
+
+    @Test
+    public void testModifiedSourceInvalidatesSnapshot() throws IOException {
+        List<File> files = Arrays.asList(dataFile);
+        GridDatasetSnapshot.create(dataset, "/data/test.nc", files).write(snapshotFile);
+
+        writeData(20);
+        GridDatasetSnapshot snapshot = GridDatasetSnapshot.read(snapshotFile);
+        assertFalse(snapshot.isSnapshotOf("test", "/data/test.nc", files));
+        assertFalse(snapshot.isSnapshotOf("test", "/data/test.nc", new ArrayList<File>()));
+    }
+
+    @Test
+    public void testMissingOrCorruptSnapshot() throws IOException {
+        assertNull(GridDatasetSnapshot.read(snapshotFile));
+        try (FileOutputStream out = new FileOutputStream(snapshotFile)) {
+            out.write("not a snapshot".getBytes());
+        }
+        assertNull(GridDatasetSnapshot.read(snapshotFile));
+    }
+
+    private static final class SnapshotTestDataset extends GriddedDataset {
+        public SnapshotTestDataset(String id, Collection<GridVariableMetadata> vars) {
+            super(id, vars);
+        }
+
+        @Override
+        protected GridDataSource openDataSource() throws DataReadingException {
+            throw new UnsupportedOperationException("No data in snapshot tests");
+        }
+
+        @Override
+        protected DataReadingStrategy getDataReadingStrategy() {
+            return DataReadingStrategy.BOUNDING_BOX;
+        }
+    }
+}
@@ -0,0 +1,257 @@
+/*******************************************************************************
+ * Copyright (c) 2016 The University of Reading
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the University of Reading, nor the names of the
+ *    authors or contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ******************************************************************************/
+
+package uk.ac.rdg.resc.edal.dataset;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+import java.io.File;
+import java.io.IOException;
+
+import org.geotoolkit.referencing.crs.DefaultGeographicCRS;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import uk.ac.rdg.resc.edal.dataset.GridOverviews.Decimation;
+import uk.ac.rdg.resc.edal.dataset.GridOverviews.OverviewLevel;
+import uk.ac.rdg.resc.edal.exceptions.DataReadingException;
+import uk.ac.rdg.resc.edal.geometry.BoundingBoxImpl;
+import uk.ac.rdg.resc.edal.grid.RegularGridImpl;
+import uk.ac.rdg.resc.edal.util.Array2D;
+import uk.ac.rdg.resc.edal.util.Array4D;
+import uk.ac.rdg.resc.edal.util.ValuesArray4D;
+
+/**
+ * Test class for {@link GridOverviews}
+ * 
+ * @author Guy Griffiths
+ */
+public class GridOverviewsTest {
+    private static final int X_SIZE = 1024;
+    private static final int Y_SIZE = 512;
+    private static final String SLICE_ID = GridOverviews.getSliceId("var", null, null);
+
+    private File directory;
+    private GridDataSource dataSource;
+
+    @Before
+    public void setUp() throws IOException {
+        directory = File.createTempFile("overviews", "");
+        directory.delete();
+        /*
+         * The value at each point is i + X_SIZE * j
+         */
+        dataSource = new GridDataSource() {
+            @Override
+            public Array4D<Number> read(String variableId, int tmin, int tmax, int zmin,
+                    int zmax, int ymin, int ymax, int xmin, int xmax) {
+                Array4D<Number> ret = new ValuesArray4D(1, 1, ymax - ymin + 1, xmax - xmin + 1);
+                for (int j = ymin; j <= ymax; j++) {
+                    for (int i = xmin; i <= xmax; i++) {
+                        ret.set(i + X_SIZE * j, 0, 0, j - ymin, i - xmin);
+                    }
+                }
+                return ret;
+            }
+
+            @Override
+            public void close() throws DataReadingException {
+            }
+        };
+    }
+
+    @After
+    public void tearDown() {
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        directory.delete();
+    }
+
+    @Test
+    public void testNearestOverviews() throws IOException {
+        GridOverviews overviews = new GridOverviews(directory, Decimation.NEAREST);
+        assertNull(overviews.getLevel(SLICE_ID, 4));
+        overviews.generate(SLICE_ID, dataSource, DataReadingStrategy.BOUNDING_BOX, "var", 0, 0,
+                X_SIZE, Y_SIZE);
+
+        /*
+         * Levels are only generated down to MIN_LEVEL_SIZE, so the coarsest
+         * level here has a factor of 4
+         */
+        OverviewLevel level = overviews.getLevel(SLICE_ID, 16);
+        assertNotNull(level);
+        assertEquals(4, level.getFactor());
+        assertEquals(2, overviews.getLevel(SLICE_ID, 3).getFactor());
+        assertNull(overviews.getLevel(SLICE_ID, 1));
+
+        /*
+         * Values are taken from the centre of each 4x4 block
+         */
+        assertEquals(1 + X_SIZE * 1, level.getValue(0, 0), 0f);
+        assertEquals((4 * 100 + 1) + X_SIZE * (4 * 50 + 1), level.getValue(100, 50), 0f);
+        assertEquals(Float.NaN, level.getValue(X_SIZE / 4, 0), 0f);
+    }
+
+    @Test
+    public void testMeanOverviews() throws IOException {
+        GridOverviews overviews = new GridOverviews(directory, Decimation.MEAN);
+        overviews.generate(SLICE_ID, dataSource, DataReadingStrategy.BOUNDING_BOX, "var", 0, 0,
+                X_SIZE, Y_SIZE);
+
+        OverviewLevel level = overviews.getLevel(SLICE_ID, 2);
+        /*
+         * The mean of a 2x2 block starting at (i,j)
+         */
+        float expected = (2 * 10 + 0.5f) + X_SIZE * (2 * 20 + 0.5f);
+        assertEquals(expected, level.getValue(10, 20), 1e-3f);
+    }
+
+    @Test
+    public void testReadMapData() throws IOException {
+        GridOverviews overviews = new GridOverviews(directory, Decimation.NEAREST);
+        overviews.generate(SLICE_ID, dataSource, DataReadingStrategy.BOUNDING_BOX, "var", 0, 0,
+                X_SIZE, Y_SIZE);
+
+        RegularGridImpl sourceGrid = new RegularGridImpl(new BoundingBoxImpl(-180, -90, 180, 90,
+                DefaultGeographicCRS.WGS84), X_SIZE, Y_SIZE);
+        RegularGridImpl targetGrid = new RegularGridImpl(new BoundingBoxImpl(-180, -90, 180, 90,
+                DefaultGeographicCRS.WGS84), X_SIZE / 4, Y_SIZE / 4);
+        Domain2DMapper domainMapper = Domain2DMapper.forGrid(sourceGrid, targetGrid);
+        int factor = GridOverviews.getResolutionFactor(domainMapper);
+        assertEquals(4, factor);
+
+        OverviewLevel level = overviews.getLevel(SLICE_ID, factor);
+        Array2D<Number> data = GridOverviews.readMapData(level, domainMapper);
+        Array2D<Number> expected = DataReadingStrategy.BOUNDING_BOX.readMapData(dataSource,
+                "var", 0, 0, domainMapper);
+        /*
+         * Values may come from a different source point within the same 4x4
+         * block
+         */
+        float tolerance = (factor - 1) + X_SIZE * (factor - 1);
+        for (int j = 0; j < Y_SIZE / 4; j++) {
+            for (int i = 0; i < X_SIZE / 4; i++) {
+                assertEquals(expected.get(j, i).floatValue(), data.get(j, i).floatValue(),
+                        tolerance);
+            }
+        }
+
+        /*
+         * A target grid with the same resolution as the source cannot use
+         * overviews
+         */
+        assertEquals(1,
+                GridOverviews.getResolutionFactor(Domain2DMapper.forGrid(sourceGrid, sourceGrid)));
+    }
+
+    @Test
+    public void testClear() throws IOException {
+        GridOverviews overviews = new GridOverviews(directory, Decimation.NEAREST);
+        overviews.generate(SLICE_ID, dataSource, DataReadingStrategy.BOUNDING_BOX, "var", 0, 0,
+                X_SIZE, Y_SIZE);
+        overviews.clear();
+        assertNull(overviews.getLevel(SLICE_ID, 4));
+    }
+
+    @Test
+    public void testSourceStamp() throws IOException {
+        GridOverviews overviews = new GridOverviews(directory, Decimation.NEAREST, "stamp1",
+                GridOverviews.DEFAULT_MAX_DISK_SIZE);
+        overviews.generate(SLICE_ID, dataSource, DataReadingStrategy.BOUNDING_BOX, "var", 0, 0,
+                X_SIZE, Y_SIZE);
+
+        /*
+         * Levels are reused when the source data is unchanged...
+         */
+        overviews = new GridOverviews(directory, Decimation.NEAREST, "stamp1",
+                GridOverviews.DEFAULT_MAX_DISK_SIZE);
+        assertNotNull(overviews.getLevel(SLICE_ID, 4));
+
+        /*
+         * ...but not when it has changed...
+         */
+        overviews = new GridOverviews(directory, Decimation.NEAREST, "stamp2",
+                GridOverviews.DEFAULT_MAX_DISK_SIZE);
+        assertNull(overviews.getLevel(SLICE_ID, 4));
+
+        /*
+         * ...or when it cannot be checked
+         */
+        overviews = new GridOverviews(directory, Decimation.NEAREST, "stamp2",
+                GridOverviews.DEFAULT_MAX_DISK_SIZE);
+        overviews.generate(SLICE_ID, dataSource, DataReadingStrategy.BOUNDING_BOX, "var", 0, 0,
+                X_SIZE, Y_SIZE);
+        overviews = new GridOverviews(directory, Decimation.NEAREST);
+        assertNull(overviews.getLevel(SLICE_ID, 4));
+    }
+
+    @Test
+    public void testDataReadingStrategies() throws IOException {
+        for (Decimation decimation : Decimation.values()) {
+            GridOverviews overviews = new GridOverviews(directory, decimation);
+            overviews.generate(SLICE_ID, dataSource, DataReadingStrategy.BOUNDING_BOX, "var", 0,
+                    0, X_SIZE, Y_SIZE);
+            OverviewLevel expected = overviews.getLevel(SLICE_ID, 4);
+            for (DataReadingStrategy strategy : new DataReadingStrategy[] {
+                    DataReadingStrategy.SCANLINE, DataReadingStrategy.PIXEL_BY_PIXEL }) {
+                String sliceId = GridOverviews.getSliceId("var", strategy, null);
+                overviews.generate(sliceId, dataSource, strategy, "var", 0, 0, X_SIZE, Y_SIZE);
+                OverviewLevel level = overviews.getLevel(sliceId, 4);
+                for (int j = 0; j < Y_SIZE / 4; j++) {
+                    for (int i = 0; i < X_SIZE / 4; i++) {
+                        assertEquals(expected.getValue(i, j), level.getValue(i, j), 0f);
+                    }
+                }
+            }
+            overviews.clear();
+        }
+    }
+
+    @Test
+    public void testDiskBudget() throws IOException {
+        /*
+         * Room for the levels of one slice, but not two
+         */
+        GridOverviews overviews = new GridOverviews(directory, Decimation.NEAREST, "stamp",
+                (X_SIZE * Y_SIZE * 4) / 3);
+        String otherSliceId = GridOverviews.getSliceId("var", 1000L, null);
+        overviews.generate(SLICE_ID, dataSource, DataReadingStrategy.BOUNDING_BOX, "var", 0, 0,
+                X_SIZE, Y_SIZE);
+        overviews.generate(otherSliceId, dataSource, DataReadingStrategy.BOUNDING_BOX, "var", 0,
+                0, X_SIZE, Y_SIZE);
+        assertNull(overviews.getLevel(SLICE_ID, 4));
+        assertNotNull(overviews.getLevel(otherSliceId, 4));
+    }
+}
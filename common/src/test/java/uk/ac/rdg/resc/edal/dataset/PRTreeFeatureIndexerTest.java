@@ -29,10 +29,17 @@ package uk.ac.rdg.resc.edal.dataset;
 
 import static org.junit.Assert.*;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
 import java.util.TreeSet;
 
 import org.geotoolkit.referencing.crs.DefaultGeographicCRS;
@@ -183,6 +190,141 @@ public class PRTreeFeatureIndexerTest {
         findFeatureIds(bbox, verticalExtent, timeExtent, fIDs);
     }
 
+    /**
+     * Test the handle-based methods of {@link PRTreeFeatureIndexer}.
+     */
+    @Test
+    public void testFeatureHandles() throws IOException, ClassNotFoundException {
+        assertEquals(xSize * ySize, featureindexer.getNumberOfFeatures());
+        for (int handle = 0; handle < featureindexer.getNumberOfFeatures(); handle++) {
+            String id = featureindexer.getFeatureId(handle);
+            assertEquals(handle, featureindexer.getFeatureHandle(id));
+        }
+        assertEquals(-1, featureindexer.getFeatureHandle("not a feature"));
+        assertEquals(-1, featureindexer.getFeatureHandle(null));
+        assertFalse(featureindexer.getAllFeatureIds().contains("not a feature"));
+
+        BoundingBox bbox = new BoundingBoxImpl(100.0, 15.0, 102.5, 25.0, crs);
+        int[] handles = featureindexer.findFeatureHandles(bbox, verticalExtent, timeExtent,
+                varIDs);
+        Collection<String> ids = featureindexer.findFeatureIds(bbox, verticalExtent, timeExtent,
+                varIDs);
+        assertEquals(handles.length, ids.size());
+        Iterator<String> idIterator = ids.iterator();
+        for (int handle : handles) {
+            assertEquals(featureindexer.getFeatureId(handle), idIterator.next());
+        }
+
+        /*
+         * Indexers are serialised to avoid re-indexing large datasets
+         */
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+            out.writeObject(featureindexer);
+        }
+        FeatureIndexer deserialised;
+        try (ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(
+                bytes.toByteArray()))) {
+            deserialised = (FeatureIndexer) in.readObject();
+        }
+        assertArrayEquals(handles,
+                deserialised.findFeatureHandles(bbox, verticalExtent, timeExtent, varIDs));
+        assertEquals(featureindexer.getAllFeatureIds(), deserialised.getAllFeatureIds());
+    }
+
+    /**
+     * Test that the default handle methods of {@link FeatureIndexer} are
+     * consistent with each other for an indexer which only provides IDs
+     */
+    @Test
+    public void testDefaultHandleMethods() {
+        FeatureIndexer idOnlyIndexer = new FeatureIndexer() {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            public Collection<String> findFeatureIds(BoundingBox horizontalExtent,
+                    Extent<Double> verticalExtent, Extent<DateTime> timeExtent,
+                    Collection<String> variableIds) {
+                return featureindexer.findFeatureIds(horizontalExtent, verticalExtent,
+                        timeExtent, variableIds);
+            }
+
+            @Override
+            public Set<String> getAllFeatureIds() {
+                return featureindexer.getAllFeatureIds();
+            }
+
+            @Override
+            public void addFeatures(List<FeatureBounds> features) {
+                featureindexer.addFeatures(features);
+            }
+        };
+
+        assertEquals(xSize * ySize, idOnlyIndexer.getNumberOfFeatures());
+        /*
+         * The default methods scan all IDs, so only check a sample of handles
+         */
+        for (int handle = 0; handle < idOnlyIndexer.getNumberOfFeatures(); handle += 997) {
+            String id = idOnlyIndexer.getFeatureId(handle);
+            assertEquals(handle, idOnlyIndexer.getFeatureHandle(id));
+        }
+        assertEquals(-1, idOnlyIndexer.getFeatureHandle("not a feature"));
+        assertNull(idOnlyIndexer.getFeaturePosition(0));
+
+        BoundingBox bbox = new BoundingBoxImpl(100.0, 15.0, 102.5, 17.5, crs);
+        int[] handles = idOnlyIndexer.findFeatureHandles(bbox, verticalExtent, timeExtent,
+                varIDs);
+        Collection<String> ids = idOnlyIndexer.findFeatureIds(bbox, verticalExtent, timeExtent,
+                varIDs);
+        assertTrue(handles.length > 0);
+        assertEquals(ids.size(), handles.length);
+        Iterator<String> idIterator = ids.iterator();
+        for (int handle : handles) {
+            assertEquals(idIterator.next(), idOnlyIndexer.getFeatureId(handle));
+        }
+    }
+
+    /**
+     * Test that features are filtered by the variables they contain, and that
+     * features can be added and replaced after the index has been queried.
+     */
+    @Test
+    public void testVariableFilteringAndReplacement() {
+        BoundingBox bbox = new BoundingBoxImpl(100.0, 15.0, 102.5, 25.0, crs);
+        HashSet<String> temperature = new HashSet<>();
+        temperature.add("temperature");
+        HashSet<String> salinity = new HashSet<>();
+        salinity.add("salinity");
+
+        int nFeatures = featureindexer.findFeatureIds(bbox, null, null, temperature).size();
+        assertTrue(nFeatures > 0);
+        assertEquals(nFeatures, featureindexer.findFeatureIds(bbox, null, null, null).size());
+        assertTrue(featureindexer.findFeatureIds(bbox, null, null, salinity).isEmpty());
+
+        /*
+         * Replace one feature with one containing a different variable, and
+         * add a new one with both
+         */
+        String replacedId = featureindexer.findFeatureIds(bbox, null, null, null).iterator()
+                .next();
+        HashSet<String> both = new HashSet<>(salinity);
+        both.add("temperature");
+        HorizontalPosition pos = new HorizontalPosition(101.0, 20.0, crs);
+        List<FeatureIndexer.FeatureBounds> newFeatures = new ArrayList<>();
+        newFeatures.add(new FeatureIndexer.FeatureBounds(replacedId, pos, null, null, salinity));
+        newFeatures.add(new FeatureIndexer.FeatureBounds("new", pos, null, null, both));
+        featureindexer.addFeatures(newFeatures);
+
+        assertEquals(xSize * ySize + 1, featureindexer.getNumberOfFeatures());
+        Collection<String> salinityIds = featureindexer.findFeatureIds(bbox, null, null,
+                salinity);
+        assertEquals(2, salinityIds.size());
+        assertTrue(salinityIds.contains(replacedId));
+        assertTrue(salinityIds.contains("new"));
+        assertEquals(nFeatures, featureindexer.findFeatureIds(bbox, null, null, temperature)
+                .size());
+    }
+
     /**
      * Help method to do the real business of testing findFeatureIds
      * 
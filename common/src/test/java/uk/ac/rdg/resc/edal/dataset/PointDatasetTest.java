@@ -0,0 +1,226 @@
+/*******************************************************************************
+ * Copyright (c) 2016 The University of Reading
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the University of Reading, nor the names of the
+ *    authors or contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ******************************************************************************/
+
+package uk.ac.rdg.resc.edal.dataset;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.geotoolkit.referencing.crs.DefaultGeographicCRS;
+import org.joda.time.DateTime;
+import org.junit.Before;
+import org.junit.Test;
+
+import uk.ac.rdg.resc.edal.domain.Extent;
+import uk.ac.rdg.resc.edal.exceptions.DataReadingException;
+import uk.ac.rdg.resc.edal.feature.DiscreteFeature;
+import uk.ac.rdg.resc.edal.feature.PointFeature;
+import uk.ac.rdg.resc.edal.geometry.BoundingBox;
+import uk.ac.rdg.resc.edal.geometry.BoundingBoxImpl;
+import uk.ac.rdg.resc.edal.metadata.Parameter;
+import uk.ac.rdg.resc.edal.metadata.VariableMetadata;
+import uk.ac.rdg.resc.edal.position.GeoPosition;
+import uk.ac.rdg.resc.edal.position.HorizontalPosition;
+import uk.ac.rdg.resc.edal.util.Array1D;
+import uk.ac.rdg.resc.edal.util.CollectionUtils;
+
+/**
+ * Tests the streaming extraction of map features from a {@link PointDataset}
+ * 
+ * @author Guy Griffiths
+ */
+public class PointDatasetTest {
+    private static final int X_SIZE = 100;
+    private static final int Y_SIZE = 50;
+    private static final BoundingBox GLOBAL = new BoundingBoxImpl(-180, -90, 180, 90,
+            DefaultGeographicCRS.WGS84);
+
+    private TestPointDataset dataset;
+
+    @Before
+    public void setUp() {
+        Set<String> varIds = CollectionUtils.setOf("var");
+        List<FeatureIndexer.FeatureBounds> bounds = new ArrayList<>();
+        for (int j = 0; j < Y_SIZE; j++) {
+            for (int i = 0; i < X_SIZE; i++) {
+                HorizontalPosition pos = new HorizontalPosition(-179.9 + i * 3.6,
+                        -89.9 + j * 3.6, DefaultGeographicCRS.WGS84);
+                bounds.add(new FeatureIndexer.FeatureBounds((j * X_SIZE + i) + "", pos, null,
+                        null, varIds));
+            }
+        }
+        PRTreeFeatureIndexer indexer = new PRTreeFeatureIndexer();
+        indexer.addFeatures(bounds);
+        dataset = new TestPointDataset(indexer);
+    }
+
+    @Test
+    public void testStreamAllFeatures() {
+        PointFeatureStream<PointFeature> features = dataset.streamMapFeatures(
+                CollectionUtils.setOf("var"), GLOBAL, null, null, null, null, 0, 1, 1);
+        assertFalse(features.isThinned());
+        assertEquals(X_SIZE * Y_SIZE, features.getNumberOfFeaturesToRead());
+
+        Set<String> ids = new HashSet<>();
+        for (PointFeature feature : features) {
+            /*
+             * Features which fail to convert should have been skipped
+             */
+            assertFalse(Integer.parseInt(feature.getId()) % 7 == 0);
+            ids.add(feature.getId());
+        }
+        int expected = X_SIZE * Y_SIZE - (X_SIZE * Y_SIZE + 6) / 7;
+        assertEquals(expected, ids.size());
+
+        /*
+         * Features should have been read in batches
+         */
+        int batches = (X_SIZE * Y_SIZE + PointDataset.DEFAULT_STREAMING_BATCH_SIZE - 1)
+                / PointDataset.DEFAULT_STREAMING_BATCH_SIZE;
+        assertEquals(batches, dataset.reads);
+        assertEquals(PointDataset.DEFAULT_STREAMING_BATCH_SIZE, dataset.largestRead);
+
+        /*
+         * Counting the features reads them all again, but only the first time
+         */
+        assertEquals(expected, features.size());
+        assertEquals(expected, features.size());
+        assertEquals(2 * batches, dataset.reads);
+    }
+
+    @Test
+    public void testThinnedFeatures() {
+        /*
+         * A 10x10 grid over the globe holds exactly 10x5 of the features in
+         * each cell
+         */
+        PointFeatureStream<PointFeature> features = dataset.streamMapFeatures(
+                CollectionUtils.setOf("var"), GLOBAL, null, null, null, null, 1000, 10, 10);
+        assertTrue(features.isThinned());
+        assertEquals(100, features.getNumberOfFeaturesToRead());
+
+        Set<Integer> cells = new HashSet<>();
+        for (PointFeature feature : features) {
+            HorizontalPosition pos = feature.getHorizontalPosition();
+            int i = (int) ((pos.getX() + 180.0) / 36.0);
+            int j = (int) ((pos.getY() + 90.0) / 18.0);
+            assertTrue(cells.add(j * 10 + i));
+        }
+        /*
+         * Cells whose first feature has no value (every 7th one) should fall
+         * back to the next feature in the cell, so every cell is filled
+         */
+        assertEquals(100, cells.size());
+        assertEquals(100, features.size());
+
+        /*
+         * The cap applies when there are more cells than allowed features
+         */
+        features = dataset.streamMapFeatures(CollectionUtils.setOf("var"), GLOBAL, null, null,
+                null, null, 20, 10, 10);
+        assertTrue(features.isThinned());
+        assertEquals(20, features.getNumberOfFeaturesToRead());
+
+        /*
+         * No thinning happens below the cap
+         */
+        features = dataset.streamMapFeatures(CollectionUtils.setOf("var"), GLOBAL, null, null,
+                null, null, X_SIZE * Y_SIZE, 10, 10);
+        assertFalse(features.isThinned());
+        assertEquals(X_SIZE * Y_SIZE, features.getNumberOfFeaturesToRead());
+    }
+
+    private static class TestPointDataset extends PointDataset<PointFeature> {
+        private int reads = 0;
+        private int largestRead = 0;
+
+        public TestPointDataset(FeatureIndexer featureIndexer) {
+            super("test", new ArrayList<VariableMetadata>(), featureIndexer, GLOBAL, null, null);
+        }
+
+        @Override
+        public Class<? extends DiscreteFeature<?, ?>> getFeatureType(String variableId) {
+            return PointFeature.class;
+        }
+
+        @Override
+        public boolean supportsProfileFeatureExtraction(String varId) {
+            return false;
+        }
+
+        @Override
+        public boolean supportsTimeseriesExtraction(String varId) {
+            return false;
+        }
+
+        @Override
+        protected PointFeature convertFeature(PointFeature feature, BoundingBox hExtent,
+                Extent<Double> zExtent, Extent<DateTime> tExtent, Double targetZ,
+                DateTime targetT) {
+            if (Integer.parseInt(feature.getId()) % 7 == 0) {
+                return null;
+            }
+            return feature;
+        }
+
+        @Override
+        public DiscreteFeatureReader<PointFeature> getFeatureReader() {
+            return new DiscreteFeatureReader<PointFeature>() {
+                @Override
+                public PointFeature readFeature(String id, Set<String> variableIds)
+                        throws DataReadingException {
+                    int index = Integer.parseInt(id);
+                    HorizontalPosition pos = new HorizontalPosition(
+                            -179.9 + (index % X_SIZE) * 3.6, -89.9 + (index / X_SIZE) * 3.6,
+                            DefaultGeographicCRS.WGS84);
+                    return new PointFeature(id, id, id, new GeoPosition(pos, null, null),
+                            new HashMap<String, Parameter>(),
+                            new HashMap<String, Array1D<Number>>());
+                }
+
+                @Override
+                public Collection<PointFeature> readFeatures(Collection<String> ids,
+                        Set<String> variableIds) throws DataReadingException {
+                    reads++;
+                    largestRead = Math.max(largestRead, ids.size());
+                    List<PointFeature> features = new ArrayList<>();
+                    for (String id : ids) {
+                        features.add(readFeature(id, variableIds));
+                    }
+                    return features;
+                }
+            };
+        }
+    }
+}
@@ -32,6 +32,7 @@ import static org.junit.Assert.*;
 
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
 
 import org.joda.time.Chronology;
 import org.joda.time.DateTime;
@@ -152,6 +153,101 @@ public class TimeAxisImplTest {
         assertFalse(ta.isAscending());
     }
 
+    /**
+     * Test that regularly and irregularly spaced axes behave the same
+     */
+    @Test
+    public void testRegularAndIrregular() {
+        // the setUp() axis is regular. Make an irregular one by adding a value
+        List<DateTime> irregularTimes = new ArrayList<>(datetimes);
+        irregularTimes.add(start.plusDays(numberOfDate).plusHours(1));
+        TimeAxis irregular = new TimeAxisImpl(tAxisName, irregularTimes);
+
+        for (int i = 0; i <= numberOfDate; i++) {
+            assertEquals(tAxis.getCoordinateValue(i), irregular.getCoordinateValue(i));
+            // Just before and after each value should round to the nearest
+            DateTime time = start.plusDays(i);
+            if (i > 0) {
+                assertEquals(i, tAxis.findIndexOf(time.minusHours(11)));
+                assertEquals(i, irregular.findIndexOf(time.minusHours(11)));
+            }
+            if (i < numberOfDate) {
+                assertEquals(i, tAxis.findIndexOf(time.plusHours(11)));
+                assertEquals(i, irregular.findIndexOf(time.plusHours(11)));
+                // Equidistant values go to the lower index
+                assertEquals(i, tAxis.findIndexOf(time.plusHours(12)));
+                assertEquals(i, irregular.findIndexOf(time.plusHours(12)));
+            }
+        }
+        assertEquals(-1, tAxis.findIndexOf(start.minusHours(1)));
+        assertEquals(-1, irregular.findIndexOf(start.minusHours(1)));
+        assertEquals(numberOfDate + 1, irregular.findIndexOf(start.plusDays(numberOfDate)
+                .plusHours(1)));
+        assertEquals(-1, irregular.findIndexOf(start.plusDays(numberOfDate).plusHours(2)));
+    }
+
+    /**
+     * Test that axes created from millisecond values are equal to those
+     * created from {@link DateTime}s, including reversed axes
+     */
+    @Test
+    public void testMillisConstructor() {
+        long[] millis = new long[numberOfDate + 1];
+        long[] reversedMillis = new long[numberOfDate + 1];
+        List<DateTime> reversedTimes = new ArrayList<>();
+        for (int i = 0; i < millis.length; i++) {
+            millis[i] = datetimes.get(i).getMillis();
+            reversedMillis[i] = datetimes.get(numberOfDate - i).getMillis();
+            reversedTimes.add(datetimes.get(numberOfDate - i));
+        }
+        TimeAxisImpl fromMillis = new TimeAxisImpl(tAxisName, millis, chronology);
+        assertEquals(tAxis, fromMillis);
+        assertEquals(tAxis.hashCode(), fromMillis.hashCode());
+        assertEquals(datetimes, fromMillis.getCoordinateValues());
+
+        TimeAxisImpl reversed = new TimeAxisImpl(tAxisName, reversedMillis, chronology);
+        assertFalse(reversed.isAscending());
+        assertEquals(new TimeAxisImpl(tAxisName, reversedTimes), reversed);
+        assertEquals(reversedTimes, reversed.getCoordinateValues());
+        assertEquals(reversedMillis[2], reversed.getCoordinateMillis(2));
+        assertEquals(2, reversed.findIndexOf(reversedTimes.get(2)));
+        assertFalse(tAxis.equals(reversed));
+
+        try {
+            new TimeAxisImpl(tAxisName, new long[] { 0L, 10L, 5L }, chronology);
+            fail("Non-monotonic axis values should not be accepted");
+        } catch (IllegalArgumentException e) {
+            // Expected
+        }
+    }
+
+    /**
+     * Test the method of {@link TimeAxisImpl#getDatesWithData}.
+     */
+    @Test
+    public void testGetDatesWithData() {
+        Map<Integer, Map<Integer, List<Integer>>> dates = ((TimeAxisImpl) tAxis)
+                .getDatesWithData();
+        // 1999-12-01 to 1999-12-11
+        assertEquals(1, dates.size());
+        List<Integer> days = dates.get(1999).get(12);
+        assertEquals(numberOfDate + 1, days.size());
+        for (int i = 0; i < days.size(); i++) {
+            assertEquals(i + 1, days.get(i).intValue());
+        }
+
+        List<DateTime> times = new ArrayList<>();
+        for (int i = 0; i < 8; i++) {
+            times.add(new DateTime(1999, 12, 31, 0, 0, chronology).plusHours(6 * i));
+        }
+        dates = new TimeAxisImpl(tAxisName, times).getDatesWithData();
+        assertEquals(2, dates.size());
+        assertEquals(1, dates.get(1999).size());
+        assertEquals(1, dates.get(1999).get(12).size());
+        assertEquals(31, dates.get(1999).get(12).get(0).intValue());
+        assertEquals(1, dates.get(2000).get(1).get(0).intValue());
+    }
+
     /**
      * Test the method of {@link TimeAxisImpl#size}.
      */
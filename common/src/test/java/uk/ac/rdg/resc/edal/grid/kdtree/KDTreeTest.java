@@ -0,0 +1,195 @@
+/*******************************************************************************
+ * Copyright (c) 2016 The University of Reading
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the University of Reading, nor the names of the
+ *    authors or contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ******************************************************************************/
+
+package uk.ac.rdg.resc.edal.grid.kdtree;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import org.geotoolkit.referencing.crs.DefaultGeographicCRS;
+import org.junit.Before;
+import org.junit.Test;
+
+import uk.ac.rdg.resc.edal.geometry.BoundingBoxImpl;
+import uk.ac.rdg.resc.edal.position.HorizontalPosition;
+import uk.ac.rdg.resc.edal.util.GISUtils;
+
+/**
+ * Tests {@link KDTree} queries against brute-force searches
+ * 
+ * @author Guy Griffiths
+ */
+public class KDTreeTest {
+    private static final int N_POINTS = 5000;
+
+    private double[] xs;
+    private double[] ys;
+    private KDTree tree;
+    private Random random;
+
+    @Before
+    public void setUp() {
+        random = new Random(1234L);
+        xs = new double[N_POINTS];
+        ys = new double[N_POINTS];
+        List<HorizontalPosition> positions = new ArrayList<>();
+        for (int i = 0; i < N_POINTS; i++) {
+            /*
+             * Include some duplicated co-ordinates to check that the build
+             * copes with equal keys
+             */
+            xs[i] = i % 10 == 0 ? 10.0 : random.nextDouble() * 360.0 - 180.0;
+            ys[i] = random.nextDouble() * 180.0 - 90.0;
+            positions.add(new HorizontalPosition(xs[i], ys[i], DefaultGeographicCRS.WGS84));
+        }
+        tree = new KDTree(positions);
+        tree.buildTree();
+    }
+
+    private double lonDistSquared(int i, double x, double y) {
+        double dx = Math.abs(GISUtils.constrainLongitude360(xs[i])
+                - GISUtils.constrainLongitude360(x));
+        dx = Math.min(dx, 360.0 - dx);
+        double dy = ys[i] - y;
+        return dx * dx + dy * dy;
+    }
+
+    @Test
+    public void testNearestNeighbour() {
+        for (int q = 0; q < 1000; q++) {
+            double x = random.nextDouble() * 360.0 - 180.0;
+            double y = random.nextDouble() * 180.0 - 90.0;
+            double bestDist = Double.MAX_VALUE;
+            for (int i = 0; i < N_POINTS; i++) {
+                bestDist = Math.min(bestDist, lonDistSquared(i, x, y));
+            }
+            int found = tree.nearestNeighbour(new HorizontalPosition(x, y,
+                    DefaultGeographicCRS.WGS84));
+            assertEquals(bestDist, lonDistSquared(found, x, y), 1e-9);
+        }
+    }
+
+    @Test
+    public void testNearestNeighbourAcrossDateLine() {
+        KDTree wrapTree = new KDTree(new double[] { 179.5, -170.0, 0.0 }, new double[] { 0.0,
+                0.0, 0.0 }, DefaultGeographicCRS.WGS84);
+        wrapTree.buildTree();
+        assertEquals(0, wrapTree.nearestNeighbour(-179.9, 0.0));
+        assertEquals(1, wrapTree.nearestNeighbour(-171.0, 0.0));
+        assertEquals(2, wrapTree.nearestNeighbour(359.0 - 360.0, 0.0));
+        assertArrayEquals(new int[] { 0, 1 }, wrapTree.nearestNeighbours(new HorizontalPosition(
+                179.9, 0.0, DefaultGeographicCRS.WGS84), 2));
+    }
+
+    @Test
+    public void testNearestNeighbours() {
+        int k = 8;
+        for (int q = 0; q < 200; q++) {
+            final double x = random.nextDouble() * 360.0 - 180.0;
+            final double y = random.nextDouble() * 180.0 - 90.0;
+            double[] dists = new double[N_POINTS];
+            for (int i = 0; i < N_POINTS; i++) {
+                dists[i] = lonDistSquared(i, x, y);
+            }
+            Arrays.sort(dists);
+            int[] found = tree.nearestNeighbours(new HorizontalPosition(x, y,
+                    DefaultGeographicCRS.WGS84), k);
+            assertEquals(k, found.length);
+            for (int i = 0; i < k; i++) {
+                assertEquals(dists[i], lonDistSquared(found[i], x, y), 1e-9);
+            }
+        }
+        assertEquals(0, tree.nearestNeighbours(new HorizontalPosition(0, 0,
+                DefaultGeographicCRS.WGS84), 0).length);
+    }
+
+    @Test
+    public void testRangeQuery() {
+        checkRange(-20.0, -10.0, 30.0, 25.0);
+        checkRange(5.0, -90.0, 15.0, 90.0);
+        /*
+         * Crosses the date line
+         */
+        checkRange(170.0, -40.0, 200.0, 40.0);
+        checkRange(-190.0, -40.0, -170.0, 40.0);
+        checkRange(-180.0, -90.0, 180.0, 90.0);
+    }
+
+    private void checkRange(double minX, double minY, double maxX, double maxY) {
+        int[] found = tree.rangeQuery(new BoundingBoxImpl(minX, minY, maxX, maxY,
+                DefaultGeographicCRS.WGS84));
+        Arrays.sort(found);
+        List<Integer> expected = new ArrayList<>();
+        double width = maxX - minX;
+        double min360 = GISUtils.constrainLongitude360(minX);
+        for (int i = 0; i < N_POINTS; i++) {
+            double offset = GISUtils.constrainLongitude360(xs[i]) - min360;
+            if (offset < 0) {
+                offset += 360.0;
+            }
+            if ((width >= 360.0 || offset <= width) && ys[i] >= minY && ys[i] <= maxY) {
+                expected.add(i);
+            }
+        }
+        assertEquals(expected.size(), found.length);
+        for (int i = 0; i < found.length; i++) {
+            assertEquals(expected.get(i).intValue(), found[i]);
+        }
+    }
+
+    @Test
+    public void testParallelBuild() {
+        int n = 100000;
+        double[] bigXs = new double[n];
+        double[] bigYs = new double[n];
+        for (int i = 0; i < n; i++) {
+            bigXs[i] = random.nextDouble() * 1000.0;
+            bigYs[i] = random.nextDouble() * 1000.0;
+        }
+        KDTree bigTree = new KDTree(bigXs, bigYs, null);
+        bigTree.buildTree();
+        for (int q = 0; q < 100; q++) {
+            double x = random.nextDouble() * 1000.0;
+            double y = random.nextDouble() * 1000.0;
+            double bestDist = Double.MAX_VALUE;
+            int best = -1;
+            for (int i = 0; i < n; i++) {
+                double dist = (bigXs[i] - x) * (bigXs[i] - x) + (bigYs[i] - y) * (bigYs[i] - y);
+                if (dist < bestDist) {
+                    bestDist = dist;
+                    best = i;
+                }
+            }
+            assertEquals(best, bigTree.nearestNeighbour(x, y));
+        }
+    }
+}
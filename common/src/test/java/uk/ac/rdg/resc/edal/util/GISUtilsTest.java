@@ -38,6 +38,7 @@ import java.util.List;
 import org.geotoolkit.referencing.crs.DefaultGeographicCRS;
 import org.joda.time.DateTime;
 import org.junit.Test;
+import org.opengis.referencing.crs.CoordinateReferenceSystem;
 
 import uk.ac.rdg.resc.edal.exceptions.EdalException;
 import uk.ac.rdg.resc.edal.geometry.BoundingBox;
@@ -45,6 +46,7 @@ import uk.ac.rdg.resc.edal.geometry.BoundingBoxImpl;
 import uk.ac.rdg.resc.edal.grid.TimeAxis;
 import uk.ac.rdg.resc.edal.grid.TimeAxisImpl;
 import uk.ac.rdg.resc.edal.grid.VerticalAxisImpl;
+import uk.ac.rdg.resc.edal.position.HorizontalPosition;
 import uk.ac.rdg.resc.edal.position.VerticalCrs;
 import uk.ac.rdg.resc.edal.position.VerticalCrsImpl;
 
@@ -235,4 +237,37 @@ public class GISUtilsTest {
         verticalAxis = new VerticalAxisImpl("z-axis", values, vCrs);
         assertEquals(-5.0, GISUtils.getClosestElevationToSurface(verticalAxis), 1e-8);
     }
+
+    /**
+     * Test that {@link GISUtils#transformPositions} gives the same results as
+     * transforming each position individually
+     */
+    @Test
+    public void testTransformPositions() throws EdalException {
+        CoordinateReferenceSystem japanArea = GISUtils.getCrs("EPSG:2450");
+        double[] xs = new double[] { 135.0, 136.5, 138.25 };
+        double[] ys = new double[] { 34.0, 35.5, 36.75 };
+        double[] transformedXs = xs.clone();
+        double[] transformedYs = ys.clone();
+        GISUtils.transformPositions(transformedXs, transformedYs, DefaultGeographicCRS.WGS84,
+                japanArea);
+        for (int i = 0; i < xs.length; i++) {
+            HorizontalPosition transformed = GISUtils.transformPosition(new HorizontalPosition(
+                    xs[i], ys[i], DefaultGeographicCRS.WGS84), japanArea);
+            assertEquals(transformed.getX(), transformedXs[i], 1e-6);
+            assertEquals(transformed.getY(), transformedYs[i], 1e-6);
+        }
+
+        /*
+         * Identity transforms should leave the positions untouched
+         */
+        transformedXs = xs.clone();
+        transformedYs = ys.clone();
+        GISUtils.transformPositions(transformedXs, transformedYs, DefaultGeographicCRS.WGS84,
+                DefaultGeographicCRS.WGS84);
+        for (int i = 0; i < xs.length; i++) {
+            assertEquals(xs[i], transformedXs[i], 0.0);
+            assertEquals(ys[i], transformedYs[i], 0.0);
+        }
+    }
 }
@@ -0,0 +1,107 @@
+/*******************************************************************************
+ * Copyright (c) 2016 The University of Reading
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the University of Reading, nor the names of the
+ *    authors or contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ******************************************************************************/
+
+package uk.ac.rdg.resc.edal.util;
+
+import static org.junit.Assert.*;
+
+import java.util.Map;
+
+import org.junit.After;
+import org.junit.Test;
+
+/**
+ * Tests for {@link RequestTrace}
+ * 
+ * @author Guy Griffiths
+ */
+public class RequestTraceTest {
+    @After
+    public void tearDown() {
+        RequestTrace.setCurrent(null);
+    }
+
+    @Test
+    public void testNoCurrentTrace() {
+        assertNull(RequestTrace.current());
+        /*
+         * These should do nothing
+         */
+        RequestTrace.endStage(RequestTrace.DATA_READ, RequestTrace.startStage());
+        RequestTrace.count(RequestTrace.VALUES_READ, 10);
+        assertNull(RequestTrace.current());
+    }
+
+    @Test
+    public void testRecording() {
+        RequestTrace trace = RequestTrace.begin("GetMap");
+        assertSame(trace, RequestTrace.current());
+
+        RequestTrace.endStage(RequestTrace.DATA_READ, RequestTrace.startStage() - 1000L);
+        RequestTrace.endStage(RequestTrace.DATA_READ, RequestTrace.startStage() - 1000L);
+        RequestTrace.endStage(RequestTrace.ENCODING, RequestTrace.startStage());
+        RequestTrace.count(RequestTrace.VALUES_READ, 10);
+        RequestTrace.count(RequestTrace.VALUES_READ, 5);
+        RequestTrace.count(RequestTrace.CACHE_HITS, 1);
+        trace.finish();
+
+        Map<String, Long> stages = trace.getStageNanos();
+        assertEquals(2, stages.size());
+        assertTrue(stages.get(RequestTrace.DATA_READ) >= 2000L);
+        assertTrue(stages.containsKey(RequestTrace.ENCODING));
+
+        Map<String, Long> counts = trace.getCounts();
+        assertEquals(Long.valueOf(15L), counts.get(RequestTrace.VALUES_READ));
+        assertEquals(Long.valueOf(1L), counts.get(RequestTrace.CACHE_HITS));
+
+        long elapsed = trace.getElapsedNanos();
+        assertTrue(elapsed >= 0);
+        assertEquals(elapsed, trace.getElapsedNanos());
+        assertTrue(trace.toString().startsWith("GetMap took "));
+    }
+
+    @Test
+    public void testOtherThreads() throws InterruptedException {
+        final RequestTrace trace = RequestTrace.begin("GetMap");
+        Thread worker = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                /*
+                 * Traces are not inherited by new threads
+                 */
+                RequestTrace.count(RequestTrace.PIXELS_MAPPED, 100);
+                RequestTrace.setCurrent(trace);
+                RequestTrace.count(RequestTrace.PIXELS_MAPPED, 10);
+                RequestTrace.setCurrent(null);
+            }
+        });
+        worker.start();
+        worker.join();
+        assertEquals(Long.valueOf(10L), trace.getCounts().get(RequestTrace.PIXELS_MAPPED));
+    }
+}
@@ -36,6 +36,7 @@ import java.util.HashSet;
 import java.util.Set;
 
 import uk.ac.rdg.resc.edal.exceptions.EdalException;
+import uk.ac.rdg.resc.edal.graphics.utils.ImageSampling;
 import uk.ac.rdg.resc.edal.graphics.utils.VectorFactory;
 import uk.ac.rdg.resc.edal.metadata.VariableMetadata;
 import uk.ac.rdg.resc.edal.position.HorizontalPosition;
@@ -92,83 +93,67 @@ public class ArrowLayer extends GriddedImageLayer {
     @Override
     protected void drawIntoImage(BufferedImage image, MapFeatureDataReader dataReader)
             throws EdalException {
-        Array2D<Number> values = dataReader.getDataForLayerName(directionFieldName);
-
         Graphics2D g = image.createGraphics();
         g.setColor(arrowBackground);
         g.fillRect(0, 0, image.getWidth(), image.getHeight());
         g.setColor(arrowColour);
 
-        int width = image.getWidth();
-        int height = image.getHeight();
-
         /*
-         * Calculate the (floating point) number of pixels per arrow. In ideal
-         * situations, this will be an integer equal to the arrow size * 2
-         * 
-         * For non-ideal situations it means that the arrows will not be evenly
-         * spaced (they will be either n or n+1 pixels apart). They will tile
-         * perfectly though.
+         * We only draw an arrow every (arrow size * 2) pixels, so only read the
+         * data at those pixels
          */
-        double xPixelsPerArrow = ((double) width) / (width / (arrowSize * 2));
-        double yPixelsPerArrow = ((double) height) / (height / (arrowSize * 2));
-        double xLoc = xPixelsPerArrow / 2;
-        double yLoc = yPixelsPerArrow / 2;
-
-        Array<HorizontalPosition> domainObjects = dataReader
-                .getMapDomainObjects(directionFieldName);
-
-        for (int j = 0; j < height; j++) {
-            if (yLoc > yPixelsPerArrow) {
-                yLoc -= yPixelsPerArrow;
-                for (int i = 0; i < width; i++) {
-                    if (xLoc > xPixelsPerArrow) {
-                        xLoc -= xPixelsPerArrow;
-
+        ImageSampling sampling = ImageSampling.forSpacing(image.getWidth(), image.getHeight(),
+                arrowSize * 2);
+        if (sampling.getXSize() == 0 || sampling.getYSize() == 0) {
+            return;
+        }
+        Array2D<Number> values = dataReader.getSampledDataForLayerName(directionFieldName,
+                sampling);
+        Array<HorizontalPosition> domainObjects = dataReader.getSampledMapDomainObjects(
+                directionFieldName, sampling);
+
+        for (int y = 0; y < sampling.getYSize(); y++) {
+            int j = sampling.getYPixel(y);
+            for (int x = 0; x < sampling.getXSize(); x++) {
+                int i = sampling.getXPixel(x);
+                /*
+                 * We are at a point where we need to draw an arrow
+                 */
+                Double angle = GISUtils.transformWgs84Heading(values.get(y, x),
+                        domainObjects.get(y, x));
+                if (angle != null && !Float.isNaN(angle.floatValue())) {
+                    if (arrowStyle == ArrowStyle.UPSTREAM) {
+                        /* Convert from degrees to radians */
+                        angle = angle * GISUtils.DEG2RAD;
+                        /* Calculate the end point of the arrow */
+                        double iEnd = i + arrowSize * Math.sin(angle);
+                        /*
+                         * Screen coordinates go down, but north is up, hence
+                         * the minus sign
+                         */
+                        double jEnd = j - arrowSize * Math.cos(angle);
+                        /* Draw a dot representing the data location */
+                        g.fillOval(i - 2, j - 2, 4, 4);
+                        /* Draw a line representing the vector direction */
+                        g.setStroke(new BasicStroke(1));
+                        g.drawLine(i, j, (int) Math.round(iEnd), (int) Math.round(jEnd));
+                    } else if (arrowStyle == ArrowStyle.THIN_ARROW) {
                         /*
-                         * We are at a point where we need to draw an arrow
+                         * The overall arrow size is 11 for things returned
+                         * from the VectorFactory, so we divide the arrow size
+                         * by 11 to get the scale factor.
                          */
-                        Double angle = GISUtils.transformWgs84Heading(values.get(j, i),
-                                domainObjects.get(j, i));
-                        if (angle != null && !Float.isNaN(angle.floatValue())) {
-                            if (arrowStyle == ArrowStyle.UPSTREAM) {
-                                /* Convert from degrees to radians */
-                                angle = angle * GISUtils.DEG2RAD;
-                                /* Calculate the end point of the arrow */
-                                double iEnd = i + arrowSize * Math.sin(angle);
-                                /*
-                                 * Screen coordinates go down, but north is up,
-                                 * hence the minus sign
-                                 */
-                                double jEnd = j - arrowSize * Math.cos(angle);
-                                /* Draw a dot representing the data location */
-                                g.fillOval(i - 2, j - 2, 4, 4);
-                                /* Draw a line representing the vector direction */
-                                g.setStroke(new BasicStroke(1));
-                                g.drawLine(i, j, (int) Math.round(iEnd), (int) Math.round(jEnd));
-                            } else if (arrowStyle == ArrowStyle.THIN_ARROW) {
-                                /*
-                                 * The overall arrow size is 11 for things
-                                 * returned from the VectorFactory, so we
-                                 * divide the arrow size by 11 to get the
-                                 * scale factor.
-                                 */
-                                VectorFactory.renderVector("LINEVEC", angle.doubleValue() * Math.PI
-                                        / 180.0, i, j, arrowSize / 11f, g);
-                            } else if (arrowStyle == ArrowStyle.FAT_ARROW) {
-                                VectorFactory.renderVector("STUMPVEC", angle.doubleValue()
-                                        * Math.PI / 180.0, i, j, arrowSize / 11f, g);
-                            } else if (arrowStyle == ArrowStyle.TRI_ARROW) {
-                                VectorFactory.renderVector("TRIVEC", angle.doubleValue() * Math.PI
-                                        / 180.0, i, j, arrowSize / 11f, g);
-                            }
-
-                        }
+                        VectorFactory.renderVector("LINEVEC", angle.doubleValue() * Math.PI
+                                / 180.0, i, j, arrowSize / 11f, g);
+                    } else if (arrowStyle == ArrowStyle.FAT_ARROW) {
+                        VectorFactory.renderVector("STUMPVEC", angle.doubleValue() * Math.PI
+                                / 180.0, i, j, arrowSize / 11f, g);
+                    } else if (arrowStyle == ArrowStyle.TRI_ARROW) {
+                        VectorFactory.renderVector("TRIVEC", angle.doubleValue() * Math.PI
+                                / 180.0, i, j, arrowSize / 11f, g);
                     }
-                    xLoc += 1.0;
                 }
             }
-            yLoc += 1.0;
         }
     }
 
@@ -0,0 +1,154 @@
+/*******************************************************************************
+ * Copyright (c) 2016 The University of Reading
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the University of Reading, nor the names of the
+ *    authors or contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ******************************************************************************/
+
+package uk.ac.rdg.resc.edal.graphics.style;
+
+/**
+ * A compiled form of a {@link SegmentColourScheme}. The palette is held as an
+ * array of ARGB values, and values are mapped onto it with a precomputed
+ * linear or logarithmic index function, so that large numbers of values can be
+ * coloured without any object allocation.
+ * 
+ * This gives identical results to {@link SegmentColourScheme#getColor(Number)}
+ * 
+ * @author Guy Griffiths
+ */
+public final class ColourLookupTable {
+    private final int[] colours;
+    private final int belowMin;
+    private final int aboveMax;
+    private final int noData;
+
+    private final float scaleMin;
+    private final float scaleRange;
+
+    private final boolean logarithmic;
+    private final double logScaleMin;
+    private final double logScaleRange;
+
+    /**
+     * Creates a new {@link ColourLookupTable}
+     * 
+     * @param colours
+     *            The ARGB values of the palette, from lowest to highest
+     * @param belowMin
+     *            The ARGB value to use for values below the minimum of the
+     *            scale
+     * @param aboveMax
+     *            The ARGB value to use for values above the maximum of the
+     *            scale
+     * @param noData
+     *            The ARGB value to use for missing data
+     * @param scaleRange
+     *            The {@link ScaleRange} to map onto the palette
+     */
+    public ColourLookupTable(int[] colours, int belowMin, int aboveMax, int noData,
+            ScaleRange scaleRange) {
+        if (colours.length == 0) {
+            throw new IllegalArgumentException("Must have at least one colour in the palette");
+        }
+        this.colours = colours;
+        this.belowMin = belowMin;
+        this.aboveMax = aboveMax;
+        this.noData = noData;
+
+        this.scaleMin = scaleRange.getScaleMin();
+        this.scaleRange = scaleRange.getScaleMax() - scaleMin;
+
+        this.logarithmic = scaleRange.isLogarithmic();
+        if (logarithmic && scaleRange.getScaleMin() > 0.0 && scaleRange.getScaleMax() > 0.0) {
+            logScaleMin = Math.log(scaleRange.getScaleMin());
+            logScaleRange = Math.log(scaleRange.getScaleMax()) - logScaleMin;
+        } else {
+            /*
+             * Either not logarithmic, or an invalid logarithmic range. In the
+             * latter case we only complain if we actually need to colour a
+             * value, which is consistent with ScaleRange
+             */
+            logScaleMin = Double.NaN;
+            logScaleRange = Double.NaN;
+        }
+    }
+
+    /**
+     * @param value
+     *            The value to get a colour for. Missing values should be
+     *            represented as {@link Float#NaN}
+     * @return The ARGB value of the colour for the given value
+     */
+    public int getArgb(float value) {
+        if (Float.isNaN(value)) {
+            return noData;
+        }
+        float frac;
+        if (logarithmic) {
+            if (Double.isNaN(logScaleMin)) {
+                throw new IllegalArgumentException("Cannot log-scale zero/negative numbers");
+            }
+            if (value <= 0.0f) {
+                return belowMin;
+            }
+            frac = (float) ((Math.log(value) - logScaleMin) / logScaleRange);
+        } else {
+            frac = (value - scaleMin) / scaleRange;
+        }
+        if (frac < 0.0f) {
+            return belowMin;
+        }
+        if (frac > 1.0f) {
+            return aboveMax;
+        }
+        if (Float.isNaN(frac)) {
+            /*
+             * Can happen with a zero-width scale range
+             */
+            return noData;
+        }
+        int i = (int) (frac * colours.length);
+        if (i == colours.length) {
+            i--;
+        }
+        return colours[i];
+    }
+
+    /**
+     * Maps an array of values to ARGB colours
+     * 
+     * @param values
+     *            The values to map. Missing values should be represented as
+     *            {@link Float#NaN}
+     * @param out
+     *            The array to write the ARGB values into. This must be at least
+     *            as long as <code>values</code>
+     */
+    public void mapToArgb(float[] values, int[] out) {
+        for (int i = 0; i < values.length; i++) {
+            out[i] = getArgb(values[i]);
+        }
+    }
+}
@@ -102,20 +102,23 @@ public abstract class ColourScheme {
         float newLow = getScaleMin() - range * fracOutOfRangeLow;
         float newHigh = getScaleMax() + range * fracOutOfRangeHigh;
         range = newHigh - newLow;
+        /*
+         * The colour only varies along one direction, so calculate the colours
+         * once and then fill the image with them
+         */
+        float[] values = new float[componentSize];
+        for (int k = 0; k < componentSize; k++) {
+            values[k] = newLow + (((float) k) / componentSize) * range;
+        }
+        int[] colours = new int[componentSize];
+        mapToArgb(values, colours);
+        int[] pixels = new int[width * height];
         for (int i = 0; i < width; i++) {
             for (int j = 0; j < height; j++) {
-                float frac;
-                if (vertical) {
-                    frac = ((float) j) / height;
-                } else {
-                    frac = ((float) i) / width;
-                }
-
-                frac = newLow + frac * range;
-
-                scaleBar.setRGB(i, height - j - 1, getColor(frac).getRGB());
+                pixels[(height - j - 1) * width + i] = colours[vertical ? j : i];
             }
         }
+        scaleBar.setRGB(0, 0, width, height, pixels, 0, width);
 
         BufferedImage finalImage;
         if (legendLabels == null) {
@@ -156,6 +159,25 @@ public abstract class ColourScheme {
      */
     public abstract Color getColor(Number value);
 
+    /**
+     * Maps an array of values to ARGB colours. Subclasses which can map values
+     * more efficiently than by repeatedly calling {@link #getColor(Number)}
+     * should override this method.
+     * 
+     * @param values
+     *            The values to map. Missing values should be represented as
+     *            {@link Float#NaN}
+     * @param out
+     *            The array to write the ARGB values into. This must be at least
+     *            as long as <code>values</code>
+     */
+    public void mapToArgb(float[] values, int[] out) {
+        for (int i = 0; i < values.length; i++) {
+            float value = values[i];
+            out[i] = getColor(Float.isNaN(value) ? null : value).getRGB();
+        }
+    }
+
     /**
      * @return The minimum value of this colour scale
      */
@@ -34,6 +34,29 @@ public abstract class ColourScheme2D {
     protected ColourScheme2D() { }
     
     public abstract Color getColor(Number xValue, Number yValue);
+
+    /**
+     * Maps arrays of x and y values to ARGB colours. Subclasses which can map
+     * values more efficiently than by repeatedly calling
+     * {@link #getColor(Number, Number)} should override this method.
+     * 
+     * @param xValues
+     *            The x values to map. Missing values should be represented as
+     *            {@link Float#NaN}
+     * @param yValues
+     *            The y values to map. This must be the same length as
+     *            <code>xValues</code>
+     * @param out
+     *            The array to write the ARGB values into. This must be at least
+     *            as long as <code>xValues</code>
+     */
+    public void mapToArgb(float[] xValues, float[] yValues, int[] out) {
+        for (int i = 0; i < xValues.length; i++) {
+            float x = xValues[i];
+            float y = yValues[i];
+            out[i] = getColor(Float.isNaN(x) ? null : x, Float.isNaN(y) ? null : y).getRGB();
+        }
+    }
     
     public abstract Float getScaleMin(int dimension);
     
@@ -69,6 +69,17 @@ public abstract class Drawable {
     public abstract BufferedImage drawImage(PlottingDomainParams params,
             FeatureCatalogue featureCatalogue) throws EdalException;
 
+    /**
+     * @return Whether this {@link Drawable} gives the same result if the image
+     *         is split into tiles which are drawn separately and then stitched
+     *         together. This is the case when the colour of each pixel only
+     *         depends upon the data at that pixel. {@link MapImage} uses this
+     *         to decide whether large images can be drawn in parallel.
+     */
+    public boolean isTileable() {
+        return false;
+    }
+
     /**
      * @return A list of all the fields used in this image layer, and their
      *         appropriate scale ranges. If there is NO scale range there can be
@@ -54,6 +54,11 @@ public class FlatOpacity extends OpacityTransform {
         image.setRGB(0, 0, width, height, imagePixels, 0, width);
     }
 
+    @Override
+    public boolean isTileable() {
+        return true;
+    }
+
     @Override
     public Set<NameAndRange> getFieldsWithScales() {
         return Collections.emptySet();
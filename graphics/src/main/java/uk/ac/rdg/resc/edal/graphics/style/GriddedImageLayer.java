@@ -42,6 +42,7 @@ import uk.ac.rdg.resc.edal.feature.Feature;
 import uk.ac.rdg.resc.edal.feature.GridFeature;
 import uk.ac.rdg.resc.edal.feature.MapFeature;
 import uk.ac.rdg.resc.edal.graphics.utils.FeatureCatalogue;
+import uk.ac.rdg.resc.edal.graphics.utils.ImageSampling;
 import uk.ac.rdg.resc.edal.graphics.utils.PlottingDomainParams;
 import uk.ac.rdg.resc.edal.graphics.utils.FeatureCatalogue.FeaturesAndMemberName;
 import uk.ac.rdg.resc.edal.grid.GridCell2D;
@@ -60,29 +61,40 @@ public abstract class GriddedImageLayer extends ImageLayer {
     protected class MapFeatureDataReader {
         private PlottingDomainParams params;
         private FeatureCatalogue catalogue;
-        private Map<String, FeaturesAndMemberName> extractedFeatures = new HashMap<String, FeaturesAndMemberName>();
+        private Map<PlottingDomainParams, Map<String, FeaturesAndMemberName>> extractedFeatures =
+                new HashMap<>();
 
         public MapFeatureDataReader(PlottingDomainParams params, FeatureCatalogue catalogue) {
             this.params = params;
             this.catalogue = catalogue;
         }
 
-        private MapFeature getFeature(String layerId) throws EdalException {
+        private MapFeature getFeature(String layerId, PlottingDomainParams extractParams)
+                throws EdalException {
             /*
              * This cast is OK, because extractFeature performs the check and
              * throws an exception if necessary
              */
-            return (MapFeature) extractFeature(layerId).getFeatures().iterator().next();
+            return (MapFeature) extractFeature(layerId, extractParams).getFeatures().iterator()
+                    .next();
         }
 
-        private String getVariableName(String layerId) throws EdalException {
-            return extractFeature(layerId).getMember();
+        private String getVariableName(String layerId, PlottingDomainParams extractParams)
+                throws EdalException {
+            return extractFeature(layerId, extractParams).getMember();
         }
 
-        private FeaturesAndMemberName extractFeature(String layerId) throws EdalException {
-            if (!extractedFeatures.containsKey(layerId)) {
+        private FeaturesAndMemberName extractFeature(String layerId,
+                PlottingDomainParams extractParams) throws EdalException {
+            Map<String, FeaturesAndMemberName> featuresForParams = extractedFeatures
+                    .get(extractParams);
+            if (featuresForParams == null) {
+                featuresForParams = new HashMap<String, FeaturesAndMemberName>();
+                extractedFeatures.put(extractParams, featuresForParams);
+            }
+            if (!featuresForParams.containsKey(layerId)) {
                 FeaturesAndMemberName featureAndMemberName = catalogue.getFeaturesForLayer(layerId,
-                        params);
+                        extractParams);
                 Collection<? extends DiscreteFeature<?, ?>> features = featureAndMemberName
                         .getFeatures();
                 MapFeature mapFeature = null;
@@ -101,19 +113,14 @@ public abstract class GriddedImageLayer extends ImageLayer {
                 }
                 FeaturesAndMemberName singleMapFeature = new FeaturesAndMemberName(mapFeature,
                         featureAndMemberName.getMember());
-                extractedFeatures.put(layerId, singleMapFeature);
+                featuresForParams.put(layerId, singleMapFeature);
             }
-            return extractedFeatures.get(layerId);
+            return featuresForParams.get(layerId);
         }
 
         public Array2D<Number> getDataForLayerName(String layerId) throws EdalException {
-            /*
-             * TODO We could add different data reading strategies here - e.g.
-             * subsampling of layers so that gridded features can be plotted as
-             * spaced glyphs...
-             */
-            MapFeature mapFeature = getFeature(layerId);
-            final Array2D<Number> values = mapFeature.getValues(getVariableName(layerId));
+            MapFeature mapFeature = getFeature(layerId, params);
+            final Array2D<Number> values = mapFeature.getValues(getVariableName(layerId, params));
             /*
              * Since BufferedImages have the y-axis increasing downwards, wrap
              * the returned values in an Array2D with a flipped y-axis
@@ -132,7 +139,7 @@ public abstract class GriddedImageLayer extends ImageLayer {
         };
 
         public Array2D<HorizontalPosition> getMapDomainObjects(String layerId) throws EdalException {
-            MapFeature mapFeature = getFeature(layerId);
+            MapFeature mapFeature = getFeature(layerId, params);
             final Array<GridCell2D> domainObjects = mapFeature.getDomain().getDomainObjects();
             /*
              * Since BufferedImages have the y-axis increasing downwards, wrap
@@ -152,6 +159,98 @@ public abstract class GriddedImageLayer extends ImageLayer {
                 }
             };
         }
+
+        /**
+         * Reads data only at the sampled pixels of the image. This is much
+         * cheaper than {@link #getDataForLayerName(String)} for layers which
+         * only draw at sparse intervals.
+         * 
+         * @param layerId
+         *            The ID of the layer to read data for
+         * @param sampling
+         *            The {@link ImageSampling} defining which pixels to read
+         * @return An {@link Array2D} indexed by the sample indices (rather than
+         *         the pixel indices), with the y-axis increasing downwards
+         * @throws EdalException
+         *             If there is a problem reading the data
+         */
+        public Array2D<Number> getSampledDataForLayerName(String layerId,
+                ImageSampling sampling) throws EdalException {
+            PlottingDomainParams sampledParams = params.withSampling(sampling);
+            MapFeature mapFeature = getFeature(layerId, sampledParams);
+            final Array2D<Number> values = mapFeature.getValues(getVariableName(layerId,
+                    sampledParams));
+            final SampleIndexer indexer = new SampleIndexer(sampling, mapFeature);
+            return new Array2D<Number>(sampling.getYSize(), sampling.getXSize()) {
+                @Override
+                public void set(Number value, int... coords) {
+                    throw new UnsupportedOperationException("This is an immutable Array2D");
+                }
+
+                @Override
+                public Number get(int... coords) {
+                    return values.get(indexer.getY(coords[0]), indexer.getX(coords[1]));
+                }
+            };
+        }
+
+        /**
+         * Gets the positions of the sampled pixels of the image.
+         * 
+         * @param layerId
+         *            The ID of the layer to get positions for
+         * @param sampling
+         *            The {@link ImageSampling} defining which pixels to use
+         * @return An {@link Array2D} indexed by the sample indices (rather than
+         *         the pixel indices), with the y-axis increasing downwards
+         * @throws EdalException
+         *             If there is a problem reading the data
+         */
+        public Array2D<HorizontalPosition> getSampledMapDomainObjects(String layerId,
+                ImageSampling sampling) throws EdalException {
+            MapFeature mapFeature = getFeature(layerId, params.withSampling(sampling));
+            final Array<GridCell2D> domainObjects = mapFeature.getDomain().getDomainObjects();
+            final SampleIndexer indexer = new SampleIndexer(sampling, mapFeature);
+            return new Array2D<HorizontalPosition>(sampling.getYSize(), sampling.getXSize()) {
+                @Override
+                public HorizontalPosition get(int... coords) {
+                    return domainObjects.get(indexer.getY(coords[0]), indexer.getX(coords[1]))
+                            .getCentre();
+                }
+
+                @Override
+                public void set(HorizontalPosition value, int... coords) {
+                    throw new UnsupportedOperationException("This is an immutable Array2D");
+                }
+            };
+        }
+
+        /*
+         * Converts sample indices into indices of a MapFeature's domain. Not
+         * all FeatureCatalogues honour the requested sampling (e.g. for legend
+         * generation), so we also handle the case where the feature covers the
+         * entire image.
+         */
+        private class SampleIndexer {
+            private final ImageSampling sampling;
+            private final boolean sampled;
+            private final int ySize;
+
+            SampleIndexer(ImageSampling sampling, MapFeature mapFeature) {
+                this.sampling = sampling;
+                this.sampled = mapFeature.getDomain().getXSize() == sampling.getXSize()
+                        && mapFeature.getDomain().getYSize() == sampling.getYSize();
+                this.ySize = mapFeature.getDomain().getYSize();
+            }
+
+            int getX(int i) {
+                return sampled ? i : sampling.getXPixel(i);
+            }
+
+            int getY(int j) {
+                return ySize - 1 - (sampled ? j : sampling.getYPixel(j));
+            }
+        }
     }
 
     @Override
@@ -41,6 +41,12 @@ import java.util.ArrayList;
 import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
 
 import javax.imageio.ImageIO;
 
@@ -48,14 +54,68 @@ import uk.ac.rdg.resc.edal.exceptions.EdalException;
 import uk.ac.rdg.resc.edal.graphics.utils.FeatureCatalogue;
 import uk.ac.rdg.resc.edal.graphics.utils.LegendDataGenerator;
 import uk.ac.rdg.resc.edal.graphics.utils.PlottingDomainParams;
+import uk.ac.rdg.resc.edal.util.RequestTrace;
 
 public class MapImage extends Drawable {
+    /**
+     * A sensible default for the minimum number of pixels an image must have
+     * before it is drawn in tiles
+     */
+    public static final int DEFAULT_TILING_THRESHOLD = 1024 * 1024;
+    /**
+     * A sensible default for the width and height of tiles
+     */
+    public static final int DEFAULT_TILE_SIZE = 512;
+
+    /*
+     * Tiles from all images are drawn on a single bounded pool, so that large
+     * requests cannot starve the rest of the server of threads
+     */
+    private static final ExecutorService TILE_RENDERER = Executors.newFixedThreadPool(Runtime
+            .getRuntime().availableProcessors(), new ThreadFactory() {
+        private int n = 0;
+
+        @Override
+        public synchronized Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, "map-tile-renderer-" + (n++));
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
     private List<Drawable> layers = new ArrayList<Drawable>();
+    private int tilingThreshold = 0;
+    private int tileSize = DEFAULT_TILE_SIZE;
 
     public List<Drawable> getLayers() {
         return layers;
     }
 
+    /**
+     * Enables drawing of large images in parallel. Images with at least
+     * <code>threshold</code> pixels are split into square tiles, and each
+     * layer which supports it (see {@link Drawable#isTileable()}) has its
+     * tiles extracted and drawn concurrently before they are stitched back
+     * together. Other layers are drawn as normal.
+     * 
+     * Since tiles are extracted concurrently, this should only be enabled if
+     * the {@link FeatureCatalogue} used to draw the image is thread-safe.
+     * 
+     * @param threshold
+     *            The minimum number of pixels an image must have to be drawn
+     *            in tiles. If this is less than 1, tiled drawing is disabled
+     *            (which is the default)
+     * @param tileSize
+     *            The width and height of each tile, in pixels
+     */
+    public void setTiledDrawing(int threshold, int tileSize) {
+        if (tileSize < 1) {
+            throw new IllegalArgumentException("Tile size must be positive");
+        }
+        this.tilingThreshold = threshold;
+        this.tileSize = tileSize;
+    }
+
     @Override
     public BufferedImage drawImage(PlottingDomainParams params, FeatureCatalogue catalogue)
             throws EdalException {
@@ -63,14 +123,16 @@ public class MapImage extends Drawable {
                 BufferedImage.TYPE_INT_ARGB);
         Graphics2D graphics = finalImage.createGraphics();
 
+        boolean tiled = tilingThreshold > 0
+                && (long) params.getWidth() * params.getHeight() >= tilingThreshold
+                && (params.getWidth() > tileSize || params.getHeight() > tileSize);
         for (Drawable drawable : layers) {
             if (drawable != null) {
-                BufferedImage drawnImage = drawable.drawImage(params, catalogue);
-                OpacityTransform opacityTransform = drawable.getOpacityTransform();
-                if (opacityTransform != null) {
-                    opacityTransform.drawIntoImage(drawnImage, params, catalogue);
+                if (tiled && isLayerTileable(drawable)) {
+                    drawTiles(drawable, params, catalogue, graphics);
+                } else {
+                    graphics.drawImage(drawLayer(drawable, params, catalogue), 0, 0, null);
                 }
-                graphics.drawImage(drawnImage, 0, 0, null);
             }
         }
         if (getOpacityTransform() != null) {
@@ -79,6 +141,90 @@ public class MapImage extends Drawable {
         return finalImage;
     }
 
+    private static BufferedImage drawLayer(Drawable drawable, PlottingDomainParams params,
+            FeatureCatalogue catalogue) throws EdalException {
+        BufferedImage drawnImage = drawable.drawImage(params, catalogue);
+        OpacityTransform opacityTransform = drawable.getOpacityTransform();
+        if (opacityTransform != null) {
+            opacityTransform.drawIntoImage(drawnImage, params, catalogue);
+        }
+        return drawnImage;
+    }
+
+    private static boolean isLayerTileable(Drawable drawable) {
+        return drawable.isTileable()
+                && (drawable.getOpacityTransform() == null || drawable.getOpacityTransform()
+                        .isTileable());
+    }
+
+    /**
+     * Draws a single layer as a set of tiles on the shared pool, and
+     * composites them into the image as they complete
+     */
+    private void drawTiles(final Drawable drawable, PlottingDomainParams params,
+            final FeatureCatalogue catalogue, Graphics2D graphics) throws EdalException {
+        List<Tile> tiles = new ArrayList<>();
+        /*
+         * Work done on the tile threads is recorded against this request
+         */
+        final RequestTrace trace = RequestTrace.current();
+        try {
+            for (int y = 0; y < params.getHeight(); y += tileSize) {
+                for (int x = 0; x < params.getWidth(); x += tileSize) {
+                    final PlottingDomainParams tileParams = params.subImage(x, y,
+                            Math.min(tileSize, params.getWidth() - x),
+                            Math.min(tileSize, params.getHeight() - y));
+                    tiles.add(new Tile(x, y, TILE_RENDERER.submit(new Callable<BufferedImage>() {
+                        @Override
+                        public BufferedImage call() throws Exception {
+                            RequestTrace.setCurrent(trace);
+                            try {
+                                return drawLayer(drawable, tileParams, catalogue);
+                            } finally {
+                                RequestTrace.setCurrent(null);
+                            }
+                        }
+                    })));
+                }
+            }
+            for (Tile tile : tiles) {
+                graphics.drawImage(tile.image.get(), tile.x, tile.y, null);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new EdalException("Interrupted while drawing map tiles", e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof EdalException) {
+                throw (EdalException) cause;
+            } else if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            } else if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new EdalException("Problem drawing map tile", cause);
+        } finally {
+            /*
+             * Don't leave tiles of a failed image tying up the pool
+             */
+            for (Tile tile : tiles) {
+                tile.image.cancel(true);
+            }
+        }
+    }
+
+    private static class Tile {
+        final int x;
+        final int y;
+        final Future<BufferedImage> image;
+
+        public Tile(int x, int y, Future<BufferedImage> image) {
+            this.x = x;
+            this.y = y;
+            this.image = image;
+        }
+    }
+
     /**
      * Generate a legend for this {@link MapImage}.
      * 
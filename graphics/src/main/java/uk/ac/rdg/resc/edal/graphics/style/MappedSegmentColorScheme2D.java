@@ -84,6 +84,29 @@ public class MappedSegmentColorScheme2D extends ColourScheme2D {
         return schemes[xIndex].getColor(yValue);
     }
 
+    @Override
+    public void mapToArgb(float[] xValues, float[] yValues, int[] out) {
+        int nonMapped = nonMappedColor.getRGB();
+        ColourLookupTable[] tables = new ColourLookupTable[schemes.length];
+        for (int i = 0; i < xValues.length; i++) {
+            float x = xValues[i];
+            float y = yValues[i];
+            if (Float.isNaN(x) || Float.isNaN(y)) {
+                out[i] = nonMapped;
+                continue;
+            }
+            int xIndex = xAxis.findIndexOf((double) x);
+            if (xIndex < 0) {
+                out[i] = nonMapped;
+                continue;
+            }
+            if (tables[xIndex] == null) {
+                tables[xIndex] = schemes[xIndex].getLookupTable();
+            }
+            out[i] = tables[xIndex].getArgb(y);
+        }
+    }
+
     @Override
     public Float getScaleMin(int dimension) {
         if (dimension == 1) {
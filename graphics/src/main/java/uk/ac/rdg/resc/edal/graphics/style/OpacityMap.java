@@ -76,6 +76,11 @@ public class OpacityMap extends OpacityTransform {
         }
     }
 
+    @Override
+    public boolean isTileable() {
+        return true;
+    }
+
     @Override
     public Set<NameAndRange> getFieldsWithScales() {
         Set<NameAndRange> ret = new HashSet<Drawable.NameAndRange>();
@@ -29,13 +29,13 @@
 package uk.ac.rdg.resc.edal.graphics.style;
 
 import java.awt.image.BufferedImage;
-import java.util.Iterator;
 import java.util.LinkedHashSet;
 import java.util.Set;
 
 import uk.ac.rdg.resc.edal.exceptions.EdalException;
 import uk.ac.rdg.resc.edal.util.Array2D;
 import uk.ac.rdg.resc.edal.util.Extents;
+import uk.ac.rdg.resc.edal.util.RequestTrace;
 
 public class Raster2DLayer extends GriddedImageLayer {
 
@@ -57,21 +57,23 @@ public class Raster2DLayer extends GriddedImageLayer {
         Array2D<Number> xValues = dataReader.getDataForLayerName(xDataFieldName);
         Array2D<Number> yValues = dataReader.getDataForLayerName(yDataFieldName);
         
-        Iterator<Number> xIterator = xValues.iterator();
-        Iterator<Number> yIterator = yValues.iterator();
-        int index = 0;
         int[] pixels = new int[image.getWidth() * image.getHeight()];
         /*
-         * Could have done check on either iterator - they should be the same size
-         * 
          * Get the colours from the 2 values and set the pixel colour
          */
-        while(xIterator.hasNext()) {
-            pixels[index++] = colourScheme.getColor(xIterator.next(), yIterator.next()).getRGB();
-        }
+        long stageStart = RequestTrace.startStage();
+        colourScheme.mapToArgb(RasterLayer.toFloatArray(xValues, pixels.length),
+                RasterLayer.toFloatArray(yValues, pixels.length), pixels);
+        RequestTrace.endStage(RequestTrace.COLOUR_MAPPING, stageStart);
+        RequestTrace.count(RequestTrace.PIXELS_MAPPED, pixels.length);
         image.setRGB(0, 0, image.getWidth(), image.getHeight(), pixels, 0, image.getWidth());
     }
 
+    @Override
+    public boolean isTileable() {
+        return true;
+    }
+
     @Override
     public Set<NameAndRange> getFieldsWithScales() {
         Set<NameAndRange> ret = new LinkedHashSet<Drawable.NameAndRange>();
@@ -36,6 +36,7 @@ import uk.ac.rdg.resc.edal.exceptions.EdalException;
 import uk.ac.rdg.resc.edal.metadata.VariableMetadata;
 import uk.ac.rdg.resc.edal.util.Array2D;
 import uk.ac.rdg.resc.edal.util.Extents;
+import uk.ac.rdg.resc.edal.util.RequestTrace;
 
 public class RasterLayer extends GriddedImageLayer {
 
@@ -77,11 +78,39 @@ public class RasterLayer extends GriddedImageLayer {
          * convention as expected for the colour-values array in image.setRGB
          * below
          */
+        long stageStart = RequestTrace.startStage();
+        colourScheme.mapToArgb(toFloatArray(values, pixels.length), pixels);
+        RequestTrace.endStage(RequestTrace.COLOUR_MAPPING, stageStart);
+        RequestTrace.count(RequestTrace.PIXELS_MAPPED, pixels.length);
+        image.setRGB(0, 0, image.getWidth(), image.getHeight(), pixels, 0, image.getWidth());
+    }
+
+    /**
+     * Copies the values of an {@link Array2D} into a float array, in iteration
+     * order, ready for colour mapping
+     * 
+     * @param values
+     *            The {@link Array2D} to copy
+     * @param size
+     *            The number of values to copy
+     * @return An array of the values, with missing values represented as
+     *         {@link Float#NaN}
+     */
+    static float[] toFloatArray(Array2D<Number> values, int size) {
+        float[] data = new float[size];
         int index = 0;
         for (Number value : values) {
-            pixels[index++] = colourScheme.getColor(value).getRGB();
+            if (index == size) {
+                break;
+            }
+            data[index++] = value == null ? Float.NaN : value.floatValue();
         }
-        image.setRGB(0, 0, image.getWidth(), image.getHeight(), pixels, 0, image.getWidth());
+        return data;
+    }
+
+    @Override
+    public boolean isTileable() {
+        return true;
     }
 
     @Override
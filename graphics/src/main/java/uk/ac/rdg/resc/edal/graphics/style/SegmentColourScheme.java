@@ -56,6 +56,9 @@ public class SegmentColourScheme extends ColourScheme {
 
     private ColourPalette palette = null;
 
+    /* The compiled form of this colour scheme, created when first needed */
+    private volatile ColourLookupTable lookupTable = null;
+
     public SegmentColourScheme(ScaleRange scaleRange, Color belowMinColour, Color aboveMaxColour,
             Color noDataColour, Color[] palette, Integer nColourBands) {
         super();
@@ -107,6 +110,30 @@ public class SegmentColourScheme extends ColourScheme {
         return palette.getColor(val);
     }
 
+    @Override
+    public void mapToArgb(float[] values, int[] out) {
+        getLookupTable().mapToArgb(values, out);
+    }
+
+    /**
+     * @return A {@link ColourLookupTable} which maps values to colours in the
+     *         same way as this {@link SegmentColourScheme}
+     */
+    public ColourLookupTable getLookupTable() {
+        if (lookupTable == null) {
+            if (palette == null) {
+                palette = ColourPalette.fromString(paletteString, nColourBands);
+            }
+            int[] colours = palette.getArgbColours();
+            int belowMin = belowMinColour == null ? colours[0] : belowMinColour.getRGB();
+            int aboveMax = aboveMaxColour == null ? colours[colours.length - 1] : aboveMaxColour
+                    .getRGB();
+            lookupTable = new ColourLookupTable(colours, belowMin, aboveMax,
+                    noDataColour.getRGB(), scaleRange);
+        }
+        return lookupTable;
+    }
+
     @Override
     public Float getScaleMin() {
         return scaleRange.getScaleMin();
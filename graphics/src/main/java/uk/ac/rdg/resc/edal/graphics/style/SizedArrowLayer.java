@@ -37,6 +37,7 @@ import java.util.Set;
 
 import uk.ac.rdg.resc.edal.exceptions.EdalException;
 import uk.ac.rdg.resc.edal.graphics.style.ArrowLayer.ArrowStyle;
+import uk.ac.rdg.resc.edal.graphics.utils.ImageSampling;
 import uk.ac.rdg.resc.edal.graphics.utils.VectorFactory;
 import uk.ac.rdg.resc.edal.position.HorizontalPosition;
 import uk.ac.rdg.resc.edal.util.Array;
@@ -73,98 +74,82 @@ public class SizedArrowLayer extends GriddedImageLayer {
     @Override
     protected void drawIntoImage(BufferedImage image, MapFeatureDataReader dataReader)
             throws EdalException {
-        Array2D<Number> directions = dataReader.getDataForLayerName(directionFieldName);
-        Array2D<Number> magnitudes = dataReader.getDataForLayerName(magnitudeFieldName);
-
         Graphics2D g = image.createGraphics();
         g.setColor(arrowColour);
 
-        int width = image.getWidth();
-        int height = image.getHeight();
-
         /*
-         * Calculate the (floating point) number of pixels per arrow. In ideal
-         * situations, this will be an integer equal to the sample spacing
-         * 
-         * For non-ideal situations it means that the arrows will not be evenly
-         * spaced (they will be either n or n+1 pixels apart). They will tile
-         * perfectly though.
+         * We only draw an arrow every (maximum arrow size * 2) pixels, so only
+         * read the data at those pixels
          */
-        double xPixelsPerArrow = ((double) width) / (width / (maxArrowSize * 2));
-        double yPixelsPerArrow = ((double) height) / (height / (maxArrowSize * 2));
-        double xLoc = xPixelsPerArrow / 2;
-        double yLoc = yPixelsPerArrow / 2;
-
-        Array<HorizontalPosition> domainObjects = dataReader
-                .getMapDomainObjects(directionFieldName);
-
-        for (int j = 0; j < height; j++) {
-            if (yLoc > yPixelsPerArrow) {
-                yLoc -= yPixelsPerArrow;
-                for (int i = 0; i < width; i++) {
-
-                    if (xLoc > xPixelsPerArrow) {
-                        xLoc -= xPixelsPerArrow;
+        ImageSampling sampling = ImageSampling.forSpacing(image.getWidth(), image.getHeight(),
+                maxArrowSize * 2);
+        if (sampling.getXSize() == 0 || sampling.getYSize() == 0) {
+            return;
+        }
+        Array2D<Number> directions = dataReader.getSampledDataForLayerName(directionFieldName,
+                sampling);
+        Array2D<Number> magnitudes = dataReader.getSampledDataForLayerName(magnitudeFieldName,
+                sampling);
+        Array<HorizontalPosition> domainObjects = dataReader.getSampledMapDomainObjects(
+                directionFieldName, sampling);
+
+        for (int y = 0; y < sampling.getYSize(); y++) {
+            int j = sampling.getYPixel(y);
+            for (int x = 0; x < sampling.getXSize(); x++) {
+                int i = sampling.getXPixel(x);
+                /*
+                 * We are at a point where we need to draw an arrow
+                 */
+                Number magnitude = magnitudes.get(y, x);
+                Double angle = GISUtils.transformWgs84Heading(directions.get(y, x),
+                        domainObjects.get(y, x));
+                if (magnitude != null && !Float.isNaN(magnitude.floatValue()) && angle != null
+                        && !Float.isNaN(angle.floatValue())) {
+
+                    double scaleZeroToOne = magnitudeScaleRange.scaleZeroToOne(magnitude);
+                    if (scaleZeroToOne < 0) {
+                        scaleZeroToOne = 0.0;
+                    }
+                    if (scaleZeroToOne > 1) {
+                        scaleZeroToOne = 1.0;
+                    }
 
+                    int arrowSize = (int) (minArrowSize + scaleZeroToOne
+                            * (maxArrowSize - minArrowSize));
+                    if (arrowStyle == ArrowStyle.UPSTREAM) {
+                        /* Convert from degrees to radians */
+                        angle = angle * GISUtils.DEG2RAD;
+                        /* Calculate the end point of the arrow */
+                        double iEnd = i + arrowSize * Math.sin(angle);
+                        /*
+                         * Screen coordinates go down, but north is up, hence
+                         * the minus sign
+                         */
+                        double jEnd = j - arrowSize * Math.cos(angle);
+                        /* Draw a dot representing the data location */
+                        g.fillOval(i - 2, j - 2, 4, 4);
+                        /*
+                         * Draw a line representing the vector direction
+                         */
+                        g.setStroke(new BasicStroke(1));
+                        g.drawLine(i, j, (int) Math.round(iEnd), (int) Math.round(jEnd));
+                    } else if (arrowStyle == ArrowStyle.THIN_ARROW) {
                         /*
-                         * We are at a point where we need to draw an arrow
+                         * The overall arrow size is 10 for things returned
+                         * from the VectorFactory, so we multiply the arrow
+                         * size by 0.1 to get the scale factor.
                          */
-                        Number magnitude = magnitudes.get(j, i);
-                        Double angle = GISUtils.transformWgs84Heading(directions.get(j, i),
-                                domainObjects.get(j, i));
-                        if (magnitude != null && !Float.isNaN(magnitude.floatValue())
-                                && angle != null && !Float.isNaN(angle.floatValue())) {
-
-                            double scaleZeroToOne = magnitudeScaleRange.scaleZeroToOne(magnitude);
-                            if (scaleZeroToOne < 0) {
-                                scaleZeroToOne = 0.0;
-                            }
-                            if (scaleZeroToOne > 1) {
-                                scaleZeroToOne = 1.0;
-                            }
-
-                            int arrowSize = (int) (minArrowSize + scaleZeroToOne
-                                    * (maxArrowSize - minArrowSize));
-                            if (arrowStyle == ArrowStyle.UPSTREAM) {
-                                /* Convert from degrees to radians */
-                                angle = angle * GISUtils.DEG2RAD;
-                                /* Calculate the end point of the arrow */
-                                double iEnd = i + arrowSize * Math.sin(angle);
-                                /*
-                                 * Screen coordinates go down, but north is up,
-                                 * hence the minus sign
-                                 */
-                                double jEnd = j - arrowSize * Math.cos(angle);
-                                /* Draw a dot representing the data location */
-                                g.fillOval(i - 2, j - 2, 4, 4);
-                                /*
-                                 * Draw a line representing the vector direction
-                                 */
-                                g.setStroke(new BasicStroke(1));
-                                g.drawLine(i, j, (int) Math.round(iEnd), (int) Math.round(jEnd));
-                            } else if (arrowStyle == ArrowStyle.THIN_ARROW) {
-                                /*
-                                 * The overall arrow size is 10 for things
-                                 * returned from the VectorFactory, so we
-                                 * multiply the arrow size by 0.1 to get the
-                                 * scale factor.
-                                 */
-                                VectorFactory.renderVector("LINEVEC", angle.doubleValue() * Math.PI
-                                        / 180.0, i, j, arrowSize * 0.1f, g);
-                            } else if (arrowStyle == ArrowStyle.FAT_ARROW) {
-                                VectorFactory.renderVector("STUMPVEC", angle.doubleValue()
-                                        * Math.PI / 180.0, i, j, arrowSize * 0.1f, g);
-                            } else if (arrowStyle == ArrowStyle.TRI_ARROW) {
-                                VectorFactory.renderVector("TRIVEC", angle.doubleValue() * Math.PI
-                                        / 180.0, i, j, arrowSize * 0.1f, g);
-                            }
-
-                        }
+                        VectorFactory.renderVector("LINEVEC", angle.doubleValue() * Math.PI
+                                / 180.0, i, j, arrowSize * 0.1f, g);
+                    } else if (arrowStyle == ArrowStyle.FAT_ARROW) {
+                        VectorFactory.renderVector("STUMPVEC", angle.doubleValue() * Math.PI
+                                / 180.0, i, j, arrowSize * 0.1f, g);
+                    } else if (arrowStyle == ArrowStyle.TRI_ARROW) {
+                        VectorFactory.renderVector("TRIVEC", angle.doubleValue() * Math.PI
+                                / 180.0, i, j, arrowSize * 0.1f, g);
                     }
-                    xLoc += 1.0;
                 }
             }
-            yLoc += 1.0;
         }
     }
 
@@ -219,6 +219,18 @@ public class ColourPalette {
         return this.colours[i];
     }
 
+    /**
+     * @return The colours of this palette as ARGB values, from lowest to
+     *         highest
+     */
+    public int[] getArgbColours() {
+        int[] argb = new int[colours.length];
+        for (int i = 0; i < colours.length; i++) {
+            argb[i] = colours[i].getRGB();
+        }
+        return argb;
+    }
+
     /**
      * Gets a {@link ColourPalette} from a string representation of it
      * 
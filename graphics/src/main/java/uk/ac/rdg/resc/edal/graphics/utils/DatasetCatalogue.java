@@ -78,4 +78,13 @@ public interface DatasetCatalogue {
      *         last updated
      */
     public DateTime getLastUpdateTime();
+
+    /**
+     * @return The {@link StatisticsStore} holding value statistics for the
+     *         {@link Dataset}s in this {@link DatasetCatalogue}, or
+     *         <code>null</code> if statistics are not kept (the default)
+     */
+    public default StatisticsStore getStatisticsStore() {
+        return null;
+    }
 }
@@ -54,6 +54,7 @@ import uk.ac.rdg.resc.edal.dataset.Dataset;
 import uk.ac.rdg.resc.edal.dataset.DiscreteFeatureReader;
 import uk.ac.rdg.resc.edal.dataset.HorizontallyDiscreteDataset;
 import uk.ac.rdg.resc.edal.dataset.PointDataset;
+import uk.ac.rdg.resc.edal.dataset.PointFeatureStream;
 import uk.ac.rdg.resc.edal.domain.Extent;
 import uk.ac.rdg.resc.edal.domain.MapDomain;
 import uk.ac.rdg.resc.edal.exceptions.EdalParseException;
@@ -121,8 +122,8 @@ public class GraphicsUtils {
             HorizontallyDiscreteDataset<?> discreteDataset = (HorizontallyDiscreteDataset<?>) dataset;
             mapFeatures = discreteDataset.extractMapFeatures(
                     CollectionUtils.setOf(varId),
-                    new MapDomain(new RegularGridImpl(params.getBbox(), params.getWidth(), params
-                            .getHeight()), params.getTargetZ(), params.getTargetT()));
+                    new MapDomain(params.getExtractionGrid(), params.getTargetZ(), params
+                            .getTargetT()));
         } else if (dataset instanceof PointDataset<?>) {
             PointDataset<?> pointDataset = (PointDataset<?>) dataset;
             mapFeatures = pointDataset.extractMapFeatures(CollectionUtils.setOf(varId),
@@ -132,6 +133,42 @@ public class GraphicsUtils {
         return mapFeatures;
     }
 
+    /**
+     * Extracts map features for a single variable in a generic dataset, for
+     * the purpose of drawing them into an image.
+     * 
+     * This is equivalent to
+     * {@link GraphicsUtils#extractGeneralMapFeatures(Dataset, String, PlottingDomainParams)}
+     * , except that features from a {@link PointDataset} are returned as a
+     * {@link PointFeatureStream}, which reads features as it is iterated over.
+     * This is thinned to at most one feature per pixel of the output image, so
+     * that the number of features read is bounded when zoomed out. It should
+     * therefore not be used where every feature matters, such as when
+     * calculating the range of values in an area.
+     * 
+     * @param dataset
+     *            The Dataset to extract features from
+     * @param varId
+     *            The variable ID to extract
+     * @param params
+     *            The {@link PlottingDomainParams} representing the domain to
+     *            extract onto
+     * @return A {@link Collection} of {@link DiscreteFeature}s
+     */
+    public static Collection<? extends DiscreteFeature<?, ?>> extractMapFeaturesForPlotting(
+            Dataset dataset, String varId, PlottingDomainParams params) {
+        if (dataset instanceof PointDataset<?>) {
+            PointDataset<?> pointDataset = (PointDataset<?>) dataset;
+            return pointDataset.streamMapFeatures(CollectionUtils.setOf(varId),
+                    params.getBbox(), params.getZExtent(), params.getTExtent(),
+                    params.getTargetZ(), params.getTargetT(),
+                    params.getWidth() * params.getHeight(), params.getWidth(),
+                    params.getHeight());
+        } else {
+            return extractGeneralMapFeatures(dataset, varId, params);
+        }
+    }
+
     /**
      * Parses a string to obtain a {@link Color}.
      * 
@@ -258,6 +295,28 @@ public class GraphicsUtils {
      * @return An approximate value range
      */
     public static Extent<Float> estimateValueRange(Dataset dataset, String varId) {
+        return estimateValueRange(dataset, varId, null);
+    }
+
+    /**
+     * Estimate the range of values in this layer from the statistics of the
+     * default time and elevation, calculating them if necessary. If statistics
+     * are not available for the variable, this behaves in the same way as
+     * {@link GraphicsUtils#estimateValueRange(Dataset, String)}
+     * 
+     * If the given variable is not found, a default range of 0-100 is returned
+     * 
+     * @param dataset
+     *            The dataset containing the variable to estimate
+     * @param varId
+     *            The ID of the variable to estimate
+     * @param statisticsStore
+     *            The {@link StatisticsStore} to use. May be <code>null</code>,
+     *            in which case a sample of data is always read.
+     * @return An approximate value range
+     */
+    public static Extent<Float> estimateValueRange(Dataset dataset, String varId,
+            StatisticsStore statisticsStore) {
         VariableMetadata variableMetadata;
         try {
             variableMetadata = dataset.getVariableMetadata(varId);
@@ -312,6 +371,13 @@ public class GraphicsUtils {
             if (variableMetadata.getTemporalDomain() != null) {
                 time = variableMetadata.getTemporalDomain().getExtent().getHigh();
             }
+            if (statisticsStore != null) {
+                SliceStatistics statistics = statisticsStore.getStatistics(dataset, varId, zPos,
+                        time);
+                if (statistics != null && statistics.getCount() > 0) {
+                    return padValueRange(statistics.getMin(), statistics.getMax());
+                }
+            }
             try {
                 long t1 = 0L, t2 = 0L;
                 if (log.isDebugEnabled()) {
@@ -375,6 +441,14 @@ public class GraphicsUtils {
             }
         }
 
+        return padValueRange(min, max);
+    }
+
+    /**
+     * Pads an estimated value range by 5% either side and rounds it to 4
+     * significant figures
+     */
+    private static Extent<Float> padValueRange(float min, float max) {
         if (max == -Float.MAX_VALUE || min == Float.MAX_VALUE) {
             /*
              * Defensive - either they are both equal to their start values, or
@@ -0,0 +1,204 @@
+/*******************************************************************************
+ * Copyright (c) 2016 The University of Reading
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the University of Reading, nor the names of the
+ *    authors or contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ******************************************************************************/
+
+package uk.ac.rdg.resc.edal.graphics.utils;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.opengis.referencing.crs.CoordinateReferenceSystem;
+import org.opengis.referencing.cs.RangeMeaning;
+
+import uk.ac.rdg.resc.edal.grid.RectilinearGrid;
+import uk.ac.rdg.resc.edal.grid.RectilinearGridImpl;
+import uk.ac.rdg.resc.edal.grid.ReferenceableAxisImpl;
+import uk.ac.rdg.resc.edal.grid.RegularAxis;
+import uk.ac.rdg.resc.edal.grid.RegularGrid;
+
+/**
+ * Defines a sparse set of pixels within an image at which data is required.
+ * This is used by layers which only draw something at regular intervals (e.g.
+ * arrows) so that data is only extracted at the pixels which are actually
+ * used, rather than for the entire image.
+ * 
+ * Pixels are specified in image co-ordinates - i.e. the y-axis increases
+ * downwards.
+ * 
+ * @author Guy Griffiths
+ */
+public class ImageSampling {
+    private final int[] xPixels;
+    private final int[] yPixels;
+
+    /**
+     * Creates a new {@link ImageSampling}
+     * 
+     * @param xPixels
+     *            The x-indices of the pixels to sample, in ascending order
+     * @param yPixels
+     *            The y-indices of the pixels to sample, in ascending order
+     */
+    public ImageSampling(int[] xPixels, int[] yPixels) {
+        this.xPixels = xPixels;
+        this.yPixels = yPixels;
+    }
+
+    /**
+     * Creates an {@link ImageSampling} which samples an image at a regular
+     * spacing. If the image size is not a multiple of the spacing, the
+     * samples will be either n or n+1 pixels apart, but will tile perfectly.
+     * 
+     * @param width
+     *            The width of the image
+     * @param height
+     *            The height of the image
+     * @param spacing
+     *            The desired spacing between samples, in pixels
+     * @return The {@link ImageSampling}
+     */
+    public static ImageSampling forSpacing(int width, int height, int spacing) {
+        return new ImageSampling(getSamplePixels(width, spacing),
+                getSamplePixels(height, spacing));
+    }
+
+    private static int[] getSamplePixels(int size, int spacing) {
+        int nSamples = size / spacing;
+        if (nSamples == 0) {
+            return new int[0];
+        }
+        /*
+         * Calculate the (floating point) number of pixels per sample. In ideal
+         * situations, this will be an integer equal to the spacing.
+         */
+        double pixelsPerSample = ((double) size) / nSamples;
+        double loc = pixelsPerSample / 2;
+        int[] pixels = new int[nSamples];
+        int n = 0;
+        for (int i = 0; i < size && n < nSamples; i++) {
+            if (loc > pixelsPerSample) {
+                loc -= pixelsPerSample;
+                pixels[n++] = i;
+            }
+            loc += 1.0;
+        }
+        return n == nSamples ? pixels : Arrays.copyOf(pixels, n);
+    }
+
+    /**
+     * @return The number of samples in the x-direction
+     */
+    public int getXSize() {
+        return xPixels.length;
+    }
+
+    /**
+     * @return The number of samples in the y-direction
+     */
+    public int getYSize() {
+        return yPixels.length;
+    }
+
+    /**
+     * @param i
+     *            The index of the sample in the x-direction
+     * @return The x-index of the pixel in the image
+     */
+    public int getXPixel(int i) {
+        return xPixels[i];
+    }
+
+    /**
+     * @param j
+     *            The index of the sample in the y-direction
+     * @return The y-index of the pixel in the image
+     */
+    public int getYPixel(int j) {
+        return yPixels[j];
+    }
+
+    /**
+     * Gets a {@link RectilinearGrid} whose cells are centred on the sampled
+     * pixels of an image. As with any other grid, the y-axis increases
+     * upwards, so the first row of the grid corresponds to the last sampled
+     * row of the image.
+     * 
+     * @param imageGrid
+     *            The {@link RegularGrid} of the full image
+     * @return The sampled {@link RectilinearGrid}
+     */
+    public RectilinearGrid getGrid(RegularGrid imageGrid) {
+        RegularAxis imageXAxis = imageGrid.getXAxis();
+        RegularAxis imageYAxis = imageGrid.getYAxis();
+        List<Double> xValues = new ArrayList<>(xPixels.length);
+        for (int i = 0; i < xPixels.length; i++) {
+            xValues.add(imageXAxis.getCoordinateValue(xPixels[i]));
+        }
+        List<Double> yValues = new ArrayList<>(yPixels.length);
+        for (int j = yPixels.length - 1; j >= 0; j--) {
+            yValues.add(imageYAxis.getCoordinateValue(imageYAxis.size() - 1 - yPixels[j]));
+        }
+        CoordinateReferenceSystem crs = imageGrid.getCoordinateReferenceSystem();
+        boolean xWraps = crs != null
+                && crs.getCoordinateSystem().getAxis(0).getRangeMeaning()
+                        == RangeMeaning.WRAPAROUND;
+        return new RectilinearGridImpl(
+                new ReferenceableAxisImpl(imageXAxis.getName(), xValues, xWraps),
+                new ReferenceableAxisImpl(imageYAxis.getName(), yValues, false), crs);
+    }
+
+    @Override
+    public int hashCode() {
+        final int prime = 31;
+        int result = 1;
+        result = prime * result + Arrays.hashCode(xPixels);
+        result = prime * result + Arrays.hashCode(yPixels);
+        return result;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (this == obj)
+            return true;
+        if (obj == null)
+            return false;
+        if (getClass() != obj.getClass())
+            return false;
+        ImageSampling other = (ImageSampling) obj;
+        if (!Arrays.equals(xPixels, other.xPixels))
+            return false;
+        if (!Arrays.equals(yPixels, other.yPixels))
+            return false;
+        return true;
+    }
+
+    @Override
+    public String toString() {
+        return xPixels.length + "x" + yPixels.length + " samples";
+    }
+}
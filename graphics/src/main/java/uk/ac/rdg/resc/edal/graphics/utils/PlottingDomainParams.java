@@ -32,6 +32,8 @@ import org.joda.time.DateTime;
 
 import uk.ac.rdg.resc.edal.domain.Extent;
 import uk.ac.rdg.resc.edal.geometry.BoundingBox;
+import uk.ac.rdg.resc.edal.geometry.BoundingBoxImpl;
+import uk.ac.rdg.resc.edal.grid.RectilinearGrid;
 import uk.ac.rdg.resc.edal.grid.RegularGrid;
 import uk.ac.rdg.resc.edal.grid.RegularGridImpl;
 import uk.ac.rdg.resc.edal.position.HorizontalPosition;
@@ -51,6 +53,11 @@ public class PlottingDomainParams {
     final private Extent<DateTime> tExtent;
     final private DateTime targetT;
 
+    /*
+     * If non-null, data is only required at these pixels of the image
+     */
+    private ImageSampling sampling = null;
+
     private volatile RegularGrid imageGrid = null;
 
     public static PlottingDomainParams paramsForGriddedDataset(int width, int height,
@@ -110,6 +117,81 @@ public class PlottingDomainParams {
         return imageGrid;
     }
 
+    /**
+     * Creates a copy of these {@link PlottingDomainParams} which only requires
+     * data at a sparse set of pixels within the image
+     * 
+     * @param sampling
+     *            The {@link ImageSampling} defining the pixels at which data
+     *            is required
+     * @return The new {@link PlottingDomainParams}
+     */
+    public PlottingDomainParams withSampling(ImageSampling sampling) {
+        PlottingDomainParams sampled = new PlottingDomainParams(width, height, bbox, zExtent,
+                tExtent, targetPos, targetZ, targetT);
+        sampled.sampling = sampling;
+        return sampled;
+    }
+
+    /**
+     * Creates a copy of these {@link PlottingDomainParams} which covers a
+     * rectangular block of pixels within the image
+     * 
+     * @param x
+     *            The x-index of the left-most pixel of the block
+     * @param y
+     *            The y-index of the top-most pixel of the block. As with
+     *            {@link java.awt.image.BufferedImage}s, this increases
+     *            downwards
+     * @param subWidth
+     *            The width of the block, in pixels
+     * @param subHeight
+     *            The height of the block, in pixels
+     * @return The new {@link PlottingDomainParams}, whose pixels are the same
+     *         as the corresponding pixels of these parameters
+     */
+    public PlottingDomainParams subImage(int x, int y, int subWidth, int subHeight) {
+        if (x < 0 || y < 0 || subWidth < 1 || subHeight < 1 || x + subWidth > width
+                || y + subHeight > height) {
+            throw new IllegalArgumentException("Block must lie within the image");
+        }
+        double dx = (bbox.getMaxX() - bbox.getMinX()) / width;
+        double dy = (bbox.getMaxY() - bbox.getMinY()) / height;
+        /*
+         * Use the exact edges of the bounding box where the block reaches them
+         */
+        double minX = x == 0 ? bbox.getMinX() : bbox.getMinX() + x * dx;
+        double maxX = x + subWidth == width ? bbox.getMaxX() : bbox.getMinX() + (x + subWidth)
+                * dx;
+        double maxY = y == 0 ? bbox.getMaxY() : bbox.getMaxY() - y * dy;
+        double minY = y + subHeight == height ? bbox.getMinY() : bbox.getMaxY()
+                - (y + subHeight) * dy;
+        return new PlottingDomainParams(subWidth, subHeight, new BoundingBoxImpl(minX, minY,
+                maxX, maxY, bbox.getCoordinateReferenceSystem()), zExtent, tExtent, targetPos,
+                targetZ, targetT);
+    }
+
+    /**
+     * @return The {@link ImageSampling} defining the pixels at which data is
+     *         required, or <code>null</code> if data is required for the
+     *         entire image
+     */
+    public ImageSampling getSampling() {
+        return sampling;
+    }
+
+    /**
+     * @return The grid on which data should be extracted. This is the same as
+     *         {@link PlottingDomainParams#getImageGrid()} unless a sparse
+     *         {@link ImageSampling} has been set
+     */
+    public RectilinearGrid getExtractionGrid() {
+        if (sampling == null) {
+            return getImageGrid();
+        }
+        return sampling.getGrid(getImageGrid());
+    }
+
     public Extent<Double> getZExtent() {
         return zExtent;
     }
@@ -132,6 +214,7 @@ public class PlottingDomainParams {
         int result = 1;
         result = prime * result + ((bbox == null) ? 0 : bbox.hashCode());
         result = prime * result + height;
+        result = prime * result + ((sampling == null) ? 0 : sampling.hashCode());
         result = prime * result + ((tExtent == null) ? 0 : tExtent.hashCode());
         result = prime * result + ((targetPos == null) ? 0 : targetPos.hashCode());
         result = prime * result + ((targetT == null) ? 0 : targetT.hashCode());
@@ -157,6 +240,11 @@ public class PlottingDomainParams {
             return false;
         if (height != other.height)
             return false;
+        if (sampling == null) {
+            if (other.sampling != null)
+                return false;
+        } else if (!sampling.equals(other.sampling))
+            return false;
         if (tExtent == null) {
             if (other.tExtent != null)
                 return false;
@@ -206,6 +294,10 @@ public class PlottingDomainParams {
         str.append(targetZ);
         str.append(", ");
         str.append(TimeUtils.dateTimeToISO8601(targetT));
+        if (sampling != null) {
+            str.append("\nSampling: ");
+            str.append(sampling);
+        }
         return str.toString();
     }
 }
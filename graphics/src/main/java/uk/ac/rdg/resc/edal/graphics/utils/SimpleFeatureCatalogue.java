@@ -41,7 +41,6 @@ import uk.ac.rdg.resc.edal.exceptions.DataReadingException;
 import uk.ac.rdg.resc.edal.exceptions.EdalException;
 import uk.ac.rdg.resc.edal.exceptions.VariableNotFoundException;
 import uk.ac.rdg.resc.edal.feature.DiscreteFeature;
-import uk.ac.rdg.resc.edal.grid.RegularGridImpl;
 import uk.ac.rdg.resc.edal.util.CollectionUtils;
 
 public class SimpleFeatureCatalogue<D extends Dataset> implements FeatureCatalogue {
@@ -94,8 +93,7 @@ public class SimpleFeatureCatalogue<D extends Dataset> implements FeatureCatalog
                 extractedFeatures = discreteDataset
                         .extractMapFeatures(
                                 CollectionUtils.setOf(varId),
-                                new MapDomain(new RegularGridImpl(params.getBbox(), params
-                                        .getWidth(), params.getHeight()), params.getTargetZ(),
+                                new MapDomain(params.getExtractionGrid(), params.getTargetZ(),
                                         null, params.getTargetT()));
             } else if (dataset instanceof PointDataset<?>) {
                 PointDataset<?> pointDataset = (PointDataset<?>) dataset;
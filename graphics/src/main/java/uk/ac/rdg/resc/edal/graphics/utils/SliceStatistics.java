@@ -0,0 +1,444 @@
+/*******************************************************************************
+ * Copyright (c) 2016 The University of Reading
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the University of Reading, nor the names of the
+ *    authors or contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ******************************************************************************/
+
+package uk.ac.rdg.resc.edal.graphics.utils;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+import org.geotoolkit.referencing.crs.DefaultGeographicCRS;
+
+import uk.ac.rdg.resc.edal.domain.Extent;
+import uk.ac.rdg.resc.edal.geometry.BoundingBox;
+import uk.ac.rdg.resc.edal.geometry.BoundingBoxImpl;
+import uk.ac.rdg.resc.edal.util.Array2D;
+import uk.ac.rdg.resc.edal.util.Extents;
+
+/**
+ * Summary statistics for a single horizontal slice (i.e. one variable at one
+ * time and elevation) of a dataset.
+ * 
+ * The statistics are calculated from a regular lat-lon sample of the data,
+ * which is divided into a coarse grid of tiles. For each tile we store the
+ * number of valid values, their minimum and maximum, and a histogram of the
+ * values (using the same bins for all tiles). This allows the value range (and
+ * percentile-based ranges) to be estimated for any bounding box without going
+ * back to the source data.
+ * 
+ * @author Guy Griffiths
+ */
+public class SliceStatistics {
+    /** The number of tiles in the x-direction */
+    public static final int TILES_X = 8;
+    /** The number of tiles in the y-direction */
+    public static final int TILES_Y = 4;
+    /** The number of histogram bins per tile */
+    public static final int N_BINS = 16;
+
+    private final double minX;
+    private final double minY;
+    private final double maxX;
+    private final double maxY;
+
+    private final int count;
+    private final float min;
+    private final float max;
+    private final double mean;
+
+    private final int[] tileCounts;
+    private final float[] tileMins;
+    private final float[] tileMaxs;
+    /*
+     * Histogram bins for each tile, indexed by tileIndex * N_BINS + bin. All
+     * bins cover equal-sized intervals between min and max
+     */
+    private final int[] histograms;
+
+    private SliceStatistics(double minX, double minY, double maxX, double maxY, int count,
+            float min, float max, double mean, int[] tileCounts, float[] tileMins,
+            float[] tileMaxs, int[] histograms) {
+        this.minX = minX;
+        this.minY = minY;
+        this.maxX = maxX;
+        this.maxY = maxY;
+        this.count = count;
+        this.min = min;
+        this.max = max;
+        this.mean = mean;
+        this.tileCounts = tileCounts;
+        this.tileMins = tileMins;
+        this.tileMaxs = tileMaxs;
+        this.histograms = histograms;
+    }
+
+    /**
+     * Calculates statistics from a regular grid of values
+     * 
+     * @param values
+     *            The sampled values. The first row must correspond to the
+     *            southern edge of the bounding box.
+     * @param bbox
+     *            The WGS84 {@link BoundingBox} which the values cover
+     * @return The calculated {@link SliceStatistics}
+     */
+    public static SliceStatistics fromValues(Array2D<Number> values, BoundingBox bbox) {
+        int xSize = values.getXSize();
+        int ySize = values.getYSize();
+
+        int nTiles = TILES_X * TILES_Y;
+        int[] tileCounts = new int[nTiles];
+        float[] tileMins = new float[nTiles];
+        float[] tileMaxs = new float[nTiles];
+        for (int i = 0; i < nTiles; i++) {
+            tileMins[i] = Float.NaN;
+            tileMaxs[i] = Float.NaN;
+        }
+
+        /*
+         * First pass - copy the values to a primitive array and calculate the
+         * ranges
+         */
+        float[] samples = new float[xSize * ySize];
+        int count = 0;
+        double sum = 0.0;
+        float min = Float.NaN;
+        float max = Float.NaN;
+        for (int j = 0; j < ySize; j++) {
+            int tileY = (j * TILES_Y) / ySize;
+            for (int i = 0; i < xSize; i++) {
+                Number number = values.get(j, i);
+                float value = number == null ? Float.NaN : number.floatValue();
+                samples[j * xSize + i] = value;
+                if (Float.isNaN(value) || Float.isInfinite(value)) {
+                    continue;
+                }
+                int tile = tileY * TILES_X + (i * TILES_X) / xSize;
+                if (tileCounts[tile] == 0) {
+                    tileMins[tile] = value;
+                    tileMaxs[tile] = value;
+                } else {
+                    tileMins[tile] = Math.min(tileMins[tile], value);
+                    tileMaxs[tile] = Math.max(tileMaxs[tile], value);
+                }
+                tileCounts[tile]++;
+                if (count == 0) {
+                    min = value;
+                    max = value;
+                } else {
+                    min = Math.min(min, value);
+                    max = Math.max(max, value);
+                }
+                count++;
+                sum += value;
+            }
+        }
+
+        /*
+         * Second pass - now we know the overall range we can populate the
+         * histograms
+         */
+        int[] histograms = new int[nTiles * N_BINS];
+        if (count > 0) {
+            for (int j = 0; j < ySize; j++) {
+                int tileY = (j * TILES_Y) / ySize;
+                for (int i = 0; i < xSize; i++) {
+                    float value = samples[j * xSize + i];
+                    if (Float.isNaN(value) || Float.isInfinite(value)) {
+                        continue;
+                    }
+                    int tile = tileY * TILES_X + (i * TILES_X) / xSize;
+                    histograms[tile * N_BINS + getBin(value, min, max)]++;
+                }
+            }
+        }
+
+        return new SliceStatistics(bbox.getMinX(), bbox.getMinY(), bbox.getMaxX(),
+                bbox.getMaxY(), count, min, max, count > 0 ? sum / count : Double.NaN,
+                tileCounts, tileMins, tileMaxs, histograms);
+    }
+
+    private static int getBin(float value, float min, float max) {
+        if (max <= min) {
+            return 0;
+        }
+        int bin = (int) (N_BINS * (value - min) / (max - min));
+        return Math.max(0, Math.min(N_BINS - 1, bin));
+    }
+
+    /**
+     * @return The number of valid (non-missing) values in the sample
+     */
+    public int getCount() {
+        return count;
+    }
+
+    /**
+     * @return The minimum value in the sample, or {@link Float#NaN} if there
+     *         is no valid data
+     */
+    public float getMin() {
+        return min;
+    }
+
+    /**
+     * @return The maximum value in the sample, or {@link Float#NaN} if there
+     *         is no valid data
+     */
+    public float getMax() {
+        return max;
+    }
+
+    /**
+     * @return The mean value of the sample, or {@link Double#NaN} if there is
+     *         no valid data
+     */
+    public double getMean() {
+        return mean;
+    }
+
+    /**
+     * @return The WGS84 {@link BoundingBox} covered by these statistics
+     */
+    public BoundingBox getBoundingBox() {
+        return new BoundingBoxImpl(minX, minY, maxX, maxY, DefaultGeographicCRS.WGS84);
+    }
+
+    /**
+     * @return The width of a single tile, in degrees of longitude
+     */
+    public double getTileWidth() {
+        return (maxX - minX) / TILES_X;
+    }
+
+    /**
+     * @return The height of a single tile, in degrees of latitude
+     */
+    public double getTileHeight() {
+        return (maxY - minY) / TILES_Y;
+    }
+
+    /**
+     * Gets the range of values within a bounding box. Since statistics are
+     * only stored for whole tiles, the returned range is that of all tiles
+     * which intersect the bounding box, and so may be larger than the true
+     * range.
+     * 
+     * @param bbox
+     *            The WGS84 {@link BoundingBox} of interest, or
+     *            <code>null</code> for the whole slice
+     * @return The range of values, or <code>null</code> if there is no valid
+     *         data in the given {@link BoundingBox}
+     */
+    public Extent<Float> getValueRange(BoundingBox bbox) {
+        float rangeMin = Float.NaN;
+        float rangeMax = Float.NaN;
+        boolean found = false;
+        for (int tile = 0; tile < tileCounts.length; tile++) {
+            if (tileCounts[tile] == 0 || !tileIntersects(tile, bbox)) {
+                continue;
+            }
+            if (!found) {
+                rangeMin = tileMins[tile];
+                rangeMax = tileMaxs[tile];
+                found = true;
+            } else {
+                rangeMin = Math.min(rangeMin, tileMins[tile]);
+                rangeMax = Math.max(rangeMax, tileMaxs[tile]);
+            }
+        }
+        return found ? Extents.newExtent(rangeMin, rangeMax) : null;
+    }
+
+    /**
+     * Estimates a range of values between two percentiles within a bounding
+     * box. This is useful for auto-scaling which is not affected by outliers.
+     * 
+     * @param bbox
+     *            The WGS84 {@link BoundingBox} of interest, or
+     *            <code>null</code> for the whole slice
+     * @param lowPercentile
+     *            The percentile (0-100) defining the lower end of the range
+     * @param highPercentile
+     *            The percentile (0-100) defining the upper end of the range
+     * @return The estimated range of values, or <code>null</code> if there is
+     *         no valid data in the given {@link BoundingBox}
+     */
+    public Extent<Float> getPercentileRange(BoundingBox bbox, double lowPercentile,
+            double highPercentile) {
+        if (lowPercentile > highPercentile) {
+            throw new IllegalArgumentException(
+                    "The low percentile must not be greater than the high percentile");
+        }
+        Extent<Float> valueRange = getValueRange(bbox);
+        if (valueRange == null) {
+            return null;
+        }
+
+        /*
+         * Merge the histograms of all intersecting tiles
+         */
+        long[] merged = new long[N_BINS];
+        long total = 0;
+        for (int tile = 0; tile < tileCounts.length; tile++) {
+            if (tileCounts[tile] == 0 || !tileIntersects(tile, bbox)) {
+                continue;
+            }
+            for (int bin = 0; bin < N_BINS; bin++) {
+                merged[bin] += histograms[tile * N_BINS + bin];
+            }
+            total += tileCounts[tile];
+        }
+
+        float low = Math.max(valueRange.getLow(),
+                getPercentileValue(merged, total, lowPercentile));
+        float high = Math.min(valueRange.getHigh(),
+                getPercentileValue(merged, total, highPercentile));
+        if (low > high) {
+            low = high;
+        }
+        return Extents.newExtent(low, high);
+    }
+
+    private float getPercentileValue(long[] bins, long total, double percentile) {
+        double target = total * Math.max(0.0, Math.min(100.0, percentile)) / 100.0;
+        double binWidth = (max - min) / (double) N_BINS;
+        long cumulative = 0;
+        for (int bin = 0; bin < N_BINS; bin++) {
+            if (bins[bin] > 0 && cumulative + bins[bin] >= target) {
+                /*
+                 * Interpolate linearly within the bin
+                 */
+                double fraction = (target - cumulative) / bins[bin];
+                return (float) (min + binWidth * (bin + fraction));
+            }
+            cumulative += bins[bin];
+        }
+        return max;
+    }
+
+    private boolean tileIntersects(int tile, BoundingBox bbox) {
+        if (bbox == null) {
+            return true;
+        }
+        int tileX = tile % TILES_X;
+        int tileY = tile / TILES_X;
+        double tileMinX = minX + tileX * getTileWidth();
+        double tileMinY = minY + tileY * getTileHeight();
+        /*
+         * Tiles which only touch the edge of the bounding box do not count
+         */
+        return longitudesIntersect(tileMinX, tileMinX + getTileWidth(), bbox.getMinX(),
+                bbox.getMaxX())
+                && tileMinY < bbox.getMaxY()
+                && tileMinY + getTileHeight() > bbox.getMinY();
+    }
+
+    /**
+     * Tests whether two longitude ranges overlap, allowing for either of them
+     * to be expressed in a different 360-degree range to the other (e.g.
+     * [170,190] overlaps [-180,-170])
+     */
+    static boolean longitudesIntersect(double minLon1, double maxLon1, double minLon2,
+            double maxLon2) {
+        if (maxLon1 - minLon1 >= 360.0 || maxLon2 - minLon2 >= 360.0) {
+            return true;
+        }
+        /*
+         * The ranges overlap if there is an integer k for which [minLon2 +
+         * 360k, maxLon2 + 360k] overlaps [minLon1, maxLon1], i.e. for which
+         * (minLon1 - maxLon2) / 360 < k < (maxLon1 - minLon2) / 360
+         */
+        double lowK = (minLon1 - maxLon2) / 360.0;
+        double highK = (maxLon1 - minLon2) / 360.0;
+        return Math.floor(lowK) + 1 < highK;
+    }
+
+    /**
+     * Writes these statistics in a compact binary form
+     * 
+     * @param out
+     *            The {@link DataOutput} to write to
+     * @throws IOException
+     *             If there is a problem writing the data
+     */
+    public void writeTo(DataOutput out) throws IOException {
+        out.writeDouble(minX);
+        out.writeDouble(minY);
+        out.writeDouble(maxX);
+        out.writeDouble(maxY);
+        out.writeInt(count);
+        out.writeFloat(min);
+        out.writeFloat(max);
+        out.writeDouble(mean);
+        for (int tile = 0; tile < tileCounts.length; tile++) {
+            out.writeInt(tileCounts[tile]);
+            out.writeFloat(tileMins[tile]);
+            out.writeFloat(tileMaxs[tile]);
+        }
+        for (int value : histograms) {
+            out.writeInt(value);
+        }
+    }
+
+    /**
+     * Reads statistics previously written with
+     * {@link SliceStatistics#writeTo(DataOutput)}
+     * 
+     * @param in
+     *            The {@link DataInput} to read from
+     * @return The {@link SliceStatistics}
+     * @throws IOException
+     *             If there is a problem reading the data
+     */
+    public static SliceStatistics readFrom(DataInput in) throws IOException {
+        double minX = in.readDouble();
+        double minY = in.readDouble();
+        double maxX = in.readDouble();
+        double maxY = in.readDouble();
+        int count = in.readInt();
+        float min = in.readFloat();
+        float max = in.readFloat();
+        double mean = in.readDouble();
+        int nTiles = TILES_X * TILES_Y;
+        int[] tileCounts = new int[nTiles];
+        float[] tileMins = new float[nTiles];
+        float[] tileMaxs = new float[nTiles];
+        for (int tile = 0; tile < nTiles; tile++) {
+            tileCounts[tile] = in.readInt();
+            tileMins[tile] = in.readFloat();
+            tileMaxs[tile] = in.readFloat();
+        }
+        int[] histograms = new int[nTiles * N_BINS];
+        for (int i = 0; i < histograms.length; i++) {
+            histograms[i] = in.readInt();
+        }
+        return new SliceStatistics(minX, minY, maxX, maxY, count, min, max, mean, tileCounts,
+                tileMins, tileMaxs, histograms);
+    }
+}
@@ -0,0 +1,610 @@
+/*******************************************************************************
+ * Copyright (c) 2016 The University of Reading
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the University of Reading, nor the names of the
+ *    authors or contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ******************************************************************************/
+
+package uk.ac.rdg.resc.edal.graphics.utils;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.net.URLEncoder;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import org.geotoolkit.referencing.crs.DefaultGeographicCRS;
+import org.joda.time.DateTime;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import uk.ac.rdg.resc.edal.dataset.Dataset;
+import uk.ac.rdg.resc.edal.dataset.DatasetFactory;
+import uk.ac.rdg.resc.edal.dataset.HorizontallyDiscreteDataset;
+import uk.ac.rdg.resc.edal.domain.Extent;
+import uk.ac.rdg.resc.edal.domain.MapDomain;
+import uk.ac.rdg.resc.edal.domain.TemporalDomain;
+import uk.ac.rdg.resc.edal.domain.VerticalDomain;
+import uk.ac.rdg.resc.edal.exceptions.VariableNotFoundException;
+import uk.ac.rdg.resc.edal.feature.MapFeature;
+import uk.ac.rdg.resc.edal.geometry.BoundingBox;
+import uk.ac.rdg.resc.edal.geometry.BoundingBoxImpl;
+import uk.ac.rdg.resc.edal.grid.RegularGridImpl;
+import uk.ac.rdg.resc.edal.grid.TimeAxis;
+import uk.ac.rdg.resc.edal.grid.VerticalAxis;
+import uk.ac.rdg.resc.edal.metadata.VariableMetadata;
+import uk.ac.rdg.resc.edal.position.VerticalCrs;
+import uk.ac.rdg.resc.edal.util.Array2D;
+import uk.ac.rdg.resc.edal.util.CollectionUtils;
+import uk.ac.rdg.resc.edal.util.GISUtils;
+
+/**
+ * Stores {@link SliceStatistics} for (variable, time, elevation) slices of
+ * {@link Dataset}s, so that value ranges can be found for auto-scaling without
+ * reading the underlying data each time.
+ * 
+ * Statistics are calculated lazily when they are first requested, or in the
+ * background if requested with
+ * {@link StatisticsStore#computeInBackground(Dataset, String, Double, DateTime)}
+ * or {@link StatisticsStore#precompute(Dataset, String)}. If a directory is
+ * supplied, calculated statistics are also written to disk (one file per
+ * dataset) so that they survive restarts. Files on disk are stamped with the
+ * source stamp supplied by {@link StatisticsStore#setSourceStamp(String, String)}
+ * and are discarded if the stamp no longer matches. Statistics for datasets
+ * without a source stamp are only held in memory.
+ * 
+ * Only {@link HorizontallyDiscreteDataset}s are supported - for other types of
+ * {@link Dataset}, no statistics are available.
+ * 
+ * @author Guy Griffiths
+ */
+public class StatisticsStore {
+    private static final Logger log = LoggerFactory.getLogger(StatisticsStore.class);
+
+    /** The number of points in the x-direction used to sample each slice */
+    public static final int SAMPLE_WIDTH = 256;
+    /** The number of points in the y-direction used to sample each slice */
+    public static final int SAMPLE_HEIGHT = 128;
+
+    private static final int FILE_MAGIC = 0x45444c53;
+    private static final int FILE_VERSION = 2;
+    private static final String FILE_SUFFIX = ".stats";
+
+    private final File directory;
+    private final Map<String, Map<SliceKey, SliceStatistics>> statistics;
+    /*
+     * Source stamps for each dataset. Datasets whose source data cannot be
+     * stamped map to an empty string.
+     */
+    private final Map<String, String> sourceStamps;
+    private final ExecutorService backgroundExecutor;
+
+    /**
+     * Creates a new {@link StatisticsStore}
+     * 
+     * @param directory
+     *            The directory in which to persist statistics. If this is
+     *            <code>null</code>, statistics will only be held in memory.
+     */
+    public StatisticsStore(File directory) {
+        this.directory = directory;
+        statistics = new ConcurrentHashMap<>();
+        sourceStamps = new ConcurrentHashMap<>();
+        if (directory != null && !directory.exists()) {
+            if (!directory.mkdirs()) {
+                log.warn("Could not create directory " + directory
+                        + " for statistics.  They will not be persisted.");
+            }
+        }
+        backgroundExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "slice-statistics");
+                thread.setDaemon(true);
+                thread.setPriority(Thread.MIN_PRIORITY);
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * Gets the statistics for a slice of a variable, calculating them if
+     * necessary
+     * 
+     * @param dataset
+     *            The {@link Dataset} containing the variable
+     * @param varId
+     *            The ID of the variable
+     * @param z
+     *            The target elevation, or <code>null</code> for the default
+     * @param time
+     *            The target time, or <code>null</code> for the default
+     * @return The {@link SliceStatistics}, or <code>null</code> if they cannot
+     *         be calculated for this variable
+     */
+    public SliceStatistics getStatistics(Dataset dataset, String varId, Double z, DateTime time) {
+        SliceKey key = getKey(dataset, varId, z, time);
+        if (key == null) {
+            return null;
+        }
+        Map<SliceKey, SliceStatistics> datasetStatistics = getDatasetStatistics(dataset.getId());
+        SliceStatistics sliceStatistics = datasetStatistics.get(key);
+        if (sliceStatistics == null) {
+            sliceStatistics = calculate(dataset, key, datasetStatistics);
+        }
+        return sliceStatistics;
+    }
+
+    /**
+     * Gets the statistics for a slice of a variable, only if they have already
+     * been calculated
+     * 
+     * @param dataset
+     *            The {@link Dataset} containing the variable
+     * @param varId
+     *            The ID of the variable
+     * @param z
+     *            The target elevation, or <code>null</code> for the default
+     * @param time
+     *            The target time, or <code>null</code> for the default
+     * @return The {@link SliceStatistics}, or <code>null</code> if they are not
+     *         available
+     */
+    public SliceStatistics getCachedStatistics(Dataset dataset, String varId, Double z,
+            DateTime time) {
+        SliceKey key = getKey(dataset, varId, z, time);
+        if (key == null) {
+            return null;
+        }
+        return getDatasetStatistics(dataset.getId()).get(key);
+    }
+
+    /**
+     * Convenience method to get the range of values for a slice of a variable
+     * within a bounding box.
+     * 
+     * @param dataset
+     *            The {@link Dataset} containing the variable
+     * @param varId
+     *            The ID of the variable
+     * @param z
+     *            The target elevation, or <code>null</code> for the default
+     * @param time
+     *            The target time, or <code>null</code> for the default
+     * @param bbox
+     *            The {@link BoundingBox} of interest, in any CRS, or
+     *            <code>null</code> for the whole slice
+     * @param lowPercentile
+     *            The lower percentile (0-100) of the range, or
+     *            <code>null</code> for the minimum value
+     * @param highPercentile
+     *            The upper percentile (0-100) of the range, or
+     *            <code>null</code> for the maximum value
+     * @return The range of values, or <code>null</code> if it cannot be
+     *         determined from the stored statistics
+     */
+    public Extent<Float> getValueRange(Dataset dataset, String varId, Double z, DateTime time,
+            BoundingBox bbox, Double lowPercentile, Double highPercentile) {
+        SliceStatistics sliceStatistics = getStatistics(dataset, varId, z, time);
+        if (sliceStatistics == null) {
+            return null;
+        }
+        BoundingBox wgs84Bbox = toWgs84(bbox);
+        if (lowPercentile == null && highPercentile == null) {
+            return sliceStatistics.getValueRange(wgs84Bbox);
+        } else {
+            return sliceStatistics.getPercentileRange(wgs84Bbox,
+                    lowPercentile == null ? 0.0 : lowPercentile, highPercentile == null ? 100.0
+                            : highPercentile);
+        }
+    }
+
+    /**
+     * Converts a {@link BoundingBox} to WGS84 lat-lon for comparison with
+     * stored statistics
+     * 
+     * @param bbox
+     *            The {@link BoundingBox} to convert. May be <code>null</code>.
+     * @return A WGS84 {@link BoundingBox} containing the supplied one, or
+     *         <code>null</code> if <code>null</code> was supplied
+     */
+    public static BoundingBox toWgs84(BoundingBox bbox) {
+        if (bbox == null) {
+            return null;
+        }
+        return new BoundingBoxImpl(GISUtils.toGeographicBoundingBox(bbox));
+    }
+
+    /**
+     * Calculates the statistics for a slice of a variable in a background
+     * thread, if they are not already available
+     * 
+     * @param dataset
+     *            The {@link Dataset} containing the variable
+     * @param varId
+     *            The ID of the variable
+     * @param z
+     *            The target elevation, or <code>null</code> for the default
+     * @param time
+     *            The target time, or <code>null</code> for the default
+     */
+    public void computeInBackground(final Dataset dataset, final String varId, final Double z,
+            final DateTime time) {
+        /*
+         * Get the statistics map now, so that if the statistics are cleared
+         * before this runs, the results are discarded
+         */
+        final Map<SliceKey, SliceStatistics> datasetStatistics = getDatasetStatistics(dataset
+                .getId());
+        backgroundExecutor.submit(new Runnable() {
+            @Override
+            public void run() {
+                SliceKey key = getKey(dataset, varId, z, time);
+                if (key != null && !datasetStatistics.containsKey(key)) {
+                    calculate(dataset, key, datasetStatistics);
+                }
+            }
+        });
+    }
+
+    /**
+     * Calculates the statistics for every slice of a variable in a background
+     * thread. For variables with long time axes and many elevations this can
+     * take a considerable time.
+     * 
+     * @param dataset
+     *            The {@link Dataset} containing the variable
+     * @param varId
+     *            The ID of the variable
+     */
+    public void precompute(Dataset dataset, String varId) {
+        VariableMetadata metadata;
+        try {
+            metadata = dataset.getVariableMetadata(varId);
+        } catch (VariableNotFoundException e) {
+            return;
+        }
+        List<DateTime> times = Collections.singletonList(null);
+        List<Double> zs = Collections.singletonList(null);
+        if (metadata.getTemporalDomain() instanceof TimeAxis) {
+            times = ((TimeAxis) metadata.getTemporalDomain()).getCoordinateValues();
+        }
+        if (metadata.getVerticalDomain() instanceof VerticalAxis) {
+            zs = ((VerticalAxis) metadata.getVerticalDomain()).getCoordinateValues();
+        }
+        for (DateTime time : times) {
+            for (Double z : zs) {
+                computeInBackground(dataset, varId, z, time);
+            }
+        }
+    }
+
+    /**
+     * Sets the stamp identifying the current state of the source data of a
+     * dataset. Statistics on disk are only used if they were written with the
+     * same stamp. If the stamp has changed, all statistics for the dataset are
+     * removed.
+     * 
+     * @param datasetId
+     *            The ID of the dataset
+     * @param sourceStamp
+     *            The stamp of the source data (e.g. from
+     *            {@link DatasetFactory#getSourceStamp(String)}), or
+     *            <code>null</code> if the source data cannot be stamped, in
+     *            which case statistics will not be persisted
+     */
+    public synchronized void setSourceStamp(String datasetId, String sourceStamp) {
+        String oldStamp = sourceStamps.get(datasetId);
+        String newStamp = sourceStamp == null ? "" : sourceStamp;
+        if (oldStamp != null && !oldStamp.equals(newStamp)) {
+            clear(datasetId);
+        }
+        sourceStamps.put(datasetId, newStamp);
+    }
+
+    /**
+     * Removes all statistics and the source stamp for a dataset, both in
+     * memory and on disk. This should be called when the underlying data may
+     * have changed. Statistics which are being calculated when this is called
+     * will be discarded.
+     * 
+     * @param datasetId
+     *            The ID of the dataset
+     */
+    public synchronized void clear(String datasetId) {
+        statistics.remove(datasetId);
+        sourceStamps.remove(datasetId);
+        File file = getFile(datasetId);
+        if (file != null && file.exists() && !file.delete()) {
+            log.warn("Could not delete statistics file " + file);
+        }
+    }
+
+    /**
+     * Stops any background calculation of statistics
+     */
+    public void shutdown() {
+        backgroundExecutor.shutdownNow();
+    }
+
+    /**
+     * Calculates the statistics for a slice and stores them in the supplied
+     * map, provided that it is still the current map for the dataset (i.e.
+     * the statistics have not been cleared in the meantime)
+     */
+    private SliceStatistics calculate(Dataset dataset, SliceKey key,
+            Map<SliceKey, SliceStatistics> datasetStatistics) {
+        if (!(dataset instanceof HorizontallyDiscreteDataset<?>)) {
+            return null;
+        }
+        HorizontallyDiscreteDataset<?> discreteDataset = (HorizontallyDiscreteDataset<?>) dataset;
+        try {
+            VariableMetadata metadata = dataset.getVariableMetadata(key.varId);
+            if (!metadata.isScalar()) {
+                return null;
+            }
+            BoundingBox bbox = toWgs84(metadata.getHorizontalDomain().getBoundingBox());
+            VerticalCrs vCrs = null;
+            if (metadata.getVerticalDomain() != null) {
+                vCrs = metadata.getVerticalDomain().getVerticalCrs();
+            }
+            DateTime time = null;
+            if (key.time != null) {
+                time = new DateTime(key.time, metadata.getTemporalDomain().getChronology());
+            }
+            List<MapFeature> mapFeatures = discreteDataset.extractMapFeatures(CollectionUtils
+                    .setOf(key.varId), new MapDomain(new RegularGridImpl(bbox, SAMPLE_WIDTH,
+                    SAMPLE_HEIGHT), key.z, vCrs, time));
+            if (mapFeatures.isEmpty()) {
+                return null;
+            }
+            Array2D<Number> values = mapFeatures.get(0).getValues(key.varId);
+            if (values == null) {
+                return null;
+            }
+            SliceStatistics sliceStatistics = SliceStatistics.fromValues(values,
+                    new BoundingBoxImpl(bbox.getMinX(), bbox.getMinY(), bbox.getMaxX(),
+                            bbox.getMaxY(), DefaultGeographicCRS.WGS84));
+            synchronized (this) {
+                if (statistics.get(dataset.getId()) == datasetStatistics
+                        && datasetStatistics.putIfAbsent(key, sliceStatistics) == null) {
+                    persist(dataset.getId(), key, sliceStatistics);
+                }
+            }
+            return sliceStatistics;
+        } catch (Exception e) {
+            log.warn("Problem calculating statistics for " + key.varId + " in dataset "
+                    + dataset.getId(), e);
+            return null;
+        }
+    }
+
+    /**
+     * Creates a key for a slice, snapping the requested time and elevation to
+     * the values which would actually be read
+     */
+    private static SliceKey getKey(Dataset dataset, String varId, Double z, DateTime time) {
+        VariableMetadata metadata;
+        try {
+            metadata = dataset.getVariableMetadata(varId);
+        } catch (VariableNotFoundException e) {
+            return null;
+        }
+        TemporalDomain temporalDomain = metadata.getTemporalDomain();
+        VerticalDomain verticalDomain = metadata.getVerticalDomain();
+        DateTime sliceTime = GISUtils.getClosestTimeTo(time, temporalDomain);
+        Double sliceZ = GISUtils.getClosestElevationTo(z, verticalDomain);
+        return new SliceKey(varId, sliceTime == null ? null : sliceTime.getMillis(), sliceZ);
+    }
+
+    private Map<SliceKey, SliceStatistics> getDatasetStatistics(String datasetId) {
+        Map<SliceKey, SliceStatistics> datasetStatistics = statistics.get(datasetId);
+        if (datasetStatistics == null) {
+            synchronized (this) {
+                datasetStatistics = statistics.get(datasetId);
+                if (datasetStatistics == null) {
+                    datasetStatistics = load(datasetId);
+                    statistics.put(datasetId, datasetStatistics);
+                }
+            }
+        }
+        return datasetStatistics;
+    }
+
+    private File getFile(String datasetId) {
+        if (directory == null) {
+            return null;
+        }
+        try {
+            return new File(directory, URLEncoder.encode(datasetId, "UTF-8") + FILE_SUFFIX);
+        } catch (UnsupportedEncodingException e) {
+            /*
+             * UTF-8 is always supported
+             */
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * @return The source stamp for a dataset, or <code>null</code> if it is
+     *         not known or the dataset cannot be stamped
+     */
+    private String getSourceStamp(String datasetId) {
+        String sourceStamp = sourceStamps.get(datasetId);
+        if (sourceStamp == null || sourceStamp.isEmpty()) {
+            return null;
+        }
+        return sourceStamp;
+    }
+
+    private Map<SliceKey, SliceStatistics> load(String datasetId) {
+        Map<SliceKey, SliceStatistics> datasetStatistics = new ConcurrentHashMap<>();
+        File file = getFile(datasetId);
+        if (file == null || !file.exists()) {
+            return datasetStatistics;
+        }
+        String sourceStamp = getSourceStamp(datasetId);
+        boolean stale = false;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(
+                new FileInputStream(file)))) {
+            if (in.readInt() != FILE_MAGIC || in.readInt() != FILE_VERSION) {
+                log.warn("Statistics file " + file + " is not in a recognised format - ignoring");
+                stale = true;
+                return datasetStatistics;
+            }
+            if (!in.readUTF().equals(sourceStamp)) {
+                log.debug("Statistics file " + file + " is out of date - ignoring");
+                stale = true;
+                return datasetStatistics;
+            }
+            while (true) {
+                SliceKey key;
+                try {
+                    key = SliceKey.readFrom(in);
+                } catch (EOFException e) {
+                    break;
+                }
+                datasetStatistics.put(key, SliceStatistics.readFrom(in));
+            }
+        } catch (EOFException e) {
+            /*
+             * The last record was incomplete (e.g. the server was stopped
+             * whilst it was being written). Everything before it is fine.
+             */
+            log.debug("Incomplete record at the end of " + file);
+        } catch (IOException e) {
+            log.warn("Problem reading statistics file " + file, e);
+        } finally {
+            /*
+             * Remove stale files so that new statistics are not appended to
+             * them
+             */
+            if (stale && !file.delete()) {
+                log.warn("Could not delete statistics file " + file);
+            }
+        }
+        return datasetStatistics;
+    }
+
+    private synchronized void persist(String datasetId, SliceKey key,
+            SliceStatistics sliceStatistics) {
+        File file = getFile(datasetId);
+        String sourceStamp = getSourceStamp(datasetId);
+        if (file == null || sourceStamp == null) {
+            return;
+        }
+        boolean newFile = !file.exists();
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                new FileOutputStream(file, true)))) {
+            if (newFile) {
+                out.writeInt(FILE_MAGIC);
+                out.writeInt(FILE_VERSION);
+                out.writeUTF(sourceStamp);
+            }
+            key.writeTo(out);
+            sliceStatistics.writeTo(out);
+        } catch (IOException e) {
+            log.warn("Problem writing statistics to " + file, e);
+        }
+    }
+
+    private static class SliceKey {
+        final String varId;
+        final Long time;
+        final Double z;
+
+        public SliceKey(String varId, Long time, Double z) {
+            this.varId = varId;
+            this.time = time;
+            this.z = z;
+        }
+
+        void writeTo(DataOutputStream out) throws IOException {
+            out.writeUTF(varId);
+            out.writeBoolean(time != null);
+            out.writeLong(time == null ? 0L : time);
+            out.writeBoolean(z != null);
+            out.writeDouble(z == null ? 0.0 : z);
+        }
+
+        static SliceKey readFrom(DataInputStream in) throws IOException {
+            String varId = in.readUTF();
+            boolean hasTime = in.readBoolean();
+            long time = in.readLong();
+            boolean hasZ = in.readBoolean();
+            double z = in.readDouble();
+            return new SliceKey(varId, hasTime ? time : null, hasZ ? z : null);
+        }
+
+        @Override
+        public int hashCode() {
+            final int prime = 31;
+            int result = 1;
+            result = prime * result + ((time == null) ? 0 : time.hashCode());
+            result = prime * result + ((varId == null) ? 0 : varId.hashCode());
+            result = prime * result + ((z == null) ? 0 : z.hashCode());
+            return result;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (this == obj)
+                return true;
+            if (obj == null)
+                return false;
+            if (getClass() != obj.getClass())
+                return false;
+            SliceKey other = (SliceKey) obj;
+            if (time == null) {
+                if (other.time != null)
+                    return false;
+            } else if (!time.equals(other.time))
+                return false;
+            if (varId == null) {
+                if (other.varId != null)
+                    return false;
+            } else if (!varId.equals(other.varId))
+                return false;
+            if (z == null) {
+                if (other.z != null)
+                    return false;
+            } else if (!z.equals(other.z))
+                return false;
+            return true;
+        }
+    }
+}
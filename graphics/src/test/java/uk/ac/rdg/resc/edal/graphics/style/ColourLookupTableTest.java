@@ -0,0 +1,81 @@
+/*******************************************************************************
+ * Copyright (c) 2016 The University of Reading
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the University of Reading, nor the names of the
+ *    authors or contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ******************************************************************************/
+
+package uk.ac.rdg.resc.edal.graphics.style;
+
+import static org.junit.Assert.assertEquals;
+
+import java.awt.Color;
+
+import org.junit.Test;
+
+public class ColourLookupTableTest {
+    private static final Color BELOW = new Color(0, 0, 255);
+    private static final Color ABOVE = new Color(255, 0, 0);
+    private static final Color NO_DATA = new Color(0, 0, 0, 0);
+
+    @Test
+    public void testLinearMatchesColourScheme() {
+        SegmentColourScheme scheme = new SegmentColourScheme(new ScaleRange(-10f, 30f, false),
+                BELOW, ABOVE, NO_DATA, "default", 250);
+        checkMatches(scheme, createValues(-20f, 40f));
+    }
+
+    @Test
+    public void testLogarithmicMatchesColourScheme() {
+        SegmentColourScheme scheme = new SegmentColourScheme(new ScaleRange(0.1f, 1000f, true),
+                null, null, NO_DATA, "default", 100);
+        checkMatches(scheme, createValues(-1f, 2000f));
+    }
+
+    @Test
+    public void testZeroWidthRange() {
+        SegmentColourScheme scheme = new SegmentColourScheme(new ScaleRange(5f, 5f, false),
+                BELOW, ABOVE, NO_DATA, "default", 10);
+        checkMatches(scheme, new float[] { 4f, 5f, 6f, Float.NaN });
+    }
+
+    private static float[] createValues(float min, float max) {
+        float[] values = new float[1001];
+        for (int i = 0; i < values.length - 1; i++) {
+            values[i] = min + (max - min) * i / (values.length - 2);
+        }
+        values[values.length - 1] = Float.NaN;
+        return values;
+    }
+
+    private static void checkMatches(SegmentColourScheme scheme, float[] values) {
+        int[] argb = new int[values.length];
+        scheme.mapToArgb(values, argb);
+        for (int i = 0; i < values.length; i++) {
+            Float value = Float.isNaN(values[i]) ? null : values[i];
+            assertEquals("Colour mismatch for " + value, scheme.getColor(value).getRGB(),
+                    argb[i]);
+        }
+    }
+}
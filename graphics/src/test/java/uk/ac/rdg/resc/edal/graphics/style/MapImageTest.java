@@ -0,0 +1,150 @@
+/*******************************************************************************
+ * Copyright (c) 2016 The University of Reading
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the University of Reading, nor the names of the
+ *    authors or contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ******************************************************************************/
+
+package uk.ac.rdg.resc.edal.graphics.style;
+
+import static org.junit.Assert.*;
+
+import java.awt.Color;
+import java.awt.image.BufferedImage;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.geotoolkit.referencing.crs.DefaultGeographicCRS;
+import org.junit.Before;
+import org.junit.Test;
+
+import uk.ac.rdg.resc.edal.domain.MapDomain;
+import uk.ac.rdg.resc.edal.exceptions.EdalException;
+import uk.ac.rdg.resc.edal.feature.MapFeature;
+import uk.ac.rdg.resc.edal.geometry.BoundingBoxImpl;
+import uk.ac.rdg.resc.edal.graphics.utils.FeatureCatalogue;
+import uk.ac.rdg.resc.edal.graphics.utils.PlottingDomainParams;
+import uk.ac.rdg.resc.edal.grid.RegularGrid;
+import uk.ac.rdg.resc.edal.util.Array2D;
+
+/**
+ * Tests that drawing a {@link MapImage} in tiles gives the same result as
+ * drawing it in one go
+ * 
+ * @author Guy Griffiths
+ */
+public class MapImageTest {
+    private FeatureCatalogue catalogue;
+    private PlottingDomainParams params;
+
+    @Before
+    public void setUp() {
+        params = new PlottingDomainParams(301, 203, new BoundingBoxImpl(-180, -90, 180, 90,
+                DefaultGeographicCRS.WGS84), null, null, null, null, null);
+        /*
+         * A catalogue which generates data on whatever grid is requested, so
+         * that each tile gets its own part of the field
+         */
+        catalogue = new FeatureCatalogue() {
+            @Override
+            public FeaturesAndMemberName getFeaturesForLayer(String id,
+                    PlottingDomainParams params) throws EdalException {
+                final RegularGrid grid = params.getImageGrid();
+                Array2D<Number> values = new Array2D<Number>(grid.getYSize(), grid.getXSize()) {
+                    @Override
+                    public Number get(int... coords) {
+                        double x = grid.getXAxis().getCoordinateValue(coords[1]);
+                        double y = grid.getYAxis().getCoordinateValue(coords[0]);
+                        if (x > 100 && y > 40) {
+                            return null;
+                        }
+                        return (Math.sin(Math.toRadians(x) * 3) + Math.cos(Math.toRadians(y)
+                                * 5)) / 4.0 + 0.5;
+                    }
+
+                    @Override
+                    public void set(Number value, int... coords) {
+                        throw new UnsupportedOperationException();
+                    }
+                };
+                Map<String, Array2D<Number>> valuesMap = new HashMap<>();
+                valuesMap.put("var", values);
+                MapFeature feature = new MapFeature("feature", "feature", "feature",
+                        new MapDomain(grid, null, null, null), null, valuesMap);
+                return new FeaturesAndMemberName(feature, "var");
+            }
+        };
+    }
+
+    private MapImage createImage() {
+        MapImage mapImage = new MapImage();
+        RasterLayer rasterLayer = new RasterLayer("test", new SegmentColourScheme(
+                new ScaleRange(0f, 1f, false), Color.blue, Color.red, new Color(0, true),
+                "#000000,#00ff00", 250));
+        rasterLayer.setOpacityTransform(new FlatOpacity(0.7f));
+        mapImage.getLayers().add(rasterLayer);
+        /*
+         * Not tileable, so will be drawn in one piece
+         */
+        mapImage.getLayers().add(new ContourLayer("test", new ScaleRange(0f, 1f, false), false,
+                5, Color.cyan, 1, ContourLayer.ContourLineStyle.SOLID, true));
+        return mapImage;
+    }
+
+    @Test
+    public void testTiledDrawing() throws EdalException {
+        BufferedImage expected = createImage().drawImage(params, catalogue);
+
+        MapImage tiledImage = createImage();
+        tiledImage.setTiledDrawing(1, 64);
+        BufferedImage tiled = tiledImage.drawImage(params, catalogue);
+
+        assertEquals(expected.getWidth(), tiled.getWidth());
+        assertEquals(expected.getHeight(), tiled.getHeight());
+        for (int j = 0; j < expected.getHeight(); j++) {
+            for (int i = 0; i < expected.getWidth(); i++) {
+                assertEquals("Pixel " + i + "," + j, expected.getRGB(i, j), tiled.getRGB(i, j));
+            }
+        }
+    }
+
+    @Test
+    public void testSubImage() {
+        PlottingDomainParams tile = params.subImage(64, 128, 64, 75);
+        RegularGrid grid = params.getImageGrid();
+        RegularGrid tileGrid = tile.getImageGrid();
+        for (int i = 0; i < 64; i++) {
+            assertEquals(grid.getXAxis().getCoordinateValue(64 + i), tileGrid.getXAxis()
+                    .getCoordinateValue(i), 1e-10);
+        }
+        /*
+         * Image rows increase downwards, grid rows upwards
+         */
+        for (int j = 0; j < 75; j++) {
+            assertEquals(grid.getYAxis().getCoordinateValue(203 - 1 - (128 + j)), tileGrid
+                    .getYAxis().getCoordinateValue(75 - 1 - j), 1e-10);
+        }
+        assertEquals(-90.0, tile.getBbox().getMinY(), 0.0);
+    }
+}
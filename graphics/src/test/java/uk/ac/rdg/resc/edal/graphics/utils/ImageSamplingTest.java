@@ -0,0 +1,79 @@
+/*******************************************************************************
+ * Copyright (c) 2016 The University of Reading
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the University of Reading, nor the names of the
+ *    authors or contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ******************************************************************************/
+
+package uk.ac.rdg.resc.edal.graphics.utils;
+
+import static org.junit.Assert.assertEquals;
+
+import org.geotoolkit.referencing.crs.DefaultGeographicCRS;
+import org.junit.Test;
+
+import uk.ac.rdg.resc.edal.geometry.BoundingBoxImpl;
+import uk.ac.rdg.resc.edal.grid.RectilinearGrid;
+import uk.ac.rdg.resc.edal.grid.RegularGrid;
+import uk.ac.rdg.resc.edal.grid.RegularGridImpl;
+
+public class ImageSamplingTest {
+    @Test
+    public void testForSpacing() {
+        ImageSampling sampling = ImageSampling.forSpacing(100, 50, 20);
+        assertEquals(5, sampling.getXSize());
+        assertEquals(2, sampling.getYSize());
+        for (int i = 0; i < sampling.getXSize(); i++) {
+            assertEquals(11 + 20 * i, sampling.getXPixel(i));
+        }
+        assertEquals(13, sampling.getYPixel(0));
+        assertEquals(38, sampling.getYPixel(1));
+
+        sampling = ImageSampling.forSpacing(10, 10, 20);
+        assertEquals(0, sampling.getXSize());
+        assertEquals(0, sampling.getYSize());
+    }
+
+    @Test
+    public void testGridMatchesImagePixels() {
+        RegularGrid imageGrid = new RegularGridImpl(new BoundingBoxImpl(-180, -90, 180, 90,
+                DefaultGeographicCRS.WGS84), 360, 180);
+        ImageSampling sampling = ImageSampling.forSpacing(360, 180, 16);
+        RectilinearGrid grid = sampling.getGrid(imageGrid);
+        assertEquals(sampling.getXSize(), grid.getXSize());
+        assertEquals(sampling.getYSize(), grid.getYSize());
+        for (int i = 0; i < sampling.getXSize(); i++) {
+            assertEquals(imageGrid.getXAxis().getCoordinateValue(sampling.getXPixel(i)), grid
+                    .getXAxis().getCoordinateValue(i), 1e-10);
+        }
+        for (int j = 0; j < sampling.getYSize(); j++) {
+            /*
+             * Image rows increase downwards, grid rows increase upwards
+             */
+            int imageRow = 180 - 1 - sampling.getYPixel(j);
+            assertEquals(imageGrid.getYAxis().getCoordinateValue(imageRow), grid.getYAxis()
+                    .getCoordinateValue(sampling.getYSize() - 1 - j), 1e-10);
+        }
+    }
+}
@@ -0,0 +1,152 @@
+/*******************************************************************************
+ * Copyright (c) 2016 The University of Reading
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the University of Reading, nor the names of the
+ *    authors or contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ******************************************************************************/
+
+package uk.ac.rdg.resc.edal.graphics.utils;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+import org.geotoolkit.referencing.crs.DefaultGeographicCRS;
+import org.junit.Before;
+import org.junit.Test;
+
+import uk.ac.rdg.resc.edal.domain.Extent;
+import uk.ac.rdg.resc.edal.geometry.BoundingBoxImpl;
+import uk.ac.rdg.resc.edal.util.Array2D;
+import uk.ac.rdg.resc.edal.util.ValuesArray2D;
+
+public class SliceStatisticsTest {
+    private static final int X_SIZE = 80;
+    private static final int Y_SIZE = 40;
+
+    private SliceStatistics statistics;
+
+    @Before
+    public void setUp() {
+        /*
+         * Values increase from west to east, with the southern half missing
+         */
+        Array2D<Number> values = new ValuesArray2D(Y_SIZE, X_SIZE);
+        for (int j = Y_SIZE / 2; j < Y_SIZE; j++) {
+            for (int i = 0; i < X_SIZE; i++) {
+                values.set(i, j, i);
+            }
+        }
+        statistics = SliceStatistics.fromValues(values, new BoundingBoxImpl(-180, -90, 180, 90,
+                DefaultGeographicCRS.WGS84));
+    }
+
+    @Test
+    public void testOverallStatistics() {
+        assertEquals(X_SIZE * Y_SIZE / 2, statistics.getCount());
+        assertEquals(0f, statistics.getMin(), 0f);
+        assertEquals(X_SIZE - 1f, statistics.getMax(), 0f);
+        assertEquals((X_SIZE - 1) / 2.0, statistics.getMean(), 1e-6);
+    }
+
+    @Test
+    public void testValueRangeInBoundingBox() {
+        Extent<Float> range = statistics.getValueRange(null);
+        assertEquals(0f, range.getLow(), 0f);
+        assertEquals(X_SIZE - 1f, range.getHigh(), 0f);
+
+        /*
+         * The western-most tile in the northern half
+         */
+        range = statistics.getValueRange(new BoundingBoxImpl(-180, 0, -135, 90,
+                DefaultGeographicCRS.WGS84));
+        assertEquals(0f, range.getLow(), 0f);
+        assertEquals(X_SIZE / SliceStatistics.TILES_X - 1f, range.getHigh(), 0f);
+
+        /*
+         * No data in the southern half
+         */
+        assertNull(statistics.getValueRange(new BoundingBoxImpl(-180, -90, 180, -50,
+                DefaultGeographicCRS.WGS84)));
+    }
+
+    @Test
+    public void testValueRangeAcrossDateLine() {
+        float tileMax = X_SIZE / SliceStatistics.TILES_X - 1f;
+        /*
+         * Includes the eastern-most and western-most tiles
+         */
+        Extent<Float> range = statistics.getValueRange(new BoundingBoxImpl(170, 0, 190, 90,
+                DefaultGeographicCRS.WGS84));
+        assertEquals(0f, range.getLow(), 0f);
+        assertEquals(X_SIZE - 1f, range.getHigh(), 0f);
+
+        /*
+         * Only the western-most tile, expressed in the range 0-360
+         */
+        range = statistics.getValueRange(new BoundingBoxImpl(180, 0, 225, 90,
+                DefaultGeographicCRS.WGS84));
+        assertEquals(0f, range.getLow(), 0f);
+        assertEquals(tileMax, range.getHigh(), 0f);
+
+        assertTrue(SliceStatistics.longitudesIntersect(0, 45, 350, 370));
+        assertTrue(SliceStatistics.longitudesIntersect(-180, -135, 170, 190));
+        assertFalse(SliceStatistics.longitudesIntersect(0, 45, 45, 50));
+        assertFalse(SliceStatistics.longitudesIntersect(0, 45, 50, 60));
+        assertTrue(SliceStatistics.longitudesIntersect(0, 45, 100, 460));
+    }
+
+    @Test
+    public void testPercentileRange() {
+        Extent<Float> range = statistics.getPercentileRange(null, 10, 90);
+        /*
+         * Values are uniformly distributed, so percentiles are accurate to
+         * within a histogram bin
+         */
+        float binWidth = (X_SIZE - 1f) / SliceStatistics.N_BINS;
+        assertEquals(0.1f * (X_SIZE - 1), range.getLow(), binWidth);
+        assertEquals(0.9f * (X_SIZE - 1), range.getHigh(), binWidth);
+    }
+
+    @Test
+    public void testSerialisation() throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        statistics.writeTo(new DataOutputStream(bytes));
+        SliceStatistics read = SliceStatistics.readFrom(new DataInputStream(
+                new ByteArrayInputStream(bytes.toByteArray())));
+        assertEquals(statistics.getCount(), read.getCount());
+        assertEquals(statistics.getMin(), read.getMin(), 0f);
+        assertEquals(statistics.getMax(), read.getMax(), 0f);
+        assertEquals(statistics.getMean(), read.getMean(), 0.0);
+        assertEquals(statistics.getPercentileRange(null, 5, 95),
+                read.getPercentileRange(null, 5, 95));
+    }
+}
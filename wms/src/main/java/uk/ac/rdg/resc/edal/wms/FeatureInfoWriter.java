@@ -0,0 +1,224 @@
+/*******************************************************************************
+ * Copyright (c) 2016 The University of Reading
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the University of Reading, nor the names of the
+ *    authors or contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ******************************************************************************/
+
+package uk.ac.rdg.resc.edal.wms;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.List;
+import java.util.Map.Entry;
+import java.util.Properties;
+
+import uk.ac.rdg.resc.edal.position.HorizontalPosition;
+
+/**
+ * Writes the response to a GetFeatureInfo request. The output is written
+ * directly to the supplied {@link Writer}, since these requests are made very
+ * frequently by interactive clients and the responses are small.
+ * 
+ * The output is the same as that of the bundled featureInfo-xml.vm and
+ * featureInfo-plain.vm templates. If a site supplies its own versions of
+ * those templates, {@link WmsServlet} uses them instead of this class.
+ * 
+ * @author Guy Griffiths
+ */
+public class FeatureInfoWriter {
+    private static final String INDENT = "    ";
+
+    private FeatureInfoWriter() {
+    }
+
+    /**
+     * Writes a GetFeatureInfo response in XML format
+     * 
+     * @param position
+     *            The clicked position, in WGS84
+     * @param featureInfos
+     *            The {@link FeatureInfoPoint}s to write
+     * @param writer
+     *            The {@link Writer} to write the response to
+     * @throws IOException
+     *             If there is a problem writing the response
+     */
+    public static void writeXml(HorizontalPosition position, List<FeatureInfoPoint> featureInfos,
+            Writer writer) throws IOException {
+        writer.write("<FeatureInfoResponse>\n");
+        writer.write(INDENT);
+        writer.write("<longitude>");
+        writer.write(Double.toString(position.getX()));
+        writer.write("</longitude>\n");
+        writer.write(INDENT);
+        writer.write("<latitude>");
+        writer.write(Double.toString(position.getY()));
+        writer.write("</latitude>\n");
+        for (FeatureInfoPoint info : featureInfos) {
+            writer.write(INDENT);
+            writer.write("<Feature>\n");
+            if (info.getLayerName() != null) {
+                writeXmlElement("layer", info.getLayerName(), 2, writer);
+            }
+            writer.write(INDENT);
+            writer.write(INDENT);
+            writer.write("<FeatureInfo>\n");
+            if (info.getFeatureId() != null) {
+                writeXmlElement("id", info.getFeatureId(), 3, writer);
+            }
+            if (info.getTime() != null) {
+                writeXmlElement("time", info.getTime(), 3, writer);
+            }
+            writeXmlElement("value", info.getValue() == null ? "none" : info.getValue()
+                    .toString(), 3, writer);
+            Properties properties = info.getFeatureProperties();
+            if (properties != null) {
+                for (Entry<Object, Object> property : properties.entrySet()) {
+                    writer.write(INDENT);
+                    writer.write(INDENT);
+                    writer.write(INDENT);
+                    writer.write("<property name=\"");
+                    writeEscaped(String.valueOf(property.getKey()), writer);
+                    writer.write("\">");
+                    writeEscaped(String.valueOf(property.getValue()), writer);
+                    writer.write("</property>\n");
+                }
+            }
+            writer.write(INDENT);
+            writer.write(INDENT);
+            writer.write("</FeatureInfo>\n");
+            writer.write(INDENT);
+            writer.write("</Feature>\n");
+        }
+        writer.write("</FeatureInfoResponse>");
+        writer.flush();
+    }
+
+    /**
+     * Writes a GetFeatureInfo response in plain text format
+     * 
+     * @param position
+     *            The clicked position, in WGS84
+     * @param featureInfos
+     *            The {@link FeatureInfoPoint}s to write
+     * @param writer
+     *            The {@link Writer} to write the response to
+     * @throws IOException
+     *             If there is a problem writing the response
+     */
+    public static void writePlain(HorizontalPosition position,
+            List<FeatureInfoPoint> featureInfos, Writer writer) throws IOException {
+        writer.write("Clicked:\n");
+        writer.write(INDENT);
+        writer.write("Longitude: ");
+        writer.write(Double.toString(position.getX()));
+        writer.write('\n');
+        writer.write(INDENT);
+        writer.write("Latitude:  ");
+        writer.write(Double.toString(position.getY()));
+        writer.write('\n');
+        writer.write(INDENT);
+        writer.write('\n');
+        for (FeatureInfoPoint info : featureInfos) {
+            if (info.getLayerName() != null) {
+                writer.write("Layer: ");
+                writer.write(info.getLayerName());
+                writer.write('\n');
+            }
+            if (info.getFeatureId() != null) {
+                writer.write("ID:    ");
+                writer.write(info.getFeatureId());
+                writer.write('\n');
+            }
+            if (info.getTime() != null) {
+                writer.write("Time:  ");
+                writer.write(info.getTime());
+                writer.write('\n');
+            }
+            if (info.getValue() == null) {
+                writer.write("No value\n");
+            } else {
+                writer.write("Value: ");
+                writer.write(info.getValue().toString());
+                writer.write('\n');
+            }
+            Properties properties = info.getFeatureProperties();
+            if (properties != null) {
+                for (Entry<Object, Object> property : properties.entrySet()) {
+                    writer.write(String.valueOf(property.getKey()));
+                    writer.write(": ");
+                    writer.write(String.valueOf(property.getValue()));
+                    writer.write('\n');
+                }
+            }
+        }
+        writer.flush();
+    }
+
+    private static void writeXmlElement(String name, String content, int indentLevel,
+            Writer writer) throws IOException {
+        for (int i = 0; i < indentLevel; i++) {
+            writer.write(INDENT);
+        }
+        writer.write('<');
+        writer.write(name);
+        writer.write('>');
+        writeEscaped(content, writer);
+        writer.write("</");
+        writer.write(name);
+        writer.write(">\n");
+    }
+
+    /*
+     * Writes a string with the XML special characters escaped, without
+     * creating an intermediate copy of it
+     */
+    private static void writeEscaped(String content, Writer writer) throws IOException {
+        int start = 0;
+        for (int i = 0; i < content.length(); i++) {
+            String replacement;
+            switch (content.charAt(i)) {
+            case '&':
+                replacement = "&amp;";
+                break;
+            case '<':
+                replacement = "&lt;";
+                break;
+            case '>':
+                replacement = "&gt;";
+                break;
+            case '"':
+                replacement = "&quot;";
+                break;
+            default:
+                continue;
+            }
+            writer.write(content, start, i - start);
+            writer.write(replacement);
+            start = i + 1;
+        }
+        writer.write(content, start, content.length() - start);
+    }
+}
@@ -0,0 +1,335 @@
+/*******************************************************************************
+ * Copyright (c) 2016 The University of Reading
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the University of Reading, nor the names of the
+ *    authors or contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ******************************************************************************/
+
+package uk.ac.rdg.resc.edal.wms;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.joda.time.DateTime;
+
+import uk.ac.rdg.resc.edal.domain.TemporalDomain;
+import uk.ac.rdg.resc.edal.domain.VerticalDomain;
+import uk.ac.rdg.resc.edal.exceptions.BadTimeFormatException;
+import uk.ac.rdg.resc.edal.exceptions.EdalException;
+import uk.ac.rdg.resc.edal.geometry.BoundingBox;
+import uk.ac.rdg.resc.edal.graphics.formats.ImageFormat;
+import uk.ac.rdg.resc.edal.grid.TimeAxis;
+import uk.ac.rdg.resc.edal.grid.VerticalAxis;
+import uk.ac.rdg.resc.edal.metadata.VariableMetadata;
+import uk.ac.rdg.resc.edal.util.GISUtils;
+import uk.ac.rdg.resc.edal.util.TimeUtils;
+import uk.ac.rdg.resc.edal.wms.exceptions.TileOutOfRangeException;
+import uk.ac.rdg.resc.edal.wms.util.TileCache.TileKey;
+import uk.ac.rdg.resc.edal.wms.util.TileMatrixSet;
+
+/**
+ * The parameters of a request for a single map tile on one of the fixed
+ * {@link TileMatrixSet}s.
+ * 
+ * Tiles can be requested with WMTS KVP parameters (REQUEST=GetTile, LAYER,
+ * STYLE, TILEMATRIXSET, TILEMATRIX, TILEROW, TILECOL, FORMAT), or with one of
+ * the RESTful paths understood by
+ * {@link GetTileParameters#parseRestPath(String, RequestParams)}.
+ * 
+ * Any other parameters which are accepted by GetMap (e.g. TIME, ELEVATION,
+ * COLORSCALERANGE, NUMCOLORBANDS) can be supplied and are used to render the
+ * tile.
+ * 
+ * @author Guy Griffiths
+ */
+public class GetTileParameters {
+    /*
+     * The GetMap parameters (other than the style name, time and elevation)
+     * which affect the appearance of a tile. Any others are ignored when
+     * caching tiles, so that e.g. cache-busting parameters added by clients
+     * don't prevent tiles from being reused.
+     */
+    private static final List<String> STYLE_PARAMS = Arrays.asList("colorscalerange",
+            "numcolorbands", "logscale", "abovemaxcolor", "belowmincolor", "bgcolor", "opacity",
+            "transparent", "sld", "sld_body", "targettime", "targetelevation");
+
+    private final String layerName;
+    private final String styleName;
+    private final TileMatrixSet tileMatrixSet;
+    private final int zoom;
+    private final int col;
+    private final int row;
+    private final String format;
+    private final String time;
+    private final String elevation;
+    private final String styleKey;
+    private final RequestParams getMapParams;
+
+    /**
+     * Parses the parameters of a GetTile request
+     * 
+     * @param params
+     *            The {@link RequestParams} from the URL request
+     * @throws EdalException
+     *             If the parameters do not describe a valid tile
+     */
+    public GetTileParameters(RequestParams params) throws EdalException {
+        layerName = params.getMandatoryString("layer");
+        String style = params.getString("style", "");
+        styleName = style.equalsIgnoreCase("default") ? "" : style;
+
+        String tileMatrixSetName = params.getMandatoryString("tilematrixset");
+        tileMatrixSet = TileMatrixSet.forName(tileMatrixSetName);
+        if (tileMatrixSet == null) {
+            throw new EdalException("The tile matrix set " + tileMatrixSetName
+                    + " is not supported");
+        }
+        /*
+         * Some clients prefix the tile matrix identifier with the tile matrix
+         * set (e.g. EPSG:3857:5)
+         */
+        String tileMatrix = params.getMandatoryString("tilematrix");
+        zoom = parseIndex("TILEMATRIX", tileMatrix.substring(tileMatrix.lastIndexOf(':') + 1));
+        col = params.getMandatoryPositiveInt("tilecol");
+        row = params.getMandatoryPositiveInt("tilerow");
+        if (!tileMatrixSet.containsTile(zoom, col, row)) {
+            throw new TileOutOfRangeException("Tile " + zoom + "/" + col + "/" + row
+                    + " does not exist in the tile matrix set "
+                    + tileMatrixSet.getIdentifier());
+        }
+
+        format = params.getString("format", "image/png");
+        time = params.getString("time");
+        elevation = params.getString("elevation");
+
+        BoundingBox bbox = tileMatrixSet.getTileBoundingBox(zoom, col, row);
+        Map<String, String> mapParams = new HashMap<>();
+        mapParams.put("version", "1.3.0");
+        mapParams.put("request", "GetMap");
+        mapParams.put("layers", layerName);
+        mapParams.put("styles", styleName);
+        mapParams.put("crs", tileMatrixSet.getCrsCode());
+        mapParams.put("bbox", bbox.getMinX() + "," + bbox.getMinY() + "," + bbox.getMaxX()
+                + "," + bbox.getMaxY());
+        mapParams.put("width", String.valueOf(TileMatrixSet.TILE_SIZE));
+        mapParams.put("height", String.valueOf(TileMatrixSet.TILE_SIZE));
+        mapParams.put("format", format);
+        /*
+         * Tiles are overlaid on other maps, so are transparent by default
+         * where the format allows it
+         */
+        mapParams.put("transparent", params.getString("transparent",
+                String.valueOf(ImageFormat.get(format).supportsFullyTransparentPixels())));
+        getMapParams = params.mergeParameters(mapParams);
+
+        StringBuilder styleKey = new StringBuilder(styleName);
+        for (String name : STYLE_PARAMS) {
+            String value = getMapParams.getString(name);
+            if (value != null) {
+                styleKey.append("&" + name + "=" + value);
+            }
+        }
+        this.styleKey = styleKey.toString();
+    }
+
+    /**
+     * Converts a RESTful tile request into the equivalent GetTile parameters.
+     * Two forms of path are accepted:
+     * 
+     * <li>/wmts/{layer}/{style}/{TileMatrixSet}/{TileMatrix}/{TileRow}/{TileCol}.{ext}
+     * 
+     * <li>/tiles/{layer}/{z}/{x}/{y}.{ext}, using the GoogleMapsCompatible tile
+     * matrix set
+     * 
+     * Layer names may contain slashes. A style of "default" refers to the
+     * default style of the layer.
+     * 
+     * @param path
+     *            The path of the request, relative to the servlet
+     * @param params
+     *            The query parameters of the request
+     * @return The {@link RequestParams} for the equivalent GetTile request, or
+     *         <code>null</code> if the path is not a tile request
+     * @throws EdalException
+     *             If the path is a tile request, but is not valid
+     */
+    public static RequestParams parseRestPath(String path, RequestParams params)
+            throws EdalException {
+        if (path == null) {
+            return null;
+        }
+        boolean wmts = path.startsWith("/wmts/");
+        if (!wmts && !path.startsWith("/tiles/")) {
+            return null;
+        }
+        String[] parts = path.substring(path.indexOf('/', 1) + 1).split("/");
+        int nAddressParts = wmts ? 5 : 3;
+        if (parts.length <= nAddressParts) {
+            throw new EdalException("Invalid tile path: " + path);
+        }
+        String last = parts[parts.length - 1];
+        int extIndex = last.lastIndexOf('.');
+        if (extIndex < 0) {
+            throw new EdalException("Tile paths must end with a file extension");
+        }
+        parts[parts.length - 1] = last.substring(0, extIndex);
+        String ext = last.substring(extIndex + 1).toLowerCase();
+
+        StringBuilder layerName = new StringBuilder(parts[0]);
+        for (int i = 1; i < parts.length - nAddressParts; i++) {
+            layerName.append("/" + parts[i]);
+        }
+
+        Map<String, String> tileParams = new HashMap<>();
+        tileParams.put("request", "GetTile");
+        tileParams.put("layer", layerName.toString());
+        tileParams.put("format", "image/" + (ext.equals("jpg") ? "jpeg" : ext));
+        int n = parts.length;
+        if (wmts) {
+            tileParams.put("style", parts[n - 5]);
+            tileParams.put("tilematrixset", parts[n - 4]);
+            tileParams.put("tilematrix", parts[n - 3]);
+            tileParams.put("tilerow", parts[n - 2]);
+            tileParams.put("tilecol", parts[n - 1]);
+        } else {
+            tileParams.put("tilematrixset", TileMatrixSet.GOOGLE_MAPS_COMPATIBLE.getIdentifier());
+            tileParams.put("tilematrix", parts[n - 3]);
+            tileParams.put("tilecol", parts[n - 2]);
+            tileParams.put("tilerow", parts[n - 1]);
+        }
+        return params.mergeParameters(tileParams);
+    }
+
+    private static int parseIndex(String paramName, String value) throws EdalException {
+        try {
+            return Integer.parseInt(value);
+        } catch (NumberFormatException e) {
+            throw new EdalException("Parameter " + paramName + " must be a valid integer");
+        }
+    }
+
+    /**
+     * @return The name of the requested layer
+     */
+    public String getLayerName() {
+        return layerName;
+    }
+
+    /**
+     * @return The MIME type of the requested tile
+     */
+    public String getFormat() {
+        return format;
+    }
+
+    /**
+     * @return The parameters of a WMS 1.3.0 GetMap request which will render
+     *         the requested tile
+     */
+    public RequestParams getGetMapParameters() {
+        return getMapParams;
+    }
+
+    /**
+     * Creates the key used to cache the requested tile. The requested time and
+     * elevation are resolved to the axis values which will actually be
+     * plotted, so that equivalent requests share the same tile.
+     * 
+     * @param datasetId
+     *            The ID of the dataset containing the requested layer
+     * @param version
+     *            The current version of the dataset in the tile cache
+     * @param metadata
+     *            The {@link VariableMetadata} of the requested layer
+     * @return The {@link TileKey} for the requested tile
+     */
+    public TileKey getTileKey(String datasetId, String version, VariableMetadata metadata) {
+        return new TileKey(datasetId, version, layerName, styleKey,
+                resolveTime(metadata.getTemporalDomain()),
+                resolveElevation(metadata.getVerticalDomain()), format, tileMatrixSet, zoom,
+                col, row);
+    }
+
+    /*
+     * Layers with a time axis are plotted at the axis value nearest to the
+     * requested time, or nearest to the current time if no time is requested.
+     * Anything else (ranges, times off the axis, or layers without a time
+     * axis) is left as requested.
+     */
+    private String resolveTime(TemporalDomain temporalDomain) {
+        if (!(temporalDomain instanceof TimeAxis)) {
+            return time;
+        }
+        TimeAxis timeAxis = (TimeAxis) temporalDomain;
+        DateTime resolved;
+        if (time == null || time.trim().isEmpty()) {
+            resolved = GISUtils.getClosestToCurrentTime(timeAxis);
+        } else if (time.contains(",") || time.contains("/")) {
+            return time;
+        } else {
+            int index;
+            try {
+                index = timeAxis.findIndexOf(TimeUtils.iso8601ToDateTime(time.trim(),
+                        timeAxis.getChronology()));
+            } catch (BadTimeFormatException e) {
+                return time;
+            }
+            if (index < 0) {
+                return time;
+            }
+            resolved = timeAxis.getCoordinateValue(index);
+        }
+        return resolved == null ? time : TimeUtils.dateTimeToISO8601(resolved);
+    }
+
+    /*
+     * As for times, layers with a vertical axis are plotted at the axis value
+     * nearest to the requested elevation, or nearest to the surface by
+     * default
+     */
+    private String resolveElevation(VerticalDomain verticalDomain) {
+        if (!(verticalDomain instanceof VerticalAxis)) {
+            return elevation;
+        }
+        VerticalAxis verticalAxis = (VerticalAxis) verticalDomain;
+        Double resolved;
+        if (elevation == null || elevation.trim().isEmpty()) {
+            resolved = GISUtils.getClosestElevationToSurface(verticalAxis);
+        } else {
+            int index;
+            try {
+                index = verticalAxis.findIndexOf(Double.parseDouble(elevation.trim()));
+            } catch (NumberFormatException e) {
+                return elevation;
+            }
+            if (index < 0) {
+                return elevation;
+            }
+            resolved = verticalAxis.getCoordinateValue(index);
+        }
+        return resolved == null ? elevation : String.valueOf(resolved);
+    }
+}
@@ -28,9 +28,11 @@
 
 package uk.ac.rdg.resc.edal.wms;
 
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.Set;
 
 import javax.servlet.http.HttpServletRequest;
 
@@ -97,6 +99,13 @@ public class RequestParams {
         return ret;
     }
 
+    /**
+     * @return The names of all of the parameters, in lower case
+     */
+    public Set<String> getParameterNames() {
+        return Collections.unmodifiableSet(paramMap.keySet());
+    }
+
     /**
      * Returns the value of the parameter with the given name as a String, or
      * <code>null</code> if the parameter does not have a value. This method is
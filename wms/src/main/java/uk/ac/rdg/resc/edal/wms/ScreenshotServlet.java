@@ -34,16 +34,24 @@ import java.awt.Graphics2D;
 import java.awt.RenderingHints;
 import java.awt.image.BufferedImage;
 import java.io.IOException;
-import java.io.InputStream;
 import java.io.OutputStream;
 import java.io.PrintWriter;
 import java.io.UnsupportedEncodingException;
 import java.net.MalformedURLException;
 import java.net.URL;
-import java.net.URLConnection;
 import java.net.URLEncoder;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
 
 import javax.imageio.ImageIO;
 import javax.servlet.ServletException;
@@ -55,6 +63,9 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import uk.ac.rdg.resc.edal.exceptions.EdalException;
+import uk.ac.rdg.resc.edal.graphics.style.MapImage;
+import uk.ac.rdg.resc.edal.graphics.utils.PlottingDomainParams;
+import uk.ac.rdg.resc.edal.wms.util.ServerInfo;
 
 /**
  * Implementation of a servlet which generates images suitable for use in
@@ -104,12 +115,75 @@ import uk.ac.rdg.resc.edal.exceptions.EdalException;
  * 
  * targetTime: The target time (for in-situ data)
  * 
+ * If a {@link WmsCatalogue} has been set with
+ * {@link ScreenshotServlet#setCatalogue(WmsCatalogue)}, layers on this server
+ * are drawn directly rather than being requested over HTTP. The colour bar,
+ * data layer and background map are generated concurrently, and background
+ * map images are cached.
+ * 
  * TODO Error handling is not implemented very well
  */
 public class ScreenshotServlet extends HttpServlet {
     private static final long serialVersionUID = 1L;
     private static final Logger log = LoggerFactory.getLogger(ScreenshotServlet.class);
 
+    /*
+     * The number of background map images to keep. These are the size of the
+     * requested map, so this keeps the cache to a few tens of MB for typical
+     * map sizes.
+     */
+    private static final int MAX_BASE_MAP_IMAGES = 32;
+    private static final int N_RENDERERS = 4;
+
+    /*
+     * The colour bar, data layer and background map are all generated in
+     * parallel on these threads
+     */
+    private static final ExecutorService renderers = Executors.newFixedThreadPool(N_RENDERERS,
+            new ThreadFactory() {
+                private int n = 0;
+
+                @Override
+                public synchronized Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "screenshot-renderer-" + (n++));
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+
+    private WmsCatalogue catalogue = null;
+    /*
+     * Background maps come from external servers and don't depend on the data
+     * being plotted, so are cached by URL
+     */
+    private final Map<String, BufferedImage> baseMapCache;
+
+    public ScreenshotServlet() {
+        super();
+        baseMapCache = new LinkedHashMap<String, BufferedImage>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, BufferedImage> eldest) {
+                return size() > MAX_BASE_MAP_IMAGES;
+            }
+        };
+    }
+
+    /**
+     * Sets the {@link WmsCatalogue} which is served by the WMS on this server.
+     * 
+     * If this is set, the data layer and colour bar for layers on this server
+     * are drawn directly from the catalogue. Otherwise (or for layers on other
+     * servers), they are requested over HTTP.
+     * 
+     * @param catalogue
+     *            The {@link WmsCatalogue} to use.
+     */
+    public void setCatalogue(WmsCatalogue catalogue) {
+        this.catalogue = catalogue;
+    }
+
     /**
      * Handles a GET request. This will generate a screenshot and write it to
      * the output stream, assuming
@@ -196,24 +270,63 @@ public class ScreenshotServlet extends HttpServlet {
         String time = params.getString("time");
 
         /*
-         * Get the legend first so that we know how big the final image needs to
-         * be
+         * Start generating the colour bar and data layer. If the layer is
+         * served from here we draw them directly, otherwise we have to fetch
+         * them from the remote server.
          */
-        BufferedImage colorBar = null;
-        URL url = createWmsUrl(params, false, minLon, minLat, maxLon, maxLat, 50, mapHeight,
-                servletUrl, time, true);
-        if (url != null) {
-            InputStream in = null;
-            try {
-                URLConnection conn = url.openConnection();
-                in = conn.getInputStream();
-                colorBar = ImageIO.read(in);
-            } finally {
-                if (in != null)
-                    in.close();
-            }
+        Future<BufferedImage> colorBarImage = null;
+        Future<BufferedImage> dataLayerImage = null;
+        String server = params.getString("server");
+        if (server != null && !server.equalsIgnoreCase("null")) {
+            boolean local = catalogue != null && isLocalServer(server, servletUrl);
+            colorBarImage = renderers.submit(new WmsImageTask(server, local, getWmsParameters(
+                    params, false, minLon, minLat, maxLon, maxLat, 50, mapHeight, time, true)));
+            dataLayerImage = renderers.submit(new WmsImageTask(server, local, getWmsParameters(
+                    params, false, minLon, minLat, maxLon, maxLat, mapWidth, mapHeight, time,
+                    false)));
         }
 
+        /*
+         * Start fetching the background image
+         */
+        List<BaseMapPiece> baseMap = new ArrayList<>();
+        if ((!crs.equalsIgnoreCase("EPSG:4326") && !crs.equalsIgnoreCase("CRS:84"))
+                || (minLon >= -180 && maxLon <= 180)) {
+            addBaseMapPiece(baseMap, 0, params, minLon, minLat, maxLon, maxLat, mapWidth,
+                    mapHeight, baseLayerUrl);
+        } else if (minLon < -180 && maxLon <= 180) {
+            int lefWidth = (int) (mapWidth * (-180 - minLon) / (lonRange));
+            addBaseMapPiece(baseMap, 0, params, minLon + 360, minLat, 180f, maxLat, lefWidth,
+                    mapHeight, baseLayerUrl);
+            addBaseMapPiece(baseMap, lefWidth, params, -180f, minLat, maxLon, maxLat, mapWidth
+                    - lefWidth, mapHeight, baseLayerUrl);
+        } else if (minLon >= -180 && maxLon > 180) {
+            int rightWidth = (int) (mapWidth * (maxLon - 180f) / (lonRange));
+            addBaseMapPiece(baseMap, 0, params, minLon, minLat, 180f, maxLat, mapWidth
+                    - rightWidth, mapHeight, baseLayerUrl);
+            addBaseMapPiece(baseMap, mapWidth - rightWidth, params, -180f, minLat, maxLon - 360,
+                    maxLat, rightWidth, mapHeight, baseLayerUrl);
+        } else if (minLon < -180 && maxLon > 180) {
+            int leftWidth = (int) (mapWidth * (-180 - minLon) / (lonRange));
+            addBaseMapPiece(baseMap, 0, params, minLon + 360, minLat, 180f, maxLat, leftWidth,
+                    mapHeight, baseLayerUrl);
+
+            int rightWidth = (int) (mapWidth * (maxLon - 180f) / (lonRange));
+            addBaseMapPiece(baseMap, mapWidth - rightWidth, params, -180f, minLat, maxLon - 360,
+                    maxLat, rightWidth, mapHeight, baseLayerUrl);
+
+            addBaseMapPiece(baseMap, leftWidth, params, -180f, minLat, 180f, maxLat, mapWidth
+                    - leftWidth - rightWidth, mapHeight, baseLayerUrl);
+        }
+
+        /*
+         * We need the legend first so that we know how big the final image
+         * needs to be
+         */
+        BufferedImage colorBar = getResult(colorBarImage);
+        int colorBarWidth = colorBar == null ? 0 : colorBar.getWidth();
+        int colorBarHeight = colorBar == null ? 0 : colorBar.getHeight();
+
         /*
          * Calculate the space needed for text above the image
          */
@@ -232,12 +345,12 @@ public class ScreenshotServlet extends HttpServlet {
         /*
          * Calculate the total size needed for the image
          */
-        int totalWidth = mapWidth + colorBar.getWidth() + 20;
+        int totalWidth = mapWidth + colorBarWidth + 20;
         int totalHeight;
-        if (mapHeight > colorBar.getHeight()) {
+        if (mapHeight > colorBarHeight) {
             totalHeight = mapHeight + textSpace;
         } else {
-            totalHeight = colorBar.getHeight() + textSpace;
+            totalHeight = colorBarHeight + textSpace;
         }
 
         /*
@@ -306,49 +419,15 @@ public class ScreenshotServlet extends HttpServlet {
          * 
          * Now draw the background image
          */
-
-        if ((!crs.equalsIgnoreCase("EPSG:4326") && !crs.equalsIgnoreCase("CRS:84"))
-                || (minLon >= -180 && maxLon <= 180)) {
-            BufferedImage im = getImage(params, minLon, minLat, maxLon, maxLat, mapWidth,
-                    mapHeight, baseLayerUrl, time);
-            g.drawImage(im, 0, textSpace, null);
-        } else if (minLon < -180 && maxLon <= 180) {
-            int lefWidth = (int) (mapWidth * (-180 - minLon) / (lonRange));
-            BufferedImage im = getImage(params, minLon + 360, minLat, 180f, maxLat, lefWidth,
-                    mapHeight, baseLayerUrl, time);
-            g.drawImage(im, 0, textSpace, null);
-            im = getImage(params, -180f, minLat, maxLon, maxLat, mapWidth - lefWidth, mapHeight,
-                    baseLayerUrl, time);
-            g.drawImage(im, lefWidth, textSpace, null);
-        } else if (minLon >= -180 && maxLon > 180) {
-            int rightWidth = (int) (mapWidth * (maxLon - 180f) / (lonRange));
-            BufferedImage im = getImage(params, minLon, minLat, 180f, maxLat,
-                    mapWidth - rightWidth, mapHeight, baseLayerUrl, time);
-            g.drawImage(im, 0, textSpace, null);
-            im = getImage(params, -180f, minLat, maxLon - 360, maxLat, rightWidth, mapHeight,
-                    baseLayerUrl, time);
-            g.drawImage(im, mapWidth - rightWidth, textSpace, null);
-        } else if (minLon < -180 && maxLon > 180) {
-            int leftWidth = (int) (mapWidth * (-180 - minLon) / (lonRange));
-            BufferedImage im = getImage(params, minLon + 360, minLat, 180f, maxLat, leftWidth,
-                    mapHeight, baseLayerUrl, time);
-            g.drawImage(im, 0, textSpace, null);
-
-            int rightWidth = (int) (mapWidth * (maxLon - 180f) / (lonRange));
-            im = getImage(params, -180f, minLat, maxLon - 360, maxLat, rightWidth, mapHeight,
-                    baseLayerUrl, time);
-            g.drawImage(im, mapWidth - rightWidth, textSpace, null);
-
-            im = getImage(params, -180f, minLat, 180f, maxLat, mapWidth - leftWidth - rightWidth,
-                    mapHeight, baseLayerUrl, time);
-            g.drawImage(im, leftWidth, textSpace, null);
+        for (BaseMapPiece piece : baseMap) {
+            BufferedImage im = getResult(piece.image);
+            if (im != null) {
+                g.drawImage(im, piece.x, textSpace, null);
+            }
         }
 
-        url = createWmsUrl(params, false, minLon, minLat, maxLon, maxLat, mapWidth, mapHeight,
-                servletUrl, time, false);
-        BufferedImage wmsLayer;
-        if (url != null) {
-            wmsLayer = ImageIO.read(url);
+        BufferedImage wmsLayer = getResult(dataLayerImage);
+        if (wmsLayer != null) {
             g.drawImage(wmsLayer, 0, textSpace, null);
         }
 
@@ -363,111 +442,244 @@ public class ScreenshotServlet extends HttpServlet {
         return image;
     }
 
-    private BufferedImage getImage(RequestParams params, Float minLon, Float minLat, Float maxLon,
-            Float maxLat, int width, int height, String bgUrl, String time) throws IOException {
-        BufferedImage image = null;
-        URL baseUrl = createWmsUrl(params, true, minLon, minLat, maxLon, maxLat, width, height,
-                bgUrl, time, false);
+    /*
+     * Returns true if the given WMS URL refers to the WMS running alongside
+     * this servlet
+     */
+    private static boolean isLocalServer(String server, String servletUrl) {
+        if (!server.contains("://")) {
+            /*
+             * A relative URL must be on this server
+             */
+            return true;
+        }
+        return server.startsWith(servletUrl);
+    }
+
+    /*
+     * Waits for an image to be generated, unwrapping any exception thrown
+     * whilst doing so
+     */
+    private static BufferedImage getResult(Future<BufferedImage> image) throws EdalException,
+            IOException {
+        if (image == null) {
+            return null;
+        }
         try {
-            image = ImageIO.read(baseUrl);
+            return image.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new EdalException("Interrupted whilst generating screenshot", e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof EdalException) {
+                throw (EdalException) cause;
+            } else if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            throw new EdalException("Problem generating screenshot", cause);
+        }
+    }
+
+    private void addBaseMapPiece(List<BaseMapPiece> baseMap, int x, RequestParams params,
+            Float minLon, Float minLat, Float maxLon, Float maxLat, int width, int height,
+            String bgUrl) throws UnsupportedEncodingException {
+        if (width <= 0) {
+            return;
+        }
+        final URL url = createWmsUrl(bgUrl, getWmsParameters(params, true, minLon, minLat,
+                maxLon, maxLat, width, height, null, false));
+        final int imageWidth = width;
+        final int imageHeight = height;
+        Future<BufferedImage> image = renderers.submit(new Callable<BufferedImage>() {
+            @Override
+            public BufferedImage call() {
+                return getBaseMapImage(url, imageWidth, imageHeight);
+            }
+        });
+        baseMap.add(new BaseMapPiece(x, image));
+    }
+
+    private BufferedImage getBaseMapImage(URL url, int width, int height) {
+        if (url == null) {
+            return new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
+        }
+        String key = url.toString();
+        BufferedImage image;
+        synchronized (baseMapCache) {
+            image = baseMapCache.get(key);
+        }
+        if (image != null) {
+            return image;
+        }
+        try {
+            image = ImageIO.read(url);
         } catch (Exception e) {
-            e.printStackTrace();
+            log.warn("Problem fetching background map from " + key, e);
+        }
+        if (image == null) {
+            /*
+             * Don't cache failures - the background server may come back
+             */
             return new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
         }
+        synchronized (baseMapCache) {
+            baseMapCache.put(key, image);
+        }
         return image;
     }
 
-    private URL createWmsUrl(RequestParams params, boolean baseLayer, Float minLon, Float minLat,
-            Float maxLon, Float maxLat, int width, int height, String baseWmsUrl, String time,
-            boolean colorbar) throws UnsupportedEncodingException {
-        StringBuilder url = new StringBuilder();
-        if (baseLayer) {
-            Pattern p = Pattern.compile(" ");
-            if (baseWmsUrl != null) {
-                Matcher m = p.matcher(baseWmsUrl);
-                if (m != null)
-                    baseWmsUrl = m.replaceAll("%20");
+    /**
+     * Generates either a legend or a map image for a WMS layer, either
+     * directly from the {@link WmsCatalogue} or by requesting it from the
+     * remote server.
+     */
+    private class WmsImageTask implements Callable<BufferedImage> {
+        private final String server;
+        private final boolean local;
+        private final Map<String, String> wmsParameters;
+
+        private WmsImageTask(String server, boolean local, Map<String, String> wmsParameters) {
+            this.server = server;
+            this.local = local;
+            this.wmsParameters = wmsParameters;
+        }
+
+        @Override
+        public BufferedImage call() throws EdalException, IOException {
+            if (!local) {
+                URL url = createWmsUrl(server, wmsParameters);
+                if (url == null) {
+                    return null;
+                }
+                return ImageIO.read(url);
             }
-            url.append(baseWmsUrl);
-            url.append("&STYLES=");
-        } else {
-            String server = params.getString("server");
-            if (server == null || server.equalsIgnoreCase("null")) {
-                /*
-                 * If we don't have a server, we can't plot a layer
-                 */
-                return null;
+
+            Map<String, String[]> parameterMap = new HashMap<>();
+            for (Entry<String, String> parameter : wmsParameters.entrySet()) {
+                parameterMap.put(parameter.getKey(), new String[] { parameter.getValue() });
+            }
+            RequestParams params = new RequestParams(parameterMap);
+            if ("GetLegendGraphic".equals(wmsParameters.get("REQUEST"))) {
+                return WmsServlet.drawLegendGraphic(params, catalogue);
+            }
+            GetMapParameters getMapParams = new GetMapParameters(params, catalogue);
+            PlottingDomainParams plottingParameters = getMapParams.getPlottingDomainParameters();
+            ServerInfo serverInfo = catalogue.getServerInfo();
+            if (plottingParameters.getHeight() > serverInfo.getMaxImageHeight()
+                    || plottingParameters.getWidth() > serverInfo.getMaxImageWidth()) {
+                throw new EdalException("Requested image size exceeds the maximum of "
+                        + serverInfo.getMaxImageWidth() + "x" + serverInfo.getMaxImageHeight());
             }
-            url.append(server + "?SERVICE=WMS&LAYERS=" + params.getString("layer"));
+            MapImage imageGenerator = getMapParams.getStyleParameters().getImageGenerator(
+                    catalogue);
+            return imageGenerator.drawImage(plottingParameters, catalogue);
+        }
+    }
+
+    /**
+     * A section of the background map, which will be drawn at the given x
+     * position
+     */
+    private static class BaseMapPiece {
+        private final int x;
+        private final Future<BufferedImage> image;
+
+        private BaseMapPiece(int x, Future<BufferedImage> image) {
+            this.x = x;
+            this.image = image;
+        }
+    }
+
+    private static Map<String, String> getWmsParameters(RequestParams params, boolean baseLayer,
+            Float minLon, Float minLat, Float maxLon, Float maxLat, int width, int height,
+            String time, boolean colorbar) {
+        Map<String, String> wmsParameters = new LinkedHashMap<>();
+        if (baseLayer) {
+            wmsParameters.put("STYLES", "");
+        } else {
+            wmsParameters.put("LAYERS", params.getString("layer"));
             String style = params.getString("style");
             String palette = params.getString("palette");
             if (style != null && palette != null) {
-                url.append("&STYLES=" + style + "/" + palette);
+                wmsParameters.put("STYLES", style + "/" + palette);
             } else {
-                url.append("&STYLES=");
+                wmsParameters.put("STYLES", "");
             }
             String scaleRange = params.getString("scaleRange");
             if (scaleRange != null)
-                url.append("&COLORSCALERANGE=" + scaleRange);
+                wmsParameters.put("COLORSCALERANGE", scaleRange);
             String aboveMaxColor = params.getString("aboveMaxColor");
             if (aboveMaxColor != null)
-                url.append("&ABOVEMAXCOLOR=" + URLEncoder.encode(aboveMaxColor, "UTF-8"));
+                wmsParameters.put("ABOVEMAXCOLOR", aboveMaxColor);
             String belowMinColor = params.getString("belowMinColor");
             if (belowMinColor != null)
-                url.append("&BELOWMINCOLOR=" + URLEncoder.encode(belowMinColor, "UTF-8"));
+                wmsParameters.put("BELOWMINCOLOR", belowMinColor);
             String noDataColor = params.getString("noDataColor");
             if (noDataColor != null)
-                url.append("&BGCOLOR=" + URLEncoder.encode(noDataColor, "UTF-8"));
+                wmsParameters.put("BGCOLOR", noDataColor);
             String numColorBands = params.getString("numColorBands");
             if (numColorBands != null)
-                url.append("&NUMCOLORBANDS=" + numColorBands);
+                wmsParameters.put("NUMCOLORBANDS", numColorBands);
             String logscale = params.getString("logscale");
             if (logscale != null)
-                url.append("&LOGSCALE=" + logscale);
+                wmsParameters.put("LOGSCALE", logscale);
             if (time != null)
-                /*
-                 * Yuck. But it seems to be necessary, otherwise "+" gets
-                 * interpreted wrongly
-                 */
-                url.append("&TIME=" + URLEncoder.encode(time, "UTF-8"));
+                wmsParameters.put("TIME", time);
             String elevation = params.getString("elevation");
             if (elevation != null)
-                url.append("&ELEVATION=" + elevation);
+                wmsParameters.put("ELEVATION", elevation);
             String targetElevation = params.getString("targetelevation");
             if (targetElevation != null)
-                url.append("&TARGETELEVATION=" + targetElevation);
+                wmsParameters.put("TARGETELEVATION", targetElevation);
             String targetTime = params.getString("targettime");
             if (targetTime != null)
-                /*
-                 * Yuck. But it seems to be necessary, otherwise "+" gets
-                 * interpreted wrongly
-                 */
-                url.append("&TARGETTIME="
-                        + URLEncoder.encode(targetTime, "UTF-8"));
+                wmsParameters.put("TARGETTIME", targetTime);
         }
 
-        url.append("&TRANSPARENT=true");
-        url.append("&VERSION=1.1.1&SERVICE=WMS&REQUEST=");
+        wmsParameters.put("TRANSPARENT", "true");
+        wmsParameters.put("VERSION", "1.1.1");
+        wmsParameters.put("SERVICE", "WMS");
         if (colorbar) {
-            url.append("GetLegendGraphic");
+            wmsParameters.put("REQUEST", "GetLegendGraphic");
         } else {
             /*
              * Don't specify a width for a colourbar. A different default will
              * be used depending on whether we have a 1D or 2D variable
              */
-            url.append("GetMap&WIDTH=" + width);
+            wmsParameters.put("REQUEST", "GetMap");
+            wmsParameters.put("WIDTH", Integer.toString(width));
         }
-        url.append("&FORMAT=image/png&HEIGHT=" + height);
-        url.append("&BBOX=" + minLon + "," + minLat + "," + maxLon + "," + maxLat);
+        wmsParameters.put("FORMAT", "image/png");
+        wmsParameters.put("HEIGHT", Integer.toString(height));
+        wmsParameters.put("BBOX", minLon + "," + minLat + "," + maxLon + "," + maxLat);
         String crs = params.getString("crs");
         if (crs.equalsIgnoreCase("CRS:84")) {
             crs = "EPSG:4326";
         }
-        url.append("&SRS=" + crs);
+        wmsParameters.put("SRS", crs);
+        return wmsParameters;
+    }
+
+    private static URL createWmsUrl(String baseWmsUrl, Map<String, String> wmsParameters)
+            throws UnsupportedEncodingException {
+        StringBuilder url = new StringBuilder(baseWmsUrl.replaceAll(" ", "%20"));
+        char separator = baseWmsUrl.contains("?") ? '&' : '?';
+        for (Entry<String, String> parameter : wmsParameters.entrySet()) {
+            url.append(separator);
+            url.append(parameter.getKey());
+            url.append('=');
+            /*
+             * Values such as times need encoding, otherwise "+" gets
+             * interpreted wrongly
+             */
+            url.append(URLEncoder.encode(parameter.getValue(), "UTF-8"));
+            separator = '&';
+        }
         try {
-            return new URL(url.toString().replaceAll(" ", "%20"));
+            return new URL(url.toString());
         } catch (MalformedURLException e) {
-            e.printStackTrace();
+            log.error("Invalid WMS URL: " + url, e);
             return null;
         }
     }
@@ -0,0 +1,318 @@
+/*******************************************************************************
+ * Copyright (c) 2016 The University of Reading
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the University of Reading, nor the names of the
+ *    authors or contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ******************************************************************************/
+
+package uk.ac.rdg.resc.edal.wms;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.lang.ref.WeakReference;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeSet;
+
+import org.joda.time.DateTime;
+import org.opengis.metadata.extent.GeographicBoundingBox;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import uk.ac.rdg.resc.edal.dataset.Dataset;
+import uk.ac.rdg.resc.edal.domain.Extent;
+import uk.ac.rdg.resc.edal.domain.TemporalDomain;
+import uk.ac.rdg.resc.edal.exceptions.EdalException;
+import uk.ac.rdg.resc.edal.geometry.BoundingBox;
+import uk.ac.rdg.resc.edal.graphics.exceptions.EdalLayerNotFoundException;
+import uk.ac.rdg.resc.edal.graphics.formats.ImageFormat;
+import uk.ac.rdg.resc.edal.graphics.formats.InvalidFormatException;
+import uk.ac.rdg.resc.edal.graphics.formats.SimpleFormat;
+import uk.ac.rdg.resc.edal.graphics.style.MapImage;
+import uk.ac.rdg.resc.edal.grid.TimeAxis;
+import uk.ac.rdg.resc.edal.metadata.VariableMetadata;
+import uk.ac.rdg.resc.edal.util.TimeUtils;
+import uk.ac.rdg.resc.edal.wms.util.TileCache;
+import uk.ac.rdg.resc.edal.wms.util.TileCache.TileKey;
+import uk.ac.rdg.resc.edal.wms.util.TileMatrixSet;
+import uk.ac.rdg.resc.edal.wms.util.WmsUtils;
+
+/**
+ * Renders map tiles on the fixed {@link TileMatrixSet}s, optionally storing
+ * them in a {@link TileCache}.
+ * 
+ * The cached tiles of a dataset are discarded whenever the {@link Dataset}
+ * object in the catalogue is replaced (i.e. when the dataset is refreshed).
+ * 
+ * The tiles for the latest timestep of each time-varying layer can be rendered
+ * in advance with {@link TileService#seed(WmsCatalogue, int)}, so that they
+ * are ready when new data arrives.
+ * 
+ * @author Guy Griffiths
+ */
+public class TileService {
+    private static final Logger log = LoggerFactory.getLogger(TileService.class);
+
+    private final TileCache tileCache;
+    /*
+     * The version of each dataset in the tile cache, along with the Dataset
+     * object it was generated from. A weak reference is used so that we don't
+     * hold on to datasets which have been replaced in the catalogue.
+     */
+    private final Map<String, DatasetVersion> datasetVersions = new HashMap<>();
+    /*
+     * The version of each dataset which has most recently been seeded
+     */
+    private final Map<String, String> seededVersions = new HashMap<>();
+
+    /**
+     * @param tileCache
+     *            The {@link TileCache} to store tiles in, or <code>null</code>
+     *            if tiles should be rendered for every request
+     */
+    public TileService(TileCache tileCache) {
+        this.tileCache = tileCache;
+    }
+
+    /**
+     * Gets a tile, from the cache if possible
+     * 
+     * @param tileParams
+     *            The {@link GetTileParameters} describing the tile
+     * @param catalogue
+     *            The {@link WmsCatalogue} containing the requested layer
+     * @return The encoded tile image
+     * @throws EdalException
+     *             If the tile cannot be rendered
+     * @throws IOException
+     *             If there is a problem encoding the tile image
+     */
+    public byte[] getTile(GetTileParameters tileParams, WmsCatalogue catalogue)
+            throws EdalException, IOException {
+        if (tileCache == null) {
+            return renderTile(tileParams, catalogue);
+        }
+        String datasetId = catalogue.getLayerNameMapper().getDatasetIdFromLayerName(
+                tileParams.getLayerName());
+        Dataset dataset = catalogue.getDatasetFromId(datasetId);
+        if (dataset == null) {
+            throw new EdalLayerNotFoundException("The layer " + tileParams.getLayerName()
+                    + " does not exist");
+        }
+        VariableMetadata metadata = dataset.getVariableMetadata(catalogue.getLayerNameMapper()
+                .getVariableIdFromLayerName(tileParams.getLayerName()));
+        TileKey key = tileParams.getTileKey(datasetId, getVersion(dataset, catalogue), metadata);
+        byte[] tile = tileCache.get(key);
+        if (tile == null) {
+            tile = renderTile(tileParams, catalogue);
+            tileCache.put(key, tile);
+        }
+        return tile;
+    }
+
+    /**
+     * Renders a tile
+     * 
+     * @param tileParams
+     *            The {@link GetTileParameters} describing the tile
+     * @param catalogue
+     *            The {@link WmsCatalogue} containing the requested layer
+     * @return The encoded tile image
+     */
+    protected byte[] renderTile(GetTileParameters tileParams, WmsCatalogue catalogue)
+            throws EdalException, IOException {
+        GetMapParameters getMapParams = new GetMapParameters(tileParams.getGetMapParameters(),
+                catalogue);
+        ImageFormat imageFormat = getMapParams.getImageFormat();
+        if (!(imageFormat instanceof SimpleFormat)) {
+            throw new InvalidFormatException("Tiles cannot be generated in the format "
+                    + imageFormat.getMimeType());
+        }
+        MapImage imageGenerator = getMapParams.getStyleParameters().getImageGenerator(catalogue);
+        BufferedImage image = imageGenerator.drawImage(
+                getMapParams.getPlottingDomainParameters(), catalogue);
+        ByteArrayOutputStream tile = new ByteArrayOutputStream();
+        ((SimpleFormat) imageFormat).writeImage(Arrays.asList(image), tile, null);
+        return tile.toByteArray();
+    }
+
+    /**
+     * Renders and caches the tiles for the latest timestep of every
+     * time-varying layer in a catalogue, using the default style. Datasets are
+     * only seeded when they are first seen, and again each time they are
+     * refreshed. Tiles which are already cached are not rendered again.
+     * 
+     * @param catalogue
+     *            The {@link WmsCatalogue} containing the datasets to seed
+     * @param maxZoom
+     *            The highest zoom level to render tiles for
+     */
+    public void seed(WmsCatalogue catalogue, int maxZoom) {
+        if (tileCache == null) {
+            return;
+        }
+        for (Dataset dataset : catalogue.getAllDatasets()) {
+            if (Thread.currentThread().isInterrupted()) {
+                return;
+            }
+            String version = getVersion(dataset, catalogue);
+            synchronized (seededVersions) {
+                if (version.equals(seededVersions.get(dataset.getId()))) {
+                    continue;
+                }
+            }
+            for (String variableId : dataset.getVariableIds()) {
+                try {
+                    seedLayer(dataset, variableId, version, catalogue, maxZoom);
+                } catch (EdalException | IOException e) {
+                    log.warn("Problem seeding tiles for variable " + variableId
+                            + " of dataset " + dataset.getId(), e);
+                }
+            }
+            synchronized (seededVersions) {
+                seededVersions.put(dataset.getId(), version);
+            }
+        }
+    }
+
+    private void seedLayer(Dataset dataset, String variableId, String version,
+            WmsCatalogue catalogue, int maxZoom) throws EdalException, IOException {
+        VariableMetadata metadata = dataset.getVariableMetadata(variableId);
+        TemporalDomain temporalDomain = metadata.getTemporalDomain();
+        String layerName = catalogue.getLayerNameMapper().getLayerName(dataset.getId(),
+                variableId);
+        if (temporalDomain == null || metadata.getHorizontalDomain() == null
+                || catalogue.isDisabled(layerName)) {
+            return;
+        }
+        DateTime latest = temporalDomain.getExtent().getHigh();
+        GeographicBoundingBox bbox = metadata.getHorizontalDomain().getGeographicBoundingBox();
+        for (TileMatrixSet tileMatrixSet : TileMatrixSet.values()) {
+            for (int zoom = 0; zoom <= maxZoom; zoom++) {
+                int[] range = tileMatrixSet.getTileRange(zoom, bbox);
+                for (int col = range[0]; col <= range[2]; col++) {
+                    for (int row = range[1]; row <= range[3]; row++) {
+                        if (Thread.currentThread().isInterrupted()) {
+                            return;
+                        }
+                        Map<String, String[]> params = new HashMap<>();
+                        params.put("layer", new String[] { layerName });
+                        params.put("tilematrixset",
+                                new String[] { tileMatrixSet.getIdentifier() });
+                        params.put("tilematrix", new String[] { String.valueOf(zoom) });
+                        params.put("tilecol", new String[] { String.valueOf(col) });
+                        params.put("tilerow", new String[] { String.valueOf(row) });
+                        params.put("time",
+                                new String[] { TimeUtils.dateTimeToISO8601(latest) });
+                        GetTileParameters tileParams = new GetTileParameters(
+                                new RequestParams(params));
+                        TileKey key = tileParams.getTileKey(dataset.getId(), version,
+                                metadata);
+                        if (!tileCache.contains(key)) {
+                            tileCache.put(key, renderTile(tileParams, catalogue));
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    /*
+     * Gets the current version of a dataset in the tile cache, discarding its
+     * tiles if it has been replaced since it was last seen
+     */
+    private String getVersion(Dataset dataset, WmsCatalogue catalogue) {
+        synchronized (datasetVersions) {
+            DatasetVersion current = datasetVersions.get(dataset.getId());
+            if (current != null && current.dataset.get() == dataset) {
+                return current.version;
+            }
+            String version = tileCache.validate(dataset.getId(),
+                    getFingerprint(dataset, catalogue), current != null);
+            datasetVersions.put(dataset.getId(), new DatasetVersion(dataset, version));
+            return version;
+        }
+    }
+
+    /*
+     * A fingerprint of the source data and the domains of all variables in a
+     * dataset. This allows tiles cached by a previous run to be reused, so
+     * long as the source files are unchanged and the dataset still covers the
+     * same times, elevations and area.
+     * 
+     * Where the state of the source data is unknown, the last update time of
+     * the catalogue is used instead, so that tiles are never reused across a
+     * reload of the data.
+     */
+    private static String getFingerprint(Dataset dataset, WmsCatalogue catalogue) {
+        StringBuilder domains = new StringBuilder();
+        String sourceStamp = catalogue.getSourceStamp(dataset.getId());
+        if (sourceStamp != null) {
+            domains.append(sourceStamp + "\n");
+        } else if (catalogue.getLastUpdateTime() != null) {
+            domains.append(catalogue.getLastUpdateTime().getMillis() + "\n");
+        }
+        for (String variableId : new TreeSet<>(dataset.getVariableIds())) {
+            VariableMetadata metadata;
+            try {
+                metadata = dataset.getVariableMetadata(variableId);
+            } catch (EdalException e) {
+                continue;
+            }
+            domains.append(variableId);
+            if (metadata.getHorizontalDomain() != null) {
+                BoundingBox bbox = metadata.getHorizontalDomain().getBoundingBox();
+                domains.append("|" + bbox.getMinX() + "," + bbox.getMinY() + ","
+                        + bbox.getMaxX() + "," + bbox.getMaxY());
+            }
+            if (metadata.getVerticalDomain() != null) {
+                Extent<Double> zExtent = metadata.getVerticalDomain().getExtent();
+                domains.append("|" + zExtent.getLow() + "," + zExtent.getHigh());
+            }
+            TemporalDomain temporalDomain = metadata.getTemporalDomain();
+            if (temporalDomain != null) {
+                Extent<DateTime> tExtent = temporalDomain.getExtent();
+                domains.append("|" + tExtent.getLow().getMillis() + ","
+                        + tExtent.getHigh().getMillis());
+                if (temporalDomain instanceof TimeAxis) {
+                    domains.append("," + ((TimeAxis) temporalDomain).size());
+                }
+            }
+            domains.append("\n");
+        }
+        return WmsUtils.hash(domains.toString());
+    }
+
+    private static class DatasetVersion {
+        private final WeakReference<Dataset> dataset;
+        private final String version;
+
+        public DatasetVersion(Dataset dataset, String version) {
+            this.dataset = new WeakReference<>(dataset);
+            this.version = version;
+        }
+    }
+}
@@ -112,4 +112,32 @@ public interface WmsCatalogue extends FeatureCatalogue, DatasetCatalogue {
      */
     public abstract boolean isDisabled(String layerName);
 
+    /**
+     * Gets the time for which clients may cache responses for a layer
+     * 
+     * @param layerName
+     *            The name of the layer
+     * @return The time, in seconds, for which clients (and any intermediate
+     *         caches) may reuse a response generated from the given layer
+     *         without revalidating it, or a negative number if responses must
+     *         always be revalidated, which is the default
+     */
+    public default int getCacheMaxAge(String layerName) {
+        return -1;
+    }
+
+    /**
+     * Gets a stamp representing the current state of the source data of a
+     * dataset
+     * 
+     * @param datasetId
+     *            The ID of the dataset
+     * @return A stamp which changes whenever the source data of the dataset
+     *         changes, or <code>null</code> if this cannot be determined,
+     *         which is the default
+     */
+    public default String getSourceStamp(String datasetId) {
+        return null;
+    }
+
 }
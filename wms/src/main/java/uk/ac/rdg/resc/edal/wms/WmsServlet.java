@@ -33,9 +33,14 @@ import java.awt.Font;
 import java.awt.Graphics2D;
 import java.awt.image.BufferedImage;
 import java.io.BufferedWriter;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
 import java.io.IOException;
 import java.io.OutputStreamWriter;
+import java.io.StringWriter;
 import java.net.SocketException;
+import java.net.URL;
+import java.security.CodeSource;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
@@ -52,6 +57,11 @@ import java.util.Properties;
 import java.util.Set;
 import java.util.Stack;
 import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPOutputStream;
 
 import javax.imageio.ImageIO;
 import javax.naming.OperationNotSupportedException;
@@ -79,7 +89,6 @@ import org.geotoolkit.referencing.crs.DefaultGeographicCRS;
 import org.jfree.chart.ChartUtilities;
 import org.jfree.chart.JFreeChart;
 import org.joda.time.DateTime;
-import org.joda.time.DateTimeZone;
 import org.joda.time.Period;
 import org.joda.time.chrono.ISOChronology;
 import org.opengis.metadata.extent.GeographicBoundingBox;
@@ -91,6 +100,9 @@ import uk.ac.rdg.resc.edal.covjson.CoverageJsonConverter;
 import uk.ac.rdg.resc.edal.covjson.CoverageJsonConverterImpl;
 import uk.ac.rdg.resc.edal.dataset.Dataset;
 import uk.ac.rdg.resc.edal.dataset.DiscreteLayeredDataset;
+import uk.ac.rdg.resc.edal.dataset.HorizontallyDiscreteDataset;
+import uk.ac.rdg.resc.edal.dataset.PointDataset;
+import uk.ac.rdg.resc.edal.dataset.PointFeatureStream;
 import uk.ac.rdg.resc.edal.dataset.plugins.VectorPlugin;
 import uk.ac.rdg.resc.edal.domain.Extent;
 import uk.ac.rdg.resc.edal.domain.HorizontalDomain;
@@ -130,8 +142,12 @@ import uk.ac.rdg.resc.edal.graphics.utils.GraphicsUtils;
 import uk.ac.rdg.resc.edal.graphics.utils.LayerNameMapper;
 import uk.ac.rdg.resc.edal.graphics.utils.PlottingDomainParams;
 import uk.ac.rdg.resc.edal.graphics.utils.PlottingStyleParameters;
+import uk.ac.rdg.resc.edal.graphics.utils.SliceStatistics;
+import uk.ac.rdg.resc.edal.graphics.utils.StatisticsStore;
 import uk.ac.rdg.resc.edal.grid.HorizontalGrid;
+import uk.ac.rdg.resc.edal.grid.HorizontalMesh;
 import uk.ac.rdg.resc.edal.grid.TimeAxis;
+import uk.ac.rdg.resc.edal.grid.TimeAxisImpl;
 import uk.ac.rdg.resc.edal.grid.VerticalAxis;
 import uk.ac.rdg.resc.edal.metadata.Parameter.Category;
 import uk.ac.rdg.resc.edal.metadata.VariableMetadata;
@@ -142,11 +158,19 @@ import uk.ac.rdg.resc.edal.util.CollectionUtils;
 import uk.ac.rdg.resc.edal.util.Extents;
 import uk.ac.rdg.resc.edal.util.GISUtils;
 import uk.ac.rdg.resc.edal.util.GridCoordinates2D;
+import uk.ac.rdg.resc.edal.util.RequestTrace;
 import uk.ac.rdg.resc.edal.util.TimeUtils;
 import uk.ac.rdg.resc.edal.wms.exceptions.CurrentUpdateSequence;
 import uk.ac.rdg.resc.edal.wms.exceptions.EdalUnsupportedOperationException;
 import uk.ac.rdg.resc.edal.wms.exceptions.InvalidUpdateSequence;
 import uk.ac.rdg.resc.edal.wms.exceptions.LayerNotQueryableException;
+import uk.ac.rdg.resc.edal.wms.util.CacheableResponse;
+import uk.ac.rdg.resc.edal.wms.util.CapabilitiesCache;
+import uk.ac.rdg.resc.edal.wms.util.CapabilitiesCache.CachedCapabilities;
+import uk.ac.rdg.resc.edal.wms.util.CapabilitiesCache.CapabilitiesKey;
+import uk.ac.rdg.resc.edal.wms.util.TileCache;
+import uk.ac.rdg.resc.edal.wms.util.TileMatrixSet;
+import uk.ac.rdg.resc.edal.wms.util.WmsMetrics;
 import uk.ac.rdg.resc.edal.wms.util.WmsUtils;
 
 /**
@@ -174,6 +198,8 @@ public class WmsServlet extends HttpServlet {
     private static final long serialVersionUID = 1L;
     private static final String FEATURE_INFO_XML_FORMAT = "text/xml";
     private static final String FEATURE_INFO_PLAIN_FORMAT = "text/plain";
+    private static final String FEATURE_INFO_XML_TEMPLATE = "templates/featureInfo-xml.vm";
+    private static final String FEATURE_INFO_PLAIN_TEMPLATE = "templates/featureInfo-plain.vm";
     private static final String[] SUPPORTED_CRS_CODES = new String[] { "EPSG:4326", "CRS:84",
             "EPSG:41001", // Mercator
             "EPSG:27700", // British National Grid
@@ -188,7 +214,18 @@ public class WmsServlet extends HttpServlet {
 
     private WmsCatalogue catalogue = null;
     private final VelocityEngine velocityEngine;
+    /*
+     * Whether each of the bundled templates has been overridden by the site
+     */
+    private final Map<String, Boolean> overriddenTemplates = new ConcurrentHashMap<>();
     private final Set<String> advertisedPalettes = new TreeSet<>();
+    private final CapabilitiesCache capabilitiesCache = new CapabilitiesCache();
+    private int tilingThreshold = MapImage.DEFAULT_TILING_THRESHOLD;
+    private int tileSize = MapImage.DEFAULT_TILE_SIZE;
+    private final WmsMetrics metrics = new WmsMetrics();
+    private boolean metricsRequestEnabled = false;
+    private TileService tileService = new TileService(null);
+    private ScheduledExecutorService tileSeeder = null;
 
     /**
      * @see HttpServlet#HttpServlet()
@@ -233,6 +270,141 @@ public class WmsServlet extends HttpServlet {
      */
     public void setCatalogue(WmsCatalogue catalogue) {
         this.catalogue = catalogue;
+        capabilitiesCache.clear();
+    }
+
+    /**
+     * Registers the request metrics of this servlet with JMX
+     * 
+     * @see HttpServlet#init()
+     */
+    @Override
+    public void init() throws ServletException {
+        super.init();
+        metrics.register(getServletName());
+    }
+
+    /**
+     * @see HttpServlet#destroy()
+     */
+    @Override
+    public void destroy() {
+        if (tileSeeder != null) {
+            tileSeeder.shutdownNow();
+        }
+        metrics.unregister();
+        super.destroy();
+    }
+
+    /**
+     * @return The {@link WmsMetrics} recording the timings of all requests
+     *         handled by this servlet
+     */
+    public WmsMetrics getWmsMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Sets whether the request metrics are available through a
+     * REQUEST=GetMetrics request. They are always available through JMX.
+     * 
+     * @param enabled
+     *            <code>true</code> to allow GetMetrics requests. The default
+     *            is <code>false</code>
+     */
+    public void setMetricsRequestEnabled(boolean enabled) {
+        this.metricsRequestEnabled = enabled;
+    }
+
+    /**
+     * Sets the time above which requests are logged as slow, along with the
+     * time spent in each stage of processing them
+     * 
+     * @param thresholdMillis
+     *            The threshold in milliseconds, or 0 to disable logging of
+     *            slow requests (which is the default)
+     */
+    public void setSlowRequestThreshold(long thresholdMillis) {
+        metrics.setSlowRequestThresholdMillis(thresholdMillis);
+    }
+
+    /**
+     * Sets the size above which GetMap images are drawn as tiles in parallel.
+     * See {@link MapImage#setTiledDrawing(int, int)}.
+     * 
+     * @param threshold
+     *            The minimum number of pixels an image must have to be drawn
+     *            in tiles, or 0 to always draw images on a single thread
+     * @param tileSize
+     *            The width and height of each tile, in pixels
+     */
+    public void setTiledDrawing(int threshold, int tileSize) {
+        if (tileSize < 1) {
+            throw new IllegalArgumentException("Tile size must be positive");
+        }
+        this.tilingThreshold = threshold;
+        this.tileSize = tileSize;
+    }
+
+    /**
+     * Sets a directory in which to cache rendered tiles (see
+     * {@link TileService}), using the default maximum cache size. By default
+     * tiles are rendered for every request.
+     * 
+     * @param cacheDir
+     *            The directory to store tiles in
+     * @param seedMaxZoom
+     *            The highest zoom level for which the latest timestep of each
+     *            time-varying layer is rendered in the background whenever
+     *            its dataset is loaded or refreshed, or -1 to disable seeding
+     */
+    public void setTileCache(File cacheDir, int seedMaxZoom) {
+        setTileCache(cacheDir, TileCache.DEFAULT_MAX_DISK_SIZE, seedMaxZoom);
+    }
+
+    /**
+     * Sets a directory in which to cache rendered tiles (see
+     * {@link TileService}). By default tiles are rendered for every request.
+     * 
+     * @param cacheDir
+     *            The directory to store tiles in
+     * @param maxDiskSize
+     *            The maximum total size of the cached tiles, in bytes. The
+     *            least recently used tiles are removed when this is exceeded.
+     * @param seedMaxZoom
+     *            The highest zoom level for which the latest timestep of each
+     *            time-varying layer is rendered in the background whenever
+     *            its dataset is loaded or refreshed, or -1 to disable seeding
+     */
+    public void setTileCache(File cacheDir, long maxDiskSize, final int seedMaxZoom) {
+        if (seedMaxZoom > TileMatrixSet.MAX_ZOOM) {
+            throw new IllegalArgumentException("Seeding zoom level cannot exceed "
+                    + TileMatrixSet.MAX_ZOOM);
+        }
+        if (tileSeeder != null) {
+            tileSeeder.shutdownNow();
+            tileSeeder = null;
+        }
+        tileService = new TileService(new TileCache(cacheDir, maxDiskSize));
+        if (seedMaxZoom >= 0) {
+            final TileService seededService = tileService;
+            tileSeeder = Executors.newSingleThreadScheduledExecutor();
+            /*
+             * Check for new and refreshed datasets every minute
+             */
+            tileSeeder.scheduleWithFixedDelay(new Runnable() {
+                @Override
+                public void run() {
+                    if (catalogue != null) {
+                        try {
+                            seededService.seed(catalogue, seedMaxZoom);
+                        } catch (Exception e) {
+                            log.error("Problem seeding tile cache", e);
+                        }
+                    }
+                }
+            }, 0, 1, TimeUnit.MINUTES);
+        }
     }
 
     /**
@@ -262,6 +434,19 @@ public class WmsServlet extends HttpServlet {
                 advertisedPalettes.add(palette);
             }
         }
+        capabilitiesCache.clear();
+    }
+
+    /**
+     * Clears all cached GetCapabilities documents.
+     * 
+     * Cached documents are automatically discarded whenever the
+     * {@link WmsCatalogue#getLastUpdateTime()} changes. This method should be
+     * called by subclasses if they change anything else which appears in the
+     * capabilities document (e.g. the server or contact information).
+     */
+    protected void clearCapabilitiesCache() {
+        capabilitiesCache.clear();
     }
 
     /**
@@ -278,13 +463,26 @@ public class WmsServlet extends HttpServlet {
          */
         RequestParams params = new RequestParams(httpServletRequest.getParameterMap());
 
+        RequestTrace trace = null;
+        boolean failed = true;
         try {
+            /*
+             * RESTful tile requests are converted to the equivalent GetTile
+             * parameters
+             */
+            RequestParams tileParams = GetTileParameters.parseRestPath(
+                    httpServletRequest.getPathInfo(), params);
+            if (tileParams != null) {
+                params = tileParams;
+            }
             /*
              * Check the REQUEST parameter to see if we're producing a
              * capabilities document, a map or a FeatureInfo
              */
             String request = params.getMandatoryString("request");
+            trace = RequestTrace.begin(request);
             dispatchWmsRequest(request, params, httpServletRequest, httpServletResponse, catalogue);
+            failed = false;
         } catch (EdalException wmse) {
             boolean v130;
             try {
@@ -323,6 +521,11 @@ public class WmsServlet extends HttpServlet {
             /* An unexpected (internal) error has occurred */
             e.printStackTrace();
             throw new IOException(e);
+        } finally {
+            if (trace != null) {
+                RequestTrace.setCurrent(null);
+                metrics.record(trace, failed);
+            }
         }
     }
 
@@ -349,10 +552,10 @@ public class WmsServlet extends HttpServlet {
                     "No WMS catalogue has been set to discover datasets.  This is likely to be a programming error.");
         }
         if (request.equals("GetMap")) {
-            getMap(params, httpServletResponse, catalogue);
+            getMap(params, httpServletRequest, httpServletResponse, catalogue);
         } else if (request.equals("GetCapabilities")) {
-            getCapabilities(params, httpServletResponse, httpServletRequest.getRequestURL()
-                    .toString(), catalogue);
+            getCapabilities(params, httpServletRequest, httpServletResponse, httpServletRequest
+                    .getRequestURL().toString(), catalogue);
         } else if (request.equals("GetFeatureInfo")) {
             /* Look to see if we're requesting data from a remote server */
             String url = params.getString("url");
@@ -372,7 +575,7 @@ public class WmsServlet extends HttpServlet {
             /*
              * This is a request for non-standard metadata.
              */
-            getMetadata(params, httpServletResponse, catalogue);
+            getMetadata(params, httpServletRequest, httpServletResponse, catalogue);
         } else if (request.equals("GetLegendGraphic")) {
             /*
              * This is a request for an image representing the legend for the
@@ -385,6 +588,10 @@ public class WmsServlet extends HttpServlet {
             getTransect(params, httpServletResponse, catalogue);
         } else if (request.equals("GetVerticalProfile")) {
             getVerticalProfile(params, httpServletResponse, catalogue);
+        } else if (request.equals("GetTile")) {
+            getTile(params, httpServletRequest, httpServletResponse, catalogue);
+        } else if (request.equals("GetMetrics")) {
+            getMetrics(httpServletResponse);
             // } else if (request.equals("GetVerticalSection")) {
             // getVerticalSection(params, httpServletResponse);
         } else {
@@ -392,18 +599,33 @@ public class WmsServlet extends HttpServlet {
         }
     }
 
-    protected void getMap(RequestParams params, HttpServletResponse httpServletResponse,
-            WmsCatalogue catalogue) throws EdalException {
+    protected void getMap(RequestParams params, HttpServletRequest httpServletRequest,
+            HttpServletResponse httpServletResponse, WmsCatalogue catalogue)
+            throws EdalException {
+        long stageStart = RequestTrace.startStage();
         GetMapParameters getMapParams = new GetMapParameters(params, catalogue);
+        RequestTrace.endStage(RequestTrace.PARSE, stageStart);
 
         PlottingDomainParams plottingParameters = getMapParams.getPlottingDomainParameters();
         GetMapStyleParams styleParameters = getMapParams.getStyleParameters();
 
+        /*
+         * Maps only change when the catalogue does, so if the client already
+         * has an up-to-date copy there is no need to render anything
+         */
+        boolean coverageJson = getMapParams.getFormatString().equalsIgnoreCase(
+                "application/prs.coverage+json")
+                || getMapParams.getFormatString().equalsIgnoreCase("application/prs.coverage json");
+        CacheableResponse cacheableResponse = CacheableResponse.forLayers(httpServletRequest,
+                catalogue, coverageJson, styleParameters.getLayerNames());
+        if (cacheableResponse.sendNotModified(httpServletResponse)) {
+            return;
+        }
+
         /*
          * If the user has requested the actual data in coverageJSON format...
          */
-        if (getMapParams.getFormatString().equalsIgnoreCase("application/prs.coverage+json")
-                || getMapParams.getFormatString().equalsIgnoreCase("application/prs.coverage json")) {
+        if (coverageJson) {
             String[] layerNames = getMapParams.getStyleParameters().getLayerNames();
             LayerNameMapper layerNameMapper = catalogue.getLayerNameMapper();
             List<Feature<?>> features = new ArrayList<>();
@@ -433,20 +655,26 @@ public class WmsServlet extends HttpServlet {
                 }
             }
 
-            httpServletResponse.setContentType("application/prs.coverage+json");
             CoverageJsonConverter converter = new CoverageJsonConverterImpl();
 
             converter.checkFeaturesSupported(features);
             try {
-                if (features.size() == 1) {
-                    converter.convertFeatureToJson(httpServletResponse.getOutputStream(),
-                            features.get(0));
-                } else {
-                    // vectors are currently multiple features each with one parameter
-                    // TODO group features with identical domain into single feature
-                    converter
-                            .convertFeaturesToJson(httpServletResponse.getOutputStream(), features);
+                /*
+                 * CoverageJSON compresses very well, so we write it compressed
+                 * and send it as-is to clients which accept gzip
+                 */
+                ByteArrayOutputStream gzippedJson = new ByteArrayOutputStream();
+                try (GZIPOutputStream gzip = new GZIPOutputStream(gzippedJson)) {
+                    if (features.size() == 1) {
+                        converter.convertFeatureToJson(gzip, features.get(0));
+                    } else {
+                        // vectors are currently multiple features each with one parameter
+                        // TODO group features with identical domain into single feature
+                        converter.convertFeaturesToJson(gzip, features);
+                    }
                 }
+                cacheableResponse.writeCompressed(httpServletResponse,
+                        "application/prs.coverage+json", gzippedJson.toByteArray());
             } catch (IOException e) {
                 log.error("Problem writing CoverageJSON to output stream", e);
             }
@@ -505,7 +733,10 @@ public class WmsServlet extends HttpServlet {
          */
         httpServletResponse.setContentType(getMapParams.getFormatString());
 
+        stageStart = RequestTrace.startStage();
         MapImage imageGenerator = styleParameters.getImageGenerator(catalogue);
+        RequestTrace.endStage(RequestTrace.STYLE, stageStart);
+        imageGenerator.setTiledDrawing(tilingThreshold, tileSize);
 
         List<BufferedImage> frames;
         if (!getMapParams.isAnimation()) {
@@ -537,7 +768,14 @@ public class WmsServlet extends HttpServlet {
             }
         }
 
+        /*
+         * Image formats are already compressed, so only the caching headers
+         * are needed
+         */
+        cacheableResponse.setCachingHeaders(httpServletResponse);
+
         ImageFormat imageFormat = getMapParams.getImageFormat();
+        stageStart = RequestTrace.startStage();
         try {
             ServletOutputStream outputStream = httpServletResponse.getOutputStream();
             if (imageFormat instanceof SimpleFormat) {
@@ -587,11 +825,98 @@ public class WmsServlet extends HttpServlet {
              */
         } catch (IOException e) {
             log.error("Problem writing output to stream", e);
+        } finally {
+            RequestTrace.endStage(RequestTrace.ENCODING, stageStart);
         }
     }
 
+    /**
+     * Returns a single tile on one of the fixed {@link TileMatrixSet}s. Tiles
+     * are taken from the tile cache if one has been set with
+     * {@link WmsServlet#setTileCache(File, int)}.
+     * 
+     * @param params
+     *            The URL parameters
+     * @param httpServletRequest
+     *            The request being answered
+     * @param httpServletResponse
+     *            The response object to write out to
+     * @param catalogue
+     *            The {@link WmsCatalogue} containing the requested layer
+     */
+    protected void getTile(RequestParams params, HttpServletRequest httpServletRequest,
+            HttpServletResponse httpServletResponse, WmsCatalogue catalogue)
+            throws EdalException {
+        long stageStart = RequestTrace.startStage();
+        GetTileParameters tileParams = new GetTileParameters(params);
+        RequestTrace.endStage(RequestTrace.PARSE, stageStart);
+
+        CacheableResponse cacheableResponse = CacheableResponse.forLayers(httpServletRequest,
+                catalogue, false, tileParams.getLayerName());
+        if (cacheableResponse.sendNotModified(httpServletResponse)) {
+            return;
+        }
+
+        byte[] tile;
+        try {
+            tile = tileService.getTile(tileParams, catalogue);
+        } catch (IOException e) {
+            throw new EdalException("Problem generating tile", e);
+        }
+
+        cacheableResponse.setCachingHeaders(httpServletResponse);
+        httpServletResponse.setContentType(tileParams.getFormat());
+        httpServletResponse.setContentLength(tile.length);
+        try {
+            ServletOutputStream outputStream = httpServletResponse.getOutputStream();
+            outputStream.write(tile);
+            outputStream.close();
+        } catch (SocketException e) {
+            /*
+             * The client has cancelled the request, which is common when
+             * panning tiled maps
+             */
+        } catch (IOException e) {
+            log.error("Problem writing output to stream", e);
+        }
+    }
+
+    /**
+     * Writes the request metrics of this servlet as JSON
+     * 
+     * @param httpServletResponse
+     *            The {@link HttpServletResponse} to write to
+     */
+    protected void getMetrics(HttpServletResponse httpServletResponse) throws EdalException {
+        if (!metricsRequestEnabled) {
+            throw new EdalUnsupportedOperationException(
+                    "GetMetrics requests are not enabled on this server");
+        }
+        httpServletResponse.setContentType("application/json");
+        try {
+            httpServletResponse.getWriter().write(metrics.toJson());
+        } catch (IOException e) {
+            log.error("Problem writing metrics to output stream", e);
+            throw new EdalException("Problem writing JSON to output stream", e);
+        }
+    }
+
+    /**
+     * Returns a capabilities document, without honouring any conditional
+     * headers or accepted encodings.
+     * 
+     * @deprecated Use
+     *             {@link WmsServlet#getCapabilities(RequestParams, HttpServletRequest, HttpServletResponse, String, WmsCatalogue)}
+     */
+    @Deprecated
     protected void getCapabilities(RequestParams params, HttpServletResponse httpServletResponse,
             String baseUrl, WmsCatalogue catalogue) throws EdalException {
+        getCapabilities(params, null, httpServletResponse, baseUrl, catalogue);
+    }
+
+    protected void getCapabilities(RequestParams params, HttpServletRequest httpServletRequest,
+            HttpServletResponse httpServletResponse, String baseUrl, WmsCatalogue catalogue)
+            throws EdalException {
         /*
          * We only advertise text/xml as a GetCapabilities format. The spec says
          * we can return text/xml for unknown formats, so we don't even need to
@@ -627,11 +952,8 @@ public class WmsServlet extends HttpServlet {
         }
 
         String wmsVersion = params.getString("version", "1.3.0");
-        Template template;
-        if ("1.1.1".equals(wmsVersion)) {
-            template = velocityEngine.getTemplate("templates/capabilities-1.1.1.vm");
-        } else {
-            template = velocityEngine.getTemplate("templates/capabilities-1.3.0.vm");
+        if (!"1.1.1".equals(wmsVersion)) {
+            wmsVersion = "1.3.0";
         }
 
         /*
@@ -664,6 +986,56 @@ public class WmsServlet extends HttpServlet {
             datasets.add(ds);
         }
 
+        boolean verbose = params.getBoolean("verbose", false);
+
+        /*
+         * Rendering the capabilities document can be very expensive for large
+         * catalogues, so we cache the rendered documents until the catalogue
+         * changes
+         */
+        DateTime lastUpdateTime = catalogue.getLastUpdateTime();
+        CapabilitiesKey key = new CapabilitiesKey(wmsVersion, datasetId, verbose, baseUrl);
+        CachedCapabilities capabilities = capabilitiesCache.get(key, lastUpdateTime);
+        try {
+            if (capabilities == null) {
+                String document = renderCapabilities(wmsVersion, datasets, verbose, baseUrl,
+                        catalogue);
+                if (document == null) {
+                    return;
+                }
+                capabilities = capabilitiesCache.put(key, document, lastUpdateTime);
+            }
+            capabilities.writeTo(httpServletRequest, httpServletResponse);
+        } catch (IOException e) {
+            log.error("Problem writing output to stream", e);
+        }
+    }
+
+    /**
+     * Renders a capabilities document
+     * 
+     * @param wmsVersion
+     *            The WMS version of the document to render
+     * @param datasets
+     *            The {@link Dataset}s to include in the document
+     * @param verbose
+     *            Whether to include all timesteps in the document
+     * @param baseUrl
+     *            The URL of the WMS
+     * @param catalogue
+     *            The {@link WmsCatalogue} containing the {@link Dataset}s
+     * @return The capabilities document, or <code>null</code> if it could not
+     *         be generated
+     */
+    private String renderCapabilities(String wmsVersion, Collection<Dataset> datasets,
+            boolean verbose, String baseUrl, WmsCatalogue catalogue) {
+        Template template;
+        if ("1.1.1".equals(wmsVersion)) {
+            template = velocityEngine.getTemplate("templates/capabilities-1.1.1.vm");
+        } else {
+            template = velocityEngine.getTemplate("templates/capabilities-1.3.0.vm");
+        }
+
         VelocityContext context = new VelocityContext();
         EventCartridge ec = new EventCartridge();
         ec.addEventHandler(new EscapeXmlReference());
@@ -678,22 +1050,22 @@ public class WmsServlet extends HttpServlet {
         context.put("GISUtils", GISUtils.class);
         context.put("TimeUtils", TimeUtils.class);
         context.put("WmsUtils", WmsUtils.class);
-        context.put("verbose", params.getBoolean("verbose", false));
+        context.put("verbose", verbose);
         context.put("allPalettes", ColourPalette.getPredefinedPalettes());
         context.put("availablePalettes", advertisedPalettes);
 
-        httpServletResponse.setContentType("text/xml");
+        StringWriter writer = new StringWriter();
         try {
-            template.merge(context, httpServletResponse.getWriter());
+            template.merge(context, writer);
+            return writer.toString();
         } catch (ResourceNotFoundException e) {
             log.error("Cannot find capabilities template", e);
         } catch (ParseErrorException e) {
             log.error("Cannot parse capabilities template", e);
         } catch (MethodInvocationException e) {
             log.error("Capabilities template has incorrect method", e);
-        } catch (IOException e) {
-            log.error("Problem writing output to stream", e);
         }
+        return null;
     }
 
     protected void getFeatureInfo(RequestParams params, HttpServletResponse httpServletResponse,
@@ -716,15 +1088,19 @@ public class WmsServlet extends HttpServlet {
         final HorizontalPosition position = featureInfoParameters.getClickedPosition();
 
         String[] layerNames = featureInfoParameters.getLayerNames();
+        Dataset[] datasets = new Dataset[layerNames.length];
+        String[] variableIds = new String[layerNames.length];
+        VariableMetadata[] layerMetadata = new VariableMetadata[layerNames.length];
         /*
-         * List of FeatureInfoPoints to be sent to featureInfo velocity template
-         */
-        List<FeatureInfoPoint> featureInfos = new ArrayList<FeatureInfoPoint>();
-        /*
-         * Loop over all requested layers
+         * Values for layers in horizontally-discrete datasets can be read
+         * directly at the clicked position, rather than by extracting a map
+         * feature around it. Collect all of the variables needed from each
+         * such dataset so that they can be read with a single data source.
          */
-        for (String layerName : layerNames) {
-//            PlotLayerMetadata layerMetadata = catalogue.getLayerMetadata(layerName);
+        Map<HorizontallyDiscreteDataset<?>, Set<String>> pointQueryVariables =
+                new LinkedHashMap<>();
+        for (int i = 0; i < layerNames.length; i++) {
+            String layerName = layerNames[i];
             if (catalogue.isDisabled(layerName)) {
                 throw new EdalLayerNotFoundException("The layer " + layerName
                         + " is not enabled on this server");
@@ -732,12 +1108,69 @@ public class WmsServlet extends HttpServlet {
             if (!catalogue.isQueryable(layerName)) {
                 throw new LayerNotQueryableException("The layer " + layerName + " is not queryable");
             }
-            Dataset dataset = WmsUtils.getDatasetFromLayerName(layerName, catalogue);
-            String variableId = catalogue.getLayerNameMapper()
-                    .getVariableIdFromLayerName(layerName);
-            VariableMetadata metadata = WmsUtils.getVariableMetadataFromLayerName(layerName,
-                    catalogue);
+            datasets[i] = WmsUtils.getDatasetFromLayerName(layerName, catalogue);
+            variableIds[i] = catalogue.getLayerNameMapper().getVariableIdFromLayerName(layerName);
+            layerMetadata[i] = WmsUtils.getVariableMetadataFromLayerName(layerName, catalogue);
+
+            if (datasets[i] instanceof HorizontallyDiscreteDataset<?>) {
+                HorizontallyDiscreteDataset<?> discreteDataset =
+                        (HorizontallyDiscreteDataset<?>) datasets[i];
+                Set<String> varIds = pointQueryVariables.get(discreteDataset);
+                if (varIds == null) {
+                    varIds = new LinkedHashSet<>();
+                    pointQueryVariables.put(discreteDataset, varIds);
+                }
+                if (layerMetadata[i].isScalar()) {
+                    varIds.add(variableIds[i]);
+                }
+                for (VariableMetadata child : layerMetadata[i].getChildren()) {
+                    if (child.isScalar()) {
+                        varIds.add(child.getId());
+                    }
+                }
+            }
+        }
+
+        Map<Dataset, Map<String, Number>> pointValues = new HashMap<>();
+        for (Entry<HorizontallyDiscreteDataset<?>, Set<String>> entry : pointQueryVariables
+                .entrySet()) {
+            pointValues.put(entry.getKey(), entry.getKey().readSinglePoints(entry.getValue(),
+                    position, plottingParameters.getTargetZ(), plottingParameters.getTargetT()));
+        }
+
+        /*
+         * List of FeatureInfoPoints to be written to the response
+         */
+        List<FeatureInfoPoint> featureInfos = new ArrayList<FeatureInfoPoint>();
+        /*
+         * Loop over all requested layers
+         */
+        for (int i = 0; i < layerNames.length; i++) {
+            Dataset dataset = datasets[i];
+            String variableId = variableIds[i];
+            VariableMetadata metadata = layerMetadata[i];
             Set<VariableMetadata> children = metadata.getChildren();
+            /*
+             * We only want to return a layer name if there are more than one
+             */
+            String layerNameToSave = layerNames.length < 2 ? null : layerNames[i];
+
+            Map<String, Number> values = pointValues.get(dataset);
+            if (values != null) {
+                if (metadata.isScalar()) {
+                    addFeatureInfoPoint(featureInfos, values.get(variableId), layerNameToSave,
+                            "Map of " + variableId, position, plottingParameters.getTargetT(),
+                            metadata, metadata);
+                }
+                for (VariableMetadata child : children) {
+                    String name = catalogue.getLayerMetadata(child).getTitle();
+                    addFeatureInfoPoint(featureInfos, values.get(child.getId()),
+                            layerNameToSave, name, position, plottingParameters.getTargetT(),
+                            child, metadata);
+                }
+                continue;
+            }
+
             /*
              * Extract the map features. Because of the way
              * GetFeatureInfoParameters works, features are searched for in a
@@ -746,10 +1179,6 @@ public class WmsServlet extends HttpServlet {
             Collection<? extends DiscreteFeature<?, ?>> mapFeatures = GraphicsUtils
                     .extractGeneralMapFeatures(dataset, variableId, plottingParameters);
 
-            /*
-             * We only want to return a layer name if there are more than one
-             */
-            String layerNameToSave = layerNames.length < 2 ? null : layerName;
             for (DiscreteFeature<?, ?> feature : mapFeatures) {
                 if (metadata.isScalar()) {
                     /*
@@ -802,24 +1231,139 @@ public class WmsServlet extends HttpServlet {
         }
 
         /*
-         * Now render the output XML and send to the output stream
+         * Now write the output and send to the output stream. This is written
+         * directly unless the site has customised the template for the
+         * requested format.
          */
-        Template template;
-        if (FEATURE_INFO_XML_FORMAT.equals(featureInfoParameters.getInfoFormat())) {
-            template = velocityEngine.getTemplate("templates/featureInfo-xml.vm");
-        } else {
-            template = velocityEngine.getTemplate("templates/featureInfo-plain.vm");
-        }
-        VelocityContext context = new VelocityContext();
-        context.put("position", GISUtils.transformPosition(position, DefaultGeographicCRS.WGS84));
-        context.put("featureInfo", featureInfos);
+        HorizontalPosition wgs84Position = GISUtils.transformPosition(position,
+                DefaultGeographicCRS.WGS84);
+        boolean xml = FEATURE_INFO_XML_FORMAT.equals(featureInfoParameters.getInfoFormat());
+        String templateName = xml ? FEATURE_INFO_XML_TEMPLATE : FEATURE_INFO_PLAIN_TEMPLATE;
         try {
-            template.merge(context, httpServletResponse.getWriter());
+            if (isTemplateOverridden(templateName)) {
+                VelocityContext context = new VelocityContext();
+                context.put("position", wgs84Position);
+                context.put("featureInfo", featureInfos);
+                velocityEngine.getTemplate(templateName).merge(context,
+                        httpServletResponse.getWriter());
+            } else if (xml) {
+                FeatureInfoWriter.writeXml(wgs84Position, featureInfos,
+                        httpServletResponse.getWriter());
+            } else {
+                FeatureInfoWriter.writePlain(wgs84Position, featureInfos,
+                        httpServletResponse.getWriter());
+            }
         } catch (Exception e) {
-            log.error("Problem writing FeatureInfo XML", e);
+            log.error("Problem writing FeatureInfo response", e);
         }
     }
 
+    /**
+     * Checks whether one of the templates bundled with this class has been
+     * overridden. Templates are loaded from the classpath, so a site
+     * overrides one by placing its own copy ahead of the bundled one (e.g. in
+     * WEB-INF/classes).
+     * 
+     * @param templateName
+     *            The classpath location of the template
+     * @return <code>true</code> if the template which will be loaded is not
+     *         the one bundled with this class
+     */
+    private boolean isTemplateOverridden(String templateName) {
+        Boolean overridden = overriddenTemplates.get(templateName);
+        if (overridden == null) {
+            /*
+             * Velocity's classpath loader looks in the context class loader
+             * first
+             */
+            ClassLoader loader = Thread.currentThread().getContextClassLoader();
+            if (loader == null) {
+                loader = WmsServlet.class.getClassLoader();
+            }
+            URL template = loader.getResource(templateName);
+            CodeSource codeSource = WmsServlet.class.getProtectionDomain().getCodeSource();
+            overridden = template != null && codeSource != null
+                    && !template.toString().contains(codeSource.getLocation().toString());
+            overriddenTemplates.put(templateName, overridden);
+        }
+        return overridden;
+    }
+
+    /**
+     * Adds a value read directly from a dataset to a list of
+     * {@link FeatureInfoPoint}s, if it is not <code>null</code>. As when
+     * values are extracted from a map feature, the position and time reported
+     * are those of the data point which was read, not those requested.
+     * 
+     * @param featureInfos
+     *            The {@link List} of {@link FeatureInfoPoint}s to add to
+     * @param value
+     *            The value read at the clicked position
+     * @param layerName
+     *            The layer name to add to the {@link FeatureInfoPoint}
+     * @param featureName
+     *            The feature name to add to the {@link FeatureInfoPoint}
+     * @param position
+     *            The clicked position
+     * @param targetTime
+     *            The requested time, or <code>null</code> for the default
+     * @param variableMetadata
+     *            The {@link VariableMetadata} of the variable which was read
+     * @param metadata
+     *            The {@link VariableMetadata} of the layer being queried
+     */
+    private static void addFeatureInfoPoint(List<FeatureInfoPoint> featureInfos, Number value,
+            String layerName, String featureName, HorizontalPosition position,
+            DateTime targetTime, VariableMetadata variableMetadata, VariableMetadata metadata) {
+        if (value != null) {
+            String timeStr = null;
+            DateTime time = GISUtils.getClosestTimeTo(targetTime,
+                    variableMetadata.getTemporalDomain());
+            if (time != null) {
+                timeStr = TimeUtils.dateTimeToISO8601(time);
+            }
+            featureInfos.add(new FeatureInfoPoint(layerName, featureName, getCellCentre(
+                    variableMetadata.getHorizontalDomain(), position), timeStr,
+                    getCategoryLabel(value, metadata), null));
+        }
+    }
+
+    /**
+     * @return The centre of the cell of a horizontal domain which contains a
+     *         position, or the position itself if the domain is not discrete
+     *         or does not contain it
+     */
+    private static HorizontalPosition getCellCentre(HorizontalDomain hDomain,
+            HorizontalPosition position) {
+        if (hDomain instanceof HorizontalGrid) {
+            HorizontalGrid grid = (HorizontalGrid) hDomain;
+            GridCoordinates2D index = grid.findIndexOf(position);
+            if (index != null) {
+                return grid.getDomainObjects().get(index.getY(), index.getX()).getCentre();
+            }
+        } else if (hDomain instanceof HorizontalMesh) {
+            HorizontalMesh mesh = (HorizontalMesh) hDomain;
+            int index = mesh.findIndexOf(position);
+            if (index >= 0) {
+                return mesh.getDomainObjects().get(index).getCentre();
+            }
+        }
+        return position;
+    }
+
+    /**
+     * @return The label of the category a value represents, or the value
+     *         itself if it does not represent a category
+     */
+    private static Object getCategoryLabel(Object value, VariableMetadata metadata) {
+        Map<Integer, Category> categories = metadata.getParameter().getCategories();
+        if (categories != null && value instanceof Number
+                && categories.containsKey(((Number) value).intValue())) {
+            return categories.get(((Number) value).intValue()).getLabel();
+        }
+        return value;
+    }
+
     /**
      * Extracts the target value from a feature
      * 
@@ -905,11 +1449,7 @@ public class WmsServlet extends HttpServlet {
             /*
              * Change value to the category label if it represents a category
              */
-            Map<Integer, Category> categories = metadata.getParameter().getCategories();
-            if (categories != null && value instanceof Number
-                    && categories.containsKey(((Number) value).intValue())) {
-                value = categories.get(((Number) value).intValue()).getLabel();
-            }
+            value = getCategoryLabel(value, metadata);
             return new FeatureInfoPoint(layerName, featureName, position, timeStr, value,
                     feature.getFeatureProperties());
         } else {
@@ -922,19 +1462,36 @@ public class WmsServlet extends HttpServlet {
      * 
      * @param params
      *            The URL parameters
+     * @param httpServletRequest
+     *            The request being answered
      * @param httpServletResponse
      *            The response object to write out to
      * @param catalogue2
      * @throws MetadataException
      *             If there are any issues with returning the metadata
      */
-    protected void getMetadata(RequestParams params, HttpServletResponse httpServletResponse,
-            WmsCatalogue catalogue) throws MetadataException {
+    protected void getMetadata(RequestParams params, HttpServletRequest httpServletRequest,
+            HttpServletResponse httpServletResponse, WmsCatalogue catalogue)
+            throws MetadataException {
         String item = params.getString("item");
         String json = null;
         if (item == null) {
             throw new MetadataException("Must provide an ITEM parameter");
-        } else if (item.equals("menu")) {
+        }
+
+        /*
+         * Metadata only changes when the catalogue does. Layer-specific items
+         * can be cached by clients for the max-age of the layer(s) they
+         * describe
+         */
+        String layerNames = params.getString("layerName", params.getString("layers"));
+        CacheableResponse cacheableResponse = CacheableResponse.forLayers(httpServletRequest,
+                catalogue, true, layerNames == null ? new String[0] : layerNames.split(","));
+        if (cacheableResponse.sendNotModified(httpServletResponse)) {
+            return;
+        }
+
+        if (item.equals("menu")) {
             json = showMenu(params, catalogue);
         } else if (item.equals("layerDetails")) {
             json = showLayerDetails(params, catalogue);
@@ -946,9 +1503,8 @@ public class WmsServlet extends HttpServlet {
             json = showAnimationTimesteps(params, catalogue);
         }
         if (json != null) {
-            httpServletResponse.setContentType("application/json");
             try {
-                httpServletResponse.getWriter().write(json);
+                cacheableResponse.writeText(httpServletResponse, "application/json", json);
             } catch (IOException e) {
                 log.error("Problem writing metadata to output stream", e);
                 throw new MetadataException("Problem writing JSON to output stream", e);
@@ -1420,39 +1976,19 @@ public class WmsServlet extends HttpServlet {
             layerDetails.put("continuousT", !discreteT);
             if (temporalDomain instanceof TimeAxis) {
                 TimeAxis timeAxis = (TimeAxis) temporalDomain;
-                Map<Integer, Map<Integer, List<Integer>>> datesWithData = new LinkedHashMap<Integer, Map<Integer, List<Integer>>>();
-                for (DateTime dateTime : timeAxis.getCoordinateValues()) {
-                    /*
-                     * We must make sure that dateTime() is in UTC or
-                     * getDayOfMonth() etc might return unexpected results
-                     */
-                    dateTime = dateTime.withZone(DateTimeZone.UTC);
-                    /*
-                     * See whether this dateTime is closer to the target
-                     * dateTime than the current closest value
-                     */
-                    int year = dateTime.getYear();
-                    Map<Integer, List<Integer>> months = datesWithData.get(year);
-                    if (months == null) {
-                        months = new LinkedHashMap<Integer, List<Integer>>();
-                        datesWithData.put(year, months);
-                    }
-                    /*
-                     * We need to subtract 1 from the month number as Javascript
-                     * months are 0-based (Joda-time months are 1-based). This
-                     * retains compatibility with previous behaviour.
-                     */
-                    int month = dateTime.getMonthOfYear() - 1;
-                    List<Integer> days = months.get(month);
-                    if (days == null) {
-                        days = new ArrayList<Integer>();
-                        months.put(month, days);
-                    }
-                    int day = dateTime.getDayOfMonth();
-                    if (!days.contains(day)) {
-                        days.add(day);
-                    }
+                /*
+                 * TimeAxisImpl caches the dates which have data, so reuse the
+                 * axis itself where we can
+                 */
+                TimeAxisImpl indexedAxis;
+                if (timeAxis instanceof TimeAxisImpl) {
+                    indexedAxis = (TimeAxisImpl) timeAxis;
+                } else {
+                    indexedAxis = new TimeAxisImpl(timeAxis.getName(),
+                            timeAxis.getCoordinateValues());
                 }
+                Map<Integer, Map<Integer, List<Integer>>> datesWithData = indexedAxis
+                        .getDatesWithData();
                 JSONObject datesWithDataJson = new JSONObject();
                 for (Integer year : datesWithData.keySet()) {
                     Map<Integer, List<Integer>> months = datesWithData.get(year);
@@ -1463,7 +1999,13 @@ public class WmsServlet extends HttpServlet {
                         for (Integer day : days) {
                             daysJson.add(day);
                         }
-                        monthsJson.put(month, daysJson);
+                        /*
+                         * We need to subtract 1 from the month number as
+                         * Javascript months are 0-based (Joda-time months are
+                         * 1-based). This retains compatibility with previous
+                         * behaviour.
+                         */
+                        monthsJson.put(month - 1, daysJson);
                     }
                     datesWithDataJson.put(year, monthsJson);
                 }
@@ -1694,34 +2236,86 @@ public class WmsServlet extends HttpServlet {
             layerName = catalogue.getLayerNameMapper().getLayerName(datasetId, variableId);
         }
 
+        double min = Double.MAX_VALUE;
+        double max = -Double.MAX_VALUE;
+
+        double[] percentiles = getPercentiles(params);
+
         /*
-         * Now read the required features
+         * If we have statistics for this slice, use them rather than reading
+         * the data. These are only available at a coarse resolution, so for
+         * small areas we read the data anyway.
          */
-        FeaturesAndMemberName featuresAndMember;
-        try {
-            featuresAndMember = catalogue.getFeaturesForLayer(layerName,
-                    getMapParams.getPlottingDomainParameters());
-        } catch (EdalException e) {
-            log.error("Bad layer name", e);
-            throw new MetadataException("Problem reading data", e);
-        }
+        Extent<Float> statisticsRange = getValueRangeFromStatistics(percentiles, layerName,
+                getMapParams.getPlottingDomainParameters(), catalogue);
+        if (statisticsRange != null) {
+            min = statisticsRange.getLow();
+            max = statisticsRange.getHigh();
+        } else {
+            /*
+             * If percentiles are requested, we need to keep all of the values
+             */
+            List<Double> readValues = percentiles == null ? null : new ArrayList<Double>();
 
-        double min = Double.MAX_VALUE;
-        double max = -Double.MAX_VALUE;
-        Collection<? extends DiscreteFeature<?, ?>> features = featuresAndMember.getFeatures();
-        for (DiscreteFeature<?, ?> f : features) {
-            if (f instanceof MapFeature) {
+            /*
+             * Now read the required features
+             */
+            FeaturesAndMemberName featuresAndMember;
+            try {
+                featuresAndMember = catalogue.getFeaturesForLayer(layerName,
+                        getMapParams.getPlottingDomainParameters());
+            } catch (EdalException e) {
+                log.error("Bad layer name", e);
+                throw new MetadataException("Problem reading data", e);
+            }
+
+            Collection<? extends DiscreteFeature<?, ?>> features = featuresAndMember.getFeatures();
+            if (features instanceof PointFeatureStream<?>
+                    && ((PointFeatureStream<?>) features).isThinned()) {
                 /*
-                 * We want to look at all values of the grid feature.
+                 * Point features are thinned for plotting, but the range
+                 * should cover all of them. Stream them all instead.
                  */
-                Array<Number> values = f.getValues(featuresAndMember.getMember());
-                if (values == null) {
-                    continue;
-                }
-                Iterator<Number> iterator = values.iterator();
-                while (iterator.hasNext()) {
-                    Number value = iterator.next();
+                PlottingDomainParams plottingParams = getMapParams.getPlottingDomainParameters();
+                Dataset dataset = catalogue.getDatasetFromId(catalogue.getLayerNameMapper()
+                        .getDatasetIdFromLayerName(layerName));
+                features = ((PointDataset<?>) dataset).streamMapFeatures(
+                        CollectionUtils.setOf(featuresAndMember.getMember()),
+                        plottingParams.getBbox(), plottingParams.getZExtent(),
+                        plottingParams.getTExtent(), plottingParams.getTargetZ(),
+                        plottingParams.getTargetT(), 0, 1, 1);
+            }
+            for (DiscreteFeature<?, ?> f : features) {
+                if (f instanceof MapFeature) {
+                    /*
+                     * We want to look at all values of the grid feature.
+                     */
+                    Array<Number> values = f.getValues(featuresAndMember.getMember());
+                    if (values == null) {
+                        continue;
+                    }
+                    Iterator<Number> iterator = values.iterator();
+                    while (iterator.hasNext()) {
+                        Number value = iterator.next();
+                        if (value != null) {
+                            if (readValues != null) {
+                                readValues.add(value.doubleValue());
+                            }
+                            if (value.doubleValue() > max) {
+                                max = value.doubleValue();
+                            }
+                            if (value.doubleValue() < min) {
+                                min = value.doubleValue();
+                            }
+                        }
+                    }
+                } else if (f instanceof PointFeature) {
+                    PointFeature pointFeature = (PointFeature) f;
+                    Number value = pointFeature.getValues(featuresAndMember.getMember()).get(0);
                     if (value != null) {
+                        if (readValues != null) {
+                            readValues.add(value.doubleValue());
+                        }
                         if (value.doubleValue() > max) {
                             max = value.doubleValue();
                         }
@@ -1729,22 +2323,16 @@ public class WmsServlet extends HttpServlet {
                             min = value.doubleValue();
                         }
                     }
+                } else {
+                    /*
+                     * Would handle other feature types here.
+                     */
                 }
-            } else if (f instanceof PointFeature) {
-                PointFeature pointFeature = (PointFeature) f;
-                Number value = pointFeature.getValues(featuresAndMember.getMember()).get(0);
-                if (value != null) {
-                    if (value.doubleValue() > max) {
-                        max = value.doubleValue();
-                    }
-                    if (value.doubleValue() < min) {
-                        min = value.doubleValue();
-                    }
-                }
-            } else {
-                /*
-                 * Would handle other feature types here.
-                 */
+            }
+            if (readValues != null && !readValues.isEmpty()) {
+                Collections.sort(readValues);
+                min = getPercentile(readValues, percentiles[0]);
+                max = getPercentile(readValues, percentiles[1]);
             }
         }
 
@@ -1779,6 +2367,95 @@ public class WmsServlet extends HttpServlet {
         return minmax.toString();
     }
 
+    /**
+     * Parses the optional PERCENTILES parameter (e.g. "PERCENTILES=2,98"),
+     * which can be used to request a range which excludes outliers.
+     * 
+     * @return The low and high percentiles, or <code>null</code> if the
+     *         parameter is not present
+     */
+    private static double[] getPercentiles(RequestParams params) throws MetadataException {
+        String percentiles = params.getString("percentiles");
+        if (percentiles == null) {
+            return null;
+        }
+        String[] percentileParts = percentiles.split(",");
+        double lowPercentile;
+        double highPercentile;
+        try {
+            lowPercentile = Double.parseDouble(percentileParts[0]);
+            highPercentile = Double.parseDouble(percentileParts[1]);
+        } catch (NumberFormatException | ArrayIndexOutOfBoundsException e) {
+            throw new MetadataException(
+                    "PERCENTILES must be of the form low,high (e.g. PERCENTILES=2,98)");
+        }
+        if (lowPercentile < 0 || highPercentile > 100 || lowPercentile >= highPercentile) {
+            throw new MetadataException(
+                    "PERCENTILES must be between 0 and 100 and low must be less than high");
+        }
+        return new double[] { lowPercentile, highPercentile };
+    }
+
+    /**
+     * Gets a percentile of a list of values, interpolating linearly between
+     * neighbouring values
+     * 
+     * @param sortedValues
+     *            The values, sorted into ascending order. Must not be empty.
+     * @param percentile
+     *            The percentile (0-100) to get
+     * @return The value at the given percentile
+     */
+    static double getPercentile(List<Double> sortedValues, double percentile) {
+        double position = (sortedValues.size() - 1) * percentile / 100.0;
+        int lower = (int) Math.floor(position);
+        int upper = Math.min(lower + 1, sortedValues.size() - 1);
+        double fraction = position - lower;
+        return sortedValues.get(lower) + fraction
+                * (sortedValues.get(upper) - sortedValues.get(lower));
+    }
+
+    /**
+     * Gets the range of values in the area of a GetMap request from the
+     * {@link StatisticsStore}, if possible.
+     * 
+     * @param percentiles
+     *            The low and high percentiles of the range, or
+     *            <code>null</code> for the full range
+     * @return The range of values, or <code>null</code> if statistics are not
+     *         available for the layer or the area is too small for them to be
+     *         accurate
+     */
+    private Extent<Float> getValueRangeFromStatistics(double[] percentiles, String layerName,
+            PlottingDomainParams plottingParams, WmsCatalogue catalogue) {
+        StatisticsStore statisticsStore = catalogue.getStatisticsStore();
+        if (statisticsStore == null) {
+            return null;
+        }
+        try {
+            Dataset dataset = WmsUtils.getDatasetFromLayerName(layerName, catalogue);
+            String varId = catalogue.getLayerNameMapper().getVariableIdFromLayerName(layerName);
+            SliceStatistics statistics = statisticsStore.getStatistics(dataset, varId,
+                    plottingParams.getTargetZ(), plottingParams.getTargetT());
+            if (statistics == null) {
+                return null;
+            }
+            BoundingBox bbox = StatisticsStore.toWgs84(plottingParams.getBbox());
+            if (bbox != null
+                    && (bbox.getWidth() < statistics.getTileWidth() || bbox.getHeight() < statistics
+                            .getTileHeight())) {
+                return null;
+            }
+            if (percentiles == null) {
+                return statistics.getValueRange(bbox);
+            } else {
+                return statistics.getPercentileRange(bbox, percentiles[0], percentiles[1]);
+            }
+        } catch (EdalLayerNotFoundException e) {
+            return null;
+        }
+    }
+
     protected String showAnimationTimesteps(RequestParams params, WmsCatalogue catalogue)
             throws MetadataException {
         String layerName = params.getString("layerName");
@@ -1917,6 +2594,31 @@ public class WmsServlet extends HttpServlet {
 
     protected void getLegendGraphic(RequestParams params, HttpServletResponse httpServletResponse,
             WmsCatalogue catalogue) throws EdalException {
+        BufferedImage legend = drawLegendGraphic(params, catalogue);
+        httpServletResponse.setContentType("image/png");
+        try {
+            ImageIO.write(legend, "png", httpServletResponse.getOutputStream());
+        } catch (IOException e) {
+            log.error("Problem writing legend graphic to output stream", e);
+            throw new EdalException("Unable to write legend graphic to output stream", e);
+        }
+    }
+
+    /**
+     * Draws the legend graphic described by a set of GetLegendGraphic
+     * parameters. This is also used by the {@link ScreenshotServlet} to draw
+     * legends without making a request to this servlet.
+     * 
+     * @param params
+     *            The GetLegendGraphic parameters
+     * @param catalogue
+     *            The {@link WmsCatalogue} containing the requested layer
+     * @return The legend image
+     * @throws EdalException
+     *             If the parameters do not describe a valid legend
+     */
+    static BufferedImage drawLegendGraphic(RequestParams params, WmsCatalogue catalogue)
+            throws EdalException {
         BufferedImage legend;
 
         /* numColourBands defaults to ColorPalette.MAX_NUM_COLOURS if not set */
@@ -1994,13 +2696,7 @@ public class WmsServlet extends HttpServlet {
                 legend = imageGenerator.getLegend(width, height, isVector);
             }
         }
-        httpServletResponse.setContentType("image/png");
-        try {
-            ImageIO.write(legend, "png", httpServletResponse.getOutputStream());
-        } catch (IOException e) {
-            log.error("Problem writing legend graphic to output stream", e);
-            throw new EdalException("Unable to write legend graphic to output stream", e);
-        }
+        return legend;
     }
 
     protected void getTimeseries(RequestParams params, HttpServletResponse httpServletResponse,
@@ -2499,6 +3195,11 @@ public class WmsServlet extends HttpServlet {
         } else {
             httpServletResponse.setStatus(HttpServletResponse.SC_BAD_REQUEST);
         }
+        /*
+         * Caching headers may already have been set for the response which
+         * failed
+         */
+        httpServletResponse.setHeader("Cache-Control", "no-store");
 
         httpServletResponse.setContentType("text/xml");
         StackTraceElement element = exception.getStackTrace()[0];
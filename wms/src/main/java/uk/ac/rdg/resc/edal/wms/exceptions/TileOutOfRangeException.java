@@ -1,7 +1,7 @@
 /*******************************************************************************
- * Copyright (c) 2015 The University of Reading
+ * Copyright (c) 2016 The University of Reading
  * All rights reserved.
- *
+ * 
  * Redistribution and use in source and binary forms, with or without
  * modification, are permitted provided that the following conditions
  * are met:
@@ -13,7 +13,7 @@
  * 3. Neither the name of the University of Reading, nor the names of the
  *    authors or contributors may be used to endorse or promote products
  *    derived from this software without specific prior written permission.
- *
+ * 
  * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
  * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
  * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
@@ -24,24 +24,23 @@
  * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
  * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
  * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
- *******************************************************************************/
+ ******************************************************************************/
 
-package uk.ac.rdg.resc.edal.grid.kdtree;
+package uk.ac.rdg.resc.edal.wms.exceptions;
 
-public class NonTerminalTreeNode implements TreeNode {
-	private double discriminator;
-	private boolean isY;
-	
-	public NonTerminalTreeNode(double discriminator, boolean isY) {
-		this.discriminator = discriminator;
-		this.isY = isY;
-	}
+import uk.ac.rdg.resc.edal.exceptions.EdalException;
 
-    public double getDiscriminator() {
-        return discriminator;
-    }
+/**
+ * {@link EdalException} thrown when a tile request refers to a tile which does
+ * not exist in the requested tile matrix set
+ * 
+ * @author Guy Griffiths
+ */
+public class TileOutOfRangeException extends EdalException {
+    private static final long serialVersionUID = 1L;
+    private static final String TILE_OUT_OF_RANGE = "TileOutOfRange";
 
-    public boolean isY() {
-        return isY;
+    public TileOutOfRangeException(String message) {
+        super(message, TILE_OUT_OF_RANGE);
     }
 }
@@ -0,0 +1,260 @@
+/*******************************************************************************
+ * Copyright (c) 2016 The University of Reading
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the University of Reading, nor the names of the
+ *    authors or contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ******************************************************************************/
+
+package uk.ac.rdg.resc.edal.wms.util;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.TreeMap;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.joda.time.DateTime;
+
+import uk.ac.rdg.resc.edal.graphics.utils.DatasetCatalogue;
+import uk.ac.rdg.resc.edal.wms.WmsCatalogue;
+
+/**
+ * Handles the HTTP caching headers for a dynamically-generated response.
+ * 
+ * The response is given a strong entity tag derived from the parameters of the
+ * request and the {@link DatasetCatalogue#getLastUpdateTime()} of the
+ * catalogue it is generated from, so that conditional requests can be answered
+ * with a 304 (Not Modified) response before any of the expensive work of
+ * generating the content is done.
+ * 
+ * The <code>Cache-Control</code> header is set from the cache max-age of the
+ * layers which the response is generated from.
+ * 
+ * Compressible responses are sent gzip-encoded to clients which accept it. A
+ * strong entity tag must differ between the encodings of the same content, so
+ * these clients are given the tag from {@link WmsUtils#getGzipETag(String)}.
+ * 
+ * @author Guy Griffiths
+ */
+public class CacheableResponse {
+    private final HttpServletRequest request;
+    private final boolean compressible;
+    /* The entity tag of the unencoded content */
+    private final String identityETag;
+    /* The entity tag of the content as it will be sent to this client */
+    private final String eTag;
+    private final long lastModified;
+    private final int maxAge;
+
+    /**
+     * Creates a {@link CacheableResponse} for a request
+     * 
+     * @param request
+     *            The {@link HttpServletRequest} being answered
+     * @param lastUpdateTime
+     *            The time at which the catalogue used to generate the response
+     *            was last updated. If this is <code>null</code>, no caching
+     *            headers will be set
+     * @param maxAge
+     *            The time in seconds for which clients may cache the response
+     *            without revalidating it. If this is negative, clients must
+     *            always revalidate
+     * @param compressible
+     *            Whether the content will be written with
+     *            {@link #writeCompressed(HttpServletResponse, String, byte[])} or
+     *            {@link #writeText(HttpServletResponse, String, String)}, and
+     *            so gzip-encoded for clients which accept it
+     */
+    public CacheableResponse(HttpServletRequest request, DateTime lastUpdateTime, int maxAge,
+            boolean compressible) {
+        this.request = request;
+        this.maxAge = maxAge;
+        this.compressible = compressible;
+        if (lastUpdateTime == null) {
+            identityETag = null;
+            eTag = null;
+            lastModified = -1L;
+        } else {
+            lastModified = lastUpdateTime.getMillis();
+            identityETag = WmsUtils.createETag(getContentId(request), lastModified);
+            if (compressible && WmsUtils.acceptsGzip(request)) {
+                eTag = WmsUtils.getGzipETag(identityETag);
+            } else {
+                eTag = identityETag;
+            }
+        }
+    }
+
+    /**
+     * Creates a {@link CacheableResponse} for a request which is generated
+     * from a number of WMS layers. Clients may cache the response for the
+     * shortest max-age of any of the layers.
+     * 
+     * @param request
+     *            The {@link HttpServletRequest} being answered
+     * @param catalogue
+     *            The {@link WmsCatalogue} used to generate the response
+     * @param compressible
+     *            Whether the content will be gzip-encoded for clients which
+     *            accept it
+     * @param layerNames
+     *            The names of the layers used to generate the response
+     * @return A new {@link CacheableResponse}
+     */
+    public static CacheableResponse forLayers(HttpServletRequest request,
+            WmsCatalogue catalogue, boolean compressible, String... layerNames) {
+        int maxAge = -1;
+        for (int i = 0; i < layerNames.length; i++) {
+            int layerMaxAge = catalogue.getCacheMaxAge(layerNames[i]);
+            if (layerMaxAge < 0) {
+                maxAge = -1;
+                break;
+            }
+            maxAge = (i == 0) ? layerMaxAge : Math.min(maxAge, layerMaxAge);
+        }
+        return new CacheableResponse(request, catalogue.getLastUpdateTime(), maxAge,
+                compressible);
+    }
+
+    /*
+     * The path of the request plus its parameters, with the parameter names in
+     * a canonical form and order. Parameter names are case-insensitive in WMS.
+     */
+    private static String getContentId(HttpServletRequest request) {
+        @SuppressWarnings("unchecked")
+        Map<String, String[]> requestParams = (Map<String, String[]>) request.getParameterMap();
+        Map<String, String> params = new TreeMap<>();
+        for (Entry<String, String[]> entry : requestParams.entrySet()) {
+            params.put(entry.getKey().toLowerCase(), Arrays.toString(entry.getValue()));
+        }
+        StringBuilder contentId = new StringBuilder(request.getRequestURI());
+        for (Entry<String, String> param : params.entrySet()) {
+            contentId.append("&");
+            contentId.append(param.getKey());
+            contentId.append("=");
+            contentId.append(param.getValue());
+        }
+        return contentId.toString();
+    }
+
+    /**
+     * @return The entity tag of the response as it will be sent to the client,
+     *         or <code>null</code> if it cannot be cached
+     */
+    public String getETag() {
+        return eTag;
+    }
+
+    /**
+     * Checks whether the client already has an up-to-date copy of the
+     * response. If so, a 304 (Not Modified) response is sent, and the caller
+     * does not need to generate the content.
+     * 
+     * @param response
+     *            The {@link HttpServletResponse} to write to
+     * @return <code>true</code> if a 304 response has been sent
+     */
+    public boolean sendNotModified(HttpServletResponse response) {
+        if (eTag == null || !WmsUtils.isNotModified(request, eTag, lastModified)) {
+            return false;
+        }
+        setCachingHeaders(response);
+        response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+        return true;
+    }
+
+    /**
+     * Sets the ETag, Last-Modified and Cache-Control headers of a response.
+     * This should be called once the content has been successfully generated,
+     * but before any of it is written.
+     * 
+     * @param response
+     *            The {@link HttpServletResponse} to write to
+     */
+    public void setCachingHeaders(HttpServletResponse response) {
+        if (eTag == null) {
+            return;
+        }
+        response.setHeader("ETag", eTag);
+        response.setDateHeader("Last-Modified", lastModified);
+        if (compressible) {
+            response.setHeader("Vary", "Accept-Encoding");
+        }
+        if (maxAge >= 0) {
+            response.setHeader("Cache-Control", "public, max-age=" + maxAge);
+        } else {
+            response.setHeader("Cache-Control", "no-cache");
+        }
+    }
+
+    /**
+     * Writes gzip-compressed content to the response, along with the caching
+     * headers. The content is decompressed on the fly for clients which do not
+     * accept gzip encoding, or if this response was not created as
+     * compressible.
+     * 
+     * @param response
+     *            The {@link HttpServletResponse} to write to
+     * @param contentType
+     *            The MIME type of the content
+     * @param gzippedContent
+     *            The gzip-compressed content
+     * @throws IOException
+     *             If there is a problem writing the response
+     */
+    public void writeCompressed(HttpServletResponse response, String contentType,
+            byte[] gzippedContent) throws IOException {
+        setCachingHeaders(response);
+        /*
+         * WmsUtils sets the entity tag for the encoding it sends. Without a
+         * request it always sends the unencoded content.
+         */
+        WmsUtils.writeCompressedResponse(compressible ? request : null, response, contentType,
+                gzippedContent, identityETag, lastModified);
+    }
+
+    /**
+     * Writes text content to the response, gzip-compressing it if the client
+     * accepts it
+     * 
+     * @param response
+     *            The {@link HttpServletResponse} to write to
+     * @param contentType
+     *            The MIME type of the content. The content will be encoded as
+     *            UTF-8
+     * @param content
+     *            The content to write
+     * @throws IOException
+     *             If there is a problem writing the response
+     */
+    public void writeText(HttpServletResponse response, String contentType, String content)
+            throws IOException {
+        writeCompressed(response, contentType + ";charset=UTF-8",
+                WmsUtils.gzip(content.getBytes(StandardCharsets.UTF_8)));
+    }
+}
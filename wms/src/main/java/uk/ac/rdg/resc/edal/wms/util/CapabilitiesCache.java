@@ -0,0 +1,244 @@
+/*******************************************************************************
+ * Copyright (c) 2016 The University of Reading
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the University of Reading, nor the names of the
+ *    authors or contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ******************************************************************************/
+
+package uk.ac.rdg.resc.edal.wms.util;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.joda.time.DateTime;
+
+import uk.ac.rdg.resc.edal.graphics.utils.DatasetCatalogue;
+
+/**
+ * A cache of rendered GetCapabilities documents. Documents are keyed on the
+ * parameters which affect their content (WMS version, dataset filter, verbose
+ * flag and the base URL which is written into the document), and are all
+ * discarded as soon as the {@link DatasetCatalogue#getLastUpdateTime()} of the
+ * catalogue they were generated from changes.
+ * 
+ * Documents are stored gzip-compressed, since they are highly compressible
+ * and most clients will accept them in that form anyway.
+ * 
+ * @author Guy Griffiths
+ */
+public class CapabilitiesCache {
+    /*
+     * The number of distinct documents to hold. In practice this will be the
+     * number of datasets which are requested individually (x2 for the
+     * different versions), so this is generous.
+     */
+    private static final int MAX_DOCUMENTS = 128;
+
+    private final Map<CapabilitiesKey, CachedCapabilities> documents;
+    private DateTime catalogueUpdateTime = null;
+
+    public CapabilitiesCache() {
+        documents = new LinkedHashMap<CapabilitiesKey, CachedCapabilities>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(
+                    Map.Entry<CapabilitiesKey, CachedCapabilities> eldest) {
+                return size() > MAX_DOCUMENTS;
+            }
+        };
+    }
+
+    /**
+     * Retrieves a cached capabilities document
+     * 
+     * @param key
+     *            The {@link CapabilitiesKey} identifying the document
+     * @param lastUpdateTime
+     *            The time at which the catalogue was last updated
+     * @return The cached document, or <code>null</code> if no document is
+     *         cached for the given key, or the catalogue has been updated since
+     *         it was generated
+     */
+    public synchronized CachedCapabilities get(CapabilitiesKey key, DateTime lastUpdateTime) {
+        checkUpdateTime(lastUpdateTime);
+        return documents.get(key);
+    }
+
+    /**
+     * Stores a newly-rendered capabilities document
+     * 
+     * @param key
+     *            The {@link CapabilitiesKey} identifying the document
+     * @param document
+     *            The rendered document
+     * @param lastUpdateTime
+     *            The last update time of the catalogue used to generate the
+     *            document
+     * @return The {@link CachedCapabilities} which has been stored
+     * @throws IOException
+     *             If there is a problem compressing the document
+     */
+    public synchronized CachedCapabilities put(CapabilitiesKey key, String document,
+            DateTime lastUpdateTime) throws IOException {
+        checkUpdateTime(lastUpdateTime);
+        /*
+         * If the catalogue doesn't report an update time, the document will be
+         * discarded on the next request anyway
+         */
+        long lastModified = lastUpdateTime == null ? System.currentTimeMillis()
+                : lastUpdateTime.getMillis();
+        CachedCapabilities cached = new CachedCapabilities(
+                WmsUtils.gzip(document.getBytes(StandardCharsets.UTF_8)),
+                WmsUtils.createETag(key.toString(), lastModified), lastModified);
+        documents.put(key, cached);
+        return cached;
+    }
+
+    /**
+     * Removes all cached documents. This should be called if something which
+     * affects the content of capabilities documents changes without updating
+     * the last update time of the catalogue (e.g. contact information)
+     */
+    public synchronized void clear() {
+        documents.clear();
+    }
+
+    private void checkUpdateTime(DateTime lastUpdateTime) {
+        if (catalogueUpdateTime == null || lastUpdateTime == null
+                || !catalogueUpdateTime.isEqual(lastUpdateTime)) {
+            documents.clear();
+            catalogueUpdateTime = lastUpdateTime;
+        }
+    }
+
+    /**
+     * The parameters which uniquely identify the content of a capabilities
+     * document
+     */
+    public static class CapabilitiesKey {
+        private final String version;
+        private final String datasetId;
+        private final boolean verbose;
+        private final String baseUrl;
+
+        public CapabilitiesKey(String version, String datasetId, boolean verbose, String baseUrl) {
+            this.version = version;
+            this.datasetId = datasetId;
+            this.verbose = verbose;
+            this.baseUrl = baseUrl;
+        }
+
+        @Override
+        public int hashCode() {
+            final int prime = 31;
+            int result = 1;
+            result = prime * result + ((baseUrl == null) ? 0 : baseUrl.hashCode());
+            result = prime * result + ((datasetId == null) ? 0 : datasetId.hashCode());
+            result = prime * result + (verbose ? 1231 : 1237);
+            result = prime * result + ((version == null) ? 0 : version.hashCode());
+            return result;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (this == obj)
+                return true;
+            if (obj == null)
+                return false;
+            if (getClass() != obj.getClass())
+                return false;
+            CapabilitiesKey other = (CapabilitiesKey) obj;
+            if (baseUrl == null) {
+                if (other.baseUrl != null)
+                    return false;
+            } else if (!baseUrl.equals(other.baseUrl))
+                return false;
+            if (datasetId == null) {
+                if (other.datasetId != null)
+                    return false;
+            } else if (!datasetId.equals(other.datasetId))
+                return false;
+            if (verbose != other.verbose)
+                return false;
+            if (version == null) {
+                if (other.version != null)
+                    return false;
+            } else if (!version.equals(other.version))
+                return false;
+            return true;
+        }
+
+        @Override
+        public String toString() {
+            return version + "|" + datasetId + "|" + verbose + "|" + baseUrl;
+        }
+    }
+
+    /**
+     * A rendered, gzip-compressed capabilities document, along with the
+     * information needed to answer conditional requests for it
+     */
+    public static class CachedCapabilities {
+        private final byte[] gzippedDocument;
+        private final String eTag;
+        private final long lastModified;
+
+        private CachedCapabilities(byte[] gzippedDocument, String eTag, long lastModified) {
+            this.gzippedDocument = gzippedDocument;
+            this.eTag = eTag;
+            this.lastModified = lastModified;
+        }
+
+        public String getETag() {
+            return eTag;
+        }
+
+        public long getLastModified() {
+            return lastModified;
+        }
+
+        /**
+         * Writes this document to the given response, honouring any
+         * conditional headers and the accepted encodings of the request
+         * 
+         * @param request
+         *            The {@link HttpServletRequest} being answered
+         * @param response
+         *            The {@link HttpServletResponse} to write to
+         * @throws IOException
+         *             If there is a problem writing to the response
+         */
+        public void writeTo(HttpServletRequest request, HttpServletResponse response)
+                throws IOException {
+            WmsUtils.writeCompressedResponse(request, response, "text/xml", gzippedDocument,
+                    eTag, lastModified);
+        }
+    }
+}
@@ -0,0 +1,498 @@
+/*******************************************************************************
+ * Copyright (c) 2016 The University of Reading
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the University of Reading, nor the names of the
+ *    authors or contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ******************************************************************************/
+
+package uk.ac.rdg.resc.edal.wms.util;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.URLEncoder;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A disk-backed cache of rendered map tiles.
+ * 
+ * Tiles are stored under a directory for each dataset, within a subdirectory
+ * for the current version of that dataset. When a dataset is refreshed, a new
+ * version is started and the tiles of all previous versions are deleted, so
+ * that tiles rendered from old data are never returned.
+ * 
+ * Versions are named after a fingerprint of the dataset's metadata, so that
+ * tiles which were cached by a previous run of the server can be reused if
+ * the dataset is unchanged when it is next loaded.
+ * 
+ * The total size of the cached tiles is limited. When it is exceeded, the
+ * least recently used tiles are removed until the cache is back below
+ * {@link TileCache#EVICTION_TARGET} of its maximum size, so that the cache
+ * does not need to be scanned each time a new tile is stored.
+ * 
+ * @author Guy Griffiths
+ */
+public class TileCache {
+    private static final Logger log = LoggerFactory.getLogger(TileCache.class);
+
+    /**
+     * The default maximum total size of the cached tiles, in bytes
+     */
+    public static final long DEFAULT_MAX_DISK_SIZE = 1024L * 1024 * 1024;
+
+    /**
+     * The fraction of the maximum size which the cache is reduced to when
+     * tiles are evicted
+     */
+    public static final double EVICTION_TARGET = 0.9;
+
+    private static final String TEMP_SUFFIX = ".tmp";
+
+    private final File cacheDir;
+    private final long maxDiskSize;
+    /*
+     * Maps dataset ID to the name of the directory holding its current tiles
+     */
+    private final Map<String, String> versions = new HashMap<>();
+    /*
+     * The approximate total size of the cached tiles. This is recalculated
+     * each time tiles are evicted.
+     */
+    private final AtomicLong diskSize = new AtomicLong();
+    private final Object evictionLock = new Object();
+
+    /**
+     * Creates a {@link TileCache} with the default maximum size
+     * 
+     * @param cacheDir
+     *            The directory in which to store tiles. This will be created
+     *            if it does not exist
+     */
+    public TileCache(File cacheDir) {
+        this(cacheDir, DEFAULT_MAX_DISK_SIZE);
+    }
+
+    /**
+     * @param cacheDir
+     *            The directory in which to store tiles. This will be created
+     *            if it does not exist
+     * @param maxDiskSize
+     *            The maximum total size of the cached tiles, in bytes
+     */
+    public TileCache(File cacheDir, long maxDiskSize) {
+        if (maxDiskSize <= 0) {
+            throw new IllegalArgumentException("Maximum tile cache size must be positive");
+        }
+        this.cacheDir = cacheDir;
+        this.maxDiskSize = maxDiskSize;
+        if (!cacheDir.isDirectory() && !cacheDir.mkdirs()) {
+            log.warn("Could not create tile cache directory " + cacheDir);
+        }
+        /*
+         * Tiles cached by a previous run count towards the limit
+         */
+        List<File> tiles = new ArrayList<>();
+        listTiles(cacheDir, tiles);
+        long size = 0L;
+        for (File tile : tiles) {
+            size += tile.length();
+        }
+        diskSize.set(size);
+    }
+
+    /**
+     * Sets the current version of a dataset, deleting any tiles which belong
+     * to other versions of it
+     * 
+     * @param datasetId
+     *            The ID of the dataset
+     * @param fingerprint
+     *            A fingerprint of the dataset's metadata. This must only
+     *            contain characters which are valid in file names
+     * @param refreshed
+     *            <code>true</code> if the dataset has been reloaded since it
+     *            was last validated, in which case all existing tiles are
+     *            discarded, even if the fingerprint has not changed
+     * @return The current version of the dataset's tiles, to be used in
+     *         {@link TileKey}s
+     */
+    public synchronized String validate(String datasetId, String fingerprint, boolean refreshed) {
+        File datasetDir = getDatasetDir(datasetId);
+        String version = null;
+        if (!refreshed) {
+            String current = versions.get(datasetId);
+            if (current != null && current.startsWith(fingerprint + "-")) {
+                return current;
+            }
+            /*
+             * Look for tiles cached by a previous run, using the most recent
+             * version with a matching fingerprint
+             */
+            File[] dirs = datasetDir.listFiles();
+            if (dirs != null) {
+                for (File dir : dirs) {
+                    if (dir.isDirectory() && dir.getName().startsWith(fingerprint + "-")
+                            && (version == null || dir.getName().compareTo(version) > 0)) {
+                        version = dir.getName();
+                    }
+                }
+            }
+        }
+        if (version == null) {
+            long stamp = System.currentTimeMillis();
+            version = String.format("%s-%016x", fingerprint, stamp);
+            /*
+             * A refreshed dataset must never reuse the version it replaces
+             */
+            while (version.equals(versions.get(datasetId))) {
+                version = String.format("%s-%016x", fingerprint, ++stamp);
+            }
+        }
+        File[] dirs = datasetDir.listFiles();
+        if (dirs != null) {
+            for (File dir : dirs) {
+                if (!dir.getName().equals(version)) {
+                    diskSize.addAndGet(-delete(dir));
+                }
+            }
+        }
+        versions.put(datasetId, version);
+        return version;
+    }
+
+    /**
+     * Discards all tiles for a dataset
+     * 
+     * @param datasetId
+     *            The ID of the dataset
+     */
+    public synchronized void invalidate(String datasetId) {
+        versions.remove(datasetId);
+        diskSize.addAndGet(-delete(getDatasetDir(datasetId)));
+    }
+
+    /**
+     * Retrieves a tile from the cache
+     * 
+     * @param key
+     *            The {@link TileKey} identifying the tile
+     * @return The encoded tile image, or <code>null</code> if it is not cached
+     */
+    public byte[] get(TileKey key) {
+        File tileFile = getTileFile(key);
+        if (tileFile == null || !tileFile.isFile()) {
+            return null;
+        }
+        try {
+            byte[] tile = Files.readAllBytes(tileFile.toPath());
+            /*
+             * Record when the tile was last used, so that the least recently
+             * used tiles are evicted first
+             */
+            tileFile.setLastModified(System.currentTimeMillis());
+            return tile;
+        } catch (IOException e) {
+            /*
+             * The tile may have been deleted by an invalidation since we
+             * checked that it exists
+             */
+            return null;
+        }
+    }
+
+    /**
+     * @param key
+     *            The {@link TileKey} identifying the tile
+     * @return <code>true</code> if the tile is cached
+     */
+    public boolean contains(TileKey key) {
+        File tileFile = getTileFile(key);
+        return tileFile != null && tileFile.isFile();
+    }
+
+    /**
+     * Stores a tile in the cache. Tiles for versions of datasets which are no
+     * longer current are not stored.
+     * 
+     * @param key
+     *            The {@link TileKey} identifying the tile
+     * @param tile
+     *            The encoded tile image
+     */
+    public void put(TileKey key, byte[] tile) {
+        File tileFile = getTileFile(key);
+        if (tileFile == null) {
+            return;
+        }
+        /*
+         * Tiles are always written to the directory of the version they were
+         * rendered from, so if the dataset is refreshed while a tile is being
+         * rendered, it will never be returned
+         */
+        File dir = tileFile.getParentFile();
+        try {
+            if (!dir.isDirectory() && !dir.mkdirs()) {
+                throw new IOException("Could not create directory " + dir);
+            }
+            /*
+             * Write to a temporary file first, so that readers never see a
+             * partially-written tile
+             */
+            File tempFile = File.createTempFile("tile", TEMP_SUFFIX, dir);
+            try (OutputStream out = new FileOutputStream(tempFile)) {
+                out.write(tile);
+            }
+            /*
+             * Renaming and counting the tile must not interleave with the
+             * version being discarded, or the size would go out of step
+             */
+            synchronized (this) {
+                if (!key.version.equals(versions.get(key.datasetId))) {
+                    /*
+                     * The version was discarded while we were writing, and
+                     * its directory may have been deleted and then recreated
+                     * above. Delete it again so that it is not orphaned.
+                     */
+                    tempFile.delete();
+                    delete(getVersionDir(key.datasetId, key.version));
+                    return;
+                }
+                /*
+                 * The rename replaces any existing copy of the tile, which
+                 * must not be counted twice
+                 */
+                long previous = tileFile.isFile() ? tileFile.length() : 0L;
+                if (!tempFile.renameTo(tileFile)) {
+                    tempFile.delete();
+                    return;
+                }
+                diskSize.addAndGet(tile.length - previous);
+            }
+        } catch (IOException e) {
+            log.warn("Problem writing tile to cache", e);
+            return;
+        }
+        if (diskSize.get() > maxDiskSize) {
+            evict();
+        }
+    }
+
+    /**
+     * @return The approximate total size of the cached tiles, in bytes
+     */
+    public long getDiskSize() {
+        return diskSize.get();
+    }
+
+    /*
+     * Removes the least recently used tiles until the total size is within
+     * the eviction target
+     */
+    private void evict() {
+        synchronized (evictionLock) {
+            /*
+             * Another thread may have evicted tiles while we were waiting
+             */
+            if (diskSize.get() <= maxDiskSize) {
+                return;
+            }
+            List<File> tiles = new ArrayList<>();
+            listTiles(cacheDir, tiles);
+            long totalSize = 0L;
+            final Map<File, Long> lastModified = new HashMap<>();
+            for (File tile : tiles) {
+                totalSize += tile.length();
+                lastModified.put(tile, tile.lastModified());
+            }
+            Collections.sort(tiles, new Comparator<File>() {
+                @Override
+                public int compare(File f1, File f2) {
+                    return lastModified.get(f1).compareTo(lastModified.get(f2));
+                }
+            });
+            long targetSize = (long) (maxDiskSize * EVICTION_TARGET);
+            for (File tile : tiles) {
+                if (totalSize <= targetSize) {
+                    break;
+                }
+                long length = tile.length();
+                if (tile.delete()) {
+                    totalSize -= length;
+                    /*
+                     * Only succeeds if this was the last tile in the directory
+                     */
+                    tile.getParentFile().delete();
+                }
+            }
+            diskSize.set(totalSize);
+        }
+    }
+
+    private File getTileFile(TileKey key) {
+        synchronized (this) {
+            if (!key.version.equals(versions.get(key.datasetId))) {
+                return null;
+            }
+        }
+        File styleDir = new File(getVersionDir(key.datasetId, key.version),
+                WmsUtils.hash(key.layerName + "|" + key.styleKey + "|" + key.time + "|"
+                        + key.elevation + "|" + key.format));
+        return new File(styleDir, key.tileMatrixSet.getIdentifier() + File.separator + key.zoom
+                + File.separator + key.col + File.separator + key.row + "."
+                + key.format.substring(key.format.indexOf('/') + 1).replaceAll("\\W", ""));
+    }
+
+    private File getVersionDir(String datasetId, String version) {
+        return new File(getDatasetDir(datasetId), version);
+    }
+
+    private File getDatasetDir(String datasetId) {
+        try {
+            return new File(cacheDir, URLEncoder.encode(datasetId, "UTF-8"));
+        } catch (UnsupportedEncodingException e) {
+            /*
+             * UTF-8 is always supported
+             */
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static void listTiles(File dir, List<File> tiles) {
+        File[] children = dir.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                if (child.isDirectory()) {
+                    listTiles(child, tiles);
+                } else if (!child.getName().endsWith(TEMP_SUFFIX)) {
+                    tiles.add(child);
+                }
+            }
+        }
+    }
+
+    /*
+     * Deletes a file or directory, returning the total size of the tiles
+     * which were deleted. Partially-written tiles are deleted, but not
+     * counted, since they are not included in the disk size.
+     */
+    private static long delete(File file) {
+        long deleted = 0L;
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                deleted += delete(child);
+            }
+        } else {
+            long length = file.getName().endsWith(TEMP_SUFFIX) ? 0L : file.length();
+            if (file.delete()) {
+                return length;
+            }
+            return 0L;
+        }
+        file.delete();
+        return deleted;
+    }
+
+    /**
+     * The parameters which uniquely identify a rendered tile
+     */
+    public static class TileKey {
+        private final String datasetId;
+        private final String version;
+        private final String layerName;
+        private final String styleKey;
+        private final String time;
+        private final String elevation;
+        private final String format;
+        private final TileMatrixSet tileMatrixSet;
+        private final int zoom;
+        private final int col;
+        private final int row;
+
+        /**
+         * @param datasetId
+         *            The ID of the dataset containing the layer
+         * @param version
+         *            The version of the dataset the tile is rendered from, as
+         *            returned by
+         *            {@link TileCache#validate(String, String, boolean)}
+         * @param layerName
+         *            The name of the layer
+         * @param styleKey
+         *            A string representing all of the style parameters used
+         *            to render the tile
+         * @param time
+         *            The time of the tile. Where possible, this should be
+         *            the axis value which is plotted, rather than the
+         *            requested time.
+         * @param elevation
+         *            The elevation of the tile. As for the time, this should
+         *            be the plotted value where possible.
+         * @param format
+         *            The MIME type of the tile image
+         * @param tileMatrixSet
+         *            The {@link TileMatrixSet} of the tile
+         * @param zoom
+         *            The zoom level of the tile
+         * @param col
+         *            The column of the tile
+         * @param row
+         *            The row of the tile
+         */
+        public TileKey(String datasetId, String version, String layerName, String styleKey,
+                String time, String elevation, String format, TileMatrixSet tileMatrixSet,
+                int zoom, int col, int row) {
+            this.datasetId = datasetId;
+            this.version = version;
+            this.layerName = layerName;
+            this.styleKey = styleKey;
+            this.time = time;
+            this.elevation = elevation;
+            this.format = format;
+            this.tileMatrixSet = tileMatrixSet;
+            this.zoom = zoom;
+            this.col = col;
+            this.row = row;
+        }
+
+        @Override
+        public String toString() {
+            return datasetId + "|" + version + "|" + layerName + "|" + styleKey + "|" + time
+                    + "|" + elevation + "|" + format + "|" + tileMatrixSet.getIdentifier() + "/"
+                    + zoom + "/" + col + "/" + row;
+        }
+    }
+}
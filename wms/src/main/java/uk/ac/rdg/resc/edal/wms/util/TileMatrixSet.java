@@ -0,0 +1,240 @@
+/*******************************************************************************
+ * Copyright (c) 2016 The University of Reading
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the University of Reading, nor the names of the
+ *    authors or contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ******************************************************************************/
+
+package uk.ac.rdg.resc.edal.wms.util;
+
+import org.opengis.metadata.extent.GeographicBoundingBox;
+
+import uk.ac.rdg.resc.edal.geometry.BoundingBox;
+import uk.ac.rdg.resc.edal.geometry.BoundingBoxImpl;
+import uk.ac.rdg.resc.edal.util.GISUtils;
+
+/**
+ * The fixed tile matrix sets on which tiles can be requested. These are the
+ * two well-known global tile matrix sets from the OGC WMTS specification, so
+ * that tiles can be requested by standard WMTS and XYZ clients.
+ * 
+ * In both sets, tile rows are numbered from the top (north) of the matrix and
+ * tile columns from the left (west).
+ * 
+ * @author Guy Griffiths
+ */
+public enum TileMatrixSet {
+    /**
+     * Spherical mercator tiles, as used by most web maps. There is a single
+     * tile at zoom level 0
+     */
+    GOOGLE_MAPS_COMPATIBLE("GoogleMapsCompatible", "EPSG:3857", 1, 20037508.342789244,
+            20037508.342789244),
+    /**
+     * Longitude-latitude tiles. There are two tiles (east and west
+     * hemispheres) at zoom level 0
+     */
+    WORLD_CRS84_QUAD("WorldCRS84Quad", "CRS:84", 2, 180.0, 90.0);
+
+    /** The width and height of each tile, in pixels */
+    public static final int TILE_SIZE = 256;
+    /** The highest supported zoom level */
+    public static final int MAX_ZOOM = 20;
+
+    /*
+     * The maximum latitude which can be represented in spherical mercator
+     */
+    private static final double MAX_MERCATOR_LATITUDE = 85.0511287798066;
+
+    private final String identifier;
+    private final String crsCode;
+    private final int zoom0Width;
+    private final double halfWidth;
+    private final double halfHeight;
+
+    private TileMatrixSet(String identifier, String crsCode, int zoom0Width, double halfWidth,
+            double halfHeight) {
+        this.identifier = identifier;
+        this.crsCode = crsCode;
+        this.zoom0Width = zoom0Width;
+        this.halfWidth = halfWidth;
+        this.halfHeight = halfHeight;
+    }
+
+    /**
+     * Finds a {@link TileMatrixSet} from its WMTS identifier or CRS code
+     * 
+     * @param name
+     *            The identifier or CRS code (case-insensitive)
+     * @return The corresponding {@link TileMatrixSet}, or <code>null</code> if
+     *         there is none
+     */
+    public static TileMatrixSet forName(String name) {
+        if (name == null) {
+            return null;
+        }
+        for (TileMatrixSet tileMatrixSet : values()) {
+            if (tileMatrixSet.identifier.equalsIgnoreCase(name)
+                    || tileMatrixSet.crsCode.equalsIgnoreCase(name)) {
+                return tileMatrixSet;
+            }
+        }
+        if (name.equalsIgnoreCase("EPSG:900913")) {
+            return GOOGLE_MAPS_COMPATIBLE;
+        } else if (name.equalsIgnoreCase("EPSG:4326")) {
+            return WORLD_CRS84_QUAD;
+        }
+        return null;
+    }
+
+    /**
+     * @return The WMTS identifier of this {@link TileMatrixSet}
+     */
+    public String getIdentifier() {
+        return identifier;
+    }
+
+    /**
+     * @return The code of the CRS of this {@link TileMatrixSet}, in the form
+     *         expected by a WMS 1.3.0 GetMap request
+     */
+    public String getCrsCode() {
+        return crsCode;
+    }
+
+    /**
+     * @param zoom
+     *            The zoom level
+     * @return The number of tile columns at the given zoom level
+     */
+    public int getMatrixWidth(int zoom) {
+        return zoom0Width << zoom;
+    }
+
+    /**
+     * @param zoom
+     *            The zoom level
+     * @return The number of tile rows at the given zoom level
+     */
+    public int getMatrixHeight(int zoom) {
+        return 1 << zoom;
+    }
+
+    /**
+     * Checks whether a tile address is valid in this {@link TileMatrixSet}
+     * 
+     * @param zoom
+     *            The zoom level
+     * @param col
+     *            The tile column
+     * @param row
+     *            The tile row
+     * @return <code>true</code> if the given tile exists
+     */
+    public boolean containsTile(int zoom, int col, int row) {
+        return zoom >= 0 && zoom <= MAX_ZOOM && col >= 0 && col < getMatrixWidth(zoom)
+                && row >= 0 && row < getMatrixHeight(zoom);
+    }
+
+    /**
+     * Gets the bounding box of a tile, in the CRS of this
+     * {@link TileMatrixSet}
+     * 
+     * @param zoom
+     *            The zoom level
+     * @param col
+     *            The tile column
+     * @param row
+     *            The tile row
+     * @return The {@link BoundingBox} of the tile
+     */
+    public BoundingBox getTileBoundingBox(int zoom, int col, int row) {
+        double tileWidth = 2.0 * halfWidth / getMatrixWidth(zoom);
+        double tileHeight = 2.0 * halfHeight / getMatrixHeight(zoom);
+        double minX = -halfWidth + col * tileWidth;
+        double maxY = halfHeight - row * tileHeight;
+        return new BoundingBoxImpl(minX, maxY - tileHeight, minX + tileWidth, maxY,
+                GISUtils.getCrs(crsCode));
+    }
+
+    /**
+     * Finds the range of tiles which cover a geographic area at a given zoom
+     * level. Longitudes outside the range [-180, 180] are wrapped. Areas
+     * which cross the antimeridian are covered by the full width of the tile
+     * matrix, since a single range of columns cannot represent them.
+     * 
+     * @param zoom
+     *            The zoom level
+     * @param bbox
+     *            The {@link GeographicBoundingBox} to cover
+     * @return An array of the minimum column, minimum row, maximum column and
+     *         maximum row (all inclusive) of the tiles covering the area
+     */
+    public int[] getTileRange(int zoom, GeographicBoundingBox bbox) {
+        int lastCol = getMatrixWidth(zoom) - 1;
+        int lastRow = getMatrixHeight(zoom) - 1;
+        double north = Math.min(90.0, bbox.getNorthBoundLatitude());
+        double south = Math.max(-90.0, bbox.getSouthBoundLatitude());
+        int minRow = clamp(getRow(zoom, north), lastRow);
+        int maxRow = clamp(getRow(zoom, south), lastRow);
+
+        double west = bbox.getWestBoundLongitude();
+        double east = bbox.getEastBoundLongitude();
+        if (east - west >= 360.0) {
+            return new int[] { 0, minRow, lastCol, maxRow };
+        }
+        /*
+         * Wrap the western edge into [-180, 180) and the eastern edge into
+         * (-180, 180], so that an area ending exactly on the antimeridian
+         * doesn't appear to cross it
+         */
+        west -= 360.0 * Math.floor((west + 180.0) / 360.0);
+        east -= 360.0 * Math.ceil((east - 180.0) / 360.0);
+        if (east < west) {
+            return new int[] { 0, minRow, lastCol, maxRow };
+        }
+        return new int[] { clamp(getCol(zoom, west), lastCol), minRow,
+                clamp(getCol(zoom, east), lastCol), maxRow };
+    }
+
+    private int getCol(int zoom, double longitude) {
+        return (int) Math.floor((longitude + 180.0) / 360.0 * getMatrixWidth(zoom));
+    }
+
+    private int getRow(int zoom, double latitude) {
+        double fraction;
+        if (this == GOOGLE_MAPS_COMPATIBLE) {
+            double lat = Math.toRadians(Math.max(-MAX_MERCATOR_LATITUDE,
+                    Math.min(MAX_MERCATOR_LATITUDE, latitude)));
+            fraction = (1.0 - Math.log(Math.tan(lat) + 1.0 / Math.cos(lat)) / Math.PI) / 2.0;
+        } else {
+            fraction = (90.0 - latitude) / 180.0;
+        }
+        return (int) Math.floor(fraction * getMatrixHeight(zoom));
+    }
+
+    private static int clamp(int index, int max) {
+        return Math.max(0, Math.min(max, index));
+    }
+}
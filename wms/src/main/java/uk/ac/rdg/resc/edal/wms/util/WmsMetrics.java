@@ -0,0 +1,292 @@
+/*******************************************************************************
+ * Copyright (c) 2016 The University of Reading
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the University of Reading, nor the names of the
+ *    authors or contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ******************************************************************************/
+
+package uk.ac.rdg.resc.edal.wms.util;
+
+import java.lang.management.ManagementFactory;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+import java.util.TreeMap;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import net.sf.json.JSONObject;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import uk.ac.rdg.resc.edal.util.RequestTrace;
+
+/**
+ * Aggregates the {@link RequestTrace}s of all requests handled by a WMS, and
+ * logs the full stage breakdown of any which are slower than a configurable
+ * threshold.
+ * 
+ * Requests are grouped by type. Only the request types handled by the WMS
+ * (and any added with {@link WmsMetrics#addRequestType(String)}) are counted
+ * individually; anything else counts as {@link WmsMetrics#OTHER_REQUEST_TYPE},
+ * so that arbitrary REQUEST parameters cannot grow the metrics without bound.
+ * 
+ * The metrics can be exposed through JMX with
+ * {@link WmsMetrics#register(String)}.
+ * 
+ * @author Guy Griffiths
+ */
+public class WmsMetrics implements WmsMetricsMXBean {
+    private static final Logger log = LoggerFactory.getLogger(WmsMetrics.class);
+
+    /**
+     * The request type under which all unrecognised requests are recorded
+     */
+    public static final String OTHER_REQUEST_TYPE = "other";
+
+    private final Set<String> knownRequestTypes = new HashSet<>(Arrays.asList("GetMap",
+            "GetCapabilities", "GetFeatureInfo", "GetMetadata", "GetLegendGraphic",
+            "GetTimeseries", "GetTransect", "GetVerticalProfile", "GetTile", "GetMetrics"));
+
+    private long slowRequestThresholdMillis = 0L;
+
+    private long errorCount = 0L;
+    private long slowRequestCount = 0L;
+    private final Map<String, RequestTypeMetrics> requestTypes = new TreeMap<>();
+    private final Map<String, Long> stageNanos = new LinkedHashMap<>();
+    private final Map<String, Long> counters = new LinkedHashMap<>();
+
+    private ObjectName registeredName = null;
+
+    /**
+     * Adds a request type to be counted individually. This should be used by
+     * servlets which handle additional REQUEST types.
+     * 
+     * @param requestType
+     *            The value of the REQUEST parameter
+     */
+    public synchronized void addRequestType(String requestType) {
+        knownRequestTypes.add(requestType);
+    }
+
+    /**
+     * Records a completed request
+     * 
+     * @param trace
+     *            The {@link RequestTrace} of the request
+     * @param failed
+     *            Whether the request failed
+     */
+    public void record(RequestTrace trace, boolean failed) {
+        trace.finish();
+        long elapsed = trace.getElapsedNanos();
+        Map<String, Long> traceStages = trace.getStageNanos();
+        Map<String, Long> traceCounts = trace.getCounts();
+        boolean slow;
+        synchronized (this) {
+            String requestType = knownRequestTypes.contains(trace.getName()) ? trace.getName()
+                    : OTHER_REQUEST_TYPE;
+            RequestTypeMetrics typeMetrics = requestTypes.get(requestType);
+            if (typeMetrics == null) {
+                typeMetrics = new RequestTypeMetrics();
+                requestTypes.put(requestType, typeMetrics);
+            }
+            typeMetrics.count++;
+            typeMetrics.totalNanos += elapsed;
+            typeMetrics.maxNanos = Math.max(typeMetrics.maxNanos, elapsed);
+            if (failed) {
+                errorCount++;
+            }
+            addAll(stageNanos, traceStages);
+            addAll(counters, traceCounts);
+            slow = slowRequestThresholdMillis > 0
+                    && elapsed / 1000000L >= slowRequestThresholdMillis;
+            if (slow) {
+                slowRequestCount++;
+            }
+        }
+        if (slow) {
+            log.warn("Slow request: " + trace);
+        }
+    }
+
+    private static void addAll(Map<String, Long> totals, Map<String, Long> values) {
+        for (Entry<String, Long> value : values.entrySet()) {
+            Long existing = totals.get(value.getKey());
+            totals.put(value.getKey(), existing == null ? value.getValue() : existing
+                    + value.getValue());
+        }
+    }
+
+    @Override
+    public synchronized long getRequestCount() {
+        long count = 0L;
+        for (RequestTypeMetrics typeMetrics : requestTypes.values()) {
+            count += typeMetrics.count;
+        }
+        return count;
+    }
+
+    @Override
+    public synchronized long getErrorCount() {
+        return errorCount;
+    }
+
+    @Override
+    public synchronized long getSlowRequestCount() {
+        return slowRequestCount;
+    }
+
+    @Override
+    public synchronized Map<String, Long> getRequestCounts() {
+        Map<String, Long> ret = new LinkedHashMap<>();
+        for (Entry<String, RequestTypeMetrics> typeMetrics : requestTypes.entrySet()) {
+            ret.put(typeMetrics.getKey(), typeMetrics.getValue().count);
+        }
+        return ret;
+    }
+
+    @Override
+    public synchronized Map<String, Double> getMeanRequestTimesMillis() {
+        Map<String, Double> ret = new LinkedHashMap<>();
+        for (Entry<String, RequestTypeMetrics> typeMetrics : requestTypes.entrySet()) {
+            RequestTypeMetrics metrics = typeMetrics.getValue();
+            ret.put(typeMetrics.getKey(), toMillis(metrics.totalNanos) / metrics.count);
+        }
+        return ret;
+    }
+
+    @Override
+    public synchronized Map<String, Double> getMaxRequestTimesMillis() {
+        Map<String, Double> ret = new LinkedHashMap<>();
+        for (Entry<String, RequestTypeMetrics> typeMetrics : requestTypes.entrySet()) {
+            ret.put(typeMetrics.getKey(), toMillis(typeMetrics.getValue().maxNanos));
+        }
+        return ret;
+    }
+
+    @Override
+    public synchronized Map<String, Double> getStageTimesMillis() {
+        Map<String, Double> ret = new LinkedHashMap<>();
+        for (Entry<String, Long> stage : stageNanos.entrySet()) {
+            ret.put(stage.getKey(), toMillis(stage.getValue()));
+        }
+        return ret;
+    }
+
+    @Override
+    public synchronized Map<String, Long> getCounters() {
+        return new LinkedHashMap<>(counters);
+    }
+
+    @Override
+    public synchronized long getSlowRequestThresholdMillis() {
+        return slowRequestThresholdMillis;
+    }
+
+    @Override
+    public synchronized void setSlowRequestThresholdMillis(long slowRequestThresholdMillis) {
+        this.slowRequestThresholdMillis = slowRequestThresholdMillis;
+    }
+
+    @Override
+    public synchronized void reset() {
+        errorCount = 0L;
+        slowRequestCount = 0L;
+        requestTypes.clear();
+        stageNanos.clear();
+        counters.clear();
+    }
+
+    /**
+     * @return All metrics as a JSON string
+     */
+    public synchronized String toJson() {
+        JSONObject json = new JSONObject();
+        json.put("requestCount", getRequestCount());
+        json.put("errorCount", errorCount);
+        json.put("slowRequestCount", slowRequestCount);
+        json.put("slowRequestThresholdMillis", slowRequestThresholdMillis);
+        json.put("requestCounts", getRequestCounts());
+        json.put("meanRequestTimesMillis", getMeanRequestTimesMillis());
+        json.put("maxRequestTimesMillis", getMaxRequestTimesMillis());
+        json.put("stageTimesMillis", getStageTimesMillis());
+        json.put("counters", getCounters());
+        return json.toString(4);
+    }
+
+    /**
+     * Registers these metrics with the platform MBean server. Any previous
+     * registration is removed.
+     * 
+     * @param name
+     *            A name to distinguish these metrics from those of other
+     *            servlets in the same JVM
+     */
+    public synchronized void register(String name) {
+        unregister();
+        try {
+            ObjectName objectName = new ObjectName("uk.ac.rdg.resc.edal.wms:type=WmsMetrics,name="
+                    + ObjectName.quote(name));
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            if (!server.isRegistered(objectName)) {
+                server.registerMBean(this, objectName);
+                registeredName = objectName;
+            }
+        } catch (JMException e) {
+            log.warn("Could not register WMS metrics with JMX", e);
+        }
+    }
+
+    /**
+     * Removes these metrics from the platform MBean server, if they have been
+     * registered
+     */
+    public synchronized void unregister() {
+        if (registeredName != null) {
+            try {
+                ManagementFactory.getPlatformMBeanServer().unregisterMBean(registeredName);
+            } catch (JMException e) {
+                log.warn("Could not unregister WMS metrics from JMX", e);
+            }
+            registeredName = null;
+        }
+    }
+
+    private static double toMillis(long nanos) {
+        return nanos / 1e6;
+    }
+
+    private static class RequestTypeMetrics {
+        long count = 0L;
+        long totalNanos = 0L;
+        long maxNanos = 0L;
+    }
+}
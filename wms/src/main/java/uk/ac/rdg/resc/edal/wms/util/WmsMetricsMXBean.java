@@ -0,0 +1,95 @@
+/*******************************************************************************
+ * Copyright (c) 2016 The University of Reading
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the University of Reading, nor the names of the
+ *    authors or contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ******************************************************************************/
+
+package uk.ac.rdg.resc.edal.wms.util;
+
+import java.util.Map;
+
+/**
+ * The management interface of {@link WmsMetrics}, for exposing request
+ * metrics through JMX
+ * 
+ * @author Guy Griffiths
+ */
+public interface WmsMetricsMXBean {
+    /**
+     * @return The total number of requests handled
+     */
+    public long getRequestCount();
+
+    /**
+     * @return The number of requests which failed
+     */
+    public long getErrorCount();
+
+    /**
+     * @return The number of requests which took longer than the slow request
+     *         threshold
+     */
+    public long getSlowRequestCount();
+
+    /**
+     * @return The number of requests handled, by request type
+     */
+    public Map<String, Long> getRequestCounts();
+
+    /**
+     * @return The mean time taken to handle each request type, in milliseconds
+     */
+    public Map<String, Double> getMeanRequestTimesMillis();
+
+    /**
+     * @return The longest time taken to handle each request type, in
+     *         milliseconds
+     */
+    public Map<String, Double> getMaxRequestTimesMillis();
+
+    /**
+     * @return The total time spent in each stage of request processing, in
+     *         milliseconds
+     */
+    public Map<String, Double> getStageTimesMillis();
+
+    /**
+     * @return The total value of each counter
+     */
+    public Map<String, Long> getCounters();
+
+    /**
+     * @return The time above which requests are logged as slow, in
+     *         milliseconds. If this is 0, slow requests are not logged
+     */
+    public long getSlowRequestThresholdMillis();
+
+    public void setSlowRequestThresholdMillis(long slowRequestThresholdMillis);
+
+    /**
+     * Resets all metrics to zero
+     */
+    public void reset();
+}
@@ -28,6 +28,8 @@
 
 package uk.ac.rdg.resc.edal.wms.util;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
@@ -35,10 +37,15 @@ import java.io.OutputStream;
 import java.net.MalformedURLException;
 import java.net.URL;
 import java.net.URLConnection;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.Collection;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
 
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
@@ -302,4 +309,219 @@ public class WmsUtils {
             throws EdalLayerNotFoundException {
         return catalogue.getLayerMetadata(getVariableMetadataFromLayerName(layerName, catalogue));
     }
+
+    /**
+     * Compresses the given data using gzip
+     * 
+     * @param data
+     *            The data to compress
+     * @return The gzip-compressed data
+     * @throws IOException
+     *             If there is a problem compressing the data
+     */
+    public static byte[] gzip(byte[] data) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(data.length / 8 + 64);
+        try (GZIPOutputStream gzip = new GZIPOutputStream(bytes)) {
+            gzip.write(data);
+        }
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Creates a strong entity tag (suitable for use in an HTTP ETag header)
+     * from a description of the content and the time at which it was last
+     * modified.
+     * 
+     * @param contentId
+     *            A {@link String} which uniquely identifies the content (e.g.
+     *            the parameters used to generate it)
+     * @param lastModified
+     *            The time at which the content was last modified, in
+     *            milliseconds since the epoch
+     * @return The quoted entity tag
+     */
+    public static String createETag(String contentId, long lastModified) {
+        return "\"" + hash(contentId) + "-" + Long.toHexString(lastModified) + "\"";
+    }
+
+    /**
+     * Creates a hash of a {@link String}, suitable for use as an identifier
+     * (e.g. in an entity tag or a file name)
+     * 
+     * @param value
+     *            The {@link String} to hash
+     * @return The MD5 digest of the value as a hexadecimal string
+     */
+    public static String hash(String value) {
+        StringBuilder hash = new StringBuilder();
+        try {
+            MessageDigest digest = MessageDigest.getInstance("MD5");
+            digest.update(value.getBytes(StandardCharsets.UTF_8));
+            for (byte b : digest.digest()) {
+                hash.append(Character.forDigit((b >> 4) & 0xF, 16));
+                hash.append(Character.forDigit(b & 0xF, 16));
+            }
+        } catch (NoSuchAlgorithmException e) {
+            /*
+             * MD5 is always available, but fall back to the hash code anyway
+             */
+            hash.append(Integer.toHexString(value.hashCode()));
+        }
+        return hash.toString();
+    }
+
+    /**
+     * Gets the entity tag for the gzip-encoded form of some content. A strong
+     * entity tag must differ between the encodings of the same content (RFC
+     * 7232), so the gzip-encoded form has its own tag.
+     * 
+     * @param eTag
+     *            The quoted entity tag of the unencoded content, as returned
+     *            by {@link WmsUtils#createETag(String, long)}
+     * @return The quoted entity tag of the gzip-encoded content
+     */
+    public static String getGzipETag(String eTag) {
+        return eTag.substring(0, eTag.length() - 1) + "-gzip\"";
+    }
+
+    /**
+     * Determines whether a client already has an up-to-date copy of some
+     * content, based on the If-None-Match and If-Modified-Since headers of the
+     * request. If-None-Match takes precedence, as per RFC 7232.
+     * 
+     * @param request
+     *            The {@link HttpServletRequest} to check. If this is
+     *            <code>null</code>, the content is always considered modified
+     * @param eTag
+     *            The current entity tag of the content
+     * @param lastModified
+     *            The time at which the content was last modified, in
+     *            milliseconds since the epoch, or a negative number if this is
+     *            unknown
+     * @return <code>true</code> if a 304 (Not Modified) response can be sent
+     */
+    public static boolean isNotModified(HttpServletRequest request, String eTag,
+            long lastModified) {
+        if (request == null) {
+            return false;
+        }
+        String ifNoneMatch = request.getHeader("If-None-Match");
+        if (ifNoneMatch != null) {
+            if (eTag == null) {
+                return false;
+            }
+            for (String candidate : ifNoneMatch.split(",")) {
+                candidate = candidate.trim();
+                if (candidate.startsWith("W/")) {
+                    candidate = candidate.substring(2);
+                }
+                if ("*".equals(candidate) || eTag.equals(candidate)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+        if (lastModified >= 0) {
+            long ifModifiedSince;
+            try {
+                ifModifiedSince = request.getDateHeader("If-Modified-Since");
+            } catch (IllegalArgumentException e) {
+                return false;
+            }
+            /*
+             * HTTP dates only have a resolution of 1s
+             */
+            return ifModifiedSince >= 0 && (lastModified / 1000) <= (ifModifiedSince / 1000);
+        }
+        return false;
+    }
+
+    /**
+     * @param request
+     *            The {@link HttpServletRequest} to check
+     * @return <code>true</code> if the client has stated that it accepts
+     *         gzip-encoded responses
+     */
+    public static boolean acceptsGzip(HttpServletRequest request) {
+        if (request == null) {
+            return false;
+        }
+        String acceptEncoding = request.getHeader("Accept-Encoding");
+        if (acceptEncoding == null) {
+            return false;
+        }
+        for (String encoding : acceptEncoding.split(",")) {
+            String[] parts = encoding.trim().split(";");
+            if ("gzip".equalsIgnoreCase(parts[0].trim())) {
+                return !(parts.length > 1 && parts[1].trim().matches("q\\s*=\\s*0(\\.0*)?"));
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Writes pre-compressed content to an HTTP response, including caching
+     * headers. If the client already has an up-to-date copy, a 304 response is
+     * sent. If the client does not accept gzip encoding, the content will be
+     * decompressed on the fly.
+     * 
+     * The gzip-encoded form is sent with the entity tag given by
+     * {@link WmsUtils#getGzipETag(String)}, so that the two encodings have
+     * different strong entity tags.
+     * 
+     * @param request
+     *            The {@link HttpServletRequest} being answered, or
+     *            <code>null</code> to send the unencoded content
+     *            unconditionally
+     * @param response
+     *            The {@link HttpServletResponse} to write to
+     * @param contentType
+     *            The MIME type of the content
+     * @param gzippedContent
+     *            The gzip-compressed content
+     * @param eTag
+     *            The entity tag of the content, or <code>null</code> if it
+     *            has none
+     * @param lastModified
+     *            The time at which the content was last modified, in
+     *            milliseconds since the epoch, or a negative number if this is
+     *            unknown
+     * @throws IOException
+     *             If there is a problem writing the response
+     */
+    public static void writeCompressedResponse(HttpServletRequest request,
+            HttpServletResponse response, String contentType, byte[] gzippedContent,
+            String eTag, long lastModified) throws IOException {
+        boolean gzip = acceptsGzip(request);
+        if (eTag != null && gzip) {
+            eTag = getGzipETag(eTag);
+        }
+        if (eTag != null) {
+            response.setHeader("ETag", eTag);
+        }
+        if (lastModified >= 0) {
+            response.setDateHeader("Last-Modified", lastModified);
+        }
+        response.setHeader("Vary", "Accept-Encoding");
+        if (isNotModified(request, eTag, lastModified)) {
+            response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+            return;
+        }
+        response.setContentType(contentType);
+        OutputStream out = response.getOutputStream();
+        if (gzip) {
+            response.setHeader("Content-Encoding", "gzip");
+            response.setContentLength(gzippedContent.length);
+            out.write(gzippedContent);
+        } else {
+            try (InputStream in = new GZIPInputStream(new ByteArrayInputStream(gzippedContent))) {
+                byte[] buf = new byte[8192];
+                int len;
+                while ((len = in.read(buf)) >= 0) {
+                    out.write(buf, 0, len);
+                }
+            }
+        }
+        out.flush();
+    }
 }
@@ -0,0 +1,133 @@
+/*******************************************************************************
+ * Copyright (c) 2016 The University of Reading
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the University of Reading, nor the names of the
+ *    authors or contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ******************************************************************************/
+
+package uk.ac.rdg.resc.edal.wms;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+
+import org.apache.velocity.VelocityContext;
+import org.apache.velocity.app.VelocityEngine;
+import org.junit.Before;
+import org.junit.Test;
+
+import uk.ac.rdg.resc.edal.position.HorizontalPosition;
+
+/**
+ * Tests that {@link FeatureInfoWriter} produces the same output as the bundled
+ * featureInfo templates
+ *
+ * @author Guy Griffiths
+ */
+public class FeatureInfoWriterTest {
+    private HorizontalPosition position;
+    private List<FeatureInfoPoint> featureInfos;
+    private VelocityEngine velocityEngine;
+
+    @Before
+    public void setUp() {
+        position = new HorizontalPosition(-3.5, 51.25);
+        featureInfos = new ArrayList<>();
+        Properties properties = new Properties();
+        properties.put("platform", "buoy");
+        featureInfos.add(new FeatureInfoPoint("dataset/sst", "Map of sst", position,
+                "2010-01-01T00:00:00.000Z", 285.5f, properties));
+        featureInfos.add(new FeatureInfoPoint("dataset/sst", "Map of sst", position, null,
+                null, null));
+        featureInfos.add(new FeatureInfoPoint(null, null, position, null, "Sea ice", null));
+
+        Properties props = new Properties();
+        props.put("resource.loader", "class");
+        props.put("class.resource.loader.class",
+                "org.apache.velocity.runtime.resource.loader.ClasspathResourceLoader");
+        velocityEngine = new VelocityEngine();
+        velocityEngine.init(props);
+    }
+
+    @Test
+    public void testXml() throws IOException {
+        StringWriter written = new StringWriter();
+        FeatureInfoWriter.writeXml(position, featureInfos, written);
+        assertTrue(written.toString().contains("<value>285.5</value>"));
+        assertTrue(written.toString().contains("<value>none</value>"));
+        assertSameContent(render("templates/featureInfo-xml.vm"), written.toString());
+    }
+
+    @Test
+    public void testPlain() throws IOException {
+        StringWriter written = new StringWriter();
+        FeatureInfoWriter.writePlain(position, featureInfos, written);
+        assertTrue(written.toString().contains("Value: 285.5"));
+        assertTrue(written.toString().contains("No value"));
+        assertSameContent(render("templates/featureInfo-plain.vm"), written.toString());
+    }
+
+    @Test
+    public void testXmlEscaping() throws IOException {
+        List<FeatureInfoPoint> infos = new ArrayList<>();
+        infos.add(new FeatureInfoPoint("a<b>", null, position, null, "x & y", null));
+        StringWriter written = new StringWriter();
+        FeatureInfoWriter.writeXml(position, infos, written);
+        assertTrue(written.toString().contains("<layer>a&lt;b&gt;</layer>"));
+        assertTrue(written.toString().contains("<value>x &amp; y</value>"));
+    }
+
+    private String render(String templateName) {
+        VelocityContext context = new VelocityContext();
+        context.put("position", position);
+        context.put("featureInfo", featureInfos);
+        StringWriter rendered = new StringWriter();
+        velocityEngine.getTemplate(templateName).merge(context, rendered);
+        return rendered.toString();
+    }
+
+    /*
+     * The templates leave some trailing whitespace after directives, so lines
+     * are compared without it
+     */
+    private static void assertSameContent(String expected, String actual) {
+        assertEquals(normalise(expected), normalise(actual));
+    }
+
+    private static String normalise(String text) {
+        StringBuilder normalised = new StringBuilder();
+        for (String line : text.split("\n")) {
+            String trimmed = line.replaceAll("\\s+$", "");
+            if (!trimmed.isEmpty()) {
+                normalised.append(trimmed + "\n");
+            }
+        }
+        return normalised.toString();
+    }
+}
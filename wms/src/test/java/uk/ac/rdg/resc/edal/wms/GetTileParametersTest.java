@@ -0,0 +1,201 @@
+/*******************************************************************************
+ * Copyright (c) 2016 The University of Reading
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the University of Reading, nor the names of the
+ *    authors or contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ******************************************************************************/
+
+package uk.ac.rdg.resc.edal.wms;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
+import org.junit.Before;
+import org.junit.Test;
+
+import uk.ac.rdg.resc.edal.exceptions.EdalException;
+import uk.ac.rdg.resc.edal.grid.TimeAxisImpl;
+import uk.ac.rdg.resc.edal.grid.VerticalAxisImpl;
+import uk.ac.rdg.resc.edal.metadata.Parameter;
+import uk.ac.rdg.resc.edal.metadata.VariableMetadata;
+import uk.ac.rdg.resc.edal.position.VerticalCrsImpl;
+
+/**
+ * Tests the parsing of tile requests by {@link GetTileParameters}, and the
+ * keys used to cache the requested tiles
+ *
+ * @author Guy Griffiths
+ */
+public class GetTileParametersTest {
+    private VariableMetadata metadata;
+
+    @Before
+    public void setUp() {
+        List<DateTime> times = new ArrayList<>();
+        for (int day = 1; day <= 5; day++) {
+            times.add(new DateTime(2010, 1, day, 0, 0, DateTimeZone.UTC));
+        }
+        metadata = new VariableMetadata(new Parameter("var", null, null, null, null), null,
+                new VerticalAxisImpl("depth", Arrays.asList(0.0, 10.0, 20.0),
+                        new VerticalCrsImpl("m", false, false, true)),
+                new TimeAxisImpl("time", times));
+    }
+
+    @Test
+    public void testNonTilePaths() throws EdalException {
+        RequestParams params = getParams();
+        assertNull(GetTileParameters.parseRestPath(null, params));
+        assertNull(GetTileParameters.parseRestPath("", params));
+        assertNull(GetTileParameters.parseRestPath("/wms", params));
+        assertNull(GetTileParameters.parseRestPath("/tilesets/a/1/2/3.png", params));
+    }
+
+    @Test
+    public void testWmtsRestPath() throws EdalException {
+        RequestParams params = GetTileParameters.parseRestPath(
+                "/wmts/dataset/var/default/GoogleMapsCompatible/3/2/5.png",
+                getParams("colorscalerange", "0,10"));
+        assertEquals("GetTile", params.getString("request"));
+        assertEquals("dataset/var", params.getString("layer"));
+        assertEquals("default", params.getString("style"));
+        assertEquals("GoogleMapsCompatible", params.getString("tilematrixset"));
+        assertEquals("3", params.getString("tilematrix"));
+        assertEquals("2", params.getString("tilerow"));
+        assertEquals("5", params.getString("tilecol"));
+        assertEquals("image/png", params.getString("format"));
+        assertEquals("0,10", params.getString("colorscalerange"));
+
+        GetTileParameters tileParams = new GetTileParameters(params);
+        assertEquals("dataset/var", tileParams.getLayerName());
+        assertEquals("image/png", tileParams.getFormat());
+    }
+
+    @Test
+    public void testXyzPath() throws EdalException {
+        RequestParams params = GetTileParameters.parseRestPath("/tiles/dataset/var/3/5/2.jpg",
+                getParams());
+        assertEquals("dataset/var", params.getString("layer"));
+        assertNull(params.getString("style"));
+        assertEquals("GoogleMapsCompatible", params.getString("tilematrixset"));
+        assertEquals("3", params.getString("tilematrix"));
+        assertEquals("5", params.getString("tilecol"));
+        assertEquals("2", params.getString("tilerow"));
+        assertEquals("image/jpeg", params.getString("format"));
+
+        GetTileParameters tileParams = new GetTileParameters(params);
+        assertEquals("image/jpeg", tileParams.getFormat());
+        assertEquals("false", tileParams.getGetMapParameters().getString("transparent"));
+    }
+
+    @Test
+    public void testInvalidPaths() {
+        String[] paths = new String[] { "/tiles/var/3/5.png", "/tiles/var/3/5/2",
+                "/wmts/var/default/GoogleMapsCompatible/3/2.png" };
+        for (String path : paths) {
+            try {
+                GetTileParameters.parseRestPath(path, getParams());
+                fail("Path " + path + " should be rejected");
+            } catch (EdalException e) {
+                /*
+                 * Expected
+                 */
+            }
+        }
+        try {
+            new GetTileParameters(GetTileParameters.parseRestPath("/tiles/var/3/8/0.png",
+                    getParams()));
+            fail("Tile column 8 does not exist at zoom level 3");
+        } catch (EdalException e) {
+            /*
+             * Expected
+             */
+        }
+    }
+
+    @Test
+    public void testStyleKey() throws EdalException {
+        String key = getKey();
+        /*
+         * Parameters which don't affect the appearance of the tile are ignored
+         */
+        assertEquals(key, getKey("_", "1234567"));
+        assertEquals(key, getKey("service", "WMTS", "version", "1.0.0"));
+        assertFalse(key.equals(getKey("colorscalerange", "0,10")));
+        assertFalse(key.equals(getKey("numcolorbands", "50")));
+        assertFalse(getKey("colorscalerange", "0,10").equals(getKey("colorscalerange", "0,20")));
+    }
+
+    @Test
+    public void testTimeAndElevationResolution() throws EdalException {
+        /*
+         * Times and elevations are resolved to the nearest axis values
+         */
+        assertEquals(getKey("time", "2010-01-02T00:00:00.000Z"),
+                getKey("time", "2010-01-02T03:00:00Z"));
+        assertEquals(getKey("time", "2010-01-02T00:00:00.000Z"), getKey("time", "2010-01-02"));
+        assertFalse(getKey("time", "2010-01-02").equals(getKey("time", "2010-01-03")));
+        assertEquals(getKey("elevation", "10.0"), getKey("elevation", "9"));
+        assertFalse(getKey("elevation", "10").equals(getKey("elevation", "20")));
+
+        /*
+         * The defaults are the latest time and the surface
+         */
+        assertEquals(getKey("time", "2010-01-05", "elevation", "0"), getKey());
+
+        /*
+         * Anything which doesn't resolve to a single axis value is left as
+         * requested
+         */
+        assertFalse(getKey().equals(getKey("time", "2011-01-01")));
+        assertFalse(getKey().equals(getKey("time", "2010-01-05/2010-01-06")));
+        assertFalse(getKey().equals(getKey("elevation", "100")));
+    }
+
+    /*
+     * Gets the key for tile 3/0/0 of dataset/var, as a string
+     */
+    private String getKey(String... extraParams) throws EdalException {
+        RequestParams params = GetTileParameters.parseRestPath("/tiles/dataset/var/3/0/0.png",
+                getParams(extraParams));
+        return new GetTileParameters(params).getTileKey("dataset", "v1", metadata).toString();
+    }
+
+    private static RequestParams getParams(String... namesAndValues) {
+        Map<String, String[]> params = new HashMap<>();
+        for (int i = 0; i < namesAndValues.length; i += 2) {
+            params.put(namesAndValues[i], new String[] { namesAndValues[i + 1] });
+        }
+        return new RequestParams(params);
+    }
+}
@@ -0,0 +1,339 @@
+/*******************************************************************************
+ * Copyright (c) 2016 The University of Reading
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the University of Reading, nor the names of the
+ *    authors or contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ******************************************************************************/
+
+package uk.ac.rdg.resc.edal.wms;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.GZIPInputStream;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletResponse;
+
+import org.joda.time.DateTime;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
+
+import uk.ac.rdg.resc.edal.dataset.Dataset;
+import uk.ac.rdg.resc.edal.exceptions.EdalException;
+import uk.ac.rdg.resc.edal.graphics.utils.EnhancedVariableMetadata;
+import uk.ac.rdg.resc.edal.graphics.utils.LayerNameMapper;
+import uk.ac.rdg.resc.edal.graphics.utils.PlottingDomainParams;
+import uk.ac.rdg.resc.edal.graphics.utils.StyleCatalogue;
+import uk.ac.rdg.resc.edal.metadata.VariableMetadata;
+import uk.ac.rdg.resc.edal.wms.util.ContactInfo;
+import uk.ac.rdg.resc.edal.wms.util.ServerInfo;
+
+/**
+ * Tests the HTTP caching behaviour of {@link WmsServlet}, using GetMetadata
+ * requests for the menu of an empty catalogue
+ *
+ * @author Guy Griffiths
+ */
+public class WmsServletCachingTest {
+    private WmsServlet servlet;
+    private Map<String, Integer> maxAges;
+
+    @Before
+    public void setUp() {
+        maxAges = new HashMap<>();
+        maxAges.put("long", 600);
+        maxAges.put("short", 60);
+        maxAges.put("uncached", -1);
+        servlet = new WmsServlet();
+        servlet.setCatalogue(new TestCatalogue(maxAges));
+    }
+
+    @Test
+    public void testGzipNegotiation() throws Exception {
+        MockHttpServletResponse identity = get(menuRequest());
+        assertEquals(HttpServletResponse.SC_OK, identity.getStatus());
+        assertNull(identity.getHeader("Content-Encoding"));
+        assertEquals("Accept-Encoding", identity.getHeader("Vary"));
+
+        MockHttpServletRequest gzipRequest = menuRequest();
+        gzipRequest.addHeader("Accept-Encoding", "deflate, gzip");
+        MockHttpServletResponse gzip = get(gzipRequest);
+        assertEquals(HttpServletResponse.SC_OK, gzip.getStatus());
+        assertEquals("gzip", gzip.getHeader("Content-Encoding"));
+        assertEquals("Accept-Encoding", gzip.getHeader("Vary"));
+        assertArrayEquals(identity.getContentAsByteArray(),
+                gunzip(gzip.getContentAsByteArray()));
+
+        /*
+         * The two encodings must have different strong entity tags
+         */
+        assertNotNull(identity.getHeader("ETag"));
+        assertNotNull(gzip.getHeader("ETag"));
+        assertFalse(identity.getHeader("ETag").equals(gzip.getHeader("ETag")));
+
+        /*
+         * A client which refuses gzip gets the unencoded content
+         */
+        MockHttpServletRequest refusedRequest = menuRequest();
+        refusedRequest.addHeader("Accept-Encoding", "gzip;q=0");
+        MockHttpServletResponse refused = get(refusedRequest);
+        assertNull(refused.getHeader("Content-Encoding"));
+        assertEquals(identity.getHeader("ETag"), refused.getHeader("ETag"));
+    }
+
+    @Test
+    public void testNotModified() throws Exception {
+        MockHttpServletResponse identity = get(menuRequest());
+        String identityETag = (String) identity.getHeader("ETag");
+
+        MockHttpServletRequest request = menuRequest();
+        request.addHeader("If-None-Match", identityETag);
+        MockHttpServletResponse notModified = get(request);
+        assertEquals(HttpServletResponse.SC_NOT_MODIFIED, notModified.getStatus());
+        assertEquals(identityETag, notModified.getHeader("ETag"));
+        assertEquals(0, notModified.getContentAsByteArray().length);
+
+        MockHttpServletRequest gzipRequest = menuRequest();
+        gzipRequest.addHeader("Accept-Encoding", "gzip");
+        String gzipETag = (String) get(gzipRequest).getHeader("ETag");
+
+        request = menuRequest();
+        request.addHeader("Accept-Encoding", "gzip");
+        request.addHeader("If-None-Match", gzipETag);
+        notModified = get(request);
+        assertEquals(HttpServletResponse.SC_NOT_MODIFIED, notModified.getStatus());
+        assertEquals(gzipETag, notModified.getHeader("ETag"));
+        assertEquals("Accept-Encoding", notModified.getHeader("Vary"));
+
+        /*
+         * A client holding the gzip-encoded content which no longer accepts
+         * gzip needs the unencoded content
+         */
+        request = menuRequest();
+        request.addHeader("If-None-Match", gzipETag);
+        MockHttpServletResponse modified = get(request);
+        assertEquals(HttpServletResponse.SC_OK, modified.getStatus());
+        assertEquals(identityETag, modified.getHeader("ETag"));
+
+        /*
+         * Content for different parameters has a different entity tag
+         */
+        request = menuRequest();
+        request.addParameter("layers", "long");
+        request.addHeader("If-None-Match", identityETag);
+        assertEquals(HttpServletResponse.SC_OK, get(request).getStatus());
+    }
+
+    @Test
+    public void testMaxAge() throws Exception {
+        assertEquals("no-cache", get(menuRequest()).getHeader("Cache-Control"));
+        assertEquals("public, max-age=600", getWithLayers("long").getHeader("Cache-Control"));
+        /*
+         * Multiple layers use the shortest max-age...
+         */
+        assertEquals("public, max-age=60", getWithLayers("long,short").getHeader(
+                "Cache-Control"));
+        assertEquals("public, max-age=60", getWithLayers("short,long").getHeader(
+                "Cache-Control"));
+        /*
+         * ...unless any of them must always be revalidated
+         */
+        assertEquals("no-cache", getWithLayers("long,uncached,short").getHeader(
+                "Cache-Control"));
+        assertEquals("no-cache", getWithLayers("unknown").getHeader("Cache-Control"));
+    }
+
+    private static MockHttpServletRequest menuRequest() {
+        MockHttpServletRequest request = new MockHttpServletRequest("GET", "/wms");
+        request.addParameter("REQUEST", "GetMetadata");
+        request.addParameter("ITEM", "menu");
+        return request;
+    }
+
+    private MockHttpServletResponse getWithLayers(String layers) throws ServletException,
+            IOException {
+        MockHttpServletRequest request = menuRequest();
+        request.addParameter("LAYERS", layers);
+        return get(request);
+    }
+
+    private MockHttpServletResponse get(MockHttpServletRequest request) throws ServletException,
+            IOException {
+        MockHttpServletResponse response = new MockHttpServletResponse();
+        servlet.doGet(request, response);
+        return response;
+    }
+
+    private static byte[] gunzip(byte[] gzipped) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (InputStream in = new GZIPInputStream(new ByteArrayInputStream(gzipped))) {
+            byte[] buf = new byte[1024];
+            int len;
+            while ((len = in.read(buf)) >= 0) {
+                out.write(buf, 0, len);
+            }
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * A {@link WmsCatalogue} with no datasets, which was last updated when it
+     * was created
+     */
+    private static final class TestCatalogue implements WmsCatalogue {
+        private final Map<String, Integer> maxAges;
+        private final DateTime lastUpdateTime = new DateTime(2016, 1, 1, 0, 0);
+
+        public TestCatalogue(Map<String, Integer> maxAges) {
+            this.maxAges = maxAges;
+        }
+
+        @Override
+        public int getCacheMaxAge(String layerName) {
+            Integer maxAge = maxAges.get(layerName);
+            return maxAge == null ? -1 : maxAge;
+        }
+
+        @Override
+        public DateTime getLastUpdateTime() {
+            return lastUpdateTime;
+        }
+
+        @Override
+        public Collection<Dataset> getAllDatasets() {
+            return new ArrayList<>();
+        }
+
+        @Override
+        public ServerInfo getServerInfo() {
+            return new ServerInfo() {
+                @Override
+                public String getName() {
+                    return "Test server";
+                }
+
+                @Override
+                public String getAbstract() {
+                    return null;
+                }
+
+                @Override
+                public List<String> getKeywords() {
+                    return new ArrayList<>();
+                }
+
+                @Override
+                public int getMaxSimultaneousLayers() {
+                    return 1;
+                }
+
+                @Override
+                public int getMaxImageWidth() {
+                    return 1000;
+                }
+
+                @Override
+                public int getMaxImageHeight() {
+                    return 1000;
+                }
+
+                @Override
+                public boolean allowsFeatureInfo() {
+                    return false;
+                }
+
+                @Override
+                public boolean allowsGlobalCapabilities() {
+                    return false;
+                }
+            };
+        }
+
+        @Override
+        public Dataset getDatasetFromId(String datasetId) {
+            return null;
+        }
+
+        @Override
+        public EnhancedVariableMetadata getLayerMetadata(VariableMetadata variableMetadata) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public FeaturesAndMemberName getFeaturesForLayer(String layerName,
+                PlottingDomainParams params) throws EdalException {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public LayerNameMapper getLayerNameMapper() {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public StyleCatalogue getStyleCatalogue() {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public ContactInfo getContactInfo() {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public String getDatasetTitle(String datasetId) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public boolean isDownloadable(String layerName) {
+            return false;
+        }
+
+        @Override
+        public boolean isQueryable(String layerName) {
+            return false;
+        }
+
+        @Override
+        public boolean isDisabled(String layerName) {
+            return false;
+        }
+    }
+}
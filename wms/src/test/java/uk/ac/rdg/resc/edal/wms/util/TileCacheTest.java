@@ -0,0 +1,241 @@
+/*******************************************************************************
+ * Copyright (c) 2016 The University of Reading
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the University of Reading, nor the names of the
+ *    authors or contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ******************************************************************************/
+
+package uk.ac.rdg.resc.edal.wms.util;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import uk.ac.rdg.resc.edal.wms.util.TileCache.TileKey;
+
+/**
+ * Tests the versioning and size limit of {@link TileCache}
+ *
+ * @author Guy Griffiths
+ */
+public class TileCacheTest {
+    private File cacheDir;
+
+    @Before
+    public void setUp() throws IOException {
+        cacheDir = Files.createTempDirectory("tilecache").toFile();
+    }
+
+    @After
+    public void tearDown() {
+        delete(cacheDir);
+    }
+
+    @Test
+    public void testPutAndGet() {
+        TileCache cache = new TileCache(cacheDir);
+        String version = cache.validate("dataset", "fp", false);
+        byte[] tile = new byte[] { 1, 2, 3 };
+        cache.put(getKey(version, "style", 0), tile);
+
+        assertTrue(cache.contains(getKey(version, "style", 0)));
+        assertArrayEquals(tile, cache.get(getKey(version, "style", 0)));
+        assertNull(cache.get(getKey(version, "style", 1)));
+        assertNull(cache.get(getKey(version, "otherstyle", 0)));
+        assertEquals(tile.length, cache.getDiskSize());
+    }
+
+    @Test
+    public void testRefreshDiscardsTiles() {
+        TileCache cache = new TileCache(cacheDir);
+        String version = cache.validate("dataset", "fp", false);
+        cache.put(getKey(version, "style", 0), new byte[10]);
+
+        assertEquals(version, cache.validate("dataset", "fp", false));
+
+        String newVersion = cache.validate("dataset", "fp", true);
+        assertFalse(version.equals(newVersion));
+        assertNull(cache.get(getKey(version, "style", 0)));
+        assertNull(cache.get(getKey(newVersion, "style", 0)));
+        assertEquals(0L, cache.getDiskSize());
+
+        /*
+         * Tiles for an old version are not stored
+         */
+        cache.put(getKey(version, "style", 0), new byte[10]);
+        assertFalse(cache.contains(getKey(version, "style", 0)));
+        assertEquals(0L, cache.getDiskSize());
+    }
+
+    @Test
+    public void testOverwriteTile() {
+        TileCache cache = new TileCache(cacheDir);
+        String version = cache.validate("dataset", "fp", false);
+        cache.put(getKey(version, "style", 0), new byte[10]);
+        cache.put(getKey(version, "style", 0), new byte[10]);
+        assertEquals(10L, cache.getDiskSize());
+
+        cache.put(getKey(version, "style", 0), new byte[4]);
+        assertEquals(4L, cache.getDiskSize());
+        assertEquals(1, listFiles(cacheDir).size());
+    }
+
+    @Test
+    public void testPutDuringRefresh() throws InterruptedException {
+        final TileCache cache = new TileCache(cacheDir);
+        final String version = cache.validate("dataset", "fp", false);
+        List<Thread> writers = new ArrayList<>();
+        for (int i = 0; i < 4; i++) {
+            final int col = i;
+            Thread writer = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    for (int row = 0; row < 200; row++) {
+                        cache.put(new TileKey("dataset", version, "dataset/var", "style", null,
+                                null, "image/png", TileMatrixSet.GOOGLE_MAPS_COMPATIBLE, 8, col,
+                                row), new byte[10]);
+                    }
+                }
+            });
+            writers.add(writer);
+            writer.start();
+        }
+        Thread.sleep(5);
+        String newVersion = cache.validate("dataset", "fp", true);
+        for (Thread writer : writers) {
+            writer.join();
+        }
+
+        /*
+         * Tiles written while the old version was being discarded must not
+         * leave its directory behind, or be counted towards the size
+         */
+        File[] versionDirs = new File(cacheDir, "dataset").listFiles();
+        for (File versionDir : versionDirs) {
+            assertEquals(newVersion, versionDir.getName());
+        }
+        assertEquals(0, listFiles(cacheDir).size());
+        assertEquals(0L, cache.getDiskSize());
+    }
+
+    @Test
+    public void testReuseAcrossInstances() {
+        TileCache cache = new TileCache(cacheDir);
+        String version = cache.validate("dataset", "fp", false);
+        byte[] tile = new byte[] { 4, 5, 6 };
+        cache.put(getKey(version, "style", 0), tile);
+
+        /*
+         * A new cache picks up tiles with a matching fingerprint, and counts
+         * them towards its size
+         */
+        cache = new TileCache(cacheDir);
+        assertEquals(tile.length, cache.getDiskSize());
+        assertEquals(version, cache.validate("dataset", "fp", false));
+        assertArrayEquals(tile, cache.get(getKey(version, "style", 0)));
+
+        cache = new TileCache(cacheDir);
+        String newVersion = cache.validate("dataset", "newfp", false);
+        assertFalse(version.equals(newVersion));
+        assertNull(cache.get(getKey(newVersion, "style", 0)));
+        assertEquals(0L, cache.getDiskSize());
+    }
+
+    @Test
+    public void testEviction() {
+        TileCache cache = new TileCache(cacheDir, 1000L);
+        String version = cache.validate("dataset", "fp", false);
+        for (int row = 0; row < 5; row++) {
+            cache.put(getKey(version, "style", row), new byte[200]);
+        }
+        assertEquals(1000L, cache.getDiskSize());
+
+        /*
+         * Give the tiles distinct ages, then use the oldest one so that it
+         * becomes the most recently used
+         */
+        long now = System.currentTimeMillis();
+        for (File tileFile : listFiles(cacheDir)) {
+            int row = Integer.parseInt(tileFile.getName().replace(".png", ""));
+            tileFile.setLastModified(now - 100000L + row * 1000L);
+        }
+        assertArrayEquals(new byte[200], cache.get(getKey(version, "style", 0)));
+
+        /*
+         * Exceeding the limit removes the least recently used tiles until the
+         * cache is within 90% of the limit
+         */
+        cache.put(getKey(version, "style", 5), new byte[200]);
+        assertEquals(800L, cache.getDiskSize());
+        assertTrue(cache.contains(getKey(version, "style", 0)));
+        assertFalse(cache.contains(getKey(version, "style", 1)));
+        assertFalse(cache.contains(getKey(version, "style", 2)));
+        assertTrue(cache.contains(getKey(version, "style", 3)));
+        assertTrue(cache.contains(getKey(version, "style", 4)));
+        assertTrue(cache.contains(getKey(version, "style", 5)));
+        assertEquals(4, listFiles(cacheDir).size());
+    }
+
+    private static TileKey getKey(String version, String styleKey, int row) {
+        return new TileKey("dataset", version, "dataset/var", styleKey, null, null, "image/png",
+                TileMatrixSet.GOOGLE_MAPS_COMPATIBLE, 3, 0, row);
+    }
+
+    private static List<File> listFiles(File dir) {
+        List<File> files = new ArrayList<>();
+        File[] children = dir.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                if (child.isDirectory()) {
+                    files.addAll(listFiles(child));
+                } else {
+                    files.add(child);
+                }
+            }
+        }
+        return files;
+    }
+
+    private static void delete(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+}
@@ -0,0 +1,173 @@
+/*******************************************************************************
+ * Copyright (c) 2016 The University of Reading
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the University of Reading, nor the names of the
+ *    authors or contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ******************************************************************************/
+
+package uk.ac.rdg.resc.edal.wms.util;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.geotoolkit.metadata.iso.extent.DefaultGeographicBoundingBox;
+import org.junit.Test;
+
+import uk.ac.rdg.resc.edal.geometry.BoundingBox;
+
+/**
+ * Tests the tile addressing of {@link TileMatrixSet}
+ *
+ * @author Guy Griffiths
+ */
+public class TileMatrixSetTest {
+    private static final double MERCATOR_HALF_WIDTH = 20037508.342789244;
+
+    @Test
+    public void testForName() {
+        assertEquals(TileMatrixSet.GOOGLE_MAPS_COMPATIBLE,
+                TileMatrixSet.forName("googlemapscompatible"));
+        assertEquals(TileMatrixSet.GOOGLE_MAPS_COMPATIBLE, TileMatrixSet.forName("EPSG:3857"));
+        assertEquals(TileMatrixSet.GOOGLE_MAPS_COMPATIBLE, TileMatrixSet.forName("EPSG:900913"));
+        assertEquals(TileMatrixSet.WORLD_CRS84_QUAD, TileMatrixSet.forName("WorldCRS84Quad"));
+        assertEquals(TileMatrixSet.WORLD_CRS84_QUAD, TileMatrixSet.forName("EPSG:4326"));
+        assertNull(TileMatrixSet.forName("EPSG:27700"));
+        assertNull(TileMatrixSet.forName(null));
+    }
+
+    @Test
+    public void testContainsTile() {
+        assertTrue(TileMatrixSet.GOOGLE_MAPS_COMPATIBLE.containsTile(0, 0, 0));
+        assertFalse(TileMatrixSet.GOOGLE_MAPS_COMPATIBLE.containsTile(0, 1, 0));
+        assertTrue(TileMatrixSet.WORLD_CRS84_QUAD.containsTile(0, 1, 0));
+        assertFalse(TileMatrixSet.WORLD_CRS84_QUAD.containsTile(0, 0, 1));
+        assertTrue(TileMatrixSet.GOOGLE_MAPS_COMPATIBLE.containsTile(3, 7, 7));
+        assertFalse(TileMatrixSet.GOOGLE_MAPS_COMPATIBLE.containsTile(3, 8, 7));
+        assertFalse(TileMatrixSet.GOOGLE_MAPS_COMPATIBLE.containsTile(3, -1, 0));
+        assertFalse(TileMatrixSet.GOOGLE_MAPS_COMPATIBLE.containsTile(
+                TileMatrixSet.MAX_ZOOM + 1, 0, 0));
+    }
+
+    @Test
+    public void testTileBounds() {
+        assertBounds(-MERCATOR_HALF_WIDTH, -MERCATOR_HALF_WIDTH, MERCATOR_HALF_WIDTH,
+                MERCATOR_HALF_WIDTH, TileMatrixSet.GOOGLE_MAPS_COMPATIBLE.getTileBoundingBox(
+                        0, 0, 0));
+        /*
+         * Rows are numbered from the north
+         */
+        assertBounds(0.0, 0.0, MERCATOR_HALF_WIDTH, MERCATOR_HALF_WIDTH,
+                TileMatrixSet.GOOGLE_MAPS_COMPATIBLE.getTileBoundingBox(1, 1, 0));
+        assertBounds(-MERCATOR_HALF_WIDTH, -MERCATOR_HALF_WIDTH, 0.0, 0.0,
+                TileMatrixSet.GOOGLE_MAPS_COMPATIBLE.getTileBoundingBox(1, 0, 1));
+
+        assertBounds(-180.0, -90.0, 0.0, 90.0,
+                TileMatrixSet.WORLD_CRS84_QUAD.getTileBoundingBox(0, 0, 0));
+        assertBounds(0.0, -90.0, 180.0, 90.0,
+                TileMatrixSet.WORLD_CRS84_QUAD.getTileBoundingBox(0, 1, 0));
+        assertBounds(135.0, -90.0, 180.0, -45.0,
+                TileMatrixSet.WORLD_CRS84_QUAD.getTileBoundingBox(2, 7, 3));
+
+        /*
+         * Adjacent tiles share their edges
+         */
+        for (TileMatrixSet tileMatrixSet : TileMatrixSet.values()) {
+            BoundingBox tile = tileMatrixSet.getTileBoundingBox(5, 10, 12);
+            BoundingBox east = tileMatrixSet.getTileBoundingBox(5, 11, 12);
+            BoundingBox south = tileMatrixSet.getTileBoundingBox(5, 10, 13);
+            assertEquals(tile.getMaxX(), east.getMinX(), 1e-6);
+            assertEquals(tile.getMinY(), south.getMaxY(), 1e-6);
+        }
+    }
+
+    @Test
+    public void testTileRange() {
+        assertArrayEquals(new int[] { 4, 1, 5, 1 }, TileMatrixSet.WORLD_CRS84_QUAD.getTileRange(
+                2, new DefaultGeographicBoundingBox(10.0, 80.0, 5.0, 40.0)));
+        assertArrayEquals(new int[] { 0, 0, 7, 3 }, TileMatrixSet.WORLD_CRS84_QUAD.getTileRange(
+                2, new DefaultGeographicBoundingBox(-180.0, 180.0, -90.0, 90.0)));
+        assertArrayEquals(new int[] { 0, 0, 7, 7 },
+                TileMatrixSet.GOOGLE_MAPS_COMPATIBLE.getTileRange(3,
+                        new DefaultGeographicBoundingBox(-180.0, 180.0, -90.0, 90.0)));
+    }
+
+    @Test
+    public void testTileRangeAtPoles() {
+        /*
+         * Latitudes beyond the limits of spherical mercator fall in the
+         * first and last rows
+         */
+        assertArrayEquals(new int[] { 0, 0, 7, 0 },
+                TileMatrixSet.GOOGLE_MAPS_COMPATIBLE.getTileRange(3,
+                        new DefaultGeographicBoundingBox(-180.0, 180.0, 88.0, 90.0)));
+        assertArrayEquals(new int[] { 0, 7, 7, 7 },
+                TileMatrixSet.GOOGLE_MAPS_COMPATIBLE.getTileRange(3,
+                        new DefaultGeographicBoundingBox(-180.0, 180.0, -90.0, -88.0)));
+        /*
+         * The poles are the edges of the last rows
+         */
+        assertArrayEquals(new int[] { 0, 0, 15, 0 }, TileMatrixSet.WORLD_CRS84_QUAD.getTileRange(
+                3, new DefaultGeographicBoundingBox(-180.0, 180.0, 80.0, 90.0)));
+        assertArrayEquals(new int[] { 0, 7, 15, 7 }, TileMatrixSet.WORLD_CRS84_QUAD.getTileRange(
+                3, new DefaultGeographicBoundingBox(-180.0, 180.0, -90.0, -80.0)));
+    }
+
+    @Test
+    public void testTileRangeAtAntimeridian() {
+        /*
+         * Areas ending at the antimeridian only cover the last (or first)
+         * column
+         */
+        assertArrayEquals(new int[] { 15, 3, 15, 4 }, TileMatrixSet.WORLD_CRS84_QUAD.getTileRange(
+                3, new DefaultGeographicBoundingBox(170.0, 180.0, -10.0, 10.0)));
+        assertArrayEquals(new int[] { 0, 3, 0, 4 }, TileMatrixSet.WORLD_CRS84_QUAD.getTileRange(3,
+                new DefaultGeographicBoundingBox(-180.0, -170.0, -10.0, 10.0)));
+        /*
+         * Longitudes in the range [0, 360] are wrapped
+         */
+        assertArrayEquals(new int[] { 0, 3, 0, 4 }, TileMatrixSet.WORLD_CRS84_QUAD.getTileRange(3,
+                new DefaultGeographicBoundingBox(180.0, 190.0, -10.0, 10.0)));
+        assertArrayEquals(new int[] { 0, 0, 15, 7 }, TileMatrixSet.WORLD_CRS84_QUAD.getTileRange(
+                3, new DefaultGeographicBoundingBox(0.0, 360.0, -90.0, 90.0)));
+        /*
+         * Areas crossing the antimeridian need the full width of the matrix
+         */
+        assertArrayEquals(new int[] { 0, 3, 15, 4 }, TileMatrixSet.WORLD_CRS84_QUAD.getTileRange(
+                3, new DefaultGeographicBoundingBox(170.0, 190.0, -10.0, 10.0)));
+        assertArrayEquals(new int[] { 0, 3, 7, 4 },
+                TileMatrixSet.GOOGLE_MAPS_COMPATIBLE.getTileRange(3,
+                        new DefaultGeographicBoundingBox(160.0, 200.0, -10.0, 10.0)));
+    }
+
+    private static void assertBounds(double minX, double minY, double maxX, double maxY,
+            BoundingBox bbox) {
+        assertEquals(minX, bbox.getMinX(), 1e-6);
+        assertEquals(minY, bbox.getMinY(), 1e-6);
+        assertEquals(maxX, bbox.getMaxX(), 1e-6);
+        assertEquals(maxY, bbox.getMaxY(), 1e-6);
+    }
+}
@@ -0,0 +1,113 @@
+/*******************************************************************************
+ * Copyright (c) 2016 The University of Reading
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the University of Reading, nor the names of the
+ *    authors or contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ******************************************************************************/
+
+package uk.ac.rdg.resc.edal.catalogue;
+
+/**
+ * A snapshot of the state of one tier of the feature cache in a
+ * {@link DataCatalogue}
+ * 
+ * @author Guy Griffiths
+ */
+public class CacheTierStatistics {
+    private final String tier;
+    private final long entries;
+    private final long sizeBytes;
+    private final long maxSizeBytes;
+    private final long hits;
+    private final long misses;
+    private final long evictions;
+
+    public CacheTierStatistics(String tier, long entries, long sizeBytes, long maxSizeBytes,
+            long hits, long misses, long evictions) {
+        this.tier = tier;
+        this.entries = entries;
+        this.sizeBytes = sizeBytes;
+        this.maxSizeBytes = maxSizeBytes;
+        this.hits = hits;
+        this.misses = misses;
+        this.evictions = evictions;
+    }
+
+    /**
+     * @return The name of the cache tier
+     */
+    public String getTier() {
+        return tier;
+    }
+
+    /**
+     * @return The number of entries currently in the tier
+     */
+    public long getEntries() {
+        return entries;
+    }
+
+    /**
+     * @return The amount of memory currently used by the tier, in bytes
+     */
+    public long getSizeBytes() {
+        return sizeBytes;
+    }
+
+    /**
+     * @return The maximum amount of memory the tier may use, in bytes
+     */
+    public long getMaxSizeBytes() {
+        return maxSizeBytes;
+    }
+
+    /**
+     * @return The number of requests which were answered by this tier
+     */
+    public long getHits() {
+        return hits;
+    }
+
+    /**
+     * @return The number of requests which this tier could not answer
+     */
+    public long getMisses() {
+        return misses;
+    }
+
+    /**
+     * @return The number of entries which have been removed from this tier to
+     *         make space for others
+     */
+    public long getEvictions() {
+        return evictions;
+    }
+
+    @Override
+    public String toString() {
+        return tier + ": " + entries + " entries, " + sizeBytes + "/" + maxSizeBytes
+                + " bytes, " + hits + " hits, " + misses + " misses, " + evictions
+                + " evictions";
+    }
+}
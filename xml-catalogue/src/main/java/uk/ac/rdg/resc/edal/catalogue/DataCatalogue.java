@@ -28,7 +28,10 @@
 
 package uk.ac.rdg.resc.edal.catalogue;
 
+import java.io.File;
 import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.net.URLEncoder;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
@@ -38,17 +41,10 @@ import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 
-import net.sf.ehcache.Cache;
 import net.sf.ehcache.CacheManager;
-import net.sf.ehcache.Element;
 import net.sf.ehcache.config.CacheConfiguration;
-import net.sf.ehcache.config.CacheConfiguration.TransactionalMode;
 import net.sf.ehcache.config.Configuration;
-import net.sf.ehcache.config.MemoryUnit;
-import net.sf.ehcache.config.PersistenceConfiguration;
-import net.sf.ehcache.config.PersistenceConfiguration.Strategy;
 import net.sf.ehcache.config.SizeOfPolicyConfiguration;
-import net.sf.ehcache.store.MemoryStoreEvictionPolicy;
 
 import org.joda.time.DateTime;
 import org.slf4j.Logger;
@@ -60,7 +56,13 @@ import uk.ac.rdg.resc.edal.catalogue.jaxb.CatalogueConfig.DatasetStorage;
 import uk.ac.rdg.resc.edal.catalogue.jaxb.DatasetConfig;
 import uk.ac.rdg.resc.edal.catalogue.jaxb.VariableConfig;
 import uk.ac.rdg.resc.edal.dataset.Dataset;
+import uk.ac.rdg.resc.edal.dataset.DatasetFactory;
+import uk.ac.rdg.resc.edal.dataset.GridOverviews;
+import uk.ac.rdg.resc.edal.dataset.GridOverviews.Decimation;
+import uk.ac.rdg.resc.edal.dataset.GriddedDataset;
+import uk.ac.rdg.resc.edal.dataset.PointFeatureStream;
 import uk.ac.rdg.resc.edal.exceptions.EdalException;
+import uk.ac.rdg.resc.edal.exceptions.VariableNotFoundException;
 import uk.ac.rdg.resc.edal.feature.DiscreteFeature;
 import uk.ac.rdg.resc.edal.graphics.exceptions.EdalLayerNotFoundException;
 import uk.ac.rdg.resc.edal.graphics.utils.DatasetCatalogue;
@@ -69,7 +71,9 @@ import uk.ac.rdg.resc.edal.graphics.utils.FeatureCatalogue;
 import uk.ac.rdg.resc.edal.graphics.utils.GraphicsUtils;
 import uk.ac.rdg.resc.edal.graphics.utils.LayerNameMapper;
 import uk.ac.rdg.resc.edal.graphics.utils.PlottingDomainParams;
+import uk.ac.rdg.resc.edal.graphics.utils.StatisticsStore;
 import uk.ac.rdg.resc.edal.metadata.VariableMetadata;
+import uk.ac.rdg.resc.edal.util.RequestTrace;
 
 /**
  * A catalogues which implements {@link DatasetCatalogue},
@@ -86,10 +90,13 @@ public class DataCatalogue implements DatasetCatalogue, DatasetStorage, FeatureC
     private static final Logger log = LoggerFactory.getLogger(DataCatalogue.class);
 
     private static final String CACHE_NAME = "featureCache";
+    private static final String STATISTICS_DIR = "statistics";
+    private static final String OVERVIEWS_DIR = "overviews";
+    private static final String SNAPSHOTS_DIR = "snapshots";
 
     private boolean cachingEnabled = false;
     protected final CacheManager cacheManager;
-    private Cache featureCache = null;
+    private TieredFeatureCache featureCache = null;
 
     protected final CatalogueConfig config;
     protected Map<String, Dataset> datasets;
@@ -97,6 +104,8 @@ public class DataCatalogue implements DatasetCatalogue, DatasetStorage, FeatureC
 
     protected final LayerNameMapper layerNameMapper;
 
+    private final StatisticsStore statisticsStore;
+
     private DateTime lastUpdateTime = new DateTime();
 
     public DataCatalogue(CatalogueConfig config, LayerNameMapper layerNameMapper)
@@ -107,6 +116,19 @@ public class DataCatalogue implements DatasetCatalogue, DatasetStorage, FeatureC
         datasets = new HashMap<>();
         layerMetadata = new HashMap<>();
 
+        /*
+         * The statistics store needs to exist before any datasets are loaded,
+         * since it is used to estimate scale ranges for new variables. It is
+         * persisted alongside the config file, if there is one.
+         */
+        File configFile = config.getConfigFile();
+        if (configFile != null) {
+            statisticsStore = new StatisticsStore(new File(configFile.getAbsoluteFile()
+                    .getParentFile(), STATISTICS_DIR));
+        } else {
+            statisticsStore = new StatisticsStore(null);
+        }
+
         this.config = config;
         this.config.setDatasetLoadedHandler(this);
         this.config.loadDatasets();
@@ -155,12 +177,10 @@ public class DataCatalogue implements DatasetCatalogue, DatasetStorage, FeatureC
      */
     public void setCache(CacheInfo cacheConfig) {
         int cacheSizeMB = cacheConfig.getInMemorySizeMB();
+        int offHeapSizeMB = cacheConfig.getOffHeapSizeMB();
         long lifetimeSeconds = (long) (cacheConfig.getElementLifetimeMinutes() * 60);
-        if (featureCache != null
-                && cachingEnabled == cacheConfig.isEnabled()
-                && cacheSizeMB == featureCache.getCacheConfiguration().getMaxBytesLocalHeap()
-                        / (1024 * 1024)
-                && lifetimeSeconds == featureCache.getCacheConfiguration().getTimeToLiveSeconds()) {
+        if (featureCache != null && cachingEnabled == cacheConfig.isEnabled()
+                && featureCache.hasSettings(cacheSizeMB, offHeapSizeMB, lifetimeSeconds)) {
             /*
              * We are not changing anything about the cache.
              */
@@ -171,30 +191,25 @@ public class DataCatalogue implements DatasetCatalogue, DatasetStorage, FeatureC
 
         /*
          * We are either disabling the cache or changing its size, so remove any
-         * existing one.
+         * existing one. This also releases the direct memory of any existing
+         * off-heap tier now, rather than waiting for it to be garbage
+         * collected.
          */
+        if (featureCache != null) {
+            featureCache.dispose();
+        }
         if (cacheManager.cacheExists(CACHE_NAME)) {
             cacheManager.removeCache(CACHE_NAME);
         }
 
         if (cachingEnabled) {
             /*
-             * Configure cache
-             */
-            CacheConfiguration config = new CacheConfiguration(CACHE_NAME, 0)
-                    .eternal(lifetimeSeconds == 0)
-                    .maxBytesLocalHeap(cacheSizeMB, MemoryUnit.MEGABYTES)
-                    .timeToLiveSeconds(lifetimeSeconds)
-                    .memoryStoreEvictionPolicy(MemoryStoreEvictionPolicy.LFU)
-                    .persistence(new PersistenceConfiguration().strategy(Strategy.NONE))
-                    .transactionalMode(TransactionalMode.OFF);
-
-            /*
-             * If we already have a cache, we can assume that the configuration
-             * has changed, so we remove and re-add it.
+             * If there is an off-heap tier, it holds the bulk of the cached
+             * data, with the in-memory cache acting as a small front for the
+             * most frequently used features
              */
-            featureCache = new Cache(config);
-            cacheManager.addCache(featureCache);
+            featureCache = new TieredFeatureCache(cacheManager, CACHE_NAME, cacheSizeMB,
+                    offHeapSizeMB, lifetimeSeconds);
         } else {
             /*
              * Nullify any existing cache to free up memory
@@ -203,6 +218,19 @@ public class DataCatalogue implements DatasetCatalogue, DatasetStorage, FeatureC
         }
     }
 
+    /**
+     * @return The {@link CacheTierStatistics} of each tier of the feature
+     *         cache, starting with the in-memory tier. This will be empty if
+     *         caching is disabled
+     */
+    public List<CacheTierStatistics> getCacheStatistics() {
+        TieredFeatureCache cache = featureCache;
+        if (cachingEnabled && cache != null) {
+            return cache.getStatistics();
+        }
+        return new ArrayList<>();
+    }
+
     /**
      * Removes a dataset from the catalogue. This will also delete any config
      * information about the dataset from the config file.
@@ -211,7 +239,12 @@ public class DataCatalogue implements DatasetCatalogue, DatasetStorage, FeatureC
      *            The ID of the dataset to remove
      */
     public void removeDataset(String id) {
-        datasets.remove(id);
+        discardOverviews(datasets.remove(id));
+        statisticsStore.clear(id);
+        File snapshotFile = getSnapshotFile(id);
+        if (snapshotFile != null) {
+            snapshotFile.delete();
+        }
         config.removeDataset(config.getDatasetInfo(id));
     }
 
@@ -231,13 +264,43 @@ public class DataCatalogue implements DatasetCatalogue, DatasetStorage, FeatureC
         config.changeDatasetId(config.getDatasetInfo(oldId), newId);
     }
 
+    /**
+     * @param datasetId
+     *            The ID of the dataset
+     * @return The stamp of the source data of a dataset (see
+     *         {@link DatasetFactory#getSourceStamp(String)}), or
+     *         <code>null</code> if it cannot be determined
+     */
+    public String getSourceStamp(String datasetId) {
+        DatasetConfig datasetConfig = config.getDatasetInfo(datasetId);
+        if (datasetConfig == null) {
+            return null;
+        }
+        try {
+            return DatasetFactory.forName(datasetConfig.getDataReaderClass()).getSourceStamp(
+                    datasetConfig.getLocation());
+        } catch (Exception e) {
+            log.warn("Could not determine source stamp for dataset " + datasetId, e);
+            return null;
+        }
+    }
+
     @Override
     public synchronized void datasetLoaded(Dataset dataset, Collection<VariableConfig> variables) {
         /*
          * If we already have a dataset with this ID, it will be replaced. This
          * is exactly what we want.
+         * 
+         * Since the data may have changed, any statistics calculated for the
+         * old version are no longer valid.
          */
-        datasets.put(dataset.getId(), dataset);
+        Dataset oldDataset = datasets.put(dataset.getId(), dataset);
+        if (oldDataset != null) {
+            statisticsStore.clear(dataset.getId());
+            discardOverviews(oldDataset);
+        }
+        statisticsStore.setSourceStamp(dataset.getId(), getSourceStamp(dataset.getId()));
+        configureOverviews(dataset);
 
         /*
          * Re-sort the datasets map according to the titles of the datasets, so
@@ -283,6 +346,20 @@ public class DataCatalogue implements DatasetCatalogue, DatasetStorage, FeatureC
         }
         lastUpdateTime = new DateTime();
 
+        /*
+         * Calculate the statistics for the default slice of each variable in
+         * the background, so that they are ready for auto-scaling
+         */
+        for (String varId : dataset.getVariableIds()) {
+            try {
+                if (dataset.getVariableMetadata(varId).isScalar()) {
+                    statisticsStore.computeInBackground(dataset, varId, null, null);
+                }
+            } catch (VariableNotFoundException e) {
+                log.error("Variable " + varId + " not found in dataset " + dataset.getId(), e);
+            }
+        }
+
         /*
          * The config has changed, so we save it.
          */
@@ -293,11 +370,77 @@ public class DataCatalogue implements DatasetCatalogue, DatasetStorage, FeatureC
         }
     }
 
+    /**
+     * Sets up overviews for a gridded dataset, if they are configured
+     */
+    private void configureOverviews(Dataset dataset) {
+        DatasetConfig datasetInfo = config.getDatasetInfo(dataset.getId());
+        if (!(dataset instanceof GriddedDataset) || datasetInfo == null
+                || datasetInfo.getOverviews() == null || config.getConfigFile() == null) {
+            return;
+        }
+        Decimation decimation;
+        try {
+            decimation = Decimation.valueOf(datasetInfo.getOverviews().toUpperCase());
+        } catch (IllegalArgumentException e) {
+            log.error("Unknown overview method \"" + datasetInfo.getOverviews()
+                    + "\" for dataset " + dataset.getId() + ".  Overviews will not be used.");
+            return;
+        }
+        File overviewsDir;
+        try {
+            overviewsDir = new File(new File(config.getConfigFile().getAbsoluteFile()
+                    .getParentFile(), OVERVIEWS_DIR), URLEncoder.encode(dataset.getId(), "UTF-8"));
+        } catch (UnsupportedEncodingException e) {
+            /*
+             * UTF-8 is always supported
+             */
+            throw new IllegalStateException(e);
+        }
+        ((GriddedDataset) dataset).setOverviews(new GridOverviews(overviewsDir, decimation,
+                getSourceStamp(dataset.getId()), GridOverviews.DEFAULT_MAX_DISK_SIZE));
+    }
+
+    /**
+     * Discards the overviews of a dataset which has been replaced or removed,
+     * since the underlying data may have changed
+     */
+    private static void discardOverviews(Dataset dataset) {
+        if (dataset instanceof GriddedDataset) {
+            GridOverviews overviews = ((GriddedDataset) dataset).getOverviews();
+            if (overviews != null) {
+                overviews.shutdown();
+                overviews.clear();
+            }
+        }
+    }
+
     @Override
     public DateTime getLastUpdateTime() {
         return lastUpdateTime;
     }
 
+    @Override
+    public StatisticsStore getStatisticsStore() {
+        return statisticsStore;
+    }
+
+    @Override
+    public File getSnapshotFile(String datasetId) {
+        if (config.getConfigFile() == null) {
+            return null;
+        }
+        try {
+            return new File(new File(config.getConfigFile().getAbsoluteFile().getParentFile(),
+                    SNAPSHOTS_DIR), URLEncoder.encode(datasetId, "UTF-8") + ".snapshot");
+        } catch (UnsupportedEncodingException e) {
+            /*
+             * UTF-8 is always supported
+             */
+            throw new IllegalStateException(e);
+        }
+    }
+
     @Override
     public Collection<Dataset> getAllDatasets() {
         /*
@@ -338,24 +481,51 @@ public class DataCatalogue implements DatasetCatalogue, DatasetStorage, FeatureC
         }
     }
 
+    /**
+     * Gets the time for which clients may cache responses for a layer, as
+     * configured for the dataset it belongs to
+     * 
+     * @param layerName
+     *            The name of the layer
+     * @return The cache max-age, in seconds, of the given layer, or -1 if
+     *         responses must always be revalidated (including when the layer
+     *         does not exist)
+     */
+    public int getCacheMaxAge(String layerName) {
+        EnhancedVariableMetadata metadata;
+        try {
+            metadata = layerMetadata.get(new DatasetVariableId(
+                    layerNameMapper.getDatasetIdFromLayerName(layerName),
+                    layerNameMapper.getVariableIdFromLayerName(layerName)));
+        } catch (EdalLayerNotFoundException e) {
+            return -1;
+        }
+        if (metadata instanceof VariableConfig) {
+            return ((VariableConfig) metadata).getCacheMaxAge();
+        }
+        return -1;
+    }
+
     @Override
-    @SuppressWarnings("unchecked")
     public FeaturesAndMemberName getFeaturesForLayer(String layerName, PlottingDomainParams params)
             throws EdalException {
         String variable = layerNameMapper.getVariableIdFromLayerName(layerName);
         Collection<? extends DiscreteFeature<?, ?>> mapFeatures;
         if (cachingEnabled) {
             CacheKey key = new CacheKey(layerName, params);
-            Element element = featureCache.get(key);
-            if (element != null && element.getObjectValue() != null) {
-                /*
-                 * This is why we added the SuppressWarnings("unchecked").
-                 */
-                mapFeatures = (Collection<? extends DiscreteFeature<?, ?>>) element
-                        .getObjectValue();
+            mapFeatures = featureCache.get(key);
+            if (mapFeatures != null) {
+                RequestTrace.count(RequestTrace.CACHE_HITS, 1);
             } else {
+                RequestTrace.count(RequestTrace.CACHE_MISSES, 1);
                 mapFeatures = doExtraction(layerName, variable, params);
-                featureCache.put(new Element(key, mapFeatures));
+                /*
+                 * Streamed features are read on demand from the dataset, so
+                 * there is nothing to gain by caching them
+                 */
+                if (!(mapFeatures instanceof PointFeatureStream<?>)) {
+                    featureCache.put(key, mapFeatures);
+                }
             }
         } else {
             mapFeatures = doExtraction(layerName, variable, params);
@@ -366,7 +536,7 @@ public class DataCatalogue implements DatasetCatalogue, DatasetStorage, FeatureC
     private Collection<? extends DiscreteFeature<?, ?>> doExtraction(String layerName,
             String variable, PlottingDomainParams params) {
         Dataset dataset = getDatasetFromLayerName(layerName);
-        return GraphicsUtils.extractGeneralMapFeatures(dataset, variable, params);
+        return GraphicsUtils.extractMapFeaturesForPlotting(dataset, variable, params);
     }
 
     private Dataset getDatasetFromLayerName(String layerName) {
@@ -413,6 +583,11 @@ public class DataCatalogue implements DatasetCatalogue, DatasetStorage, FeatureC
                 return false;
             return true;
         }
+
+        @Override
+        public String toString() {
+            return id;
+        }
     }
 
     private class DatasetVariableId {
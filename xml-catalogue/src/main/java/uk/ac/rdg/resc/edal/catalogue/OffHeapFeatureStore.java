@@ -0,0 +1,412 @@
+/*******************************************************************************
+ * Copyright (c) 2016 The University of Reading
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the University of Reading, nor the names of the
+ *    authors or contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ******************************************************************************/
+
+package uk.ac.rdg.resc.edal.catalogue;
+
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import uk.ac.rdg.resc.edal.domain.MapDomain;
+import uk.ac.rdg.resc.edal.feature.DiscreteFeature;
+import uk.ac.rdg.resc.edal.feature.MapFeature;
+import uk.ac.rdg.resc.edal.metadata.Parameter;
+import uk.ac.rdg.resc.edal.util.Array2D;
+import uk.ac.rdg.resc.edal.util.FloatArray2D;
+
+/**
+ * A store of extracted {@link MapFeature}s whose values are held outside of
+ * the Java heap, in direct {@link ByteBuffer}s.
+ * 
+ * Only the values of each feature are stored off-heap, as single-precision
+ * floats. The rest of the feature (its domain, parameters etc.) is small, and
+ * is kept on the heap. Retrieving features from this store copies their values
+ * back onto the heap, into {@link FloatArray2D}s.
+ * 
+ * Since the values held here are invisible to the garbage collector, this
+ * can hold far more data than an on-heap cache without causing long pauses.
+ * Note that the JVM limits the total amount of direct memory with the
+ * <code>-XX:MaxDirectMemorySize</code> option, which must be larger than the
+ * size of this store.
+ * 
+ * The least-recently-used entries are evicted when the store is full. The
+ * memory of evicted entries is released as soon as no request is reading
+ * them, rather than when the garbage collector gets round to it.
+ * 
+ * @author Guy Griffiths
+ */
+public class OffHeapFeatureStore {
+    private static final Logger log = LoggerFactory.getLogger(OffHeapFeatureStore.class);
+
+    private final long maxBytes;
+    private final long lifetimeMillis;
+    private final Map<Object, StoredFeatures> entries;
+    private long sizeBytes = 0L;
+
+    private long hits = 0L;
+    private long misses = 0L;
+    private long evictions = 0L;
+
+    /**
+     * @param maxBytes
+     *            The maximum number of bytes of feature values to store
+     * @param lifetimeMillis
+     *            The time after which entries expire, or 0 if they should
+     *            never expire
+     */
+    public OffHeapFeatureStore(long maxBytes, long lifetimeMillis) {
+        this.maxBytes = maxBytes;
+        this.lifetimeMillis = lifetimeMillis;
+        entries = new LinkedHashMap<>(16, 0.75f, true);
+    }
+
+    /**
+     * Converts a {@link Collection} of {@link MapFeature}s into a compact form,
+     * with all values stored in {@link FloatArray2D}s.
+     * 
+     * @param features
+     *            The features to convert
+     * @return A {@link List} of compact {@link MapFeature}s, or
+     *         <code>null</code> if the supplied features are not all
+     *         {@link MapFeature}s
+     */
+    public static List<MapFeature> compact(Collection<? extends DiscreteFeature<?, ?>> features) {
+        List<MapFeature> compacted = new ArrayList<>();
+        for (DiscreteFeature<?, ?> feature : features) {
+            if (!(feature instanceof MapFeature) || feature.getParameterMap() == null) {
+                return null;
+            }
+            MapFeature mapFeature = (MapFeature) feature;
+            Map<String, Array2D<Number>> values = new HashMap<>();
+            for (String paramId : mapFeature.getParameterIds()) {
+                Array2D<Number> paramValues = mapFeature.getValues(paramId);
+                if (paramValues instanceof FloatArray2D) {
+                    values.put(paramId, paramValues);
+                } else if (paramValues != null) {
+                    values.put(paramId, FloatArray2D.copyOf(paramValues));
+                }
+            }
+            compacted.add(copyFeature(mapFeature, values));
+        }
+        return compacted;
+    }
+
+    private static MapFeature copyFeature(MapFeature feature, Map<String, Array2D<Number>> values) {
+        MapFeature copy = new MapFeature(feature.getId(), feature.getName(),
+                feature.getDescription(), feature.getDomain(), feature.getParameterMap(), values);
+        copy.getFeatureProperties().putAll(feature.getFeatureProperties());
+        return copy;
+    }
+
+    /**
+     * Stores a set of features
+     * 
+     * @param key
+     *            The key to store the features under
+     * @param features
+     *            The features to store. These should have been compacted with
+     *            {@link OffHeapFeatureStore#compact(Collection)}
+     * @return <code>true</code> if the features were stored, or
+     *         <code>false</code> if they are too large for this store
+     */
+    public boolean put(Object key, List<MapFeature> features) {
+        /*
+         * Check the size before allocating anything, so that features which
+         * will never fit don't use up direct memory
+         */
+        long bytes = 0L;
+        for (MapFeature feature : features) {
+            bytes += StoredFeature.getSizeBytes(feature);
+        }
+        if (bytes > maxBytes) {
+            return false;
+        }
+        List<StoredFeature> stored = new ArrayList<>();
+        try {
+            for (MapFeature feature : features) {
+                stored.add(new StoredFeature(feature));
+            }
+        } catch (OutOfMemoryError e) {
+            /*
+             * Direct memory is exhausted (e.g. -XX:MaxDirectMemorySize is
+             * smaller than this store). Release what we have allocated.
+             */
+            for (StoredFeature storedFeature : stored) {
+                storedFeature.free();
+            }
+            return false;
+        }
+        StoredFeatures entry = new StoredFeatures(stored, bytes, System.currentTimeMillis());
+        synchronized (this) {
+            StoredFeatures previous = entries.remove(key);
+            if (previous != null) {
+                remove(previous);
+            }
+            Iterator<StoredFeatures> iterator = entries.values().iterator();
+            while (sizeBytes + bytes > maxBytes && iterator.hasNext()) {
+                StoredFeatures evicted = iterator.next();
+                iterator.remove();
+                remove(evicted);
+                evictions++;
+            }
+            entries.put(key, entry);
+            sizeBytes += bytes;
+        }
+        return true;
+    }
+
+    /*
+     * Accounts for an entry which has been taken out of the map, and frees it
+     * unless it is still being read
+     */
+    private void remove(StoredFeatures entry) {
+        sizeBytes -= entry.sizeBytes;
+        entry.removed = true;
+        if (entry.readers == 0) {
+            entry.free();
+        }
+    }
+
+    /**
+     * Retrieves a set of features
+     * 
+     * @param key
+     *            The key which the features were stored under
+     * @return The features, copied back onto the heap, or <code>null</code> if
+     *         no features are stored with the given key
+     */
+    public List<MapFeature> get(Object key) {
+        StoredFeatures entry;
+        synchronized (this) {
+            entry = entries.get(key);
+            if (entry != null && lifetimeMillis > 0
+                    && System.currentTimeMillis() - entry.storedTime > lifetimeMillis) {
+                entries.remove(key);
+                remove(entry);
+                entry = null;
+            }
+            if (entry == null) {
+                misses++;
+                return null;
+            }
+            hits++;
+            entry.hits++;
+            entry.readers++;
+        }
+        /*
+         * The buffers of an entry are never modified, and are not freed while
+         * it has readers, so no lock is needed here
+         */
+        try {
+            List<MapFeature> features = new ArrayList<>();
+            for (StoredFeature storedFeature : entry.features) {
+                features.add(storedFeature.toFeature());
+            }
+            return features;
+        } finally {
+            synchronized (this) {
+                entry.readers--;
+                if (entry.removed && entry.readers == 0) {
+                    entry.free();
+                }
+            }
+        }
+    }
+
+    /**
+     * @param key
+     *            The key which the features were stored under
+     * @return The number of times the features stored under the given key
+     *         have been retrieved since they were stored, or 0 if there are
+     *         no such features
+     */
+    public synchronized int getHits(Object key) {
+        StoredFeatures entry = entries.get(key);
+        return entry == null ? 0 : entry.hits;
+    }
+
+    /**
+     * Removes all entries from this store
+     */
+    public synchronized void clear() {
+        for (StoredFeatures entry : entries.values()) {
+            remove(entry);
+        }
+        entries.clear();
+        sizeBytes = 0L;
+    }
+
+    /**
+     * @return The current {@link CacheTierStatistics} of this store
+     */
+    public synchronized CacheTierStatistics getStatistics() {
+        return new CacheTierStatistics("off-heap", entries.size(), sizeBytes, maxBytes, hits,
+                misses, evictions);
+    }
+
+    private static class StoredFeatures {
+        final List<StoredFeature> features;
+        final long sizeBytes;
+        final long storedTime;
+        /*
+         * Guarded by the store's lock
+         */
+        int readers = 0;
+        int hits = 0;
+        boolean removed = false;
+
+        public StoredFeatures(List<StoredFeature> features, long sizeBytes, long storedTime) {
+            this.features = features;
+            this.sizeBytes = sizeBytes;
+            this.storedTime = storedTime;
+        }
+
+        void free() {
+            for (StoredFeature feature : features) {
+                feature.free();
+            }
+        }
+    }
+
+    /**
+     * A {@link MapFeature} with all of its values stored in a single direct
+     * buffer, one parameter after another
+     */
+    private static class StoredFeature {
+        private final String id;
+        private final String name;
+        private final String description;
+        private final MapDomain domain;
+        private final Map<String, Parameter> parameters;
+        private final Properties properties;
+        private final String[] valueIds;
+        private final int xSize;
+        private final int ySize;
+        private final ByteBuffer values;
+
+        public StoredFeature(MapFeature feature) {
+            id = feature.getId();
+            name = feature.getName();
+            description = feature.getDescription();
+            domain = feature.getDomain();
+            parameters = feature.getParameterMap();
+            properties = new Properties();
+            properties.putAll(feature.getFeatureProperties());
+            xSize = domain.getXSize();
+            ySize = domain.getYSize();
+
+            List<String> ids = getValueIds(feature);
+            valueIds = ids.toArray(new String[ids.size()]);
+            values = ByteBuffer.allocateDirect(valueIds.length * xSize * ySize * 4).order(
+                    ByteOrder.nativeOrder());
+            FloatBuffer floatValues = values.asFloatBuffer();
+            for (String paramId : valueIds) {
+                Array2D<Number> paramValues = feature.getValues(paramId);
+                if (!(paramValues instanceof FloatArray2D)) {
+                    paramValues = FloatArray2D.copyOf(paramValues);
+                }
+                floatValues.put(((FloatArray2D) paramValues).getData());
+            }
+        }
+
+        private static List<String> getValueIds(MapFeature feature) {
+            List<String> ids = new ArrayList<>();
+            for (String paramId : feature.getParameterIds()) {
+                if (feature.getValues(paramId) != null) {
+                    ids.add(paramId);
+                }
+            }
+            return ids;
+        }
+
+        /**
+         * @return The number of bytes needed to store the values of a feature
+         */
+        static long getSizeBytes(MapFeature feature) {
+            return 4L * getValueIds(feature).size() * feature.getDomain().getXSize()
+                    * feature.getDomain().getYSize();
+        }
+
+        /**
+         * Releases the direct memory held by this feature. It must not be used
+         * afterwards.
+         */
+        void free() {
+            freeDirectBuffer(values);
+        }
+
+        public MapFeature toFeature() {
+            FloatBuffer floatValues = values.duplicate().order(ByteOrder.nativeOrder())
+                    .asFloatBuffer();
+            Map<String, Array2D<Number>> valuesMap = new HashMap<>();
+            for (String paramId : valueIds) {
+                float[] data = new float[xSize * ySize];
+                floatValues.get(data);
+                valuesMap.put(paramId, new FloatArray2D(ySize, xSize, data));
+            }
+            MapFeature feature = new MapFeature(id, name, description, domain, parameters,
+                    valuesMap);
+            feature.getFeatureProperties().putAll(properties);
+            return feature;
+        }
+    }
+
+    /*
+     * Direct buffers are normally only freed once they have been garbage
+     * collected. There is no public API to free them sooner, so we use the
+     * buffer's cleaner where the JVM lets us, and otherwise leave it to the
+     * garbage collector.
+     */
+    private static void freeDirectBuffer(ByteBuffer buffer) {
+        try {
+            Method cleanerMethod = buffer.getClass().getMethod("cleaner");
+            cleanerMethod.setAccessible(true);
+            Object cleaner = cleanerMethod.invoke(buffer);
+            if (cleaner != null) {
+                cleaner.getClass().getMethod("clean").invoke(cleaner);
+            }
+        } catch (Exception | LinkageError e) {
+            /*
+             * Newer JVMs don't allow access to the cleaner
+             */
+            log.debug("Cannot free direct buffer; it will be freed when garbage collected");
+        }
+    }
+}
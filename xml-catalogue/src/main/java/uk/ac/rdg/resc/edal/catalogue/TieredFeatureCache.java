@@ -0,0 +1,225 @@
+/*******************************************************************************
+ * Copyright (c) 2016 The University of Reading
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the University of Reading, nor the names of the
+ *    authors or contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ******************************************************************************/
+
+package uk.ac.rdg.resc.edal.catalogue;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+import net.sf.ehcache.Cache;
+import net.sf.ehcache.CacheManager;
+import net.sf.ehcache.Element;
+import net.sf.ehcache.config.CacheConfiguration;
+import net.sf.ehcache.config.CacheConfiguration.TransactionalMode;
+import net.sf.ehcache.config.MemoryUnit;
+import net.sf.ehcache.config.PersistenceConfiguration;
+import net.sf.ehcache.config.PersistenceConfiguration.Strategy;
+import net.sf.ehcache.statistics.StatisticsGateway;
+import net.sf.ehcache.store.MemoryStoreEvictionPolicy;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import uk.ac.rdg.resc.edal.feature.DiscreteFeature;
+import uk.ac.rdg.resc.edal.feature.MapFeature;
+
+/**
+ * The cache of extracted features used by a {@link DataCatalogue}.
+ * 
+ * Without an off-heap tier, features are held in an in-memory {@link Cache}
+ * which is limited by the total size of the cached objects. This is measured
+ * by walking their object graphs, which can be costly for large features.
+ * 
+ * With an off-heap tier, newly extracted map features are only stored in an
+ * {@link OffHeapFeatureStore}, which holds the bulk of the cached data.
+ * Features which are retrieved from it repeatedly are promoted to a small
+ * in-memory tier, so that the most popular features don't need to be copied
+ * back onto the heap for every request. The in-memory tier is then limited by
+ * its number of entries, so nothing needs to be measured.
+ * 
+ * @author Guy Griffiths
+ */
+public class TieredFeatureCache {
+    private static final Logger log = LoggerFactory.getLogger(TieredFeatureCache.class);
+
+    /**
+     * The maximum number of entries in the in-memory tier, when there is an
+     * off-heap tier
+     */
+    public static final int HOT_ENTRIES = 32;
+
+    /**
+     * The number of times an entry must be retrieved from the off-heap tier
+     * before it is promoted to the in-memory tier
+     */
+    public static final int PROMOTION_HITS = 2;
+
+    private final CacheManager cacheManager;
+    private final Cache heapCache;
+    private final OffHeapFeatureStore offHeapStore;
+    private final int heapSizeMB;
+    private final int offHeapSizeMB;
+    private final long lifetimeSeconds;
+
+    /**
+     * Creates a new {@link TieredFeatureCache}, adding its in-memory tier to
+     * a {@link CacheManager}
+     * 
+     * @param cacheManager
+     *            The {@link CacheManager} to add the in-memory tier to. This
+     *            must not already have a cache with the given name.
+     * @param name
+     *            The name of the in-memory tier
+     * @param heapSizeMB
+     *            The maximum size of the in-memory tier, in MB. This is only
+     *            used if there is no off-heap tier.
+     * @param offHeapSizeMB
+     *            The maximum size of the off-heap tier, in MB, or 0 if only
+     *            the in-memory tier should be used
+     * @param lifetimeSeconds
+     *            The time after which entries expire, or 0 if they should
+     *            never expire
+     */
+    public TieredFeatureCache(CacheManager cacheManager, String name, int heapSizeMB,
+            int offHeapSizeMB, long lifetimeSeconds) {
+        this.cacheManager = cacheManager;
+        this.heapSizeMB = heapSizeMB;
+        this.offHeapSizeMB = offHeapSizeMB;
+        this.lifetimeSeconds = lifetimeSeconds;
+
+        CacheConfiguration config = new CacheConfiguration(name, 0)
+                .eternal(lifetimeSeconds == 0)
+                .timeToLiveSeconds(lifetimeSeconds)
+                .memoryStoreEvictionPolicy(MemoryStoreEvictionPolicy.LFU)
+                .persistence(new PersistenceConfiguration().strategy(Strategy.NONE))
+                .transactionalMode(TransactionalMode.OFF);
+        if (offHeapSizeMB > 0) {
+            config.maxEntriesLocalHeap(HOT_ENTRIES);
+            offHeapStore = new OffHeapFeatureStore(offHeapSizeMB * 1024L * 1024L,
+                    lifetimeSeconds * 1000L);
+        } else {
+            config.maxBytesLocalHeap(heapSizeMB, MemoryUnit.MEGABYTES);
+            offHeapStore = null;
+        }
+        heapCache = new Cache(config);
+        cacheManager.addCache(heapCache);
+    }
+
+    /**
+     * Retrieves features from the cache
+     * 
+     * @param key
+     *            The key which the features were stored under
+     * @return The cached features, or <code>null</code> if there are none
+     */
+    @SuppressWarnings("unchecked")
+    public Collection<? extends DiscreteFeature<?, ?>> get(Object key) {
+        Element element = heapCache.get(key);
+        if (element != null && element.getObjectValue() != null) {
+            return (Collection<? extends DiscreteFeature<?, ?>>) element.getObjectValue();
+        }
+        if (offHeapStore == null) {
+            return null;
+        }
+        List<MapFeature> features = offHeapStore.get(key);
+        if (features != null && offHeapStore.getHits(key) >= PROMOTION_HITS) {
+            heapCache.put(new Element(key, features));
+        }
+        return features;
+    }
+
+    /**
+     * Stores features in the cache
+     * 
+     * @param key
+     *            The key to store the features under
+     * @param features
+     *            The features to store
+     */
+    public void put(Object key, Collection<? extends DiscreteFeature<?, ?>> features) {
+        /*
+         * Map features are stored off-heap with their values in primitive
+         * float arrays. Other features, and all features when there is no
+         * off-heap tier, are cached in memory as-is so that no precision is
+         * lost.
+         */
+        List<MapFeature> compacted = offHeapStore == null ? null : OffHeapFeatureStore
+                .compact(features);
+        if (compacted == null) {
+            heapCache.put(new Element(key, features));
+        } else if (!offHeapStore.put(key, compacted)) {
+            log.debug("Features for " + key + " are too large for the off-heap cache");
+        }
+    }
+
+    /**
+     * @return The {@link CacheTierStatistics} of each tier, starting with the
+     *         in-memory tier. When there is an off-heap tier, the in-memory
+     *         tier is limited by its number of entries, and so its sizes are
+     *         reported as -1.
+     */
+    public List<CacheTierStatistics> getStatistics() {
+        List<CacheTierStatistics> stats = new ArrayList<>();
+        StatisticsGateway heapStats = heapCache.getStatistics();
+        if (offHeapStore == null) {
+            stats.add(new CacheTierStatistics("heap", heapStats.getSize(),
+                    heapStats.getLocalHeapSizeInBytes(), heapCache.getCacheConfiguration()
+                            .getMaxBytesLocalHeap(), heapStats.cacheHitCount(),
+                    heapStats.cacheMissCount(), heapStats.cacheEvictedCount()));
+        } else {
+            stats.add(new CacheTierStatistics("heap", heapStats.getSize(), -1L, -1L,
+                    heapStats.cacheHitCount(), heapStats.cacheMissCount(),
+                    heapStats.cacheEvictedCount()));
+            stats.add(offHeapStore.getStatistics());
+        }
+        return stats;
+    }
+
+    /**
+     * @return Whether this cache was created with the given settings
+     */
+    boolean hasSettings(int heapSizeMB, int offHeapSizeMB, long lifetimeSeconds) {
+        return this.heapSizeMB == heapSizeMB && this.offHeapSizeMB == offHeapSizeMB
+                && this.lifetimeSeconds == lifetimeSeconds;
+    }
+
+    /**
+     * Removes the in-memory tier from its {@link CacheManager} and releases
+     * the memory of the off-heap tier. This cache must not be used
+     * afterwards.
+     */
+    public void dispose() {
+        if (cacheManager.cacheExists(heapCache.getName())) {
+            cacheManager.removeCache(heapCache.getName());
+        }
+        if (offHeapStore != null) {
+            offHeapStore.clear();
+        }
+    }
+}
@@ -51,6 +51,12 @@ public class CacheInfo {
     private int inMemorySizeMB = 256;
     @XmlElement(name = "elementLifetimeMinutes")
     private float elementLifetimeMinutes = 0;
+    /*
+     * The size of the off-heap tier of the cache. If this is 0 (the default),
+     * only the in-memory cache is used
+     */
+    @XmlElement(name = "offHeapSizeMB")
+    private int offHeapSizeMB = 0;
 
     public CacheInfo() {
     }
@@ -61,6 +67,12 @@ public class CacheInfo {
         this.elementLifetimeMinutes = elementLifetimeMinutes;
     }
 
+    public CacheInfo(boolean enabled, int inMemorySizeMB, float elementLifetimeMinutes,
+            int offHeapSizeMB) {
+        this(enabled, inMemorySizeMB, elementLifetimeMinutes);
+        this.offHeapSizeMB = offHeapSizeMB;
+    }
+
     public boolean isEnabled() {
         return enabled;
     }
@@ -84,4 +96,12 @@ public class CacheInfo {
     public float getElementLifetimeMinutes() {
         return elementLifetimeMinutes;
     }
+
+    public int getOffHeapSizeMB() {
+        return offHeapSizeMB;
+    }
+
+    public void setOffHeapSizeMB(int offHeapSizeMB) {
+        this.offHeapSizeMB = offHeapSizeMB;
+    }
 }
@@ -37,14 +37,11 @@ import java.io.IOException;
 import java.io.Reader;
 import java.io.Writer;
 import java.nio.channels.FileChannel;
+import java.util.ArrayList;
 import java.util.Collection;
-import java.util.HashMap;
 import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
-import java.util.concurrent.Executors;
-import java.util.concurrent.ScheduledExecutorService;
-import java.util.concurrent.ScheduledFuture;
-import java.util.concurrent.TimeUnit;
 
 import javax.xml.bind.JAXBContext;
 import javax.xml.bind.JAXBException;
@@ -64,6 +61,7 @@ import org.slf4j.LoggerFactory;
 
 import uk.ac.rdg.resc.edal.dataset.Dataset;
 import uk.ac.rdg.resc.edal.graphics.utils.DatasetCatalogue;
+import uk.ac.rdg.resc.edal.graphics.utils.StatisticsStore;
 
 /**
  * Deals purely with the (de)serialisation of an XML config file for a
@@ -71,7 +69,7 @@ import uk.ac.rdg.resc.edal.graphics.utils.DatasetCatalogue;
  * 
  * @author Guy Griffiths
  */
-@XmlType(name = "config", propOrder = { "datasets", "cacheInfo" })
+@XmlType(name = "config", propOrder = { "datasets", "cacheInfo", "loadingInfo" })
 @XmlRootElement(name = "config")
 public class CatalogueConfig {
     private static final Logger log = LoggerFactory.getLogger(CatalogueConfig.class);
@@ -80,6 +78,8 @@ public class CatalogueConfig {
     private Map<String, DatasetConfig> datasets = new LinkedHashMap<>();
     @XmlElement(name = "cache")
     private CacheInfo cacheInfo = new CacheInfo();
+    @XmlElement(name = "loading")
+    private LoadingInfo loadingInfo = new LoadingInfo();
     @XmlTransient
     private DatasetStorage datasetStorage = null;
     @XmlTransient
@@ -88,12 +88,10 @@ public class CatalogueConfig {
     private File configBackup;
 
     /** The scheduler that will handle the background (re)loading of datasets */
-    private static ScheduledExecutorService scheduler = Executors.newScheduledThreadPool(4);
-    /**
-     * Contains handles to background threads that can be used to cancel
-     * reloading of datasets. Maps dataset IDs to Future objects
-     */
-    private static Map<String, ScheduledFuture<?>> futures = new HashMap<String, ScheduledFuture<?>>();
+    @XmlTransient
+    private DatasetLoadScheduler scheduler = null;
+    /** All schedulers which have been started, so that they can be shut down */
+    private static final List<DatasetLoadScheduler> schedulers = new ArrayList<>();
 
     /*
      * Used for JAX-B
@@ -119,6 +117,12 @@ public class CatalogueConfig {
         this.cacheInfo = cacheInfo;
     }
 
+    public CatalogueConfig(DatasetConfig[] datasets, CacheInfo cacheInfo,
+            LoadingInfo loadingInfo) {
+        this(datasets, cacheInfo);
+        this.loadingInfo = loadingInfo;
+    }
+
     public void setDatasetLoadedHandler(DatasetStorage datasetStorage) {
         this.datasetStorage = datasetStorage;
     }
@@ -129,7 +133,8 @@ public class CatalogueConfig {
          * 
          * Do this in a manner which means that they are "reloaded" every second
          * (and checked as to whether they need to actually have anything done
-         * to them)
+         * to them). The DatasetLoadScheduler decides the order in which
+         * datasets get loaded.
          * 
          * Also during the load, return EnhancedVariableMetadata (these are just
          * the VariableConfigs...)
@@ -139,34 +144,40 @@ public class CatalogueConfig {
         }
     }
 
-    private void scheduleReload(final DatasetConfig dataset) {
+    private synchronized void scheduleReload(final DatasetConfig dataset) {
         if (datasetStorage == null) {
             throw new IllegalStateException(
                     "You need to set something to handle loaded datasets before loading them.");
         }
-        Runnable reloader = new Runnable() {
-            @Override
-            public void run() {
-                /*
-                 * This will check to see if the metadata need reloading, then
-                 * go ahead if so.
-                 */
-                dataset.refresh(datasetStorage);
+        if (scheduler == null) {
+            scheduler = new DatasetLoadScheduler(datasetStorage, loadingInfo);
+            synchronized (schedulers) {
+                schedulers.add(scheduler);
             }
-        };
-        /*
-         * Run the task immediately, and then redo it every 1s
-         */
-        ScheduledFuture<?> future = scheduler.scheduleWithFixedDelay(reloader, 0, 1,
-                TimeUnit.SECONDS);
-        /* We need to keep a handle to the Future object so we can cancel it */
-        futures.put(dataset.getId(), future);
+        }
+        scheduler.add(dataset);
     }
 
     public CacheInfo getCacheSettings() {
         return cacheInfo;
     }
 
+    /**
+     * @return The settings controlling how datasets are loaded. Changes to
+     *         these only take effect the next time the config is loaded
+     */
+    public LoadingInfo getLoadingSettings() {
+        return loadingInfo;
+    }
+
+    /**
+     * @return The file this config is saved to, or <code>null</code> if it
+     *         has no location
+     */
+    public File getConfigFile() {
+        return configFile;
+    }
+
     public DatasetConfig getDatasetInfo(String datasetId) {
         return datasets.get(datasetId);
     }
@@ -196,17 +207,20 @@ public class CatalogueConfig {
 
     public synchronized void removeDataset(DatasetConfig dataset) {
         datasets.remove(dataset.getId());
-        futures.get(dataset.getId()).cancel(true);
-        futures.remove(dataset.getId());
+        if (scheduler != null) {
+            scheduler.remove(dataset);
+        }
     }
 
     public synchronized void changeDatasetId(DatasetConfig dataset, String newId) {
+        /*
+         * The scheduler holds the DatasetConfig itself, so doesn't need to know
+         * about the change
+         */
         datasets.remove(dataset.getId());
-        ScheduledFuture<?> removedScheduler = futures.remove(dataset.getId());
         dataset.setId(newId);
 
         datasets.put(newId, dataset);
-        futures.put(dataset.getId(), removedScheduler);
     }
 
     public synchronized void save() throws IOException {
@@ -238,7 +252,12 @@ public class CatalogueConfig {
     }
 
     public static void shutdown() {
-        scheduler.shutdownNow();
+        synchronized (schedulers) {
+            for (DatasetLoadScheduler scheduler : schedulers) {
+                scheduler.shutdown();
+            }
+            schedulers.clear();
+        }
     }
 
     @Override
@@ -344,5 +363,25 @@ public class CatalogueConfig {
          *            {@link Dataset}
          */
         public void datasetLoaded(Dataset dataset, Collection<VariableConfig> variables);
+
+        /**
+         * @return The {@link StatisticsStore} to use when estimating value
+         *         ranges for newly-loaded variables. May be <code>null</code>,
+         *         which is the default.
+         */
+        public default StatisticsStore getStatisticsStore() {
+            return null;
+        }
+
+        /**
+         * @param datasetId
+         *            The ID of a {@link Dataset}
+         * @return The file in which to store a snapshot of the metadata of the
+         *         given {@link Dataset}, or <code>null</code> if snapshots
+         *         should not be used, which is the default.
+         */
+        public default File getSnapshotFile(String datasetId) {
+            return null;
+        }
     }
 }
@@ -29,6 +29,7 @@
 package uk.ac.rdg.resc.edal.catalogue.jaxb;
 
 import java.awt.Color;
+import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.HashMap;
@@ -129,6 +130,28 @@ public class DatasetConfig {
     @XmlAttribute(name = "metadataMimetype")
     private String metadataMimetype = null;
 
+    /*
+     * The method used to generate reduced-resolution overviews of gridded
+     * data ("nearest" or "mean"). null means that no overviews are used
+     */
+    @XmlAttribute(name = "overviews")
+    private String overviews = null;
+
+    /*
+     * Datasets with a higher priority are loaded before those with a lower
+     * priority
+     */
+    @XmlAttribute(name = "priority")
+    private int priority = 0;
+
+    /*
+     * The time in seconds for which clients may cache responses generated
+     * from this dataset without revalidating them. -1 means that clients must
+     * always revalidate (using the ETag of the response)
+     */
+    @XmlAttribute(name = "cacheMaxAge")
+    private int cacheMaxAge = -1;
+
     /*
      * The VariableConfigs are part of the XML definition, but the annotations
      * are on the setter, so that we can set each one's DatasetConfig to this
@@ -174,6 +197,15 @@ public class DatasetConfig {
      */
     @XmlTransient
     private DateTime lastFailedUpdateTime = null;
+    /*
+     * Set if the dataset has been loaded from state cached by a previous run,
+     * and so needs checking against its source data
+     */
+    @XmlTransient
+    private boolean revalidationPending = false;
+    /* Set if loading the dataset from cached state has failed */
+    @XmlTransient
+    private boolean cachedLoadFailed = false;
 
     public DatasetConfig() {
     }
@@ -191,9 +223,32 @@ public class DatasetConfig {
      *            completed
      */
     public void refresh(DatasetStorage datasetStorage) {
+        refresh(datasetStorage, false);
+    }
+
+    /**
+     * Refreshes the dataset if required.
+     * 
+     * @param datasetStorage
+     *            The {@link DatasetStorage} object to send {@link Dataset}s and
+     *            {@link EnhancedVariableMetadata} back to once a refresh is
+     *            completed
+     * @param fastStart
+     *            If <code>true</code>, the first load of this dataset will use
+     *            any state cached by a previous run (i.e. it will not force the
+     *            {@link DatasetFactory} to refresh). The dataset will then need
+     *            revalidating with a full refresh.
+     */
+    public void refresh(DatasetStorage datasetStorage, boolean fastStart) {
         if (!needsRefresh()) {
             return;
         }
+        boolean fromCache = fastStart && lastSuccessfulUpdateTime == null && !cachedLoadFailed;
+        /*
+         * Snapshots are only used for the first load. Subsequent refreshes are
+         * either scheduled or explicitly requested, so should re-read the data
+         */
+        boolean useSnapshot = lastSuccessfulUpdateTime == null;
         loadingProgress = new ArrayList<String>();
         /*
          * Include the id of the dataset in the thread for debugging purposes
@@ -210,17 +265,31 @@ public class DatasetConfig {
              */
             state = lastSuccessfulUpdateTime == null ? DatasetState.LOADING : DatasetState.UPDATING;
 
-            createDataset(datasetStorage, true);
+            boolean fromSnapshot = createDataset(datasetStorage, !fromCache, useSnapshot);
 
             /*
              * Update the state of this dataset. If we've got this far there
              * were no errors.
+             * 
+             * A dataset restored from a snapshot has already been checked
+             * against its source files, so doesn't need revalidating.
              */
+            revalidationPending = fromCache && !fromSnapshot;
             err = null;
             numErrorsInARow = 0;
             state = DatasetState.READY;
             lastSuccessfulUpdateTime = new DateTime();
         } catch (Exception e) {
+            if (fromCache) {
+                /*
+                 * The cached state may be out of date or corrupt. Go straight
+                 * to a full load rather than treating this as an error.
+                 */
+                log.warn("Could not load dataset " + id + " from cached state", e);
+                cachedLoadFailed = true;
+                state = DatasetState.NEEDS_REFRESH;
+                return;
+            }
             state = DatasetState.ERROR;
             numErrorsInARow++;
             lastFailedUpdateTime = new DateTime();
@@ -237,6 +306,26 @@ public class DatasetConfig {
 
     public void createDataset(DatasetStorage datasetStorage, boolean forceRefresh) throws InstantiationException,
             IllegalAccessException, ClassNotFoundException, IOException, EdalException {
+        createDataset(datasetStorage, forceRefresh, false);
+    }
+
+    /**
+     * Creates the {@link Dataset} and sends it to the {@link DatasetStorage}
+     * 
+     * @param datasetStorage
+     *            The {@link DatasetStorage} to send the {@link Dataset} to
+     * @param forceRefresh
+     *            Whether the {@link DatasetFactory} should ignore any cached
+     *            information when reading the source data
+     * @param useSnapshot
+     *            Whether to recreate the {@link Dataset} from a snapshot of its
+     *            metadata, if an up-to-date one exists
+     * @return <code>true</code> if the {@link Dataset} was recreated from a
+     *         snapshot
+     */
+    public boolean createDataset(DatasetStorage datasetStorage, boolean forceRefresh,
+            boolean useSnapshot) throws InstantiationException, IllegalAccessException,
+            ClassNotFoundException, IOException, EdalException {
         loadingProgress.add("Starting loading");
 
         /*
@@ -250,9 +339,36 @@ public class DatasetConfig {
          * TODO In the old version, we dealt with OPeNDAP credentials here...
          */
 
-        Dataset dataset = factory.createDataset(id, location, forceRefresh);
+        File snapshotFile = datasetStorage.getSnapshotFile(id);
+        Dataset dataset = null;
+        if (useSnapshot && snapshotFile != null) {
+            try {
+                dataset = factory.createDatasetFromSnapshot(id, location, snapshotFile);
+            } catch (EdalException e) {
+                log.warn("Problem restoring dataset " + id + " from snapshot", e);
+            }
+        }
+        boolean fromSnapshot = dataset != null;
+        if (fromSnapshot) {
+            loadingProgress.add("Dataset restored from metadata snapshot");
+        } else {
+            dataset = factory.createDataset(id, location, forceRefresh);
+            loadingProgress.add("Dataset created");
 
-        loadingProgress.add("Dataset created");
+            if (snapshotFile != null) {
+                /*
+                 * Failing to write a snapshot only affects the next startup,
+                 * so shouldn't stop the dataset being loaded
+                 */
+                try {
+                    if (factory.writeSnapshot(dataset, location, snapshotFile)) {
+                        loadingProgress.add("Metadata snapshot written");
+                    }
+                } catch (IOException e) {
+                    log.warn("Could not write metadata snapshot for dataset " + id, e);
+                }
+            }
+        }
         /*
          * Loop through existing variables and check that they are still there,
          * removing them if not
@@ -276,7 +392,8 @@ public class DatasetConfig {
                 /*
                  * Create a new variable object with default values.
                  */
-                Extent<Float> colorScaleRange = GraphicsUtils.estimateValueRange(dataset, varId);
+                Extent<Float> colorScaleRange = GraphicsUtils.estimateValueRange(dataset, varId,
+                        datasetStorage.getStatisticsStore());
                 VariableMetadata variableMetadata = dataset.getVariableMetadata(varId);
                 VariableConfig variable = new VariableConfig(varId, varId, variableMetadata
                         .getParameter().getDescription(), colorScaleRange,
@@ -291,9 +408,10 @@ public class DatasetConfig {
         datasetStorage.datasetLoaded(dataset, variables.values());
 
         loadingProgress.add("Finished loading dataset metadata");
+        return fromSnapshot;
     }
 
-    private boolean needsRefresh() {
+    boolean needsRefresh() {
         if (disabled || state == DatasetState.LOADING || state == DatasetState.UPDATING) {
             return false;
         } else if (state == DatasetState.NEEDS_REFRESH) {
@@ -310,6 +428,8 @@ public class DatasetConfig {
             boolean needsRefresh = lastFailedUpdateTime == null ? true : new DateTime()
                     .isAfter(lastFailedUpdateTime.plusSeconds((int) delaySeconds));
             return needsRefresh;
+        } else if (revalidationPending) {
+            return true;
         } else if (this.updateInterval < 0) {
             /* We never update this dataset */
             return false;
@@ -369,6 +489,41 @@ public class DatasetConfig {
         return downloadable;
     }
 
+    /**
+     * @return The method to use for generating overviews of gridded data
+     *         ("nearest" or "mean"), or <code>null</code> if overviews should
+     *         not be used
+     */
+    public String getOverviews() {
+        return overviews;
+    }
+
+    /**
+     * @return The loading priority of the {@link Dataset} being configured.
+     *         Datasets with higher priorities are loaded first.
+     */
+    public int getPriority() {
+        return priority;
+    }
+
+    /**
+     * @return The time, in seconds, for which clients may cache responses
+     *         generated from the {@link Dataset} being configured without
+     *         revalidating them, or -1 if they must always revalidate
+     */
+    public int getCacheMaxAge() {
+        return cacheMaxAge;
+    }
+
+    /**
+     * @return Whether the {@link Dataset} being configured has been loaded
+     *         from state cached by a previous run, and not yet checked against
+     *         its source data
+     */
+    public boolean isRevalidationPending() {
+        return revalidationPending;
+    }
+
     /**
      * @return Whether the {@link Dataset} being configured is enabled
      */
@@ -537,6 +692,18 @@ public class DatasetConfig {
         this.downloadable = downloadable;
     }
 
+    public void setOverviews(String overviews) {
+        this.overviews = overviews;
+    }
+
+    public void setPriority(int priority) {
+        this.priority = priority;
+    }
+
+    public void setCacheMaxAge(int cacheMaxAge) {
+        this.cacheMaxAge = cacheMaxAge;
+    }
+
     public void setDataReaderClass(String dataReaderClass) {
         this.dataReaderClass = dataReaderClass;
     }
@@ -0,0 +1,332 @@
+/*******************************************************************************
+ * Copyright (c) 2016 The University of Reading
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the University of Reading, nor the names of the
+ *    authors or contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ******************************************************************************/
+
+package uk.ac.rdg.resc.edal.catalogue.jaxb;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import uk.ac.rdg.resc.edal.catalogue.jaxb.CatalogueConfig.DatasetStorage;
+
+/**
+ * Handles the background (re)loading of the datasets in a
+ * {@link CatalogueConfig}.
+ * 
+ * Every second, all datasets are checked to see whether they need refreshing.
+ * Those which do are started in order of:
+ * <ul>
+ * <li>Datasets which have never been loaded (and so are not yet available to
+ * users) before those which are being reloaded</li>
+ * <li>The priority of the dataset, highest first</li>
+ * <li>The size of the dataset on disk, smallest first. Datasets whose size
+ * cannot be determined (e.g. remote datasets) come last</li>
+ * <li>The order in which datasets were added</li>
+ * </ul>
+ * 
+ * Large datasets are never allowed to occupy every loading thread, so that
+ * one or two huge aggregations cannot hold up the loading of all of the
+ * smaller datasets.
+ * 
+ * @author Guy Griffiths
+ */
+final class DatasetLoadScheduler {
+    private static final Logger log = LoggerFactory.getLogger(DatasetLoadScheduler.class);
+
+    private final DatasetStorage datasetStorage;
+    private final int threads;
+    private final long largeDatasetBytes;
+    private final boolean fastStart;
+
+    /* Runs the loading tasks */
+    private final ExecutorService loader;
+    /* Periodically checks which datasets need loading */
+    private final ScheduledExecutorService dispatcher;
+
+    /* The datasets being handled, mapped to the order in which they were added */
+    private final Map<DatasetConfig, Long> datasets = new HashMap<>();
+    private long nextOrder = 0L;
+    /* Handles to the tasks loading datasets, used to cancel them */
+    private final Map<DatasetConfig, Future<?>> running = new HashMap<>();
+    private final Set<DatasetConfig> runningLarge = new HashSet<>();
+    /*
+     * The estimated sizes of the datasets. Estimating the size can mean
+     * listing a large directory, so this is only done again after a load.
+     */
+    private final Map<DatasetConfig, Long> sizes = new HashMap<>();
+
+    private final Runnable dispatchTask = new Runnable() {
+        @Override
+        public void run() {
+            try {
+                dispatch();
+            } catch (Exception e) {
+                /*
+                 * An exception would cancel the periodic task, so that no
+                 * datasets would ever be reloaded
+                 */
+                log.error("Problem scheduling datasets for loading", e);
+            }
+        }
+    };
+
+    /**
+     * Creates a new {@link DatasetLoadScheduler} and starts it
+     * 
+     * @param datasetStorage
+     *            The {@link DatasetStorage} to send loaded datasets to
+     * @param loadingInfo
+     *            The {@link LoadingInfo} defining how datasets are loaded
+     */
+    DatasetLoadScheduler(DatasetStorage datasetStorage, LoadingInfo loadingInfo) {
+        this.datasetStorage = datasetStorage;
+        threads = Math.max(1, loadingInfo.getThreads());
+        largeDatasetBytes = loadingInfo.getLargeDatasetSizeMB() * 1024L * 1024L;
+        fastStart = loadingInfo.isFastStart();
+
+        loader = Executors.newFixedThreadPool(threads);
+        dispatcher = Executors.newSingleThreadScheduledExecutor();
+        dispatcher.scheduleWithFixedDelay(dispatchTask, 0, 1, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Adds a dataset to be loaded, and then periodically refreshed as required
+     * 
+     * @param dataset
+     *            The {@link DatasetConfig} to load
+     */
+    synchronized void add(DatasetConfig dataset) {
+        if (!datasets.containsKey(dataset)) {
+            datasets.put(dataset, nextOrder++);
+            if (!dispatcher.isShutdown()) {
+                dispatcher.execute(dispatchTask);
+            }
+        }
+    }
+
+    /**
+     * Stops a dataset being loaded, cancelling any load in progress
+     * 
+     * @param dataset
+     *            The {@link DatasetConfig} to stop loading
+     */
+    synchronized void remove(DatasetConfig dataset) {
+        datasets.remove(dataset);
+        Future<?> future = running.remove(dataset);
+        if (future != null) {
+            future.cancel(true);
+        }
+        runningLarge.remove(dataset);
+        sizes.remove(dataset);
+    }
+
+    /**
+     * Stops all loading of datasets
+     */
+    synchronized void shutdown() {
+        dispatcher.shutdownNow();
+        loader.shutdownNow();
+    }
+
+    private synchronized void dispatch() {
+        if (loader.isShutdown() || running.size() >= threads) {
+            return;
+        }
+
+        boolean initialLoadsPending = false;
+        for (DatasetConfig dataset : running.keySet()) {
+            if (dataset.getLastUpdateTime() == null) {
+                initialLoadsPending = true;
+            }
+        }
+        List<LoadCandidate> candidates = new ArrayList<>();
+        for (Map.Entry<DatasetConfig, Long> entry : datasets.entrySet()) {
+            DatasetConfig dataset = entry.getKey();
+            if (!running.containsKey(dataset) && dataset.needsRefresh()) {
+                Long size = sizes.get(dataset);
+                if (size == null) {
+                    size = estimateSize(dataset.getLocation());
+                    sizes.put(dataset, size);
+                }
+                LoadCandidate candidate = new LoadCandidate(dataset.getLastUpdateTime() == null,
+                        dataset.getPriority(), size, entry.getValue(), dataset);
+                candidates.add(candidate);
+                if (candidate.initialLoad) {
+                    initialLoadsPending = true;
+                }
+            }
+        }
+        Collections.sort(candidates, LOAD_ORDER);
+
+        for (LoadCandidate candidate : candidates) {
+            if (running.size() >= threads) {
+                break;
+            }
+            /*
+             * Datasets which were started from cached state are revalidated
+             * once everything else has been loaded
+             */
+            if (initialLoadsPending && candidate.dataset.isRevalidationPending()) {
+                continue;
+            }
+            boolean large = candidate.size > largeDatasetBytes;
+            if (large && threads > 1 && runningLarge.size() >= threads - 1) {
+                continue;
+            }
+            start(candidate.dataset, large);
+        }
+    }
+
+    private void start(final DatasetConfig dataset, boolean large) {
+        Runnable task = new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    dataset.refresh(datasetStorage, fastStart);
+                } finally {
+                    synchronized (DatasetLoadScheduler.this) {
+                        running.remove(dataset);
+                        runningLarge.remove(dataset);
+                        /* The files may have changed */
+                        sizes.remove(dataset);
+                    }
+                    /*
+                     * A thread is now free, so start the next dataset without
+                     * waiting for the next scheduled check
+                     */
+                    if (!dispatcher.isShutdown()) {
+                        dispatcher.execute(dispatchTask);
+                    }
+                }
+            }
+        };
+        running.put(dataset, loader.submit(task));
+        if (large) {
+            runningLarge.add(dataset);
+        }
+    }
+
+    /**
+     * Estimates the size of a dataset from the files it is stored in
+     * 
+     * @param location
+     *            The location of the dataset. This may be a file, a directory,
+     *            or a glob expression in its final path component
+     * @return The total size, in bytes, of the files making up the dataset, or
+     *         -1 if this cannot be determined (e.g. for a remote dataset)
+     */
+    static long estimateSize(String location) {
+        if (location == null) {
+            return -1L;
+        }
+        File file = new File(location);
+        if (file.isFile()) {
+            return file.length();
+        }
+        File dir = file.isDirectory() ? file : file.getParentFile();
+        if (dir == null || !dir.isDirectory()) {
+            return -1L;
+        }
+        String glob = file.isDirectory() ? "*" : file.getName();
+        long size = 0L;
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir.toPath(), glob)) {
+            for (Path path : stream) {
+                File child = path.toFile();
+                if (child.isFile()) {
+                    size += child.length();
+                }
+            }
+        } catch (IOException | RuntimeException e) {
+            return -1L;
+        }
+        return size;
+    }
+
+    /**
+     * Orders {@link LoadCandidate}s, with the ones which should be loaded first
+     * at the start
+     */
+    static final Comparator<LoadCandidate> LOAD_ORDER = new Comparator<LoadCandidate>() {
+        @Override
+        public int compare(LoadCandidate o1, LoadCandidate o2) {
+            if (o1.initialLoad != o2.initialLoad) {
+                return o1.initialLoad ? -1 : 1;
+            }
+            if (o1.priority != o2.priority) {
+                return Integer.compare(o2.priority, o1.priority);
+            }
+            if (o1.size != o2.size) {
+                if (o1.size < 0) {
+                    return 1;
+                } else if (o2.size < 0) {
+                    return -1;
+                }
+                return Long.compare(o1.size, o2.size);
+            }
+            return Long.compare(o1.order, o2.order);
+        }
+    };
+
+    /**
+     * A dataset which is waiting to be loaded
+     */
+    static final class LoadCandidate {
+        final boolean initialLoad;
+        final int priority;
+        final long size;
+        final long order;
+        final DatasetConfig dataset;
+
+        LoadCandidate(boolean initialLoad, int priority, long size, long order,
+                DatasetConfig dataset) {
+            this.initialLoad = initialLoad;
+            this.priority = priority;
+            this.size = size;
+            this.order = order;
+            this.dataset = dataset;
+        }
+    }
+}
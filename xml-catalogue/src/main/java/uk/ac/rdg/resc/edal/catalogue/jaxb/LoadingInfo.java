@@ -0,0 +1,93 @@
+/*******************************************************************************
+ * Copyright (c) 2016 The University of Reading
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the University of Reading, nor the names of the
+ *    authors or contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ******************************************************************************/
+
+package uk.ac.rdg.resc.edal.catalogue.jaxb;
+
+import javax.xml.bind.annotation.XmlAccessType;
+import javax.xml.bind.annotation.XmlAccessorType;
+import javax.xml.bind.annotation.XmlElement;
+import javax.xml.bind.annotation.XmlRootElement;
+
+/**
+ * The information needed to configure how the datasets in a
+ * {@link CatalogueConfig} are loaded
+ * 
+ * @author Guy Griffiths
+ */
+@XmlRootElement
+@XmlAccessorType(XmlAccessType.FIELD)
+public class LoadingInfo {
+    /* The maximum number of datasets which will be loaded at once */
+    @XmlElement(name = "threads")
+    private int threads = 4;
+    /*
+     * Datasets whose files take up more than this on disk are considered large.
+     * Large datasets are never allowed to occupy every loading thread.
+     */
+    @XmlElement(name = "largeDatasetSizeMB")
+    private int largeDatasetSizeMB = 1024;
+    /*
+     * If true, datasets are first loaded from any state cached by a previous
+     * run, and then revalidated against their source data in the background
+     */
+    @XmlElement(name = "fastStart")
+    private boolean fastStart = false;
+
+    public LoadingInfo() {
+    }
+
+    public LoadingInfo(int threads, int largeDatasetSizeMB, boolean fastStart) {
+        this.threads = threads;
+        this.largeDatasetSizeMB = largeDatasetSizeMB;
+        this.fastStart = fastStart;
+    }
+
+    public int getThreads() {
+        return threads;
+    }
+
+    public void setThreads(int threads) {
+        this.threads = threads;
+    }
+
+    public int getLargeDatasetSizeMB() {
+        return largeDatasetSizeMB;
+    }
+
+    public void setLargeDatasetSizeMB(int largeDatasetSizeMB) {
+        this.largeDatasetSizeMB = largeDatasetSizeMB;
+    }
+
+    public boolean isFastStart() {
+        return fastStart;
+    }
+
+    public void setFastStart(boolean fastStart) {
+        this.fastStart = fastStart;
+    }
+}
@@ -170,6 +170,10 @@ public class VariableConfig implements EnhancedVariableMetadata {
         return dataset.isDownloadable();
     }
 
+    public int getCacheMaxAge() {
+        return dataset.getCacheMaxAge();
+    }
+
     public boolean isDisabled() {
         return disabled == null ? false : disabled;
     }
@@ -0,0 +1,202 @@
+/*******************************************************************************
+ * Copyright (c) 2016 The University of Reading
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the University of Reading, nor the names of the
+ *    authors or contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ******************************************************************************/
+
+package uk.ac.rdg.resc.edal.catalogue;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.geotoolkit.referencing.crs.DefaultGeographicCRS;
+import org.junit.Before;
+import org.junit.Test;
+
+import uk.ac.rdg.resc.edal.domain.MapDomain;
+import uk.ac.rdg.resc.edal.feature.DiscreteFeature;
+import uk.ac.rdg.resc.edal.feature.MapFeature;
+import uk.ac.rdg.resc.edal.feature.ProfileFeature;
+import uk.ac.rdg.resc.edal.geometry.BoundingBoxImpl;
+import uk.ac.rdg.resc.edal.metadata.Parameter;
+import uk.ac.rdg.resc.edal.util.Array1D;
+import uk.ac.rdg.resc.edal.util.Array2D;
+import uk.ac.rdg.resc.edal.util.FloatArray2D;
+import uk.ac.rdg.resc.edal.util.ValuesArray2D;
+
+/**
+ * Tests for {@link OffHeapFeatureStore}
+ * 
+ * @author Guy Griffiths
+ */
+public class OffHeapFeatureStoreTest {
+    private static final int XSIZE = 10;
+    private static final int YSIZE = 5;
+    /*
+     * The number of bytes needed to store a single feature from
+     * createFeatures()
+     */
+    private static final long FEATURE_BYTES = XSIZE * YSIZE * 4 * 2;
+
+    private List<MapFeature> features;
+
+    @Before
+    public void setUp() {
+        features = OffHeapFeatureStore.compact(createFeatures());
+    }
+
+    private List<MapFeature> createFeatures() {
+        MapDomain domain = new MapDomain(new BoundingBoxImpl(-10, -5, 10, 5,
+                DefaultGeographicCRS.WGS84), XSIZE, YSIZE,
+                null, null);
+        Map<String, Parameter> parameters = new HashMap<>();
+        Map<String, Array2D<Number>> values = new HashMap<>();
+        for (String paramId : new String[] { "temp", "salinity" }) {
+            parameters.put(paramId, new Parameter(paramId, paramId, paramId, "units", null));
+            ValuesArray2D paramValues = new ValuesArray2D(YSIZE, XSIZE);
+            for (int j = 0; j < YSIZE; j++) {
+                for (int i = 0; i < XSIZE; i++) {
+                    /*
+                     * Leave some missing values
+                     */
+                    if ((i + j) % 7 != 0) {
+                        paramValues.set(paramId.length() + j * XSIZE + i + 0.5, j, i);
+                    }
+                }
+            }
+            values.put(paramId, paramValues);
+        }
+        MapFeature feature = new MapFeature("feature", "Feature", "A test feature", domain,
+                parameters, values);
+        feature.getFeatureProperties().put("property", "value");
+        List<MapFeature> ret = new ArrayList<>();
+        ret.add(feature);
+        return ret;
+    }
+
+    @Test
+    public void testCompact() {
+        List<MapFeature> original = createFeatures();
+        assertEquals(1, features.size());
+        MapFeature compacted = features.get(0);
+        assertEquals("value", compacted.getFeatureProperties().get("property"));
+        for (String paramId : original.get(0).getParameterIds()) {
+            assertTrue(compacted.getValues(paramId) instanceof FloatArray2D);
+            assertValuesEqual(original.get(0).getValues(paramId), compacted.getValues(paramId));
+        }
+
+        List<DiscreteFeature<?, ?>> notMapFeatures = new ArrayList<>();
+        notMapFeatures.add(new ProfileFeature("profile", "Profile", "A profile", null, null,
+                null, Collections.<String, Parameter> emptyMap(),
+                Collections.<String, Array1D<Number>> emptyMap()));
+        assertNull(OffHeapFeatureStore.compact(notMapFeatures));
+    }
+
+    @Test
+    public void testPutAndGet() {
+        OffHeapFeatureStore store = new OffHeapFeatureStore(10 * FEATURE_BYTES, 0L);
+        assertNull(store.get("key"));
+        assertTrue(store.put("key", features));
+
+        List<MapFeature> retrieved = store.get("key");
+        assertNotNull(retrieved);
+        assertEquals(1, retrieved.size());
+        MapFeature original = features.get(0);
+        MapFeature feature = retrieved.get(0);
+        assertEquals(original.getId(), feature.getId());
+        assertSame(original.getDomain(), feature.getDomain());
+        assertEquals(original.getParameterIds(), feature.getParameterIds());
+        assertEquals("value", feature.getFeatureProperties().get("property"));
+        for (String paramId : original.getParameterIds()) {
+            assertValuesEqual(original.getValues(paramId), feature.getValues(paramId));
+        }
+
+        CacheTierStatistics stats = store.getStatistics();
+        assertEquals(1, stats.getEntries());
+        assertEquals(FEATURE_BYTES, stats.getSizeBytes());
+        assertEquals(1, stats.getHits());
+        assertEquals(1, stats.getMisses());
+        assertEquals(0, stats.getEvictions());
+
+        store.clear();
+        assertNull(store.get("key"));
+        assertEquals(0, store.getStatistics().getSizeBytes());
+    }
+
+    @Test
+    public void testEviction() {
+        OffHeapFeatureStore store = new OffHeapFeatureStore(2 * FEATURE_BYTES, 0L);
+        store.put("a", features);
+        store.put("b", features);
+        /*
+         * Access "a" so that "b" is the least-recently used
+         */
+        assertNotNull(store.get("a"));
+        store.put("c", features);
+        assertNull(store.get("b"));
+        assertNotNull(store.get("a"));
+        assertNotNull(store.get("c"));
+
+        CacheTierStatistics stats = store.getStatistics();
+        assertEquals(2, stats.getEntries());
+        assertEquals(2 * FEATURE_BYTES, stats.getSizeBytes());
+        assertEquals(1, stats.getEvictions());
+
+        /*
+         * Entries which can never fit are rejected
+         */
+        OffHeapFeatureStore smallStore = new OffHeapFeatureStore(FEATURE_BYTES - 1, 0L);
+        assertFalse(smallStore.put("a", features));
+        assertEquals(0, smallStore.getStatistics().getEntries());
+    }
+
+    @Test
+    public void testExpiry() throws InterruptedException {
+        OffHeapFeatureStore store = new OffHeapFeatureStore(10 * FEATURE_BYTES, 1L);
+        store.put("key", features);
+        Thread.sleep(10);
+        assertNull(store.get("key"));
+        assertEquals(0, store.getStatistics().getEntries());
+    }
+
+    private static void assertValuesEqual(Array2D<Number> expected, Array2D<Number> actual) {
+        for (int j = 0; j < YSIZE; j++) {
+            for (int i = 0; i < XSIZE; i++) {
+                Number expectedValue = expected.get(j, i);
+                Number actualValue = actual.get(j, i);
+                if (expectedValue == null) {
+                    assertNull(actualValue);
+                } else {
+                    assertEquals(expectedValue.floatValue(), actualValue.floatValue(), 0f);
+                }
+            }
+        }
+    }
+}
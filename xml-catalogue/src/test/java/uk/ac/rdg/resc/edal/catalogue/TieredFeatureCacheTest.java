@@ -0,0 +1,195 @@
+/*******************************************************************************
+ * Copyright (c) 2016 The University of Reading
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the University of Reading, nor the names of the
+ *    authors or contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ******************************************************************************/
+
+package uk.ac.rdg.resc.edal.catalogue;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import net.sf.ehcache.CacheManager;
+import net.sf.ehcache.config.Configuration;
+
+import org.geotoolkit.referencing.crs.DefaultGeographicCRS;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import uk.ac.rdg.resc.edal.domain.MapDomain;
+import uk.ac.rdg.resc.edal.feature.DiscreteFeature;
+import uk.ac.rdg.resc.edal.feature.MapFeature;
+import uk.ac.rdg.resc.edal.feature.ProfileFeature;
+import uk.ac.rdg.resc.edal.geometry.BoundingBoxImpl;
+import uk.ac.rdg.resc.edal.metadata.Parameter;
+import uk.ac.rdg.resc.edal.util.Array1D;
+import uk.ac.rdg.resc.edal.util.Array2D;
+import uk.ac.rdg.resc.edal.util.ValuesArray2D;
+
+/**
+ * Tests for {@link TieredFeatureCache}
+ * 
+ * @author Guy Griffiths
+ */
+public class TieredFeatureCacheTest {
+    private static final int SIZE = 64;
+    /*
+     * The number of bytes needed to store the values of a single feature from
+     * createFeatures()
+     */
+    private static final long FEATURE_BYTES = SIZE * SIZE * 4;
+    private static final int N_ENTRIES = 50;
+
+    private CacheManager cacheManager;
+
+    @Before
+    public void setUp() {
+        cacheManager = new CacheManager(new Configuration().name("TieredFeatureCacheTest"));
+    }
+
+    @After
+    public void tearDown() {
+        cacheManager.shutdown();
+    }
+
+    private static List<MapFeature> createFeatures(int index) {
+        MapDomain domain = new MapDomain(new BoundingBoxImpl(-10, -5, 10, 5,
+                DefaultGeographicCRS.WGS84), SIZE, SIZE, null, null);
+        Map<String, Parameter> parameters = new HashMap<>();
+        parameters.put("temp", new Parameter("temp", "temp", "temp", "units", null));
+        ValuesArray2D values = new ValuesArray2D(SIZE, SIZE);
+        for (int j = 0; j < SIZE; j++) {
+            for (int i = 0; i < SIZE; i++) {
+                values.set(index + j * SIZE + i, j, i);
+            }
+        }
+        Map<String, Array2D<Number>> valuesMap = new HashMap<>();
+        valuesMap.put("temp", values);
+        List<MapFeature> ret = new ArrayList<>();
+        ret.add(new MapFeature("feature" + index, "Feature", "A test feature", domain,
+                parameters, valuesMap));
+        return ret;
+    }
+
+    @Test
+    public void testOffHeapTierHoldsBulk() {
+        TieredFeatureCache cache = new TieredFeatureCache(cacheManager, "features", 256, 1, 0L);
+        for (int i = 0; i < N_ENTRIES; i++) {
+            cache.put("key" + i, createFeatures(i));
+        }
+        /*
+         * New features are only stored off-heap
+         */
+        List<CacheTierStatistics> stats = cache.getStatistics();
+        assertEquals(2, stats.size());
+        assertEquals(0, stats.get(0).getEntries());
+        assertEquals(N_ENTRIES, stats.get(1).getEntries());
+        assertEquals(N_ENTRIES * FEATURE_BYTES, stats.get(1).getSizeBytes());
+
+        /*
+         * A single hit doesn't promote an entry
+         */
+        for (int i = 0; i < N_ENTRIES; i++) {
+            assertNotNull(cache.get("key" + i));
+        }
+        assertEquals(0, cache.getStatistics().get(0).getEntries());
+
+        /*
+         * Repeated hits do, but the in-memory tier stays small
+         */
+        for (int i = 0; i < N_ENTRIES; i++) {
+            Object feature = cache.get("key" + i).iterator().next();
+            assertEquals("feature" + i, ((MapFeature) feature).getId());
+        }
+        stats = cache.getStatistics();
+        assertTrue(stats.get(0).getEntries() > 0);
+        assertTrue(stats.get(0).getEntries() <= TieredFeatureCache.HOT_ENTRIES);
+        assertEquals(N_ENTRIES, stats.get(1).getEntries());
+        assertEquals(N_ENTRIES * FEATURE_BYTES, stats.get(1).getSizeBytes());
+
+        /*
+         * Promoted entries are then served from the in-memory tier
+         */
+        String hotKey = "key" + (N_ENTRIES - 1);
+        long heapHits = stats.get(0).getHits();
+        long offHeapHits = stats.get(1).getHits();
+        assertSame(cache.get(hotKey), cache.get(hotKey));
+        stats = cache.getStatistics();
+        assertEquals(heapHits + 2, stats.get(0).getHits());
+        assertEquals(offHeapHits, stats.get(1).getHits());
+
+        assertNull(cache.get("missing"));
+    }
+
+    @Test
+    public void testNonMapFeatures() {
+        TieredFeatureCache cache = new TieredFeatureCache(cacheManager, "features", 256, 1, 0L);
+        List<DiscreteFeature<?, ?>> profiles = new ArrayList<>();
+        profiles.add(new ProfileFeature("profile", "Profile", "A profile", null, null, null,
+                Collections.<String, Parameter> emptyMap(),
+                Collections.<String, Array1D<Number>> emptyMap()));
+        /*
+         * Features which can't be stored off-heap are kept in memory
+         */
+        cache.put("profiles", profiles);
+        assertSame(profiles, cache.get("profiles"));
+        assertEquals(0, cache.getStatistics().get(1).getEntries());
+    }
+
+    @Test
+    public void testWithoutOffHeapTier() {
+        TieredFeatureCache cache = new TieredFeatureCache(cacheManager, "features", 16, 0, 0L);
+        List<MapFeature> features = createFeatures(0);
+        cache.put("key", features);
+        assertSame(features, cache.get("key"));
+
+        List<CacheTierStatistics> stats = cache.getStatistics();
+        assertEquals(1, stats.size());
+        assertEquals(1, stats.get(0).getEntries());
+        assertEquals(16L * 1024 * 1024, stats.get(0).getMaxSizeBytes());
+    }
+
+    @Test
+    public void testDispose() {
+        TieredFeatureCache cache = new TieredFeatureCache(cacheManager, "features", 256, 1, 0L);
+        cache.put("key", createFeatures(0));
+        assertTrue(cacheManager.cacheExists("features"));
+        assertTrue(cache.hasSettings(256, 1, 0L));
+        assertFalse(cache.hasSettings(256, 2, 0L));
+        cache.dispose();
+        assertFalse(cacheManager.cacheExists("features"));
+    }
+}
@@ -0,0 +1,113 @@
+/*******************************************************************************
+ * Copyright (c) 2016 The University of Reading
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the University of Reading, nor the names of the
+ *    authors or contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ******************************************************************************/
+
+package uk.ac.rdg.resc.edal.catalogue.jaxb;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import uk.ac.rdg.resc.edal.catalogue.jaxb.DatasetLoadScheduler.LoadCandidate;
+
+/**
+ * Tests for {@link DatasetLoadScheduler}
+ * 
+ * @author Guy Griffiths
+ */
+public class DatasetLoadSchedulerTest {
+    private File dir;
+
+    @Before
+    public void setUp() throws IOException {
+        dir = File.createTempFile("edal-load", "");
+        dir.delete();
+        dir.mkdirs();
+        writeFile("a.nc", 100);
+        writeFile("b.nc", 50);
+        writeFile("c.txt", 7);
+    }
+
+    @After
+    public void tearDown() {
+        for (File file : dir.listFiles()) {
+            file.delete();
+        }
+        dir.delete();
+    }
+
+    private void writeFile(String name, int size) throws IOException {
+        try (FileOutputStream out = new FileOutputStream(new File(dir, name))) {
+            out.write(new byte[size]);
+        }
+    }
+
+    @Test
+    public void testEstimateSize() {
+        assertEquals(100L, DatasetLoadScheduler.estimateSize(new File(dir, "a.nc").getPath()));
+        assertEquals(150L, DatasetLoadScheduler.estimateSize(new File(dir, "*.nc").getPath()));
+        assertEquals(157L, DatasetLoadScheduler.estimateSize(dir.getPath()));
+        assertEquals(-1L, DatasetLoadScheduler.estimateSize(new File(dir, "missing/*.nc")
+                .getPath()));
+        assertEquals(-1L, DatasetLoadScheduler.estimateSize("http://localhost/dods/data.nc"));
+    }
+
+    @Test
+    public void testLoadOrder() {
+        List<LoadCandidate> candidates = new ArrayList<>();
+        LoadCandidate reload = new LoadCandidate(false, 10, 1L, 0L, null);
+        LoadCandidate remote = new LoadCandidate(true, 0, -1L, 1L, null);
+        LoadCandidate large = new LoadCandidate(true, 0, 1000L, 2L, null);
+        LoadCandidate small = new LoadCandidate(true, 0, 10L, 3L, null);
+        LoadCandidate smallLater = new LoadCandidate(true, 0, 10L, 4L, null);
+        LoadCandidate important = new LoadCandidate(true, 5, 5000L, 5L, null);
+        candidates.add(reload);
+        candidates.add(remote);
+        candidates.add(large);
+        candidates.add(small);
+        candidates.add(smallLater);
+        candidates.add(important);
+
+        Collections.sort(candidates, DatasetLoadScheduler.LOAD_ORDER);
+
+        assertSame(important, candidates.get(0));
+        assertSame(small, candidates.get(1));
+        assertSame(smallLater, candidates.get(2));
+        assertSame(large, candidates.get(3));
+        assertSame(remote, candidates.get(4));
+        assertSame(reload, candidates.get(5));
+    }
+}